@@ -0,0 +1,44 @@
+import bench.Phases;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.List;
+
+// Phases of the interpreter for the benchmarks in the bench package (see bench.Phases).
+public class InterpreterPhases implements Phases {
+    @Override
+    public Object lex(String code) {
+        return new Lexer(code).tokenize();
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public Object parse(Object tokens) {
+        return new Parser((List<Token>) tokens).parse();
+    }
+
+    // Includes the Optimizer, which runs between the parser and the Resolver, and TypeInference after it.
+    @Override
+    public Object resolve(Object program) {
+        ASTNode optimized = Optimizer.optimize((ASTNode) program);
+        new Resolver().resolve(optimized);
+        TypeInference.infer(optimized);
+        return optimized;
+    }
+
+    @Override
+    public Object run(Object program, String engine, Blackhole blackhole) {
+        Interpreter interpreter = new Interpreter();
+        interpreter.setEngine(Interpreter.Engine.valueOf(engine));
+        interpreter.setOutput(new OutputSink() {
+            @Override
+            public void print(String text) {
+                blackhole.consume(text);
+            }
+
+            @Override
+            public void flush() {
+            }
+        });
+        return interpreter.run((ASTNode) program);
+    }
+}
@@ -0,0 +1,27 @@
+package bench;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+
+// The benchmark scripts in resources/corpus, one per hot path:
+//   fib      recursive calls
+//   loops    nested numeric while loops
+//   lists    append, index and slice
+//   strings  string concatenation
+//   classes  instantiation, method calls and field reads
+final class Corpus {
+    private Corpus() {}
+
+    static String read(String name) {
+        try (InputStream in = Corpus.class.getResourceAsStream("/corpus/" + name + ".txt")) {
+            if (in == null) {
+                throw new IllegalArgumentException("No corpus script: " + name);
+            }
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
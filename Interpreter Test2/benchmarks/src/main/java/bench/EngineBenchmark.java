@@ -0,0 +1,47 @@
+package bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+// Interpreter.run of a resolved program with every engine. A run starts with a new interpreter,
+// like a script started from the editor. The closure and bytecode engines compile the program as
+// part of the run, functions get hot (and JIT compiled) within one run like they would in the editor.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EngineBenchmark {
+    @Param({"fib", "loops", "lists", "strings", "classes"})
+    public String script;
+
+    @Param({"TREE", "CLOSURE", "BYTECODE"})
+    public String engine;
+
+    private Phases phases;
+    private Object program;
+
+    @Setup
+    public void load() {
+        phases = Phases.load();
+        program = phases.resolve(phases.parse(phases.lex(Corpus.read(script))));
+    }
+
+    @Benchmark
+    public Object run(Blackhole blackhole) {
+        return phases.run(program, engine, blackhole);
+    }
+}
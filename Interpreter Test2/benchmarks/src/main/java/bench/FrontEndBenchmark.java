@@ -0,0 +1,57 @@
+package bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+// Lexer.tokenize, Parser.parse and the Resolver, one benchmark per phase. Each phase starts from
+// the output of the phase before, prepared once, so a score only measures its own phase.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FrontEndBenchmark {
+    @Param({"fib", "loops", "lists", "strings", "classes"})
+    public String script;
+
+    private Phases phases;
+    private String code;
+    private Object tokens;
+    private Object program;
+
+    @Setup
+    public void load() {
+        phases = Phases.load();
+        code = Corpus.read(script);
+        tokens = phases.lex(code);
+        program = phases.parse(tokens);
+    }
+
+    @Benchmark
+    public Object lex() {
+        return phases.lex(code);
+    }
+
+    @Benchmark
+    public Object parse() {
+        return phases.parse(tokens);
+    }
+
+    // Resolving again gives every block a new layout, the same work as the first time.
+    @Benchmark
+    public Object resolve() {
+        return phases.resolve(program);
+    }
+}
@@ -0,0 +1,27 @@
+package bench;
+
+import org.openjdk.jmh.infra.Blackhole;
+
+// The interpreter classes live in the default package, which a JMH benchmark (it must have a
+// package) cannot import. InterpreterPhases in the default package implements this interface,
+// the benchmarks load it once by name and then make plain interface calls.
+// Values are passed as Object: tokens, programs and results are the interpreter's own types.
+public interface Phases {
+    Object lex(String code);
+
+    Object parse(Object tokens);
+
+    // Optimizes and resolves a parsed program and returns it (the same tree, changed in place).
+    Object resolve(Object program);
+
+    // Runs a resolved program with a new interpreter and the given engine, print goes into the blackhole.
+    Object run(Object program, String engine, Blackhole blackhole);
+
+    static Phases load() {
+        try {
+            return (Phases) Class.forName("InterpreterPhases").getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("InterpreterPhases is missing from the benchmark class path", e);
+        }
+    }
+}
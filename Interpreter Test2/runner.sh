@@ -0,0 +1,16 @@
+#!/bin/sh
+# Headless launcher for Runner. Builds build/runner.jar from src when it is missing or older than a
+# source file, and runs it with an AppCDS archive (build/runner.jsa, written by the first run, JDK 19+)
+# so one-shot runs start faster. CDS needs the classes in a jar, a class directory cannot be archived.
+# Usage: ./runner.sh [--engine=tree|closure|bytecode] [--disassemble] [file | -]
+# RUNNER_JAVA_OPTS replaces the default JVM options (C1 only, the best fit for short scripts).
+dir=$(cd "$(dirname "$0")" && pwd)
+jar="$dir/build/runner.jar"
+if [ ! -f "$jar" ] || [ -n "$(find "$dir/src" -maxdepth 1 -name '*.java' -newer "$jar")" ]; then
+    rm -rf "$dir/build/runner" && mkdir -p "$dir/build/runner" || exit 4
+    javac -d "$dir/build/runner" "$dir"/src/*.java || exit 4
+    jar --create --file "$jar" --main-class Runner -C "$dir/build/runner" . || exit 4
+    rm -f "$dir/build/runner.jsa"
+fi
+exec java ${RUNNER_JAVA_OPTS:--XX:TieredStopAtLevel=1} -XX:+AutoCreateSharedArchive \
+    -XX:SharedArchiveFile="$dir/build/runner.jsa" -jar "$jar" "$@"
@@ -3,6 +3,8 @@ import java.util.List;
 abstract class ASTNode {
     // Field to track the line number.
     public int line = -1;
+    // Static type of an expression, filled in by TypeInference.
+    ValueType type = ValueType.UNKNOWN;
 }
 
 class NumberNode extends ASTNode {
@@ -13,6 +15,32 @@ class NumberNode extends ASTNode {
     }
 }
 
+// Value known before the program runs: a decoded literal or a folded expression (see Optimizer).
+class ConstantNode extends ASTNode {
+    final Object value;
+    public ConstantNode(Object value, int line) {
+        this.value = value;
+        this.line = line;
+    }
+}
+
+// Expression with the same value on every iteration of 'loop' (see LoopInvariants). The value is
+// kept in the hidden variable 'name' of the frame the loop runs in, 'depth' frames up at 'slot'.
+class InvariantNode extends ASTNode {
+    final ASTNode expression;
+    final ASTNode loop;
+    final String name;
+    final int depth;
+    int slot;
+    public InvariantNode(ASTNode expression, ASTNode loop, String name, int depth) {
+        this.expression = expression;
+        this.loop = loop;
+        this.name = name;
+        this.depth = depth;
+        this.line = expression.line;
+    }
+}
+
 class BinaryOpNode extends ASTNode {
     Token op;
     ASTNode left;
@@ -38,6 +66,10 @@ class UnaryOpNode extends ASTNode {
 class AssignmentNode extends ASTNode {
     Token identifier;
     ASTNode value;
+    // Filled in by the Resolver: slot of the variable in the current frame, and the address of 'this' inside methods.
+    int slot = -1;
+    int thisDepth = -1;
+    int thisSlot = -1;
     public AssignmentNode(ASTNode value, Token identifier) {
         this.value = value;
         this.identifier = identifier;
@@ -47,6 +79,11 @@ class AssignmentNode extends ASTNode {
 
 class IdentifierNode extends ASTNode {
     Token identifier;
+    // Filled in by the Resolver: how many frames up the variable lives and its slot there.
+    int depth = Resolver.UNRESOLVED;
+    int slot = -1;
+    int thisDepth = -1;
+    int thisSlot = -1;
     public IdentifierNode(Token identifier) {
         this.identifier = identifier;
         this.line = identifier.line;
@@ -55,6 +92,7 @@ class IdentifierNode extends ASTNode {
 
 class BlockNode extends ASTNode {
     List<ASTNode> statements;
+    FrameLayout layout; // Slots of the frame this block creates (set by the Resolver).
     public BlockNode(List<ASTNode> statements, int line) {
         this.statements = statements;
         this.line = line;
@@ -68,6 +106,11 @@ class FunctionDefinitionNode extends ASTNode {
     Token name;
     List<Token> parameters;
     ASTNode body;
+    // Filled in by the Resolver: the call frame layout (parameters come first), the slot of 'this'
+    // for methods, and the slot the function name is defined in.
+    FrameLayout layout;
+    int thisSlot = -1;
+    int slot = -1;
     public FunctionDefinitionNode(Token name, List<Token> parameters, ASTNode body) {
         this.name = name;
         this.parameters = parameters;
@@ -79,6 +122,8 @@ class FunctionDefinitionNode extends ASTNode {
 class FunctionCallNode extends ASTNode {
     Token name;
     List<ASTNode> arguments;
+    int depth = Resolver.UNRESOLVED;
+    int slot = -1;
     public FunctionCallNode(Token name, List<ASTNode> arguments) {
         this.name = name;
         this.arguments = arguments;
@@ -120,6 +165,7 @@ class PrintNode extends ASTNode {
 
 class ReturnNode extends ASTNode {
     public ASTNode expression;
+    boolean tailCall; // Set by the Resolver: returns a function call, inside a function.
     public ReturnNode(ASTNode expression) {
         this.expression = expression;
         this.line = expression.line;
@@ -129,6 +175,7 @@ class ReturnNode extends ASTNode {
 class ClassDefinitionNode extends ASTNode {
     public Token name;
     public List<ASTNode> members;
+    int slot = -1;
     public ClassDefinitionNode(Token name, List<ASTNode> members) {
         this.name = name;
         this.members = members;
@@ -139,6 +186,8 @@ class ClassDefinitionNode extends ASTNode {
 class ObjectCreationNode extends ASTNode {
     public Token className;
     public List<ASTNode> arguments;
+    int depth = Resolver.UNRESOLVED;
+    int slot = -1;
     public ObjectCreationNode(Token className, List<ASTNode> arguments) {
         this.className = className;
         this.arguments = arguments;
@@ -150,11 +199,13 @@ class MethodCallNode extends ASTNode {
     public ASTNode target;         // The object on which the method is called.
     public Token methodName;       // The token representing the method name.
     public List<ASTNode> arguments; // The list of arguments passed to the method.
+    final MethodCache cache;        // Methods found at this call site by the tree walker.
     public MethodCallNode(ASTNode target, Token methodName, List<ASTNode> arguments) {
         this.target = target;
         this.methodName = methodName;
         this.arguments = arguments;
         this.line = methodName.line;
+        this.cache = new MethodCache(methodName.value);
     }
 
     @Override
@@ -166,10 +217,12 @@ class MethodCallNode extends ASTNode {
 class FieldAccessNode extends ASTNode {
     public ASTNode target;
     public Token fieldName;
+    final FieldCache cache; // Field slots found here by the tree walker.
     public FieldAccessNode(ASTNode target, Token fieldName) {
         this.target = target;
         this.fieldName = fieldName;
         this.line = fieldName.line;
+        this.cache = new FieldCache(fieldName.value);
     }
 }
 
@@ -196,6 +249,7 @@ class BooleanNode extends ASTNode {
 class WhileNode extends ASTNode {
     public ASTNode condition;
     public ASTNode body;
+    int[] invariants; // Hidden slots of its loop invariants, unset when the loop starts (null: none).
     public WhileNode(ASTNode condition, ASTNode body) {
         this.condition = condition;
         this.body = body;
@@ -210,6 +264,8 @@ class ForNode extends ASTNode {
     public ASTNode start;
     public ASTNode end;
     public ASTNode body;
+    int slot = -1; // Slot of the loop variable in the enclosing frame.
+    int[] invariants; // Hidden slots of its loop invariants, unset when the loop starts (null: none).
     public ForNode(Token loopVar, ASTNode start, ASTNode end, ASTNode body) {
         this.loopVar = loopVar;
         this.start = start;
@@ -233,6 +289,34 @@ class ListNode extends ASTNode {
     }
 }
 
+// Dict literal {key: value, ...}, keys.get(i) maps to values.get(i).
+class DictNode extends ASTNode {
+    final List<ASTNode> keys;
+    final List<ASTNode> values;
+    public DictNode(List<ASTNode> keys, List<ASTNode> values, int line) {
+        this.keys = keys;
+        this.values = values;
+        this.line = line;
+    }
+    @Override
+    public String toString() {
+        return "DictNode{" + keys + ", " + values + "}";
+    }
+}
+
+// Set literal {a, b, ...}.
+class SetNode extends ASTNode {
+    final List<ASTNode> elements;
+    public SetNode(List<ASTNode> elements, int line) {
+        this.elements = elements;
+        this.line = line;
+    }
+    @Override
+    public String toString() {
+        return "SetNode{" + elements + "}";
+    }
+}
+
 class IndexNode extends ASTNode {
     private ASTNode base;
     private ASTNode index;
@@ -305,6 +389,8 @@ class ForEachNode extends ASTNode {
     private Token loopVar;
     private ASTNode listExpr;
     private ASTNode body;
+    FrameLayout layout; // Layout of the loop frame, the loop variable is always slot 0.
+    int[] invariants; // Hidden slots of its loop invariants, unset when the loop starts (null: none).
     public ForEachNode(Token loopVar, ASTNode listExpr, ASTNode body) {
         this.loopVar = loopVar;
         this.listExpr = listExpr;
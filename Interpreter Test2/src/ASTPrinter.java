@@ -0,0 +1,196 @@
+// Prints an AST as an indented tree, one node per line, for debugging the parser and the Optimizer
+// (Runner --dump-ast prints the program before and after optimization).
+public final class ASTPrinter {
+    private ASTPrinter() {}
+
+    public static String print(ASTNode node) {
+        StringBuilder sb = new StringBuilder();
+        print(node, 0, sb);
+        return sb.toString();
+    }
+
+    private static void print(ASTNode node, int level, StringBuilder sb) {
+        if (node == null) return;
+        String indent = "  ".repeat(level);
+        if (node instanceof ConstantNode) {
+            Object value = ((ConstantNode) node).value;
+            sb.append(indent).append("Constant: ")
+                    .append(value instanceof String ? "\"" + value + "\"" : Interpreter.formatValue(value)).append("\n");
+        } else if (node instanceof NumberNode) {
+            sb.append(indent).append("Number: ").append(((NumberNode) node).token.value).append("\n");
+        } else if (node instanceof StringNode) {
+            sb.append(indent).append("String: \"").append(((StringNode) node).token.value).append("\"\n");
+        } else if (node instanceof BooleanNode) {
+            sb.append(indent).append("Boolean: ").append(((BooleanNode) node).token.value).append("\n");
+        } else if (node instanceof IdentifierNode) {
+            sb.append(indent).append("Identifier: ").append(((IdentifierNode) node).identifier.value).append("\n");
+        } else if (node instanceof BinaryOpNode) {
+            BinaryOpNode binOp = (BinaryOpNode) node;
+            sb.append(indent).append("BinaryOp: ").append(binOp.op.value).append("\n");
+            print(binOp.left, level + 1, sb);
+            print(binOp.right, level + 1, sb);
+        } else if (node instanceof UnaryOpNode) {
+            UnaryOpNode unary = (UnaryOpNode) node;
+            sb.append(indent).append("UnaryOp: ").append(unary.op.value).append("\n");
+            print(unary.operand, level + 1, sb);
+        } else if (node instanceof InvariantNode) {
+            sb.append(indent).append("Invariant:\n");
+            print(((InvariantNode) node).expression, level + 1, sb);
+        } else if (node instanceof AssignmentNode) {
+            AssignmentNode assign = (AssignmentNode) node;
+            sb.append(indent).append("Assignment:\n");
+            sb.append(indent).append("  Identifier: ").append(assign.identifier.value).append("\n");
+            sb.append(indent).append("  Value:\n");
+            print(assign.value, level + 2, sb);
+        } else if (node instanceof PrintNode) {
+            sb.append(indent).append("Print:\n");
+            print(((PrintNode) node).expression, level + 1, sb);
+        } else if (node instanceof ReturnNode) {
+            ReturnNode returnNode = (ReturnNode) node;
+            sb.append(indent).append(returnNode.tailCall ? "Return (tail call):\n" : "Return:\n");
+            print(returnNode.expression, level + 1, sb);
+        } else if (node instanceof BlockNode) {
+            sb.append(indent).append("Block:\n");
+            for (ASTNode stmt : ((BlockNode) node).statements) {
+                print(stmt, level + 1, sb);
+            }
+        } else if (node instanceof IfNode) {
+            IfNode ifNode = (IfNode) node;
+            sb.append(indent).append("If Statement:\n");
+            sb.append(indent).append("  Condition:\n");
+            print(ifNode.condition, level + 2, sb);
+            sb.append(indent).append("  Then Branch:\n");
+            print(ifNode.thenBranch, level + 2, sb);
+            if (ifNode.elseBranch != null) {
+                sb.append(indent).append("  Else Branch:\n");
+                print(ifNode.elseBranch, level + 2, sb);
+            }
+        } else if (node instanceof WhileNode) {
+            WhileNode whileNode = (WhileNode) node;
+            sb.append(indent).append("While:\n");
+            sb.append(indent).append("  Condition:\n");
+            print(whileNode.condition, level + 2, sb);
+            sb.append(indent).append("  Body:\n");
+            print(whileNode.body, level + 2, sb);
+        } else if (node instanceof ForNode) {
+            ForNode forNode = (ForNode) node;
+            sb.append(indent).append("For: ").append(forNode.loopVar.value).append("\n");
+            sb.append(indent).append("  Start:\n");
+            print(forNode.start, level + 2, sb);
+            sb.append(indent).append("  End:\n");
+            print(forNode.end, level + 2, sb);
+            sb.append(indent).append("  Body:\n");
+            print(forNode.body, level + 2, sb);
+        } else if (node instanceof ForEachNode) {
+            ForEachNode forEach = (ForEachNode) node;
+            sb.append(indent).append("ForEach: ").append(forEach.getLoopVar().value).append("\n");
+            sb.append(indent).append("  List:\n");
+            print(forEach.getListExpr(), level + 2, sb);
+            sb.append(indent).append("  Body:\n");
+            print(forEach.getBody(), level + 2, sb);
+        } else if (node instanceof FunctionDefinitionNode) {
+            FunctionDefinitionNode funcDef = (FunctionDefinitionNode) node;
+            sb.append(indent).append("FunctionDefinition: ").append(funcDef.name.value).append("\n");
+            sb.append(indent).append("  Parameters: ");
+            if (funcDef.parameters.isEmpty()) {
+                sb.append("None\n");
+            } else {
+                for (Token param : funcDef.parameters) {
+                    sb.append(param.value).append(" ");
+                }
+                sb.append("\n");
+            }
+            sb.append(indent).append("  Body:\n");
+            print(funcDef.body, level + 2, sb);
+        } else if (node instanceof FunctionCallNode) {
+            FunctionCallNode funcCall = (FunctionCallNode) node;
+            sb.append(indent).append("FunctionCall: ").append(funcCall.name.value).append("\n");
+            sb.append(indent).append("  Arguments:\n");
+            for (ASTNode arg : funcCall.arguments) {
+                print(arg, level + 2, sb);
+            }
+        } else if (node instanceof ClassDefinitionNode) {
+            ClassDefinitionNode classDef = (ClassDefinitionNode) node;
+            sb.append(indent).append("ClassDefinition: ").append(classDef.name.value).append("\n");
+            sb.append(indent).append("  Members:\n");
+            for (ASTNode member : classDef.members) {
+                print(member, level + 2, sb);
+            }
+        } else if (node instanceof ObjectCreationNode) {
+            ObjectCreationNode objCreation = (ObjectCreationNode) node;
+            sb.append(indent).append("ObjectCreation: ").append(objCreation.className.value).append("\n");
+            sb.append(indent).append("  Arguments:\n");
+            for (ASTNode arg : objCreation.arguments) {
+                print(arg, level + 2, sb);
+            }
+        } else if (node instanceof MethodCallNode) {
+            MethodCallNode methodCall = (MethodCallNode) node;
+            sb.append(indent).append("MethodCall: ").append(methodCall.methodName.value).append("\n");
+            sb.append(indent).append("  Target:\n");
+            print(methodCall.target, level + 2, sb);
+            sb.append(indent).append("  Arguments:\n");
+            for (ASTNode arg : methodCall.arguments) {
+                print(arg, level + 2, sb);
+            }
+        } else if (node instanceof FieldAccessNode) {
+            FieldAccessNode access = (FieldAccessNode) node;
+            sb.append(indent).append("FieldAccess: ").append(access.fieldName.value).append("\n");
+            print(access.target, level + 1, sb);
+        } else if (node instanceof FieldAssignmentNode) {
+            FieldAssignmentNode assign = (FieldAssignmentNode) node;
+            sb.append(indent).append("FieldAssignment: ").append(assign.fieldName.value).append("\n");
+            sb.append(indent).append("  Target:\n");
+            print(assign.target, level + 2, sb);
+            sb.append(indent).append("  Value:\n");
+            print(assign.value, level + 2, sb);
+        } else if (node instanceof ListNode) {
+            sb.append(indent).append("List:\n");
+            for (ASTNode element : ((ListNode) node).getElements()) {
+                print(element, level + 1, sb);
+            }
+        } else if (node instanceof DictNode) {
+            DictNode dict = (DictNode) node;
+            sb.append(indent).append("Dict:\n");
+            for (int i = 0; i < dict.keys.size(); i++) {
+                sb.append(indent).append("  Entry:\n");
+                print(dict.keys.get(i), level + 2, sb);
+                print(dict.values.get(i), level + 2, sb);
+            }
+        } else if (node instanceof SetNode) {
+            sb.append(indent).append("Set:\n");
+            for (ASTNode element : ((SetNode) node).elements) {
+                print(element, level + 1, sb);
+            }
+        } else if (node instanceof IndexNode) {
+            IndexNode index = (IndexNode) node;
+            sb.append(indent).append("Index:\n");
+            print(index.getBase(), level + 1, sb);
+            print(index.getIndex(), level + 1, sb);
+        } else if (node instanceof IndexAssignmentNode) {
+            IndexAssignmentNode assign = (IndexAssignmentNode) node;
+            sb.append(indent).append("IndexAssignment:\n");
+            sb.append(indent).append("  Target:\n");
+            print(assign.getTarget(), level + 2, sb);
+            sb.append(indent).append("  Value:\n");
+            print(assign.getValue(), level + 2, sb);
+        } else if (node instanceof SliceNode) {
+            SliceNode slice = (SliceNode) node;
+            sb.append(indent).append("Slice:\n");
+            sb.append(indent).append("  Target:\n");
+            print(slice.getTarget(), level + 2, sb);
+            appendPart(sb, indent, "Start", slice.getStart(), level);
+            appendPart(sb, indent, "End", slice.getEnd(), level);
+            appendPart(sb, indent, "Step", slice.getStep(), level);
+        } else {
+            sb.append(indent).append("Unknown Node: ").append(node.getClass().getSimpleName()).append("\n");
+        }
+    }
+
+    // Optional part of a node, left out when missing.
+    private static void appendPart(StringBuilder sb, String indent, String label, ASTNode part, int level) {
+        if (part != null) {
+            sb.append(indent).append("  ").append(label).append(":\n");
+            print(part, level + 2, sb);
+        }
+    }
+}
@@ -0,0 +1,456 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Compiles a resolved AST into bytecode for the VM.
+// One compiler instance builds one Chunk, nested functions and methods get their own compiler.
+public class BytecodeCompiler {
+    private final String name;
+    private byte[] code = new byte[256];
+    private int[] lines = new int[256];
+    private int size = 0;
+    private final List<Object> constants = new ArrayList<>();
+    private final Map<Object, Integer> constantIndex = new HashMap<>();
+    private int stack = 0;    // Operand stack depth after the last emitted instruction.
+    private int maxStack = 0;
+
+    private BytecodeCompiler(String name) {
+        this.name = name;
+    }
+
+    // Compiles the top-level block returned by Parser.parse() (after the Resolver ran).
+    public static Chunk compileProgram(ASTNode program) {
+        BytecodeCompiler compiler = new BytecodeCompiler("<script>");
+        compiler.statement(program);
+        compiler.emit(OpCode.NIL, program.line, 1);
+        compiler.emit(OpCode.RETURN, program.line, -1);
+        return compiler.finish();
+    }
+
+    // Compiles a function or method body, it runs directly in the call frame.
+    static Chunk compileFunction(FunctionDefinitionNode declaration) {
+        BytecodeCompiler compiler = new BytecodeCompiler(declaration.name.value);
+        for (ASTNode statement : ((BlockNode) declaration.body).statements) {
+            compiler.statement(statement);
+        }
+        compiler.emit(OpCode.NIL, declaration.line, 1);
+        compiler.emit(OpCode.RETURN, declaration.line, -1);
+        return compiler.finish();
+    }
+
+    private Chunk finish() {
+        return new Chunk(name, Arrays.copyOf(code, size), Arrays.copyOf(lines, size), constants.toArray(), maxStack);
+    }
+
+    // === Emitting ===
+
+    private void ensure(int bytes) {
+        if (size + bytes > code.length) {
+            int capacity = Math.max(code.length * 2, size + bytes);
+            code = Arrays.copyOf(code, capacity);
+            lines = Arrays.copyOf(lines, capacity);
+        }
+    }
+
+    // Emits an opcode and records how it changes the operand stack depth.
+    private void emit(byte op, int line, int stackEffect) {
+        ensure(1);
+        lines[size] = line;
+        code[size++] = op;
+        stack += stackEffect;
+        maxStack = Math.max(maxStack, stack);
+    }
+
+    private void emit16(int value) {
+        if (value < 0 || value > 0xFFFF) {
+            throw new RuntimeException("Bytecode operand out of range: " + value);
+        }
+        ensure(2);
+        code[size++] = (byte) (value >> 8);
+        code[size++] = (byte) value;
+    }
+
+    // Emits a jump target and returns its offset so it can be patched later.
+    private int emit32(int value) {
+        ensure(4);
+        int at = size;
+        patch32(at, value);
+        size += 4;
+        return at;
+    }
+
+    private void patch32(int at, int value) {
+        code[at] = (byte) (value >> 24);
+        code[at + 1] = (byte) (value >> 16);
+        code[at + 2] = (byte) (value >> 8);
+        code[at + 3] = (byte) value;
+    }
+
+    // Adds a constant to the pool, literals and names are shared.
+    private int constant(Object value) {
+        boolean shared = value instanceof String || value instanceof Number || value instanceof Boolean;
+        if (shared && constantIndex.containsKey(value)) {
+            return constantIndex.get(value);
+        }
+        constants.add(value);
+        if (shared) {
+            constantIndex.put(value, constants.size() - 1);
+        }
+        return constants.size() - 1;
+    }
+
+    // === Statements (leave the stack as they found it) ===
+
+    private void statement(ASTNode node) {
+        int line = node.line;
+        if (node instanceof BlockNode) {
+            BlockNode block = (BlockNode) node;
+            emit(OpCode.ENTER, line, 0);
+            emit16(constant(block.layout));
+            for (ASTNode statement : block.statements) {
+                statement(statement);
+            }
+            emit(OpCode.LEAVE, line, 0);
+        } else if (node instanceof AssignmentNode) {
+            AssignmentNode assign = (AssignmentNode) node;
+            expression(assign.value);
+            store(assign);
+        } else if (node instanceof PrintNode) {
+            expression(((PrintNode) node).expression);
+            emit(OpCode.PRINT, line, -1);
+        } else if (node instanceof ReturnNode) {
+            ReturnNode returnNode = (ReturnNode) node;
+            if (returnNode.tailCall) {
+                // The RETURN after it runs only when the callee cannot replace this call.
+                FunctionCallNode call = (FunctionCallNode) returnNode.expression;
+                load(call.name.value, call.depth, call.slot, call.line);
+                arguments(call.arguments);
+                emit(OpCode.TAIL_CALL, call.line, -call.arguments.size());
+                emit16(constant(call.name.value));
+                emit16(call.arguments.size());
+            } else {
+                expression(returnNode.expression);
+            }
+            emit(OpCode.RETURN, line, -1);
+        } else if (node instanceof IfNode) {
+            IfNode ifNode = (IfNode) node;
+            expression(ifNode.condition);
+            emit(OpCode.JUMP_IF_FALSE, line, -1);
+            int toElse = emit32(0);
+            statement(ifNode.thenBranch);
+            if (ifNode.elseBranch != null) {
+                emit(OpCode.JUMP, line, 0);
+                int toEnd = emit32(0);
+                patch32(toElse, size);
+                statement(ifNode.elseBranch);
+                patch32(toEnd, size);
+            } else {
+                patch32(toElse, size);
+            }
+        } else if (node instanceof WhileNode) {
+            WhileNode whileNode = (WhileNode) node;
+            clearInvariants(whileNode.invariants, line);
+            int loop = size;
+            expression(whileNode.condition);
+            emit(OpCode.JUMP_IF_FALSE, line, -1);
+            int toEnd = emit32(0);
+            sequence(whileNode.body);
+            emit(OpCode.JUMP, line, 0);
+            emit32(loop);
+            patch32(toEnd, size);
+        } else if (node instanceof ForEachNode) {
+            ForEachNode forEach = (ForEachNode) node;
+            expression(forEach.getListExpr());
+            clearInvariants(forEach.invariants, line);
+            emit(OpCode.ITER_INIT, line, 0);
+            emit(OpCode.ENTER, line, 0);
+            emit16(constant(forEach.layout));
+            emit(OpCode.NIL, line, 1);
+            emit(OpCode.STORE_LOCAL, line, -1);
+            emit16(0);
+            int loop = size;
+            emit(OpCode.ITER_NEXT, line, 0);
+            int toEnd = emit32(0);
+            sequence(forEach.getBody());
+            emit(OpCode.JUMP, line, 0);
+            emit32(loop);
+            patch32(toEnd, size);
+            stack -= 1; // ITER_NEXT popped the iterator on exit.
+            emit(OpCode.LEAVE, line, 0);
+        } else if (node instanceof ForNode) {
+            ForNode forNode = (ForNode) node;
+            expression(forNode.start);
+            expression(forNode.end);
+            clearInvariants(forNode.invariants, line);
+            emit(OpCode.FOR_INIT, line, 0);
+            emit16(forNode.slot);
+            int loop = size;
+            emit(OpCode.FOR_NEXT, line, 0);
+            emit16(forNode.slot);
+            int toEnd = emit32(0);
+            statement(forNode.body);
+            emit(OpCode.JUMP, line, 0);
+            emit32(loop);
+            patch32(toEnd, size);
+            stack -= 2; // FOR_NEXT popped the counter and the end on exit.
+        } else if (node instanceof FunctionDefinitionNode) {
+            FunctionDefinitionNode funcDef = (FunctionDefinitionNode) node;
+            emit(OpCode.FUNCTION, line, 0);
+            emit16(constant(new Chunk.FunctionProto(funcDef, compileFunction(funcDef))));
+            emit16(funcDef.slot);
+        } else if (node instanceof ClassDefinitionNode) {
+            ClassDefinitionNode classDef = (ClassDefinitionNode) node;
+            emit(OpCode.CLASS, line, 1);
+            emit16(constant(classDef.name.value));
+            for (ASTNode member : classDef.members) {
+                if (member instanceof FunctionDefinitionNode) {
+                    FunctionDefinitionNode method = (FunctionDefinitionNode) member;
+                    emit(OpCode.METHOD, member.line, 0);
+                    emit16(constant(new Chunk.FunctionProto(method, compileFunction(method))));
+                } else if (member instanceof AssignmentNode) {
+                    // Class attributes are assigned in the defining frame, then copied to the class.
+                    AssignmentNode assign = (AssignmentNode) member;
+                    expression(assign.value);
+                    emit(OpCode.DUP, member.line, 1);
+                    store(assign);
+                    emit(OpCode.FIELD, member.line, -1);
+                    emit16(constant(assign.identifier.value));
+                }
+            }
+            emit(OpCode.STORE_LOCAL, line, -1);
+            emit16(classDef.slot);
+        } else {
+            // Expression statements (calls, index and field assignments) discard their value.
+            expression(node);
+            emit(OpCode.POP, line, -1);
+        }
+    }
+
+    // Unsets the hidden variables of a loop's invariants before the loop starts.
+    private void clearInvariants(int[] invariants, int line) {
+        if (invariants != null) {
+            for (int slot : invariants) {
+                emit(OpCode.CLEAR_INVARIANT, line, 0);
+                emit16(slot);
+            }
+        }
+    }
+
+    // Statements of a block that runs in the current frame (while and for-each bodies).
+    private void sequence(ASTNode body) {
+        if (body instanceof BlockNode) {
+            for (ASTNode statement : ((BlockNode) body).statements) {
+                statement(statement);
+            }
+        } else {
+            statement(body);
+        }
+    }
+
+    private void store(AssignmentNode assign) {
+        if (assign.thisDepth >= 0) {
+            emit(OpCode.STORE_VAR, assign.line, -1);
+            emit16(constant(new Chunk.Variable(assign.identifier.value, 0, assign.slot, assign.thisDepth, assign.thisSlot)));
+        } else {
+            emit(OpCode.STORE_LOCAL, assign.line, -1);
+            emit16(assign.slot);
+        }
+    }
+
+    private void load(String name, int depth, int slot, int line) {
+        if (depth == 0) {
+            emit(OpCode.LOAD_LOCAL, line, 1);
+            emit16(slot);
+            emit16(constant(name));
+        } else if (depth > 0) {
+            emit(OpCode.LOAD_OUTER, line, 1);
+            emit16(depth);
+            emit16(slot);
+            emit16(constant(name));
+        } else if (depth == Resolver.GLOBAL) {
+            emit(OpCode.LOAD_GLOBAL, line, 1);
+            emit16(constant(name));
+        } else {
+            emit(OpCode.LOAD_NAME, line, 1);
+            emit16(constant(name));
+        }
+    }
+
+    private void arguments(List<ASTNode> arguments) {
+        for (ASTNode argument : arguments) {
+            expression(argument);
+        }
+    }
+
+    // === Expressions (push exactly one value) ===
+
+    private void expression(ASTNode node) {
+        int line = node.line;
+        if (node instanceof ConstantNode) {
+            Object value = ((ConstantNode) node).value;
+            if (value == null) {
+                emit(OpCode.NIL, line, 1);
+            } else {
+                emit(OpCode.CONST, line, 1);
+                emit16(constant(value));
+            }
+        } else if (node instanceof NumberNode) {
+            emit(OpCode.CONST, line, 1);
+            emit16(constant(Interpreter.parseNumber(((NumberNode) node).token.value)));
+        } else if (node instanceof StringNode) {
+            emit(OpCode.CONST, line, 1);
+            emit16(constant(((StringNode) node).token.value));
+        } else if (node instanceof BooleanNode) {
+            emit(OpCode.CONST, line, 1);
+            emit16(constant(Boolean.parseBoolean(((BooleanNode) node).token.value)));
+        } else if (node instanceof IdentifierNode) {
+            IdentifierNode id = (IdentifierNode) node;
+            if (id.thisDepth >= 0) {
+                emit(OpCode.LOAD_VAR, line, 1);
+                emit16(constant(new Chunk.Variable(id.identifier.value, id.depth, id.slot, id.thisDepth, id.thisSlot)));
+            } else {
+                load(id.identifier.value, id.depth, id.slot, line);
+            }
+        } else if (node instanceof BinaryOpNode) {
+            BinaryOpNode binOp = (BinaryOpNode) node;
+            expression(binOp.left);
+            expression(binOp.right);
+            emit(binaryOpCode(binOp.op.value, line), line, -1);
+        } else if (node instanceof InvariantNode) {
+            // The cached value skips the expression, the first evaluation fills the cache.
+            InvariantNode invariant = (InvariantNode) node;
+            emit(OpCode.LOAD_INVARIANT, line, 0);
+            emit16(invariant.depth);
+            emit16(invariant.slot);
+            int toEnd = emit32(0);
+            expression(invariant.expression);
+            emit(OpCode.STORE_INVARIANT, line, 0);
+            emit16(invariant.depth);
+            emit16(invariant.slot);
+            patch32(toEnd, size);
+        } else if (node instanceof UnaryOpNode) {
+            UnaryOpNode unary = (UnaryOpNode) node;
+            expression(unary.operand);
+            switch (unary.op.value) {
+                case "not": emit(OpCode.NOT, line, 0); break;
+                case "-": emit(OpCode.NEG, line, 0); break;
+                case "+": emit(OpCode.POS, line, 0); break;
+                default: error(Interpreter.runtimeError(line, "Unknown unary operator: " + unary.op.value).getMessage(), line);
+            }
+        } else if (node instanceof FunctionCallNode) {
+            FunctionCallNode call = (FunctionCallNode) node;
+            load(call.name.value, call.depth, call.slot, line);
+            arguments(call.arguments);
+            emit(OpCode.CALL, line, -call.arguments.size());
+            emit16(constant(call.name.value));
+            emit16(call.arguments.size());
+        } else if (node instanceof ObjectCreationNode) {
+            ObjectCreationNode creation = (ObjectCreationNode) node;
+            load(creation.className.value, creation.depth, creation.slot, line);
+            arguments(creation.arguments);
+            emit(OpCode.NEW, line, -creation.arguments.size());
+            emit16(constant(creation.className.value));
+            emit16(creation.arguments.size());
+        } else if (node instanceof MethodCallNode) {
+            MethodCallNode call = (MethodCallNode) node;
+            expression(call.target);
+            arguments(call.arguments);
+            emit(OpCode.INVOKE, line, -call.arguments.size());
+            emit16(constant(new MethodCache(call.methodName.value))); // Every call site gets its own cache.
+            emit16(call.arguments.size());
+        } else if (node instanceof ListNode) {
+            List<ASTNode> elements = ((ListNode) node).getElements();
+            arguments(elements);
+            emit(OpCode.LIST, line, 1 - elements.size());
+            emit16(elements.size());
+        } else if (node instanceof DictNode) {
+            DictNode dict = (DictNode) node;
+            for (int i = 0; i < dict.keys.size(); i++) {
+                expression(dict.keys.get(i));
+                expression(dict.values.get(i));
+            }
+            emit(OpCode.DICT, line, 1 - 2 * dict.keys.size());
+            emit16(dict.keys.size());
+        } else if (node instanceof SetNode) {
+            List<ASTNode> elements = ((SetNode) node).elements;
+            arguments(elements);
+            emit(OpCode.SET, line, 1 - elements.size());
+            emit16(elements.size());
+        } else if (node instanceof IndexNode) {
+            IndexNode index = (IndexNode) node;
+            expression(index.getBase());
+            expression(index.getIndex());
+            emit(OpCode.INDEX, line, -1);
+        } else if (node instanceof SliceNode) {
+            SliceNode slice = (SliceNode) node;
+            expression(slice.getTarget());
+            int flags = 0;
+            int parts = 0;
+            if (slice.getStart() != null) { expression(slice.getStart()); flags |= 1; parts++; }
+            if (slice.getEnd() != null) { expression(slice.getEnd()); flags |= 2; parts++; }
+            if (slice.getStep() != null) { expression(slice.getStep()); flags |= 4; parts++; }
+            emit(OpCode.SLICE, line, -parts);
+            emit16(flags);
+        } else if (node instanceof IndexAssignmentNode) {
+            IndexAssignmentNode assign = (IndexAssignmentNode) node;
+            if (assign.getTarget() instanceof IndexNode) {
+                IndexNode target = (IndexNode) assign.getTarget();
+                expression(target.getBase());
+                expression(target.getIndex());
+                expression(assign.getValue());
+                emit(OpCode.INDEX_SET, line, -2);
+            } else if (assign.getTarget() instanceof FieldAccessNode) {
+                FieldAccessNode target = (FieldAccessNode) assign.getTarget();
+                expression(target.target);
+                expression(assign.getValue());
+                emit(OpCode.SET_FIELD, line, -1);
+                emit16(constant(target.fieldName.value));
+            } else {
+                error(Interpreter.runtimeError(line, "Invalid assignment target for compound assignment.").getMessage(), line);
+            }
+        } else if (node instanceof FieldAssignmentNode) {
+            FieldAssignmentNode assign = (FieldAssignmentNode) node;
+            expression(assign.target);
+            expression(assign.value);
+            emit(OpCode.SET_FIELD, line, -1);
+            emit16(constant(assign.fieldName.value));
+        } else if (node instanceof FieldAccessNode) {
+            FieldAccessNode access = (FieldAccessNode) node;
+            expression(access.target);
+            emit(OpCode.GET_FIELD, line, 0);
+            emit16(constant(new FieldCache(access.fieldName.value)));
+        } else {
+            // Statements in expression position and nodes the tree walker does not support.
+            error("Unknown AST node type: " + node.getClass().getName(), line);
+        }
+    }
+
+    // Emits an instruction that fails at runtime, it stands for one value on the stack.
+    private void error(String message, int line) {
+        emit(OpCode.ERROR, line, 1);
+        emit16(constant(message));
+    }
+
+    private static byte binaryOpCode(String op, int line) {
+        switch (op) {
+            case "+": return OpCode.ADD;
+            case "-": return OpCode.SUB;
+            case "*": return OpCode.MUL;
+            case "/": return OpCode.DIV;
+            case "%": return OpCode.MOD;
+            case "<": return OpCode.LT;
+            case "<=": return OpCode.LE;
+            case ">": return OpCode.GT;
+            case ">=": return OpCode.GE;
+            case "==": return OpCode.EQ;
+            case "!=": return OpCode.NE;
+            case "in": return OpCode.IN;
+            case "and": return OpCode.AND;
+            case "or": return OpCode.OR;
+            default:
+                throw Interpreter.runtimeError(line, "Unknown binary operator: " + op);
+        }
+    }
+}
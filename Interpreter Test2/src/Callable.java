@@ -1,5 +1,24 @@
+import java.util.Arrays;
 import java.util.List;
 
 public interface Callable {
     Object call(Interpreter interpreter, List<Object> arguments);
+
+    // Fixed-arity entry points, used by calls with up to 3 arguments. A built-in overrides the ones
+    // it can answer without an argument list, the others build the list and go to call.
+    default Object call0(Interpreter interpreter) {
+        return call(interpreter, List.of());
+    }
+
+    default Object call1(Interpreter interpreter, Object a) {
+        return call(interpreter, Arrays.asList(a));
+    }
+
+    default Object call2(Interpreter interpreter, Object a, Object b) {
+        return call(interpreter, Arrays.asList(a, b));
+    }
+
+    default Object call3(Interpreter interpreter, Object a, Object b, Object c) {
+        return call(interpreter, Arrays.asList(a, b, c));
+    }
 }
@@ -0,0 +1,54 @@
+// Compiled bytecode of the program or of one function body.
+public class Chunk {
+    final String name;
+    final byte[] code;
+    final int[] lines;        // Source line of the instruction starting at each offset.
+    final Object[] constants;
+    final int maxStack;
+
+    Chunk(String name, byte[] code, int[] lines, Object[] constants, int maxStack) {
+        this.name = name;
+        this.code = code;
+        this.lines = lines;
+        this.constants = constants;
+        this.maxStack = maxStack;
+    }
+
+    // Constant for a variable read or assignment inside a method, where fields of 'this' come first.
+    static class Variable {
+        final String name;
+        final int depth;
+        final int slot;
+        final int thisDepth;
+        final int thisSlot;
+
+        Variable(String name, int depth, int slot, int thisDepth, int thisSlot) {
+            this.name = name;
+            this.depth = depth;
+            this.slot = slot;
+            this.thisDepth = thisDepth;
+            this.thisSlot = thisSlot;
+        }
+
+        @Override
+        public String toString() {
+            return name + "@" + depth + ":" + slot;
+        }
+    }
+
+    // Constant for a function or method definition: its declaration and compiled body.
+    static class FunctionProto {
+        final FunctionDefinitionNode declaration;
+        final Chunk chunk;
+
+        FunctionProto(FunctionDefinitionNode declaration, Chunk chunk) {
+            this.declaration = declaration;
+            this.chunk = chunk;
+        }
+
+        @Override
+        public String toString() {
+            return "<function " + declaration.name.value + ">";
+        }
+    }
+}
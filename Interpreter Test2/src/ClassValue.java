@@ -1,11 +1,15 @@
+import java.util.Arrays;
 import java.util.Map;
 import java.util.HashMap;
 import java.util.List;
 
-public class ClassValue {
+public final class ClassValue {
     public final String name;
     private final Map<String, Function> methods = new HashMap<>();
-    public final Map<String, Object> fields = new HashMap<>(); // Public for instance initialization.
+    // Class attributes: new instances start with these values in this shape.
+    private Shape instanceShape = new Shape(this);
+    private Object[] defaults = new Object[0];
+    private int instanceSize; // Most fields an instance has had, new instances get room for that many.
 
     public ClassValue(String name) {
         this.name = name;
@@ -16,7 +20,28 @@ public class ClassValue {
     }
 
     public void defineField(String name, Object value) {
-        fields.put(name, value);
+        int slot = instanceShape.indexOf(name);
+        if (slot < 0) {
+            instanceShape = instanceShape.with(name);
+            defaults = Arrays.copyOf(defaults, instanceShape.size());
+            slot = defaults.length - 1;
+        }
+        defaults[slot] = value;
+    }
+
+    Shape instanceShape() {
+        return instanceShape;
+    }
+
+    // Slots of a new instance: the class attributes, with room for the fields instances usually add.
+    Object[] newSlots() {
+        return Arrays.copyOf(defaults, Math.max(defaults.length, instanceSize));
+    }
+
+    void noteInstanceSize(int size) {
+        if (size > instanceSize) {
+            instanceSize = size;
+        }
     }
 
     public Instance instantiate(List<Object> arguments, Interpreter interpreter) {
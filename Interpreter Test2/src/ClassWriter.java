@@ -0,0 +1,222 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Minimal writer for JVM class files, just enough for the classes the Jit generates.
+// It writes version 49 class files, they are verified by type inference and need no stack map frames.
+class ClassWriter {
+    private static final int VERSION = 49;
+
+    private final ByteArrayOutputStream pool = new ByteArrayOutputStream();
+    private final DataOutputStream poolOut = new DataOutputStream(pool);
+    private final Map<String, Integer> poolIndex = new HashMap<>();
+    private int poolCount = 1;
+    private final List<byte[]> methods = new ArrayList<>();
+
+    private int entry(String key, int tag, byte[] payload, int size) {
+        Integer index = poolIndex.get(key);
+        if (index != null) {
+            return index;
+        }
+        try {
+            poolOut.writeByte(tag);
+            poolOut.write(payload);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        index = poolCount;
+        poolCount += size;
+        poolIndex.put(key, index);
+        return index;
+    }
+
+    private static byte[] u2(int... values) {
+        byte[] bytes = new byte[values.length * 2];
+        for (int i = 0; i < values.length; i++) {
+            bytes[2 * i] = (byte) (values[i] >> 8);
+            bytes[2 * i + 1] = (byte) values[i];
+        }
+        return bytes;
+    }
+
+    int utf8(String value) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try {
+            new DataOutputStream(bytes).writeUTF(value);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return entry("U" + value, 1, bytes.toByteArray(), 1);
+    }
+
+    int classRef(String internalName) {
+        return entry("C" + internalName, 7, u2(utf8(internalName)), 1);
+    }
+
+    int methodRef(String owner, String name, String descriptor) {
+        int nameAndType = entry("N" + name + ":" + descriptor, 12, u2(utf8(name), utf8(descriptor)), 1);
+        return entry("M" + owner + "." + name + descriptor, 10, u2(classRef(owner), nameAndType), 1);
+    }
+
+    int doubleConst(double value) {
+        long bits = Double.doubleToRawLongBits(value);
+        byte[] payload = new byte[8];
+        for (int i = 0; i < 8; i++) {
+            payload[i] = (byte) (bits >>> (56 - 8 * i));
+        }
+        return entry("D" + bits, 6, payload, 2); // Doubles take two pool entries.
+    }
+
+    void addMethod(int access, String name, String descriptor, Code code) {
+        byte[] body = code.bytes();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeShort(access);
+            out.writeShort(utf8(name));
+            out.writeShort(utf8(descriptor));
+            out.writeShort(1); // One attribute: Code.
+            out.writeShort(utf8("Code"));
+            out.writeInt(12 + body.length);
+            out.writeShort(code.maxStack);
+            out.writeShort(code.maxLocals);
+            out.writeInt(body.length);
+            out.write(body);
+            out.writeShort(0); // No exception table.
+            out.writeShort(0); // No attributes.
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        methods.add(bytes.toByteArray());
+    }
+
+    byte[] toBytes(int access, String name, String superName, String... interfaces) {
+        int thisIndex = classRef(name);
+        int superIndex = classRef(superName);
+        int[] interfaceIndexes = new int[interfaces.length];
+        for (int i = 0; i < interfaces.length; i++) {
+            interfaceIndexes[i] = classRef(interfaces[i]);
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeInt(0xCAFEBABE);
+            out.writeShort(0);
+            out.writeShort(VERSION);
+            out.writeShort(poolCount);
+            out.write(pool.toByteArray());
+            out.writeShort(access);
+            out.writeShort(thisIndex);
+            out.writeShort(superIndex);
+            out.writeShort(interfaces.length);
+            for (int index : interfaceIndexes) {
+                out.writeShort(index);
+            }
+            out.writeShort(0); // No fields.
+            out.writeShort(methods.size());
+            for (byte[] method : methods) {
+                out.write(method);
+            }
+            out.writeShort(0); // No attributes.
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    // Jump target inside a Code attribute.
+    static class Label {
+        int position = -1;
+        int stack = -1;                                  // Operand stack depth at the target.
+        final List<Integer> references = new ArrayList<>(); // Offsets of the jump instructions using it.
+    }
+
+    // Bytecode of one method. Every emit call passes the instruction's effect on the operand
+    // stack (in slots) so max_stack can be computed.
+    static class Code {
+        private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        private final List<Label> labels = new ArrayList<>();
+        private int stack = 0;
+        int maxStack = 0;
+        int maxLocals;
+
+        Code(int maxLocals) {
+            this.maxLocals = maxLocals;
+        }
+
+        int position() {
+            return out.size();
+        }
+
+        private void adjust(int effect) {
+            stack += effect;
+            maxStack = Math.max(maxStack, stack);
+        }
+
+        void op(int opcode, int effect) {
+            out.write(opcode);
+            adjust(effect);
+        }
+
+        void op1(int opcode, int operand, int effect) {
+            out.write(opcode);
+            out.write(operand);
+            adjust(effect);
+        }
+
+        void op2(int opcode, int operand, int effect) {
+            out.write(opcode);
+            out.write(operand >> 8);
+            out.write(operand);
+            adjust(effect);
+        }
+
+        // Local variable instruction, the index must fit in one byte.
+        void local(int opcode, int index, int effect) {
+            if (index > 255) {
+                throw new IllegalStateException("Too many locals");
+            }
+            maxLocals = Math.max(maxLocals, index + 2);
+            op1(opcode, index, effect);
+        }
+
+        void jump(int opcode, Label target, int effect) {
+            target.references.add(position());
+            labels.add(target);
+            op2(opcode, 0, effect);
+            target.stack = stack;
+        }
+
+        void mark(Label label) {
+            label.position = position();
+            if (label.stack >= 0) {
+                stack = label.stack;
+            }
+        }
+
+        // Called after an instruction that does not fall through (goto, return, athrow).
+        void unreachable() {
+            stack = 0;
+        }
+
+        byte[] bytes() {
+            byte[] code = out.toByteArray();
+            for (Label label : labels) {
+                for (int at : label.references) {
+                    int offset = label.position - at;
+                    if (label.position < 0 || offset != (short) offset) {
+                        throw new IllegalStateException("Bad jump");
+                    }
+                    code[at + 1] = (byte) (offset >> 8);
+                    code[at + 2] = (byte) offset;
+                }
+                label.references.clear();
+            }
+            return code;
+        }
+    }
+}
@@ -0,0 +1,78 @@
+// Prints a readable listing of compiled bytecode, nested functions and methods are listed after their parent.
+public class Disassembler {
+
+    public static String disassemble(Chunk chunk) {
+        StringBuilder sb = new StringBuilder();
+        disassemble(chunk, sb);
+        return sb.toString();
+    }
+
+    private static void disassemble(Chunk chunk, StringBuilder sb) {
+        sb.append("== ").append(chunk.name).append(" (max stack ").append(chunk.maxStack).append(") ==\n");
+        int pc = 0;
+        int lastLine = Integer.MIN_VALUE;
+        while (pc < chunk.code.length) {
+            byte op = chunk.code[pc];
+            sb.append(String.format("%04d ", pc));
+            int line = chunk.lines[pc];
+            sb.append(line == lastLine ? "   | " : String.format("%4d ", line));
+            lastLine = line;
+            sb.append(String.format("%-14s", OpCode.NAMES[op]));
+            int at = pc + 1;
+            int[] operands = OpCode.OPERANDS[op];
+            for (int i = 0; i < operands.length; i++) {
+                int value = 0;
+                for (int b = 0; b < operands[i]; b++) {
+                    value = (value << 8) | (chunk.code[at + b] & 0xFF);
+                }
+                at += operands[i];
+                sb.append(' ');
+                if (isConstant(op, i)) {
+                    sb.append(value).append(" (").append(describe(chunk.constants[value])).append(')');
+                } else if (operands[i] == 4) {
+                    sb.append("-> ").append(String.format("%04d", value));
+                } else {
+                    sb.append(value);
+                }
+            }
+            sb.append('\n');
+            pc += OpCode.size(op);
+        }
+        for (Object constant : chunk.constants) {
+            if (constant instanceof Chunk.FunctionProto) {
+                sb.append('\n');
+                disassemble(((Chunk.FunctionProto) constant).chunk, sb);
+            }
+        }
+    }
+
+    // Whether the i-th operand of an instruction is an index into the constant pool.
+    private static boolean isConstant(byte op, int i) {
+        switch (op) {
+            case OpCode.LOAD_LOCAL: return i == 1;
+            case OpCode.LOAD_OUTER: return i == 2;
+            case OpCode.CONST: case OpCode.LOAD_GLOBAL: case OpCode.LOAD_NAME: case OpCode.LOAD_VAR:
+            case OpCode.STORE_VAR: case OpCode.ENTER: case OpCode.CALL: case OpCode.TAIL_CALL: case OpCode.FUNCTION: case OpCode.CLASS:
+            case OpCode.METHOD: case OpCode.FIELD: case OpCode.NEW: case OpCode.INVOKE: case OpCode.SET_FIELD: case OpCode.GET_FIELD:
+            case OpCode.ERROR:
+                return i == 0;
+            default:
+                return false;
+        }
+    }
+
+    private static String describe(Object constant) {
+        if (constant instanceof String || constant instanceof InlineCache) {
+            return "'" + constant + "'";
+        }
+        if (constant instanceof FrameLayout) {
+            FrameLayout layout = (FrameLayout) constant;
+            StringBuilder sb = new StringBuilder("frame [");
+            for (int i = 0; i < layout.size(); i++) {
+                sb.append(i > 0 ? ", " : "").append(layout.nameAt(i));
+            }
+            return sb.append(']').toString();
+        }
+        return Interpreter.formatValue(constant);
+    }
+}
@@ -0,0 +1,1225 @@
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+// Executable nodes built by NodeCompiler from the AST.
+// Every node knows exactly what it does, so running a node is one virtual execute() call instead of
+// the instanceof chain in Interpreter.evaluate. Children, slots and names are bound at compile time.
+abstract class ExecNode {
+    public int line = -1;
+
+    abstract Object execute(Frame frame);
+
+    // Typed execution for parents that want a primitive double (see ArithmeticExec).
+    // Nodes that produce something else hand the value back in an UnexpectedResultException.
+    double executeDouble(Frame frame) throws UnexpectedResultException {
+        Object value = execute(frame);
+        if (value instanceof Double) {
+            return (Double) value;
+        }
+        throw new UnexpectedResultException(value);
+    }
+}
+
+// Result of a typed execute method that did not have the expected type.
+class UnexpectedResultException extends Exception {
+    private static final long serialVersionUID = 1L;
+    final transient Object value;
+    UnexpectedResultException(Object value) {
+        super(null, null, false, false);
+        this.value = value;
+    }
+}
+
+// Number, string and boolean literals, decoded once at compile time.
+class ConstantExec extends ExecNode {
+    private final Object value;
+    ConstantExec(Object value) {
+        this.value = value;
+    }
+    @Override
+    Object execute(Frame frame) {
+        return value;
+    }
+}
+
+// Variable with a resolved (depth, slot) address.
+class LocalExec extends ExecNode {
+    private final String name;
+    private final int depth;
+    private final int slot;
+    LocalExec(String name, int depth, int slot) {
+        this.name = name;
+        this.depth = depth;
+        this.slot = slot;
+    }
+    @Override
+    Object execute(Frame frame) {
+        Frame scope = frame;
+        for (int i = 0; i < depth; i++) {
+            scope = scope.enclosing;
+        }
+        Object value = scope.slots[slot];
+        if (value != Frame.UNSET) {
+            return value;
+        }
+        // Declared in that scope but not assigned yet, keep searching the enclosing scopes.
+        return scope.enclosing.get(name, line);
+    }
+}
+
+// Variable that is only defined in the globals (the built-in functions).
+class GlobalExec extends ExecNode {
+    private final Frame globals;
+    private final String name;
+    GlobalExec(Frame globals, String name) {
+        this.globals = globals;
+        this.name = name;
+    }
+    @Override
+    Object execute(Frame frame) {
+        return globals.get(name, line);
+    }
+}
+
+// Variable without an address, looked up by name from the current frame.
+class DynamicExec extends ExecNode {
+    private final String name;
+    DynamicExec(String name) {
+        this.name = name;
+    }
+    @Override
+    Object execute(Frame frame) {
+        return frame.get(name, line);
+    }
+}
+
+// Variable read inside a method: fields of 'this' come before the variable itself.
+class ThisFieldExec extends ExecNode {
+    private final String name;
+    private final int thisDepth;
+    private final int thisSlot;
+    private final ExecNode variable;
+    ThisFieldExec(String name, int thisDepth, int thisSlot, ExecNode variable) {
+        this.name = name;
+        this.thisDepth = thisDepth;
+        this.thisSlot = thisSlot;
+        this.variable = variable;
+    }
+    @Override
+    Object execute(Frame frame) {
+        Object thisVal = frame.ancestor(thisDepth).slots[thisSlot];
+        if (thisVal instanceof Instance) {
+            Instance instance = (Instance) thisVal;
+            int field = instance.getShape().indexOf(name);
+            if (field >= 0) {
+                return instance.getSlot(field);
+            }
+        }
+        return variable.execute(frame);
+    }
+}
+
+// Assignment outside methods: the variable always lives in the current frame.
+class AssignExec extends ExecNode {
+    private final int slot;
+    private final ExecNode value;
+    AssignExec(int slot, ExecNode value) {
+        this.slot = slot;
+        this.value = value;
+    }
+    @Override
+    Object execute(Frame frame) {
+        Object result = value.execute(frame);
+        frame.slots[slot] = result;
+        return result;
+    }
+}
+
+// Assignment inside a method: a name that is not a local yet becomes an attribute of 'this'.
+class MethodAssignExec extends ExecNode {
+    private final String name;
+    private final int slot;
+    private final int thisDepth;
+    private final int thisSlot;
+    private final ExecNode value;
+    MethodAssignExec(String name, int slot, int thisDepth, int thisSlot, ExecNode value) {
+        this.name = name;
+        this.slot = slot;
+        this.thisDepth = thisDepth;
+        this.thisSlot = thisSlot;
+        this.value = value;
+    }
+    @Override
+    Object execute(Frame frame) {
+        Object result = value.execute(frame);
+        Object[] slots = frame.slots;
+        if (slots[slot] == Frame.UNSET) {
+            Object thisVal = frame.ancestor(thisDepth).slots[thisSlot];
+            if (thisVal instanceof Instance) {
+                ((Instance) thisVal).set(name, result);
+                return result;
+            }
+        }
+        slots[slot] = result;
+        return result;
+    }
+}
+
+class BinaryExec extends ExecNode {
+    private final String op;
+    private final ExecNode left;
+    private final ExecNode right;
+    BinaryExec(String op, ExecNode left, ExecNode right) {
+        this.op = op;
+        this.left = left;
+        this.right = right;
+    }
+    @Override
+    Object execute(Frame frame) {
+        Object l = left.execute(frame);
+        Object r = right.execute(frame);
+        return Interpreter.binaryOp(op, l, r, line);
+    }
+}
+
+class UnaryExec extends ExecNode {
+    private final String op;
+    private final ExecNode operand;
+    UnaryExec(String op, ExecNode operand) {
+        this.op = op;
+        this.operand = operand;
+    }
+    @Override
+    Object execute(Frame frame) {
+        return Interpreter.unaryOp(op, operand.execute(frame), line);
+    }
+}
+
+// Loop invariant, cached in a hidden variable of the loop's frame after its first evaluation.
+class InvariantExec extends ExecNode {
+    private final int depth;
+    private final int slot;
+    private final ExecNode expression;
+    InvariantExec(int depth, int slot, ExecNode expression) {
+        this.depth = depth;
+        this.slot = slot;
+        this.expression = expression;
+    }
+    @Override
+    Object execute(Frame frame) {
+        Frame scope = frame;
+        for (int i = 0; i < depth; i++) {
+            scope = scope.enclosing;
+        }
+        Object value = scope.slots[slot];
+        if (value == Frame.UNSET) {
+            value = expression.execute(frame);
+            if (LoopInvariants.cacheable(value)) {
+                scope.slots[slot] = value;
+            }
+        }
+        return value;
+    }
+}
+
+// Self-specializing nodes for the operators. Each operator site starts uninitialized and picks a
+// specialization from the first operands it sees. When a specialized site meets other operand types it
+// goes generic (Interpreter.binaryOp) for good. Numbers are computed on primitive doubles, and nested
+// arithmetic is evaluated with executeDouble so intermediate results are not boxed.
+abstract class SpecializingExec extends ExecNode {
+    static final int UNINITIALIZED = 0;
+    static final int NUMBER = 1;   // Both operands are numbers.
+    static final int STRING = 2;   // '+' with a string operand.
+    static final int GENERIC = 3;
+
+    int state = UNINITIALIZED;
+
+    // Arithmetic children always produce a Double, they are read without boxing.
+    static boolean isTyped(ExecNode node) {
+        return node instanceof ArithmeticExec || node instanceof NegateExec || node instanceof NumberArithmeticExec;
+    }
+}
+
+// Binary operator node for + - * / %.
+class ArithmeticExec extends SpecializingExec {
+    private final String op;
+    private final char symbol;
+    private final ExecNode left;
+    private final ExecNode right;
+    private final boolean leftTyped;
+    private final boolean rightTyped;
+    ArithmeticExec(String op, ExecNode left, ExecNode right) {
+        this.op = op;
+        this.symbol = op.charAt(0);
+        this.left = left;
+        this.right = right;
+        this.leftTyped = isTyped(left);
+        this.rightTyped = isTyped(right);
+    }
+
+    private double compute(double l, double r) {
+        switch (symbol) {
+            case '+': return l + r;
+            case '-': return l - r;
+            case '*': return l * r;
+            case '/':
+                if (r == 0) {
+                    throw Interpreter.runtimeError(line, "Division by 0");
+                }
+                return l / r;
+            default: return l % r;
+        }
+    }
+
+    @Override
+    Object execute(Frame frame) {
+        if (state == NUMBER) {
+            try {
+                return executeDouble(frame);
+            } catch (UnexpectedResultException e) {
+                return e.value;
+            }
+        }
+        Object l = left.execute(frame);
+        Object r = right.execute(frame);
+        if (state == UNINITIALIZED) {
+            if (l instanceof Number && r instanceof Number) {
+                state = NUMBER;
+                return compute(((Number) l).doubleValue(), ((Number) r).doubleValue());
+            }
+            state = symbol == '+' && (l instanceof String || r instanceof String) ? STRING : GENERIC;
+        }
+        if (state == STRING) {
+            if (l instanceof String || r instanceof String) {
+                return Interpreter.formatValue(l) + Interpreter.formatValue(r);
+            }
+            state = GENERIC;
+        }
+        return Interpreter.binaryOp(op, l, r, line);
+    }
+
+    @Override
+    double executeDouble(Frame frame) throws UnexpectedResultException {
+        if (state != NUMBER) {
+            return super.executeDouble(frame);
+        }
+        double l;
+        Object leftValue = null; // Boxed left operand, kept in case the right one is not a number.
+        if (leftTyped) {
+            try {
+                l = left.executeDouble(frame);
+            } catch (UnexpectedResultException e) {
+                throw new UnexpectedResultException(generic(e.value, right.execute(frame)));
+            }
+        } else {
+            leftValue = left.execute(frame);
+            if (!(leftValue instanceof Number)) {
+                throw new UnexpectedResultException(generic(leftValue, right.execute(frame)));
+            }
+            l = ((Number) leftValue).doubleValue();
+        }
+        double r;
+        if (rightTyped) {
+            try {
+                r = right.executeDouble(frame);
+            } catch (UnexpectedResultException e) {
+                throw new UnexpectedResultException(generic(leftTyped ? (Object) l : leftValue, e.value));
+            }
+        } else {
+            Object value = right.execute(frame);
+            if (!(value instanceof Number)) {
+                throw new UnexpectedResultException(generic(leftTyped ? (Object) l : leftValue, value));
+            }
+            r = ((Number) value).doubleValue();
+        }
+        return compute(l, r);
+    }
+
+    // Leaves the number specialization and evaluates the operands it got generically.
+    private Object generic(Object l, Object r) {
+        state = GENERIC;
+        return Interpreter.binaryOp(op, l, r, line);
+    }
+}
+
+// Comparison node for < <= > >= == !=, numbers are compared as primitive doubles.
+class CompareExec extends SpecializingExec {
+    private final String op;
+    private final ExecNode left;
+    private final ExecNode right;
+    private final boolean leftTyped;
+    private final boolean rightTyped;
+    CompareExec(String op, ExecNode left, ExecNode right) {
+        this.op = op;
+        this.left = left;
+        this.right = right;
+        this.leftTyped = isTyped(left);
+        this.rightTyped = isTyped(right);
+    }
+
+    private boolean compare(double l, double r) {
+        switch (op) {
+            case "<": return l < r;
+            case "<=": return l <= r;
+            case ">": return l > r;
+            case ">=": return l >= r;
+            case "==": return l == r;
+            default: return l != r;
+        }
+    }
+
+    @Override
+    Object execute(Frame frame) {
+        if (state == NUMBER) {
+            double l;
+            Object leftValue = null;
+            if (leftTyped) {
+                try {
+                    l = left.executeDouble(frame);
+                } catch (UnexpectedResultException e) {
+                    return generic(e.value, right.execute(frame));
+                }
+            } else {
+                leftValue = left.execute(frame);
+                if (!(leftValue instanceof Number)) {
+                    return generic(leftValue, right.execute(frame));
+                }
+                l = ((Number) leftValue).doubleValue();
+            }
+            double r;
+            if (rightTyped) {
+                try {
+                    r = right.executeDouble(frame);
+                } catch (UnexpectedResultException e) {
+                    return generic(leftTyped ? (Object) l : leftValue, e.value);
+                }
+            } else {
+                Object value = right.execute(frame);
+                if (!(value instanceof Number)) {
+                    return generic(leftTyped ? (Object) l : leftValue, value);
+                }
+                r = ((Number) value).doubleValue();
+            }
+            return compare(l, r);
+        }
+        Object l = left.execute(frame);
+        Object r = right.execute(frame);
+        if (state == UNINITIALIZED) {
+            if (l instanceof Number && r instanceof Number) {
+                state = NUMBER;
+                return compare(((Number) l).doubleValue(), ((Number) r).doubleValue());
+            }
+            state = GENERIC;
+        }
+        return Interpreter.binaryOp(op, l, r, line);
+    }
+
+    private Object generic(Object l, Object r) {
+        state = GENERIC;
+        return Interpreter.binaryOp(op, l, r, line);
+    }
+}
+
+// Unary + and -, which only accept a Double operand.
+class NegateExec extends SpecializingExec {
+    private final String op;
+    private final boolean negate;
+    private final ExecNode operand;
+    private final boolean operandTyped;
+    NegateExec(String op, ExecNode operand) {
+        this.op = op;
+        this.negate = op.equals("-");
+        this.operand = operand;
+        this.operandTyped = isTyped(operand);
+    }
+
+    @Override
+    Object execute(Frame frame) {
+        if (state == NUMBER) {
+            try {
+                return executeDouble(frame);
+            } catch (UnexpectedResultException e) {
+                return e.value;
+            }
+        }
+        Object value = operand.execute(frame);
+        if (state == UNINITIALIZED) {
+            state = value instanceof Double ? NUMBER : GENERIC;
+        }
+        return Interpreter.unaryOp(op, value, line);
+    }
+
+    @Override
+    double executeDouble(Frame frame) throws UnexpectedResultException {
+        if (state != NUMBER) {
+            return super.executeDouble(frame);
+        }
+        double value;
+        if (operandTyped) {
+            try {
+                value = operand.executeDouble(frame);
+            } catch (UnexpectedResultException e) {
+                throw new UnexpectedResultException(generic(e.value));
+            }
+        } else {
+            Object result = operand.execute(frame);
+            if (!(result instanceof Double)) {
+                throw new UnexpectedResultException(generic(result));
+            }
+            value = (Double) result;
+        }
+        return negate ? -value : value;
+    }
+
+    private Object generic(Object value) {
+        state = GENERIC;
+        return Interpreter.unaryOp(op, value, line);
+    }
+}
+
+// Nodes whose value TypeInference proved to be a number, read by the typed operators as a primitive
+// double. Their operands need no specialization and no type checks.
+abstract class NumberExec extends ExecNode {
+    abstract double executeNumber(Frame frame);
+}
+
+// Any other node with a known number type.
+class UnboxExec extends NumberExec {
+    private final ExecNode value;
+    UnboxExec(ExecNode value) {
+        this.value = value;
+    }
+    @Override
+    Object execute(Frame frame) {
+        return value.execute(frame);
+    }
+    @Override
+    double executeNumber(Frame frame) {
+        return ((Number) value.execute(frame)).doubleValue();
+    }
+}
+
+// Variable that holds a number at this point, so it is set: no fallback to the enclosing frames.
+class NumberLocalExec extends NumberExec {
+    private final int depth;
+    private final int slot;
+    NumberLocalExec(int depth, int slot) {
+        this.depth = depth;
+        this.slot = slot;
+    }
+    @Override
+    Object execute(Frame frame) {
+        Frame scope = frame;
+        for (int i = 0; i < depth; i++) {
+            scope = scope.enclosing;
+        }
+        return scope.slots[slot];
+    }
+    @Override
+    double executeNumber(Frame frame) {
+        return ((Number) execute(frame)).doubleValue();
+    }
+}
+
+// + - * / % on two known numbers.
+class NumberArithmeticExec extends NumberExec {
+    private final char symbol;
+    private final NumberExec left;
+    private final NumberExec right;
+    NumberArithmeticExec(String op, NumberExec left, NumberExec right) {
+        this.symbol = op.charAt(0);
+        this.left = left;
+        this.right = right;
+    }
+    @Override
+    Object execute(Frame frame) {
+        return executeNumber(frame);
+    }
+    @Override
+    double executeDouble(Frame frame) {
+        return executeNumber(frame);
+    }
+    @Override
+    double executeNumber(Frame frame) {
+        double l = left.executeNumber(frame);
+        double r = right.executeNumber(frame);
+        switch (symbol) {
+            case '+': return l + r;
+            case '-': return l - r;
+            case '*': return l * r;
+            case '/':
+                if (r == 0) {
+                    throw Interpreter.runtimeError(line, "Division by 0");
+                }
+                return l / r;
+            default: return l % r;
+        }
+    }
+}
+
+// Comparison of two known numbers.
+class NumberCompareExec extends ExecNode {
+    private final String op;
+    private final NumberExec left;
+    private final NumberExec right;
+    NumberCompareExec(String op, NumberExec left, NumberExec right) {
+        this.op = op;
+        this.left = left;
+        this.right = right;
+    }
+    @Override
+    Object execute(Frame frame) {
+        double l = left.executeNumber(frame);
+        double r = right.executeNumber(frame);
+        switch (op) {
+            case "<": return l < r;
+            case "<=": return l <= r;
+            case ">": return l > r;
+            case ">=": return l >= r;
+            case "==": return l == r;
+            default: return l != r;
+        }
+    }
+}
+
+class NotExec extends ExecNode {
+    private final ExecNode operand;
+    NotExec(ExecNode operand) {
+        this.operand = operand;
+    }
+    @Override
+    Object execute(Frame frame) {
+        return !Interpreter.isTruthy(operand.execute(frame));
+    }
+}
+
+class PrintExec extends ExecNode {
+    private final Interpreter interpreter;
+    private final ExecNode expression;
+    PrintExec(Interpreter interpreter, ExecNode expression) {
+        this.interpreter = interpreter;
+        this.expression = expression;
+    }
+    @Override
+    Object execute(Frame frame) {
+        interpreter.print(expression.execute(frame));
+        return null;
+    }
+}
+
+class ReturnExec extends ExecNode {
+    private final ExecNode expression;
+    ReturnExec(ExecNode expression) {
+        this.expression = expression;
+    }
+    @Override
+    Object execute(Frame frame) {
+        return new Return(expression.execute(frame));
+    }
+}
+
+// 'return f(...)' in a function (see TailCall). A callee that is not a function of that arity is
+// called the normal way, by the compiled call, which also runs the functions it inlines.
+class TailCallExec extends ExecNode {
+    private final ExecNode call;
+    private final ExecNode callee;
+    private final ExecNode[] arguments;
+    TailCallExec(ExecNode call, ExecNode callee, ExecNode[] arguments) {
+        this.call = call;
+        this.callee = callee;
+        this.arguments = arguments;
+    }
+    @Override
+    Object execute(Frame frame) {
+        Object function = callee.execute(frame);
+        if (call instanceof InlineCallExec && ((InlineCallExec) call).inlines(function)) {
+            return new Return(((InlineCallExec) call).inline((Function) function, frame));
+        }
+        if (function instanceof Function && ((Function) function).arity == arguments.length) {
+            Function target = (Function) function;
+            Frame callFrame = target.newFrame();
+            for (int i = 0; i < arguments.length; i++) {
+                callFrame.slots[i] = arguments[i].execute(frame);
+            }
+            return new TailCall(target, callFrame);
+        }
+        return new Return(call.execute(frame));
+    }
+}
+
+// Block that runs in a new frame (if/else branches, numeric for bodies, the program).
+class BlockExec extends ExecNode {
+    private final FrameLayout layout;
+    private final ExecNode[] statements;
+    BlockExec(FrameLayout layout, ExecNode[] statements) {
+        this.layout = layout;
+        this.statements = statements;
+    }
+    @Override
+    Object execute(Frame frame) {
+        Frame scope = new Frame(layout, frame);
+        Object result = null;
+        for (ExecNode statement : statements) {
+            result = statement.execute(scope);
+            if (result instanceof Return) {
+                break;
+            }
+        }
+        return result;
+    }
+}
+
+// Statements that run in the frame they are given (while and for-each bodies, function bodies).
+class SequenceExec extends ExecNode {
+    private final ExecNode[] statements;
+    SequenceExec(ExecNode[] statements) {
+        this.statements = statements;
+    }
+    @Override
+    Object execute(Frame frame) {
+        Object result = null;
+        for (ExecNode statement : statements) {
+            result = statement.execute(frame);
+            if (result instanceof Return) {
+                break;
+            }
+        }
+        return result;
+    }
+}
+
+// Statement marker compiled in when profiling: records the line, then runs the statement.
+class LineExec extends ExecNode {
+    private final Profiler profiler;
+    private final ExecNode statement;
+    LineExec(Profiler profiler, ExecNode statement) {
+        this.profiler = profiler;
+        this.statement = statement;
+    }
+    @Override
+    Object execute(Frame frame) {
+        profiler.line(line);
+        return statement.execute(frame);
+    }
+}
+
+class IfExec extends ExecNode {
+    private final ExecNode condition;
+    private final ExecNode thenBranch;
+    private final ExecNode elseBranch; // May be null if no else clause exists.
+    IfExec(ExecNode condition, ExecNode thenBranch, ExecNode elseBranch) {
+        this.condition = condition;
+        this.thenBranch = thenBranch;
+        this.elseBranch = elseBranch;
+    }
+    @Override
+    Object execute(Frame frame) {
+        if (Interpreter.isTruthy(condition.execute(frame))) {
+            return thenBranch.execute(frame);
+        } else if (elseBranch != null) {
+            return elseBranch.execute(frame);
+        }
+        return null;
+    }
+}
+
+class WhileExec extends ExecNode {
+    private final Safepoint safepoint;
+    private final int[] invariants;
+    private final ExecNode condition;
+    private final ExecNode body;
+    WhileExec(Safepoint safepoint, int[] invariants, ExecNode condition, ExecNode body) {
+        this.safepoint = safepoint;
+        this.invariants = invariants;
+        this.condition = condition;
+        this.body = body;
+    }
+    @Override
+    Object execute(Frame frame) {
+        Object result = null;
+        frame.unset(invariants);
+        while (Interpreter.isTruthy(condition.execute(frame))) {
+            safepoint.poll(line);
+            result = body.execute(frame);
+            if (result instanceof Return) {
+                break;
+            }
+        }
+        return result;
+    }
+}
+
+// Numeric for loop (for i = 1, 3).
+class ForExec extends ExecNode {
+    private final Safepoint safepoint;
+    private final int[] invariants;
+    private final int slot;
+    private final ExecNode start;
+    private final ExecNode end;
+    private final ExecNode body;
+    ForExec(Safepoint safepoint, int[] invariants, int slot, ExecNode start, ExecNode end, ExecNode body) {
+        this.safepoint = safepoint;
+        this.invariants = invariants;
+        this.slot = slot;
+        this.start = start;
+        this.end = end;
+        this.body = body;
+    }
+    @Override
+    Object execute(Frame frame) {
+        Object startObj = start.execute(frame);
+        Object endObj = end.execute(frame);
+        if (!(startObj instanceof Number) || !(endObj instanceof Number)) {
+            throw Interpreter.runtimeError(line, "For loop: start and end values must be numbers.");
+        }
+        Number startVal = (Number) startObj;
+        Number endVal = (Number) endObj;
+        Object result = null;
+        frame.unset(invariants);
+        if (frame.slots[slot] == Frame.UNSET) {
+            frame.slots[slot] = startVal;
+        }
+        for (int i = (int) startVal; i <= (int) endVal; i++) {
+            safepoint.poll(line);
+            frame.slots[slot] = (double) i;
+            result = body.execute(frame);
+            if (result instanceof Return) {
+                break;
+            }
+        }
+        return result;
+    }
+}
+
+// For-each loop (for i in x), the loop variable is slot 0 of the loop frame.
+class ForEachExec extends ExecNode {
+    private final Safepoint safepoint;
+    private final int[] invariants;
+    private final FrameLayout layout;
+    private final ExecNode iterable;
+    private final ExecNode body;
+    ForEachExec(Safepoint safepoint, int[] invariants, FrameLayout layout, ExecNode iterable, ExecNode body) {
+        this.safepoint = safepoint;
+        this.invariants = invariants;
+        this.layout = layout;
+        this.iterable = iterable;
+        this.body = body;
+    }
+    @Override
+    Object execute(Frame frame) {
+        Iterator<?> elements = Interpreter.iterator(iterable.execute(frame), line);
+        frame.unset(invariants);
+        Frame loopFrame = new Frame(layout, frame);
+        loopFrame.slots[0] = null;
+        Object result = null;
+        while (elements.hasNext()) {
+            safepoint.poll(line);
+            loopFrame.slots[0] = elements.next();
+            result = body.execute(loopFrame);
+            if (result instanceof Return) {
+                break;
+            }
+        }
+        return result;
+    }
+}
+
+class FunctionDefExec extends ExecNode {
+    private final FunctionDefinitionNode declaration;
+    private final ExecNode body;
+    private final int slot;
+    FunctionDefExec(FunctionDefinitionNode declaration, ExecNode body, int slot) {
+        this.declaration = declaration;
+        this.body = body;
+        this.slot = slot;
+    }
+    @Override
+    Object execute(Frame frame) {
+        Function function = new Function(declaration, frame, body);
+        frame.slots[slot] = function;
+        return function;
+    }
+}
+
+class CallExec extends ExecNode {
+    private final Interpreter interpreter;
+    private final String name;
+    final ExecNode callee;
+    final ExecNode[] arguments;
+    CallExec(Interpreter interpreter, String name, ExecNode callee, ExecNode[] arguments) {
+        this.interpreter = interpreter;
+        this.name = name;
+        this.callee = callee;
+        this.arguments = arguments;
+    }
+    @Override
+    Object execute(Frame frame) {
+        return call(callee.execute(frame), frame);
+    }
+    // Calls the callee with the arguments evaluated in the frame.
+    final Object call(Object function, Frame frame) {
+        int argc = arguments.length;
+        if (argc <= Interpreter.MAX_FIXED_ARGUMENTS) {
+            Object a = argc > 0 ? arguments[0].execute(frame) : null;
+            Object b = argc > 1 ? arguments[1].execute(frame) : null;
+            Object c = argc > 2 ? arguments[2].execute(frame) : null;
+            if (function instanceof Function && ((Function) function).arity == argc) {
+                // Straight to the function, one JVM frame less for deep recursion.
+                return ((Function) function).call(interpreter, Interpreter.fixedFrame((Function) function, argc, a, b, c));
+            }
+            return interpreter.callFunction(function, name, argc, a, b, c, line);
+        }
+        return interpreter.callFunction(function, name, NodeCompiler.executeAll(arguments, frame), line);
+    }
+}
+
+// Call of a small function that is run in place (see NodeCompiler.inline): its body expression is
+// evaluated right here, the arguments go into the parameter array of the inlined body instead of a
+// new frame. The site inlines the first function it calls. Whenever the name is bound to another
+// value, for example after the function was redefined, the site makes a normal call.
+class InlineCallExec extends CallExec {
+    private final NodeCompiler compiler;
+    private final Safepoint safepoint;
+    private FunctionDefinitionNode declaration; // Function inlined here, null before the first call.
+    private NodeCompiler.InlinedBody body;       // null when that function cannot be inlined.
+    InlineCallExec(Interpreter interpreter, NodeCompiler compiler, String name, ExecNode callee, ExecNode[] arguments) {
+        super(interpreter, name, callee, arguments);
+        this.compiler = compiler;
+        this.safepoint = interpreter.safepoint;
+    }
+    @Override
+    Object execute(Frame frame) {
+        Object function = callee.execute(frame);
+        return inlines(function) ? inline((Function) function, frame) : call(function, frame);
+    }
+    // Whether the site runs this callee in place.
+    final boolean inlines(Object value) {
+        if (!(value instanceof Function)) {
+            return false;
+        }
+        Function function = (Function) value;
+        if (declaration == null) {
+            declaration = function.declaration;
+            body = function.arity == arguments.length ? compiler.inline(declaration) : null;
+        }
+        return body != null && function.declaration == declaration;
+    }
+    final Object inline(Function function, Frame frame) {
+        // All arguments are evaluated before the parameters are set, an argument may use the same body.
+        int argc = arguments.length;
+        Object a = argc > 0 ? arguments[0].execute(frame) : null;
+        Object b = argc > 1 ? arguments[1].execute(frame) : null;
+        Object c = argc > 2 ? arguments[2].execute(frame) : null;
+        safepoint.poll(declaration.line);
+        Object[] parameters = body.parameters;
+        if (argc > 0) {
+            parameters[0] = a;
+        }
+        if (argc > 1) {
+            parameters[1] = b;
+        }
+        if (argc > 2) {
+            parameters[2] = c;
+        }
+        try {
+            // Variables outside the function are read from the closure of the function value.
+            return body.expression.execute(function.closure);
+        } finally {
+            Arrays.fill(parameters, null);
+        }
+    }
+}
+
+// Parameter of an inlined function body (see InlineCallExec).
+class ParameterExec extends ExecNode {
+    private final Object[] parameters;
+    private final int index;
+    ParameterExec(Object[] parameters, int index) {
+        this.parameters = parameters;
+        this.index = index;
+    }
+    @Override
+    Object execute(Frame frame) {
+        return parameters[index];
+    }
+}
+
+class ClassDefExec extends ExecNode {
+    private final String name;
+    private final int slot;
+    private final FunctionDefinitionNode[] methods;
+    private final ExecNode[] methodBodies;
+    private final String[] fieldNames;
+    private final ExecNode[] fieldValues; // Assignments evaluated in the defining frame.
+    ClassDefExec(String name, int slot, FunctionDefinitionNode[] methods, ExecNode[] methodBodies,
+                 String[] fieldNames, ExecNode[] fieldValues) {
+        this.name = name;
+        this.slot = slot;
+        this.methods = methods;
+        this.methodBodies = methodBodies;
+        this.fieldNames = fieldNames;
+        this.fieldValues = fieldValues;
+    }
+    @Override
+    Object execute(Frame frame) {
+        ClassValue classValue = new ClassValue(name);
+        for (int i = 0; i < methods.length; i++) {
+            classValue.defineMethod(methods[i].name.value, new Function(methods[i], frame, methodBodies[i]));
+        }
+        for (int i = 0; i < fieldNames.length; i++) {
+            classValue.defineField(fieldNames[i], fieldValues[i].execute(frame));
+        }
+        frame.slots[slot] = classValue;
+        return classValue;
+    }
+}
+
+class NewExec extends ExecNode {
+    private final Interpreter interpreter;
+    private final String className;
+    private final ExecNode classRef;
+    private final ExecNode[] arguments;
+    NewExec(Interpreter interpreter, String className, ExecNode classRef, ExecNode[] arguments) {
+        this.interpreter = interpreter;
+        this.className = className;
+        this.classRef = classRef;
+        this.arguments = arguments;
+    }
+    @Override
+    Object execute(Frame frame) {
+        Object classObj = classRef.execute(frame);
+        if (!(classObj instanceof ClassValue)) {
+            throw Interpreter.runtimeError(line, "Attempted to instantiate non-class: " + className);
+        }
+        int argc = arguments.length;
+        if (argc <= Interpreter.MAX_FIXED_ARGUMENTS) {
+            Object a = argc > 0 ? arguments[0].execute(frame) : null;
+            Object b = argc > 1 ? arguments[1].execute(frame) : null;
+            Object c = argc > 2 ? arguments[2].execute(frame) : null;
+            return interpreter.instantiate((ClassValue) classObj, argc, a, b, c, line);
+        }
+        return interpreter.instantiate((ClassValue) classObj, NodeCompiler.executeAll(arguments, frame), line);
+    }
+}
+
+class MethodCallExec extends ExecNode {
+    private final Interpreter interpreter;
+    private final ExecNode target;
+    private final MethodCache cache;
+    private final ExecNode[] arguments;
+    MethodCallExec(Interpreter interpreter, ExecNode target, String methodName, ExecNode[] arguments) {
+        this.interpreter = interpreter;
+        this.target = target;
+        this.cache = new MethodCache(methodName);
+        this.arguments = arguments;
+    }
+    @Override
+    Object execute(Frame frame) {
+        Object object = target.execute(frame);
+        int argc = arguments.length;
+        if (argc <= Interpreter.MAX_FIXED_ARGUMENTS) {
+            Object a = argc > 0 ? arguments[0].execute(frame) : null;
+            Object b = argc > 1 ? arguments[1].execute(frame) : null;
+            Object c = argc > 2 ? arguments[2].execute(frame) : null;
+            return interpreter.callMethod(object, cache, argc, a, b, c, line);
+        }
+        return interpreter.callMethod(object, cache, NodeCompiler.executeAll(arguments, frame), line);
+    }
+}
+
+// Method call without arguments that reads the field itself when the method is an accessor (see
+// NodeCompiler.accessedField). The method comes from the site's MethodCache like for a call, the slot
+// of the field from a FieldCache on the shape of the instance. An instance without the field, and
+// any other method, gets the normal call.
+class AccessorCallExec extends ExecNode {
+    private final Interpreter interpreter;
+    private final Safepoint safepoint;
+    private final ExecNode target;
+    private final MethodCache cache;
+    private Accessor accessor; // Last method seen here, null before the first call.
+    AccessorCallExec(Interpreter interpreter, ExecNode target, String methodName) {
+        this.interpreter = interpreter;
+        this.safepoint = interpreter.safepoint;
+        this.target = target;
+        this.cache = new MethodCache(methodName);
+    }
+    @Override
+    Object execute(Frame frame) {
+        Object object = target.execute(frame);
+        if (object instanceof Instance) {
+            Instance instance = (Instance) object;
+            Function method = cache.lookup(instance);
+            if (method != null && method.arity == 0) {
+                Accessor last = accessor;
+                if (last == null || last.method != method) {
+                    String field = NodeCompiler.accessedField(method.declaration);
+                    last = new Accessor(method, field != null ? new FieldCache(field) : null);
+                    accessor = last; // One write, like the entries of the inline caches.
+                }
+                if (last.field != null) {
+                    int slot = last.field.slot(instance);
+                    if (slot >= 0) {
+                        safepoint.poll(method.declaration.line);
+                        return instance.getSlot(slot);
+                    }
+                }
+            }
+        }
+        return interpreter.callMethod(object, cache, 0, null, null, null, line);
+    }
+
+    // A method and the field it returns, null when it is no accessor.
+    private static final class Accessor {
+        final Function method;
+        final FieldCache field;
+        Accessor(Function method, FieldCache field) {
+            this.method = method;
+            this.field = field;
+        }
+    }
+}
+
+class ListExec extends ExecNode {
+    private final ExecNode[] elements;
+    ListExec(ExecNode[] elements) {
+        this.elements = elements;
+    }
+    @Override
+    Object execute(Frame frame) {
+        List<Object> list = new ScriptList(elements.length);
+        for (ExecNode element : elements) {
+            list.add(element.execute(frame));
+        }
+        return list;
+    }
+}
+
+class DictExec extends ExecNode {
+    private final ExecNode[] keys;
+    private final ExecNode[] values;
+    DictExec(ExecNode[] keys, ExecNode[] values) {
+        this.keys = keys;
+        this.values = values;
+    }
+    @Override
+    Object execute(Frame frame) {
+        ScriptDict dict = new ScriptDict();
+        for (int i = 0; i < keys.length; i++) {
+            Object key = Interpreter.checkKey(keys[i].execute(frame), line);
+            dict.put(key, values[i].execute(frame));
+        }
+        return dict;
+    }
+}
+
+class SetExec extends ExecNode {
+    private final ExecNode[] elements;
+    SetExec(ExecNode[] elements) {
+        this.elements = elements;
+    }
+    @Override
+    Object execute(Frame frame) {
+        ScriptSet set = new ScriptSet();
+        for (ExecNode element : elements) {
+            set.add(Interpreter.checkKey(element.execute(frame), line));
+        }
+        return set;
+    }
+}
+
+class IndexExec extends ExecNode {
+    private final ExecNode base;
+    private final ExecNode index;
+    IndexExec(ExecNode base, ExecNode index) {
+        this.base = base;
+        this.index = index;
+    }
+    @Override
+    Object execute(Frame frame) {
+        Object b = base.execute(frame);
+        Object i = index.execute(frame);
+        return Interpreter.index(b, i, line);
+    }
+}
+
+class SliceExec extends ExecNode {
+    private final ExecNode target;
+    private final ExecNode start; // null when the bound is left out
+    private final ExecNode end;
+    private final ExecNode step;
+    SliceExec(ExecNode target, ExecNode start, ExecNode end, ExecNode step) {
+        this.target = target;
+        this.start = start;
+        this.end = end;
+        this.step = step;
+    }
+    @Override
+    Object execute(Frame frame) {
+        Object list = target.execute(frame);
+        Object startVal = start != null ? start.execute(frame) : null;
+        Object endVal = end != null ? end.execute(frame) : null;
+        Object stepVal = step != null ? step.execute(frame) : null;
+        return Interpreter.slice(list, startVal, endVal, stepVal, line);
+    }
+}
+
+class IndexAssignExec extends ExecNode {
+    private final ExecNode base;
+    private final ExecNode index;
+    private final ExecNode value;
+    IndexAssignExec(ExecNode base, ExecNode index, ExecNode value) {
+        this.base = base;
+        this.index = index;
+        this.value = value;
+    }
+    @Override
+    Object execute(Frame frame) {
+        Object b = base.execute(frame);
+        Object i = index.execute(frame);
+        Object v = value.execute(frame);
+        return Interpreter.indexAssign(b, i, v, line);
+    }
+}
+
+class SetFieldExec extends ExecNode {
+    private final ExecNode target;
+    private final String fieldName;
+    private final ExecNode value;
+    SetFieldExec(ExecNode target, String fieldName, ExecNode value) {
+        this.target = target;
+        this.fieldName = fieldName;
+        this.value = value;
+    }
+    @Override
+    Object execute(Frame frame) {
+        Object object = target.execute(frame);
+        Object v = value.execute(frame);
+        return Interpreter.setField(object, fieldName, v, line);
+    }
+}
+
+class GetFieldExec extends ExecNode {
+    private final ExecNode target;
+    private final FieldCache cache;
+    GetFieldExec(ExecNode target, String fieldName) {
+        this.target = target;
+        this.cache = new FieldCache(fieldName);
+    }
+    @Override
+    Object execute(Frame frame) {
+        return Interpreter.getField(target.execute(frame), cache, line);
+    }
+}
+
+// Node the tree walker cannot evaluate either, fails when it is reached like evaluate() does.
+class ErrorExec extends ExecNode {
+    private final String message;
+    ErrorExec(String message) {
+        this.message = message;
+    }
+    @Override
+    Object execute(Frame frame) {
+        throw new RuntimeException(message);
+    }
+}
@@ -6,9 +6,11 @@ public class FloatFunction implements Callable {
         if (arguments.isEmpty()) {
             throw new RuntimeException("float() requires at least one argument.");
         }
+        return call1(interpreter, arguments.get(0));
+    }
 
-        Object value = arguments.get(0);
-
+    @Override
+    public Object call1(Interpreter interpreter, Object value) {
         if (value instanceof String) {
             try {
                 return Double.parseDouble((String) value);
@@ -0,0 +1,82 @@
+import java.util.Arrays;
+
+// Runtime storage of one scope. Variables live in an array indexed by the slots the Resolver
+// assigned, so reading a resolved variable is a walk of 'depth' frames followed by an array load.
+public class Frame {
+    // Marks a slot whose variable has not been defined yet in this frame.
+    public static final Object UNSET = new Object();
+
+    final FrameLayout layout;
+    final Frame enclosing;
+    Object[] slots;
+
+    public Frame(FrameLayout layout, Frame enclosing) {
+        this.layout = layout;
+        this.enclosing = enclosing;
+        this.slots = new Object[layout.size()];
+        Arrays.fill(slots, UNSET);
+    }
+
+    // Returns the frame 'depth' levels up the chain (0 is this frame).
+    public Frame ancestor(int depth) {
+        Frame frame = this;
+        for (int i = 0; i < depth; i++) {
+            frame = frame.enclosing;
+        }
+        return frame;
+    }
+
+    // Unsets the hidden variables of a loop's invariants when the loop starts (see LoopInvariants).
+    public void unset(int[] hidden) {
+        if (hidden != null) {
+            for (int slot : hidden) {
+                slots[slot] = UNSET;
+            }
+        }
+    }
+
+    // Defines a variable by name, adding it to the layout when needed (used for the globals).
+    public void define(String name, Object value) {
+        int slot = layout.declare(name);
+        if (slot >= slots.length) {
+            int oldLength = slots.length;
+            slots = Arrays.copyOf(slots, layout.size());
+            Arrays.fill(slots, oldLength, slots.length, UNSET);
+        }
+        slots[slot] = value;
+    }
+
+    // Undefines a variable defined by name, its slot stays in the layout.
+    public void remove(String name) {
+        int slot = layout.indexOf(name);
+        if (slot >= 0 && slot < slots.length) {
+            slots[slot] = UNSET;
+        }
+    }
+
+    // Looks a variable up by name, starting at this frame and walking outwards.
+    // Only used for names the Resolver could not give an address to.
+    public Object get(String name, int line) {
+        for (Frame frame = this; frame != null; frame = frame.enclosing) {
+            int slot = frame.layout.indexOf(name);
+            if (slot >= 0 && slot < frame.slots.length && frame.slots[slot] != UNSET) {
+                return frame.slots[slot];
+            }
+        }
+        throw new RuntimeException("Undefined variable at line " + line + ": " + name);
+    }
+
+    public Object get(String name) {
+        return get(name, -1);
+    }
+
+    public boolean exists(String name) {
+        for (Frame frame = this; frame != null; frame = frame.enclosing) {
+            int slot = frame.layout.indexOf(name);
+            if (slot >= 0 && slot < frame.slots.length && frame.slots[slot] != UNSET) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,36 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Static description of a frame: which variable name lives in which slot.
+// Built once per scope by the Resolver and shared by every Frame created for that scope.
+public class FrameLayout {
+    private final List<String> names = new ArrayList<>();
+    private final Map<String, Integer> slots = new HashMap<>();
+
+    // Adds a name to the layout (if it is not there yet) and returns its slot.
+    public int declare(String name) {
+        Integer slot = slots.get(name);
+        if (slot != null) {
+            return slot;
+        }
+        names.add(name);
+        slots.put(name, names.size() - 1);
+        return names.size() - 1;
+    }
+
+    // Returns the slot of a name, or -1 if this layout does not declare it.
+    public int indexOf(String name) {
+        Integer slot = slots.get(name);
+        return slot == null ? -1 : slot;
+    }
+
+    public String nameAt(int slot) {
+        return names.get(slot);
+    }
+
+    public int size() {
+        return names.size();
+    }
+}
@@ -1,43 +1,197 @@
 import java.util.List;
-import java.util.ArrayList;
 
 public class Function {
     public final FunctionDefinitionNode declaration;
-    private final Environment closure;
+    final Frame closure;
+    final int arity;             // Parameter count, call sites compare their argument count with it.
+    private final ExecNode body; // Compiled body when created by the closure engine, null for the tree walker.
+    final Chunk chunk;           // Bytecode when created by the bytecode engine.
 
-    public Function(FunctionDefinitionNode declaration, Environment closure) {
+    // JIT state: calls so far (-1 once the function cannot be compiled), the compiled code and its deopt count.
+    private int jitCalls = Jit.ENABLED ? 0 : -1;
+    private Jit.Compiled compiled;
+    private int deopts;
+
+    private String profileName; // Name in the profiles, Class.method for a method.
+
+    public Function(FunctionDefinitionNode declaration, Frame closure) {
+        this(declaration, closure, null, null);
+    }
+
+    public Function(FunctionDefinitionNode declaration, Frame closure, ExecNode body) {
+        this(declaration, closure, body, null);
+    }
+
+    public Function(FunctionDefinitionNode declaration, Frame closure, Chunk chunk) {
+        this(declaration, closure, null, chunk);
+    }
+
+    private Function(FunctionDefinitionNode declaration, Frame closure, ExecNode body, Chunk chunk) {
         this.declaration = declaration;
-        this.closure = new Environment(closure);
+        this.closure = closure;
+        this.body = body;
+        this.chunk = chunk;
+        this.arity = declaration.parameters.size();
     }
     public int paramCount() {
-        return declaration.parameters.size();
+        return arity;
     }
+
+    // Frame of a new call. Parameters occupy its first slots, the caller stores the arguments there
+    // and passes the frame to call, so no argument list is built.
+    Frame newFrame() {
+        return new Frame(declaration.layout, closure);
+    }
+
     public Object call(Interpreter interpreter, List<Object> arguments) {
-        Environment environment = new Environment(closure);
-        List<Token> params = declaration.parameters;
-        for (int i = 0; i < params.size(); i++) {
-            environment.define(params.get(i).value, arguments.get(i));
+        return call(interpreter, frameOf(arguments));
+    }
+
+    public Object call(Interpreter interpreter, List<Object> arguments, Instance instance) {
+        return call(interpreter, frameOf(arguments), instance);
+    }
+
+    private Frame frameOf(List<Object> arguments) {
+        Frame frame = newFrame();
+        for (int i = 0; i < arity; i++) {
+            frame.slots[i] = arguments.get(i);
         }
-        try {
-            interpreter.executeBlock(((BlockNode) declaration.body).statements, environment);
-        } catch (Return r) {
-            return r.value;
+        return frame;
+    }
+
+    // Calls the function with the arguments already in the parameter slots of a frame from newFrame.
+    // Without the profiler the body runs right from this method: every JVM frame between two script
+    // calls is stack that deep (non-tail) recursion runs out of.
+    Object call(Interpreter interpreter, Frame frame) {
+        Profiler profiler = interpreter.profiler;
+        if (profiler != null) {
+            profiler.enter(profileName(null), declaration.line);
+            try {
+                return invoke(interpreter, frame);
+            } finally {
+                profiler.exit();
+            }
         }
-        return null;
+        interpreter.safepoint.poll(declaration.line);
+        // Compiled code reads the arguments from the parameter slots.
+        Object result = callCompiled(interpreter.safepoint, frame.slots, 0);
+        if (result == Jit.NOT_RUN) {
+            if (body != null) {
+                result = body.execute(frame);
+            } else if (chunk != null) {
+                result = interpreter.vm().execute(chunk, frame);
+            } else {
+                result = interpreter.executeBlock(((BlockNode) declaration.body).statements, frame);
+            }
+            if (result instanceof TailCall) {
+                return trampoline(interpreter, (TailCall) result);
+            }
+            return chunk != null ? result : result instanceof Return ? ((Return) result).value : null;
+        }
+        return result instanceof TailCall ? trampoline(interpreter, (TailCall) result) : result;
     }
 
-    public Object call(Interpreter interpreter, List<Object> arguments, Instance instance) {
-        Environment environment = new Environment(closure);
-        environment.define("this", instance);
-        List<Token> params = declaration.parameters;
-        for (int i = 0; i < params.size(); i++) {
-            environment.define(params.get(i).value, arguments.get(i));
+    private Object invoke(Interpreter interpreter, Frame frame) {
+        interpreter.safepoint.poll(declaration.line);
+        Object result = callCompiled(interpreter.safepoint, frame.slots, 0);
+        if (result == Jit.NOT_RUN) {
+            result = execute(interpreter, frame);
+        }
+        return result instanceof TailCall ? trampoline(interpreter, (TailCall) result) : result;
+    }
+
+    // Runs tail calls one after the other until one returns a value. Every call replaces the one
+    // that made it, in the profiler too.
+    private static Object trampoline(Interpreter interpreter, TailCall call) {
+        Profiler profiler = interpreter.profiler;
+        while (true) {
+            Function function = call.function;
+            if (profiler != null) {
+                profiler.exit();
+                profiler.enter(function.profileName(null), function.declaration.line);
+            }
+            interpreter.safepoint.poll(function.declaration.line);
+            Object result = function.callCompiled(interpreter.safepoint, call.frame.slots, 0);
+            if (result == Jit.NOT_RUN) {
+                result = function.execute(interpreter, call.frame);
+            }
+            if (!(result instanceof TailCall)) {
+                return result;
+            }
+            call = (TailCall) result;
+        }
+    }
+
+    // Calls the function as a method of the instance.
+    Object call(Interpreter interpreter, Frame frame, Instance instance) {
+        Profiler profiler = interpreter.profiler;
+        if (profiler != null) {
+            profiler.enter(profileName(instance), declaration.line);
+            try {
+                return invoke(interpreter, frame, instance);
+            } finally {
+                profiler.exit();
+            }
+        }
+        return invoke(interpreter, frame, instance);
+    }
+
+    private Object invoke(Interpreter interpreter, Frame frame, Instance instance) {
+        interpreter.safepoint.poll(declaration.line);
+        frame.slots[declaration.thisSlot] = instance;
+        Object result = execute(interpreter, frame);
+        return result instanceof TailCall ? trampoline(interpreter, (TailCall) result) : result;
+    }
+
+    String profileName(Instance instance) {
+        if (profileName == null) {
+            String name = declaration.name.value;
+            profileName = instance != null ? instance.getClassValue().name + "." + name : name;
+        }
+        return profileName;
+    }
+
+    // Counts the call and runs the JIT compiled body once the function is hot.
+    // Returns Jit.NOT_RUN when the call has to be interpreted, for example after a deoptimization.
+    Object callCompiled(Safepoint safepoint, Object[] arguments, int offset) {
+        if (jitCalls < 0) {
+            return Jit.NOT_RUN;
+        }
+        if (compiled == null) {
+            if (++jitCalls < Jit.THRESHOLD) {
+                return Jit.NOT_RUN;
+            }
+            compiled = Jit.compile(this);
+            if (compiled == null) {
+                jitCalls = -1;
+                return Jit.NOT_RUN;
+            }
         }
         try {
-            interpreter.executeBlock(((BlockNode) declaration.body).statements, environment);
-        } catch (Return r) {
-            return r.value;
+            return compiled.call(this, safepoint, arguments, offset);
+        } catch (JitDeopt deopt) {
+            if (++deopts >= Jit.MAX_DEOPTS) {
+                compiled = null;
+                jitCalls = -1;
+            }
+            return Jit.NOT_RUN;
+        }
+    }
+
+    // Result of the body: a value, or the TailCall it ended with.
+    private Object execute(Interpreter interpreter, Frame frame) {
+        if (chunk != null) {
+            return interpreter.vm().execute(chunk, frame);
+        }
+        Object result;
+        if (body != null) {
+            result = body.execute(frame);
+        } else {
+            result = interpreter.executeBlock(((BlockNode) declaration.body).statements, frame);
+        }
+        if (result instanceof TailCall) {
+            return result;
         }
-        return null;
+        return result instanceof Return ? ((Return) result).value : null;
     }
 }
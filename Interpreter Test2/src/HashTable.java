@@ -0,0 +1,322 @@
+import java.util.Arrays;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+// Open addressing hash table behind ScriptDict and ScriptSet, laid out like CPython's compact dict:
+// a sparse index of slots, probed linearly, pointing into dense entry arrays in insertion order.
+// Keys are stored by strategy like ScriptList: an int[] while every key is an Integer, otherwise an
+// Object[] with the cached hashes, searched with String.equals directly while every key is a String.
+// Numbers are compared by value like ==, so 2 and 2.0 are the same key (stored as the Integer 2).
+// Removing an entry leaves a hole in the entry arrays, so the order is kept; rebuilding the index drops
+// the holes. Walk the entries with entries() and skip the isRemoved() ones.
+class HashTable {
+    // Key strategies.
+    private static final byte EMPTY = 0;
+    private static final byte INT = 1;
+    private static final byte STRING = 2;
+    private static final byte OBJECT = 3;
+
+    // Index slot values, other values are entry positions.
+    private static final int FREE = -1;
+    private static final int DELETED = -2; // Slot of a removed entry, probing goes on past it.
+
+    private static final int MIN_INDEX = 8;
+
+    private byte strategy = EMPTY;
+    private int[] index;
+    private int[] intKeys;
+    private Object[] keys;
+    private int[] hashes;    // Hash of every key in keys.
+    private Object[] values; // Null in a set.
+    private final boolean hasValues;
+    private boolean[] removed; // Holes left by removed entries, null when there are none.
+    private int size;
+    private int used;        // Entry positions taken, the holes included.
+    int modCount;
+
+    HashTable(boolean hasValues) {
+        this.hasValues = hasValues;
+        this.index = newIndex(MIN_INDEX);
+    }
+
+    private static int[] newIndex(int length) {
+        int[] slots = new int[length];
+        Arrays.fill(slots, FREE);
+        return slots;
+    }
+
+    // Entries that fit before the index is rebuilt (2/3 of the slots).
+    private static int usable(int indexLength) {
+        return indexLength * 2 / 3;
+    }
+
+    // Spreads the bits of a hash code, linear probing needs the low bits to vary.
+    private static int spread(int hash) {
+        int h = hash * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    // Mutable collections cannot be keys, and neither can null.
+    static boolean isHashable(Object key) {
+        return key != null && !(key instanceof List || key instanceof ScriptDict || key instanceof ScriptSet);
+    }
+
+    // Integral Doubles become Integers, so numeric keys compare like ==.
+    static Object normalize(Object key) {
+        if (key instanceof Double) {
+            double d = (Double) key;
+            if (d == (int) d) {
+                return (int) d;
+            }
+        }
+        return key;
+    }
+
+    int size() {
+        return size;
+    }
+
+    // End of the entry positions, some of them may be holes.
+    int entries() {
+        return used;
+    }
+
+    boolean isRemoved(int entry) {
+        return removed != null && removed[entry];
+    }
+
+    Object keyAt(int entry) {
+        return strategy == INT ? (Object) intKeys[entry] : keys[entry];
+    }
+
+    Object valueAt(int entry) {
+        return values[entry];
+    }
+
+    void setValue(int entry, Object value) {
+        values[entry] = value;
+    }
+
+    // Position of the entry of a key, or -1.
+    int find(Object key) {
+        key = normalize(key);
+        switch (strategy) {
+            case INT:
+                return key instanceof Integer ? findInt((Integer) key) : -1;
+            case STRING:
+                return key instanceof String ? findString((String) key) : -1;
+            case OBJECT:
+                return findObject(key, key.hashCode());
+            default:
+                return -1;
+        }
+    }
+
+    private int findInt(int key) {
+        int mask = index.length - 1;
+        for (int slot = spread(key) & mask; ; slot = (slot + 1) & mask) {
+            int entry = index[slot];
+            if (entry == FREE) return -1;
+            if (entry >= 0 && intKeys[entry] == key) return entry;
+        }
+    }
+
+    private int findString(String key) {
+        int hash = key.hashCode();
+        int mask = index.length - 1;
+        for (int slot = spread(hash) & mask; ; slot = (slot + 1) & mask) {
+            int entry = index[slot];
+            if (entry == FREE) return -1;
+            if (entry >= 0 && hashes[entry] == hash && key.equals((String) keys[entry])) return entry;
+        }
+    }
+
+    private int findObject(Object key, int hash) {
+        int mask = index.length - 1;
+        for (int slot = spread(hash) & mask; ; slot = (slot + 1) & mask) {
+            int entry = index[slot];
+            if (entry == FREE) return -1;
+            if (entry >= 0 && hashes[entry] == hash && key.equals(keys[entry])) return entry;
+        }
+    }
+
+    // Position of the entry of a key, added at the end if the key is new.
+    int insert(Object key) {
+        key = normalize(key);
+        if (strategy == EMPTY) {
+            initialize(key);
+        } else if ((strategy == INT && !(key instanceof Integer)) || (strategy == STRING && !(key instanceof String))) {
+            generalize();
+        }
+        int entry = find(key);
+        if (entry >= 0) {
+            return entry;
+        }
+        if (used >= usable(index.length)) {
+            // Grow when the table is really full, otherwise rebuilding drops the holes.
+            rebuild(size >= usable(index.length) / 2 ? index.length * 2 : index.length);
+        }
+        entry = used++;
+        size++;
+        int hash;
+        if (strategy == INT) {
+            intKeys[entry] = (Integer) key;
+            hash = intKeys[entry];
+        } else {
+            keys[entry] = key;
+            hash = key.hashCode();
+            hashes[entry] = hash;
+        }
+        if (hasValues) {
+            values[entry] = null;
+        }
+        int mask = index.length - 1;
+        int slot = spread(hash) & mask;
+        while (index[slot] >= 0) {
+            slot = (slot + 1) & mask;
+        }
+        index[slot] = entry;
+        modCount++;
+        return entry;
+    }
+
+    // Picks the strategy for the first key.
+    private void initialize(Object key) {
+        int capacity = usable(index.length);
+        if (key instanceof Integer) {
+            strategy = INT;
+            intKeys = new int[capacity];
+        } else {
+            strategy = key instanceof String ? STRING : OBJECT;
+            keys = new Object[capacity];
+            hashes = new int[capacity];
+        }
+        if (hasValues) {
+            values = new Object[capacity];
+        }
+    }
+
+    // Switches to Object keys. Integer.hashCode is the int itself, so the index stays valid.
+    private void generalize() {
+        if (strategy == INT) {
+            keys = new Object[intKeys.length];
+            hashes = new int[intKeys.length];
+            for (int i = 0; i < used; i++) {
+                keys[i] = intKeys[i];
+                hashes[i] = intKeys[i];
+            }
+            intKeys = null;
+        }
+        strategy = OBJECT;
+    }
+
+    // Rebuilds the index with the given length, the entry arrays follow its capacity.
+    private void rebuild(int length) {
+        if (removed != null) {
+            compact();
+        }
+        int capacity = usable(length);
+        if (strategy == INT) {
+            intKeys = Arrays.copyOf(intKeys, capacity);
+        } else {
+            keys = Arrays.copyOf(keys, capacity);
+            hashes = Arrays.copyOf(hashes, capacity);
+        }
+        if (hasValues) {
+            values = Arrays.copyOf(values, capacity);
+        }
+        index = newIndex(length);
+        int mask = length - 1;
+        for (int entry = 0; entry < size; entry++) {
+            int slot = spread(strategy == INT ? intKeys[entry] : hashes[entry]) & mask;
+            while (index[slot] != FREE) {
+                slot = (slot + 1) & mask;
+            }
+            index[slot] = entry;
+        }
+    }
+
+    // Index slot pointing to an entry.
+    private int slotOf(int entry) {
+        int mask = index.length - 1;
+        int slot = spread(strategy == INT ? intKeys[entry] : hashes[entry]) & mask;
+        while (index[slot] != entry) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    // Moves the entries down over the holes, keeping their order. The index is rebuilt after it.
+    private void compact() {
+        int to = 0;
+        for (int from = 0; from < used; from++) {
+            if (removed[from]) {
+                continue;
+            }
+            if (strategy == INT) {
+                intKeys[to] = intKeys[from];
+            } else {
+                keys[to] = keys[from];
+                hashes[to] = hashes[from];
+            }
+            if (hasValues) {
+                values[to] = values[from];
+            }
+            to++;
+        }
+        if (strategy != INT) {
+            Arrays.fill(keys, to, used, null);
+        }
+        if (hasValues) {
+            Arrays.fill(values, to, used, null);
+        }
+        used = to;
+        removed = null;
+    }
+
+    // Removes an entry, its position becomes a hole until the next rebuild.
+    void removeAt(int entry) {
+        index[slotOf(entry)] = DELETED;
+        if (removed == null) {
+            removed = new boolean[strategy == INT ? intKeys.length : keys.length];
+        }
+        removed[entry] = true;
+        if (strategy != INT) {
+            keys[entry] = null;
+        }
+        if (hasValues) {
+            values[entry] = null;
+        }
+        size--;
+        modCount++;
+    }
+
+    // Iterates over the keys, changing the table during the iteration fails like it does for lists.
+    Iterator<Object> keys() {
+        return new Iterator<Object>() {
+            private final int expected = modCount;
+            private int entry = 0;
+
+            @Override
+            public boolean hasNext() {
+                while (entry < used && isRemoved(entry)) {
+                    entry++;
+                }
+                return entry < used;
+            }
+
+            @Override
+            public Object next() {
+                if (modCount != expected) {
+                    throw new ConcurrentModificationException();
+                }
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return keyAt(entry++);
+            }
+        };
+    }
+}
@@ -0,0 +1,154 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// Tokens of a text that is edited, for the editor. The tokens are kept per chunk, the part of the text
+// one Lexer.scanLine call scans (a line, with the lines of an open bracket or string). edit() marks the
+// chunks around a change, tokens() lexes from the first damaged chunk and stops as soon as it reaches
+// an old chunk after the damage in the same lexer state (indent stack, bracket nesting, last token):
+// the tokens from there on are the old ones, only their line numbers move.
+// Unchanged tokens stay the same Token objects, which lets the Parser reuse statements (Parser.Reuse).
+class IncrementalLexer {
+    // The state of the lexer where a chunk starts and the tokens the chunk has.
+    private static class Chunk {
+        int start; // -1 once the text of the chunk was removed
+        int line;
+        int[] indents;
+        int listNesting;
+        TokenType lastType; // null for the first chunk, which starts with a new Lexer
+        Token[] tokens; // null for the chunk with a lexer error, the last one
+    }
+
+    private final List<Chunk> chunks = new ArrayList<>();
+    private List<Token> tokens = new ArrayList<>();
+    // Damage since the last tokens() call: the first chunk to lex again and the end of the changed text.
+    private int dirtyChunk = 0;
+    private int dirtyEnd = Integer.MAX_VALUE;
+
+    // Records a change of the text: removed characters at offset replaced by inserted characters.
+    void edit(int offset, int removed, int inserted) {
+        int delta = inserted - removed;
+        int first = 0;
+        for (int i = 0; i < chunks.size(); i++) {
+            Chunk chunk = chunks.get(i);
+            if (chunk.start < 0) {
+                continue;
+            }
+            if (chunk.start < offset) {
+                first = i; // The last chunk before the change, its scan looked at the character at offset
+            } else if (chunk.start >= offset + removed) {
+                chunk.start += delta;
+            } else {
+                chunk.start = -1;
+            }
+        }
+        dirtyChunk = Math.min(dirtyChunk, first);
+        if (dirtyEnd != Integer.MAX_VALUE) {
+            if (dirtyEnd >= offset + removed) {
+                dirtyEnd += delta;
+            } else if (dirtyEnd > offset) {
+                dirtyEnd = offset;
+            }
+        }
+        dirtyEnd = dirtyEnd == Integer.MAX_VALUE ? offset + inserted : Math.max(dirtyEnd, offset + inserted);
+    }
+
+    // The tokens of the text (which must have had every change reported to edit). A lexer error is thrown,
+    // the chunks before it are kept and the next call lexes again from there.
+    List<Token> tokens(CharSequence text) {
+        if (dirtyChunk >= chunks.size() && !chunks.isEmpty()) {
+            return tokens;
+        }
+        int first = Math.min(dirtyChunk, chunks.size());
+        Lexer lexer = new Lexer(text);
+        if (first > 0) {
+            Chunk chunk = chunks.get(first);
+            lexer.resume(chunk.start, chunk.line, chunk.indents, chunk.listNesting, chunk.lastType);
+        }
+        List<Chunk> scanned = new ArrayList<>();
+        int next = first + 1; // Old chunk where the lexer may get back in step
+        // After a lexer error the chunks from it on are gone, the lexer has to get past it.
+        boolean failed = !chunks.isEmpty() && chunks.getLast().tokens == null;
+        int lineDelta = 0;
+        boolean synced = false;
+        int[] indents = first > 0 ? chunks.get(first - 1).indents : null;
+        Chunk chunk = null;
+        try {
+            while (true) {
+                chunk = state(lexer, scanned.isEmpty() && first == 0, indents);
+                indents = chunk.indents;
+                if (!lexer.scanLine()) {
+                    break;
+                }
+                chunk.tokens = new Token[lexer.tokens.count];
+                for (int i = 0; i < chunk.tokens.length; i++) {
+                    chunk.tokens[i] = lexer.token(i);
+                }
+                lexer.tokens.clear();
+                scanned.add(chunk);
+                if (lexer.finished) {
+                    break;
+                }
+                while (next < chunks.size() && chunks.get(next).start < lexer.pos) {
+                    next++;
+                }
+                if (!failed && next < chunks.size() && lexer.pos >= dirtyEnd && sameState(chunks.get(next), lexer)) {
+                    lineDelta = lexer.line - chunks.get(next).line;
+                    synced = true;
+                    break;
+                }
+            }
+        } catch (RuntimeException e) {
+            // Everything from the chunk with the error on is lexed again next time.
+            chunk.tokens = null;
+            replace(first, chunks.size(), scanned);
+            chunks.add(chunk);
+            dirtyChunk = chunks.size() - 1;
+            dirtyEnd = Integer.MAX_VALUE;
+            throw e;
+        }
+        replace(first, synced ? next : chunks.size(), scanned);
+        if (lineDelta != 0) {
+            for (int i = first + scanned.size(); i < chunks.size(); i++) {
+                Chunk moved = chunks.get(i);
+                moved.line += lineDelta;
+                for (Token token : moved.tokens) {
+                    token.line += lineDelta;
+                }
+            }
+        }
+        dirtyChunk = chunks.size();
+        dirtyEnd = Integer.MAX_VALUE;
+
+        List<Token> all = new ArrayList<>(tokens.size() + 16);
+        for (Chunk lexed : chunks) {
+            all.addAll(Arrays.asList(lexed.tokens));
+        }
+        tokens = all;
+        return tokens;
+    }
+
+    // The state of the lexer at the start of the chunk it scans next. shared is the indent stack of the
+    // chunk before, most lines have the same one.
+    private static Chunk state(Lexer lexer, boolean fresh, int[] shared) {
+        Chunk chunk = new Chunk();
+        chunk.start = lexer.pos;
+        chunk.line = lexer.line;
+        chunk.listNesting = lexer.listNesting;
+        chunk.lastType = fresh ? null : lexer.lastType;
+        int[] indents = lexer.indents();
+        chunk.indents = Arrays.equals(shared, indents) ? shared : indents;
+        return chunk;
+    }
+
+    private static boolean sameState(Chunk chunk, Lexer lexer) {
+        return chunk.start == lexer.pos && chunk.lastType == lexer.lastType && chunk.listNesting == lexer.listNesting
+                && Arrays.equals(chunk.indents, lexer.indents());
+    }
+
+    // Replaces the chunks [from, to) with the scanned ones.
+    private void replace(int from, int to, List<Chunk> scanned) {
+        chunks.subList(from, to).clear();
+        chunks.addAll(from, scanned);
+    }
+}
@@ -0,0 +1,103 @@
+// Polymorphic inline caches. A method call or field access site remembers what the lookup found for
+// the last few classes (or shapes) that reached it, the next time it compares a reference instead of
+// hashing the name. A site that sees more than SIZE of them is megamorphic: it stops caching and
+// always does the full lookup.
+// Entries are immutable and stored with one write, so a site shared by threads stays consistent.
+abstract class InlineCache {
+    static final int SIZE = 4;
+    static final int MEGAMORPHIC = -1;
+
+    final String name;
+    int count; // Entries in use, MEGAMORPHIC once the site has seen too many classes.
+
+    InlineCache(String name) {
+        this.name = name;
+    }
+
+    // Index for a new entry, or -1 when the site just became megamorphic.
+    int claim() {
+        int i = count;
+        if (i >= SIZE) {
+            count = MEGAMORPHIC;
+            return -1;
+        }
+        count = i + 1;
+        return i;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
+
+// Methods of the classes seen at a call site.
+final class MethodCache extends InlineCache {
+    private final Entry[] entries = new Entry[SIZE];
+
+    MethodCache(String name) {
+        super(name);
+    }
+
+    // Method of the class of the instance, null if it has none.
+    Function lookup(Instance instance) {
+        ClassValue klass = instance.getClassValue();
+        if (count != MEGAMORPHIC) {
+            for (Entry entry : entries) {
+                if (entry == null) break;
+                if (entry.klass == klass) return entry.method;
+            }
+        }
+        Function method = klass.findMethod(name);
+        // Classes are complete when their instances exist, a method found once stays the method.
+        if (method != null && count != MEGAMORPHIC) {
+            int i = claim();
+            if (i >= 0) entries[i] = new Entry(klass, method);
+        }
+        return method;
+    }
+
+    private static final class Entry {
+        final ClassValue klass;
+        final Function method;
+        Entry(ClassValue klass, Function method) {
+            this.klass = klass;
+            this.method = method;
+        }
+    }
+}
+
+// Slots of a field in the shapes seen at an access site, -1 for shapes without the field.
+final class FieldCache extends InlineCache {
+    private final Entry[] entries = new Entry[SIZE];
+
+    FieldCache(String name) {
+        super(name);
+    }
+
+    int slot(Instance instance) {
+        Shape shape = instance.getShape();
+        if (count != MEGAMORPHIC) {
+            for (Entry entry : entries) {
+                if (entry == null) break;
+                if (entry.shape == shape) return entry.slot;
+            }
+        }
+        // Shapes never change, neither does the slot of a field in them.
+        int slot = shape.indexOf(name);
+        if (count != MEGAMORPHIC) {
+            int i = claim();
+            if (i >= 0) entries[i] = new Entry(shape, slot);
+        }
+        return slot;
+    }
+
+    private static final class Entry {
+        final Shape shape;
+        final int slot;
+        Entry(Shape shape, int slot) {
+            this.shape = shape;
+            this.slot = slot;
+        }
+    }
+}
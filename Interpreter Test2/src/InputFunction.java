@@ -1,34 +1,29 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.List;
-import javax.swing.SwingUtilities;
 
 public class InputFunction implements Callable { // Class for input function
     @Override
     public Object call(Interpreter interpreter, List<Object> arguments) {
-        final String prompt = (!arguments.isEmpty()) ? arguments.get(0).toString() : "";
+        return arguments.isEmpty() ? call0(interpreter) : call1(interpreter, arguments.get(0));
+    }
+
+    @Override
+    public Object call0(Interpreter interpreter) {
+        return call1(interpreter, "");
+    }
+
+    @Override
+    public Object call1(Interpreter interpreter, Object argument) {
+        final String prompt = argument.toString();
+        // Everything printed before must be visible before the prompt, and the prompt before the answer.
+        interpreter.getOutput().print(prompt + " ");
+        interpreter.getOutput().flush();
         try {
-            SwingUtilities.invokeAndWait(() -> {
-                // Temporarily allow editing.
-                Main.consoleArea.setEditable(true);
-                // Append the prompt with a trailing space synchronously.
-                Main.consoleArea.append(prompt + " ");
-                // Set inputStart to mark where user input begins.
-                Main.inputStart = Main.consoleArea.getDocument().getLength();
-            });
-        } catch (Exception e) {
-            throw new RuntimeException("Failed to update prompt", e);
-        }
-        // Wait for the user to press Enter.
-        synchronized (Main.inputLock) {
-            try {
-                Main.inputLock.wait();
-            } catch (InterruptedException e) {
-                throw new RuntimeException("Input interrupted", e);
-            }
+            String line = interpreter.getInput().readLine();
+            return line != null ? line.trim() : "";
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
         }
-        String consoleText = Main.consoleArea.getText();
-        String userInput = consoleText.substring(Main.inputStart).trim();
-        // Disable editing again.
-        SwingUtilities.invokeLater(() -> Main.consoleArea.setEditable(false));
-        return userInput;
     }
 }
@@ -0,0 +1,11 @@
+import java.io.IOException;
+
+// Where input() reads its answers. The prompt has already been printed and flushed to the
+// output sink when readLine is called, a source only has to deliver the next line.
+public interface InputSource {
+    // Source without input, every input() gets an empty answer.
+    InputSource NONE = () -> null;
+
+    // Returns the next line, or null at the end of the input.
+    String readLine() throws IOException;
+}
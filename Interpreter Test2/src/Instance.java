@@ -1,19 +1,24 @@
+import java.util.Arrays;
+
+// Object of a script class. The fields live in an array, the shape tells which name is in which
+// slot. Adding a field moves the instance to the next shape, instances created the same way share
+// their shapes (see Shape).
 public class Instance {
     private final ClassValue klass;
-    private final Environment fields;
+    private Shape shape;
+    private Object[] slots;
 
     public Instance(ClassValue klass) {
         this.klass = klass;
-        this.fields = new Environment(null);
-        // Initialize fields with class default values.
-        for (String key : klass.fields.keySet()) {
-            fields.define(key, klass.fields.get(key));
-        }
+        // Starts with the class attributes, in the shape the class built for them.
+        this.shape = klass.instanceShape();
+        this.slots = klass.newSlots();
     }
 
     public Object get(String name) {
-        if (fields.containsLocally(name)) {
-            return fields.get(name);
+        int slot = shape.indexOf(name);
+        if (slot >= 0) {
+            return slots[slot];
         }
         Function method = klass.findMethod(name);
         if (method != null) return method;
@@ -21,15 +26,33 @@ public class Instance {
     }
 
     public void set(String name, Object value) {
-        if (fields.containsLocally(name)) {
-            fields.assign(name, value);
-        } else {
-            fields.define(name, value);
+        int slot = shape.indexOf(name);
+        if (slot < 0) {
+            shape = shape.with(name);
+            slot = shape.size() - 1;
+            if (slot >= slots.length) {
+                slots = Arrays.copyOf(slots, Math.max(slot + 1, slots.length * 2));
+            }
+            klass.noteInstanceSize(shape.size());
         }
+        slots[slot] = value;
     }
 
     public boolean hasField(String name) {
-        return fields.containsLocally(name);
+        return shape.indexOf(name) >= 0;
+    }
+
+    public Shape getShape() {
+        return shape;
+    }
+
+    // Value in a slot of the current shape.
+    public Object getSlot(int slot) {
+        return slots[slot];
+    }
+
+    public ClassValue getClassValue() {
+        return klass;
     }
 
     public Function getMethod(String name) {
@@ -6,9 +6,11 @@ public class IntFunction implements Callable {
         if (arguments.isEmpty()) {
             throw new RuntimeException("int() requires at least one argument.");
         }
+        return call1(interpreter, arguments.get(0));
+    }
 
-        Object value = arguments.get(0);
-
+    @Override
+    public Object call1(Interpreter interpreter, Object value) {
         if (value instanceof String) {
             try {
                 return Integer.parseInt((String) value);
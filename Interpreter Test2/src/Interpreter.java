@@ -1,36 +1,134 @@
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
 
 public class Interpreter {
 
-    Environment globals;
-    Environment environment;
+    // Execution engines: the AST walker below (the reference implementation), the
+    // executable node tree built by NodeCompiler or the bytecode VM.
+    public enum Engine { TREE, CLOSURE, BYTECODE }
 
-    // Constructor: initialize global environment and add built-in functions.
+    Frame globals;
+    Frame frame; // Frame of the scope currently being executed.
+    Engine engine;
+    private VM vm;
+    private OutputSink output = new BufferedOutputSink(System.out); // Where print writes.
+    private InputSource input = InputSource.NONE; // Where input() reads.
+    final Safepoint safepoint = new Safepoint(); // Cancellation, time and step limits.
+    Profiler profiler; // Null unless the runs are profiled.
+
+    // Constructor: initialize global frame and add built-in functions.
     public Interpreter() {
-        globals = new Environment(null);
+        globals = new Frame(new FrameLayout(), null);
         // Add built-in functions to the global environment.
         globals.define("range", new RangeFunction());
         globals.define("input", new InputFunction());
         globals.define("int", new IntFunction());
         globals.define("float", new FloatFunction());
-        environment = globals;
+        frame = globals;
+        engine = defaultEngine();
+    }
+
+    // The engine can be picked with -Dinterpreter.engine=tree|closure|bytecode.
+    public static Engine defaultEngine() {
+        return Engine.valueOf(System.getProperty("interpreter.engine", "closure").toUpperCase());
+    }
+
+    public void setEngine(Engine engine) {
+        this.engine = engine;
+    }
+
+    public Engine getEngine() {
+        return engine;
+    }
+
+    public void setOutput(OutputSink output) {
+        this.output = output;
+    }
+
+    public OutputSink getOutput() {
+        return output;
+    }
+
+    public Safepoint getSafepoint() {
+        return safepoint;
+    }
+
+    // Stops the running script at its next safepoint, can be called from any thread.
+    public void cancel() {
+        safepoint.cancel();
     }
+
+    // Samples the following runs with the given profiler, null turns profiling off.
+    public void setProfiler(Profiler profiler) {
+        this.profiler = profiler;
+    }
+
+    public Profiler getProfiler() {
+        return profiler;
+    }
+
+    public void setInput(InputSource input) {
+        this.input = input;
+    }
+
+    public InputSource getInput() {
+        return input;
+    }
+
+    VM vm() {
+        if (vm == null) {
+            vm = new VM(this);
+        }
+        return vm;
+    }
+
+    // Runs a resolved program with the selected engine, the output is flushed at the end (also after an error).
+    public Object run(ASTNode program) {
+        safepoint.start();
+        if (profiler != null) {
+            profiler.start(Thread.currentThread());
+        }
+        try {
+            if (engine == Engine.CLOSURE) {
+                return new NodeCompiler(this).compile(program).execute(globals);
+            }
+            if (engine == Engine.BYTECODE) {
+                return vm().execute(BytecodeCompiler.compileProgram(program), globals);
+            }
+            return evaluate(program);
+        } finally {
+            if (profiler != null) {
+                profiler.stop();
+            }
+            safepoint.finish();
+            output.flush();
+        }
+    }
+
     // Helper function to show errors
     private RuntimeException runtimeError(ASTNode node, String message) {
-        return new RuntimeException("Runtime error at line " + node.line + ": " + message);
+        return runtimeError(node.line, message);
+    }
+
+    static RuntimeException runtimeError(int line, String message) {
+        return new RuntimeException("Runtime error at line " + line + ": " + message);
     }
     // Start of interpreting the ASTNodes from the parsing process, checks each ASTNode type
     public Object evaluate(ASTNode node) {
+        if (node instanceof ConstantNode) return ((ConstantNode) node).value;
         if (node instanceof NumberNode) return evaluateNumber((NumberNode) node);
         if (node instanceof StringNode) return evaluateString((StringNode) node);
         if (node instanceof BooleanNode) return evaluateBoolean((BooleanNode) node);
         if (node instanceof IdentifierNode) return evaluateIdentifier((IdentifierNode) node);
         if (node instanceof BinaryOpNode) return evaluateBinaryOp((BinaryOpNode) node);
         if (node instanceof UnaryOpNode) return evaluateUnaryOp((UnaryOpNode) node);
+        if (node instanceof InvariantNode) return evaluateInvariant((InvariantNode) node);
         if (node instanceof AssignmentNode) return evaluateAssignment((AssignmentNode) node);
         if (node instanceof IndexAssignmentNode) return evaluateIndexAssignment((IndexAssignmentNode) node);
         if (node instanceof FieldAssignmentNode) return evaluateFieldAssignment((FieldAssignmentNode) node);
+        if (node instanceof FieldAccessNode) return evaluateFieldAccess((FieldAccessNode) node);
         if (node instanceof PrintNode) return evaluatePrint((PrintNode) node);
         if (node instanceof ReturnNode) return evaluateReturn((ReturnNode) node);
         if (node instanceof BlockNode) return evaluateBlock((BlockNode) node);
@@ -44,6 +142,8 @@ public class Interpreter {
         if (node instanceof ObjectCreationNode) return evaluateObjectCreation((ObjectCreationNode) node);
         if (node instanceof MethodCallNode) return evaluateMethodCall((MethodCallNode) node);
         if (node instanceof ListNode) return evaluateList((ListNode) node);
+        if (node instanceof DictNode) return evaluateDict((DictNode) node);
+        if (node instanceof SetNode) return evaluateSet((SetNode) node);
         if (node instanceof IndexNode) return evaluateIndex((IndexNode) node);
         if (node instanceof SliceNode) return evaluateSlice((SliceNode) node);
         throw new RuntimeException("Unknown AST node type: " + node.getClass().getName());
@@ -51,7 +151,7 @@ public class Interpreter {
 
     // Helper method to return a formatted string for a value
     // For numbers, if the value is mathematically an integer, it omits the trailing .0
-    private String formatValue(Object value) {
+    static String formatValue(Object value) {
         if (value instanceof Double) {
             double d = (Double) value;
             if (d == (int) d) {
@@ -70,76 +170,148 @@ public class Interpreter {
             }
             sb.append("]");
             return sb.toString();
+        } else if (value instanceof ScriptDict) {
+            ScriptDict dict = (ScriptDict) value;
+            StringBuilder sb = new StringBuilder("{");
+            for (int i = 0; i < dict.table.entries(); i++) {
+                if (dict.table.isRemoved(i)) {
+                    continue;
+                }
+                if (sb.length() > 1) {
+                    sb.append(", ");
+                }
+                sb.append(formatValue(dict.table.keyAt(i))).append(": ").append(formatValue(dict.table.valueAt(i)));
+            }
+            sb.append("}");
+            return sb.toString();
+        } else if (value instanceof ScriptSet) {
+            ScriptSet set = (ScriptSet) value;
+            StringBuilder sb = new StringBuilder("{");
+            for (int i = 0; i < set.table.entries(); i++) {
+                if (set.table.isRemoved(i)) {
+                    continue;
+                }
+                if (sb.length() > 1) {
+                    sb.append(", ");
+                }
+                sb.append(formatValue(set.table.keyAt(i)));
+            }
+            sb.append("}");
+            return sb.toString();
         }
         return String.valueOf(value);
     }
     // Evaluate the tree for the List
     private Object evaluateList(ListNode node) {
-        List<Object> list = new ArrayList<>();
+        List<Object> list = new ScriptList(node.getElements().size());
         for (ASTNode element : node.getElements()) {
             list.add(evaluate(element));
         }
         return list;
     }
-    // Evaluate the indexing of lists
+
+    // Evaluate a dict literal, a repeated key keeps the last value.
+    private Object evaluateDict(DictNode node) {
+        ScriptDict dict = new ScriptDict();
+        for (int i = 0; i < node.keys.size(); i++) {
+            Object key = checkKey(evaluate(node.keys.get(i)), node.line);
+            dict.put(key, evaluate(node.values.get(i)));
+        }
+        return dict;
+    }
+
+    // Evaluate a set literal.
+    private Object evaluateSet(SetNode node) {
+        ScriptSet set = new ScriptSet();
+        for (ASTNode element : node.elements) {
+            set.add(checkKey(evaluate(element), node.line));
+        }
+        return set;
+    }
+
+    // Dict keys and set elements must be hashable (not a list, dict or set, and not null).
+    static Object checkKey(Object key, int line) {
+        if (!HashTable.isHashable(key)) {
+            throw runtimeError(line, "Dict keys and set elements must be numbers, strings, booleans or objects.");
+        }
+        return key;
+    }
+
+    // Evaluate the indexing of lists and dicts
     private Object evaluateIndex(IndexNode node) {
         Object base = evaluate(node.getBase());
         Object index = evaluate(node.getIndex());
+        return index(base, index, node.line);
+    }
 
+    static Object index(Object base, Object index, int line) {
+        if (base instanceof ScriptDict) {
+            ScriptDict dict = (ScriptDict) base;
+            Object value = dict.get(checkKey(index, line));
+            if (value == null && !dict.containsKey(index)) {
+                throw runtimeError(line, "Key not found in dict: " + formatValue(index));
+            }
+            return value;
+        }
         if (!(base instanceof List)) {
-            throw runtimeError(node, "Indexing operator can only be applied to lists.");
+            throw runtimeError(line, "Indexing operator can only be applied to lists and dicts.");
         }
         List<?> list = (List<?>) base;
 
         if (!(index instanceof Number)) {
-            throw runtimeError(node, "List index must be a number.");
+            throw runtimeError(line, "List index must be a number.");
         }
         int idx = ((Number) index).intValue();
 
         if (idx < 0 || idx >= list.size()) {
-            throw runtimeError(node, "List index out of bounds: " + idx);
+            throw runtimeError(line, "List index out of bounds: " + idx);
         }
         return list.get(idx);
     }
     // Evaluate slicing of list
     private Object evaluateSlice(SliceNode node) {
         Object baseObj = evaluate(node.getTarget());
+        Object start = node.getStart() != null ? evaluate(node.getStart()) : null;
+        Object end = node.getEnd() != null ? evaluate(node.getEnd()) : null;
+        Object step = node.getStep() != null ? evaluate(node.getStep()) : null;
+        return slice(baseObj, start, end, step, node.line);
+    }
+
+    // Slices a list, a null start, end or step means the bound was left out.
+    static Object slice(Object baseObj, Object startVal, Object endVal, Object stepVal, int line) {
         if (!(baseObj instanceof List)) {
-            throw runtimeError(node, "Slice operator can only be applied to lists.");
+            throw runtimeError(line, "Slice operator can only be applied to lists.");
         }
         List<Object> list = (List<Object>) baseObj;
         int size = list.size();
 
-        // Evaluate start, if missing, default to start is 0.
+        // If start is missing, default to start is 0.
         int start = 0;
-        if (node.getStart() != null) {
-            Object startVal = evaluate(node.getStart());
+        if (startVal != null) {
             if (!(startVal instanceof Number)) {
-                throw runtimeError(node, "Slice start must be a number.");
+                throw runtimeError(line, "Slice start must be a number.");
             }
             start = ((Number) startVal).intValue();
         }
 
-        // Evaluate end, if missing, default to the list size.
+        // If end is missing, default to the list size.
         int end = size;
-        if (node.getEnd() != null) {
-            Object endVal = evaluate(node.getEnd());
+        if (endVal != null) {
             if (!(endVal instanceof Number)) {
-                throw runtimeError(node, "Slice end must be a number.");
+                throw runtimeError(line, "Slice end must be a number.");
             }
             end = ((Number) endVal).intValue();
         }
 
-        // Evaluate step, if missing, default step is 1.
+        // If step is missing, default step is 1.
         int step = 1;
-        if (node.getStep() != null) {
-            Object stepVal = evaluate(node.getStep());
+        if (stepVal != null) {
             if (!(stepVal instanceof Number)) {
-                throw runtimeError(node, "Slice step must be a number.");
+                throw runtimeError(line, "Slice step must be a number.");
             }
             step = ((Number) stepVal).intValue();
             if (step == 0) {
-                throw runtimeError(node, "Slice step cannot be zero.");
+                throw runtimeError(line, "Slice step cannot be zero.");
             }
         }
 
@@ -151,7 +323,20 @@ public class Interpreter {
         if (start < 0) start = 0;
         if (end > size) end = size;
 
-        List<Object> result = new ArrayList<>();
+        // Slicing a range gives another range.
+        if (list instanceof RangeList) {
+            RangeList range = ((RangeList) list).slice(start, end, step);
+            if (range != null) {
+                return range;
+            }
+        }
+
+        // Slicing a script list copies its storage directly.
+        if (list instanceof ScriptList) {
+            return ((ScriptList) list).slice(start, end, step);
+        }
+
+        List<Object> result = new ScriptList();
         if (step > 0) {
             for (int i = start; i < end; i += step) {
                 result.add(list.get(i));
@@ -169,57 +354,86 @@ public class Interpreter {
         ASTNode targetExpr = node.getTarget();
         if (targetExpr instanceof IndexNode) {
             IndexNode indexNode = (IndexNode) targetExpr;
-            // Evaluate the base expression
+            // Evaluate the base expression, the index and the right-hand side (value to assign).
             Object base = evaluate(indexNode.getBase());
-            if (!(base instanceof List)) {
-                throw runtimeError(node, "Index assignment target must be a list.");
-            }
-            List<Object> list = (List<Object>) base;
-            // Evaluate the index expression.
             Object indexVal = evaluate(indexNode.getIndex());
-            if (!(indexVal instanceof Number)) { // Accept any Number type.
-                throw runtimeError(node, "List index must be a number.");
-            }
-            int idx = ((Number) indexVal).intValue();
-            if (idx < 0 || idx >= list.size()) {
-                throw runtimeError(node, "List index out of bounds: " + idx);
-            }
-            // Evaluate the right-hand side (value to assign).
             Object value = evaluate(node.getValue());
-            // Perform the assignment.
-            list.set(idx, value);
-            return value;
+            return indexAssign(base, indexVal, value, node.line);
         } else if (targetExpr instanceof FieldAccessNode) {
             // Compound assignment on a field access.
             FieldAccessNode fieldAccess = (FieldAccessNode) targetExpr;
             Object instanceObj = evaluate(fieldAccess.target);
-            if (!(instanceObj instanceof Instance)) {
-                throw runtimeError(node, "Field assignment target is not an instance.");
-            }
-            Instance instance = (Instance) instanceObj;
             Object value = evaluate(node.getValue());
-            instance.set(fieldAccess.fieldName.value, value);
-            return value;
+            return setField(instanceObj, fieldAccess.fieldName.value, value, node.line);
         } else {
             throw runtimeError(node, "Invalid assignment target for compound assignment.");
         }
     }
 
+    static Object indexAssign(Object base, Object indexVal, Object value, int line) {
+        if (base instanceof ScriptDict) {
+            ((ScriptDict) base).put(checkKey(indexVal, line), value);
+            return value;
+        }
+        if (!(base instanceof List)) {
+            throw runtimeError(line, "Index assignment target must be a list or a dict.");
+        }
+        List<Object> list = (List<Object>) base;
+        if (!(indexVal instanceof Number)) { // Accept any Number type.
+            throw runtimeError(line, "List index must be a number.");
+        }
+        int idx = ((Number) indexVal).intValue();
+        if (idx < 0 || idx >= list.size()) {
+            throw runtimeError(line, "List index out of bounds: " + idx);
+        }
+        // Perform the assignment.
+        list.set(idx, value);
+        return value;
+    }
+
+    static Object setField(Object instanceObj, String name, Object value, int line) {
+        if (!(instanceObj instanceof Instance)) {
+            throw runtimeError(line, "Field assignment target is not an instance.");
+        }
+        ((Instance) instanceObj).set(name, value);
+        return value;
+    }
+
+    // Field read at an access site, the site's cache maps the shape of the instance to the slot.
+    static Object getField(Object instanceObj, FieldCache cache, int line) {
+        if (!(instanceObj instanceof Instance)) {
+            throw runtimeError(line, "Field access target is not an instance.");
+        }
+        Instance instance = (Instance) instanceObj;
+        int slot = cache.slot(instance);
+        if (slot >= 0) {
+            return instance.getSlot(slot);
+        }
+        Function method = instance.getMethod(cache.name);
+        if (method == null) {
+            throw runtimeError(line, "Undefined property '" + cache.name + "'.");
+        }
+        return method;
+    }
+
+    private Object evaluateFieldAccess(FieldAccessNode node) {
+        return getField(evaluate(node.target), node.cache, node.line);
+    }
+
     // Handle explicit field assignment AST nodes.
     private Object evaluateFieldAssignment(FieldAssignmentNode node) {
         Object targetObj = evaluate(node.target);
-        if (!(targetObj instanceof Instance)) {
-            throw runtimeError(node, "Field assignment target is not an instance.");
-        }
-        Instance instance = (Instance) targetObj;
         Object value = evaluate(node.value);
-        instance.set(node.fieldName.value, value);
-        return value;
+        return setField(targetObj, node.fieldName.value, value, node.line);
     }
 
     // Evaluates Number Nodes
     private Object evaluateNumber(NumberNode node) {
-        double value = Double.parseDouble(node.token.value);
+        return parseNumber(node.token.value);
+    }
+
+    static Object parseNumber(String text) {
+        double value = Double.parseDouble(text);
         if (value == (int) value) {
             return (int) value;
         }
@@ -237,21 +451,39 @@ public class Interpreter {
     // Evaluates identifiers (variables)
     private Object evaluateIdentifier(IdentifierNode node) {
         // If inside a method, check instance attributes first.
-        if (environment.exists("this")) {
-            Object thisVal = environment.get("this", node.line);
+        if (node.thisDepth >= 0) {
+            Object thisVal = frame.ancestor(node.thisDepth).slots[node.thisSlot];
             if (thisVal instanceof Instance) {
                 Instance instance = (Instance) thisVal;
-                // Check if the instance has a field with the given name.
-                if (instance.hasField(node.identifier.value)) {
-                    return instance.get(node.identifier.value);
+                // Check if the instance has a field with the given name, one lookup in its shape.
+                int field = instance.getShape().indexOf(node.identifier.value);
+                if (field >= 0) {
+                    return instance.getSlot(field);
                 }
             }
         }
-        // Otherwise, go back to check the scope before in the environment lookup.
-        return environment.get(node.identifier.value, node.line);
+        // Otherwise, load the variable from the address the Resolver gave it.
+        return lookup(frame, node.identifier.value, node.depth, node.slot, node.line);
+    }
+
+    // Loads a variable from its resolved address, relative to the given frame.
+    Object lookup(Frame frame, String name, int depth, int slot, int line) {
+        if (depth >= 0) {
+            Frame scope = frame.ancestor(depth);
+            Object value = scope.slots[slot];
+            if (value != Frame.UNSET) {
+                return value;
+            }
+            // Declared in that scope but not assigned yet, keep searching the enclosing scopes.
+            return scope.enclosing.get(name, line);
+        }
+        if (depth == Resolver.GLOBAL) {
+            return globals.get(name, line);
+        }
+        return frame.get(name, line);
     }
     // Evaluates equals
-    private boolean isEqual(Object a, Object b) {
+    static boolean isEqual(Object a, Object b) {
         if (a == null && b == null) return true;
         if (a == null || b == null) return false;
         if (a instanceof Number && b instanceof Number) {
@@ -264,8 +496,14 @@ public class Interpreter {
     private Object evaluateBinaryOp(BinaryOpNode node) {
         Object left = evaluate(node.left);
         Object right = evaluate(node.right);
-        String op = node.op.value;
+        if (node.left.type == ValueType.NUMBER && node.right.type == ValueType.NUMBER) {
+            // Known numbers (see TypeInference), the operator needs no type checks.
+            return numberOp(node.op.value, ((Number) left).doubleValue(), ((Number) right).doubleValue(), node.line);
+        }
+        return binaryOp(node.op.value, left, right, node.line);
+    }
 
+    static Object binaryOp(String op, Object left, Object right, int line) {
         // Equality operators
         if (op.equals("==")) {
             return isEqual(left, right);
@@ -274,10 +512,16 @@ public class Interpreter {
             return !isEqual(left, right);
         }
 
-        // Membership test: if x in list.
+        // Membership test: if x in list, x in dict (its keys) or x in set.
         if (op.equals("in")) {
+            if (right instanceof ScriptDict) {
+                return ((ScriptDict) right).containsKey(checkKey(left, line));
+            }
+            if (right instanceof ScriptSet) {
+                return ((ScriptSet) right).contains(checkKey(left, line));
+            }
             if (!(right instanceof List)) {
-                throw runtimeError(node, "Operator 'in' expects a list as the right operand.");
+                throw runtimeError(line, "Operator 'in' expects a list, dict or set as the right operand.");
             }
             List<?> list = (List<?>) right;
             return list.contains(left);
@@ -296,39 +540,49 @@ public class Interpreter {
             if (op.equals("+")) {
                 return formatValue(left) + formatValue(right);
             } else {
-                throw runtimeError(node, "Unsupported operation for strings: " + op);
+                throw runtimeError(line, "Unsupported operation for strings: " + op);
             }
         }
 
         // Numeric operations.
         if (left instanceof Number && right instanceof Number) {
-            double l = ((Number) left).doubleValue();
-            double r = ((Number) right).doubleValue();
-            switch (op) {
-                case "+": return l + r;
-                case "-": return l - r;
-                case "*": return l * r;
-                case "/":
-                    if (r == 0) {
-                        throw runtimeError(node, "Division by 0");
-                    }
-                    return l/r;
-                case "%": return l % r;
-                case ">": return l > r;
-                case ">=": return l >= r;
-                case "<": return l < r;
-                case "<=": return l <= r;
-                default:
-                    throw runtimeError(node, "Unknown binary operator: " + op);
-            }
+            return numberOp(op, ((Number) left).doubleValue(), ((Number) right).doubleValue(), line);
         }
-        throw runtimeError(node, "Unsupported operands for operator '" + op + "': " +
+        throw runtimeError(line, "Unsupported operands for operator '" + op + "': " +
                 left.getClass().getSimpleName() + " and " + right.getClass().getSimpleName());
     }
+
+    // Binary operator on two numbers.
+    static Object numberOp(String op, double l, double r, int line) {
+        switch (op) {
+            case "+": return l + r;
+            case "-": return l - r;
+            case "*": return l * r;
+            case "/":
+                if (r == 0) {
+                    throw runtimeError(line, "Division by 0");
+                }
+                return l/r;
+            case "%": return l % r;
+            case ">": return l > r;
+            case ">=": return l >= r;
+            case "<": return l < r;
+            case "<=": return l <= r;
+            case "==": return l == r;
+            case "!=": return l != r;
+            case "and": case "or": case "in":
+                return binaryOp(op, l, r, line);
+            default:
+                throw runtimeError(line, "Unknown binary operator: " + op);
+        }
+    }
     // Evaluates Unary Operations
     private Object evaluateUnaryOp(UnaryOpNode node) {
         Object operand = evaluate(node.operand);
-        String op = node.op.value;
+        return unaryOp(node.op.value, operand, node.line);
+    }
+
+    static Object unaryOp(String op, Object operand, int line) {
         if (op.equals("not")) {
             return !isTruthy(operand);
         }
@@ -338,23 +592,25 @@ public class Interpreter {
             case "+": return +val;
             case "-": return -val;
             default:
-                throw runtimeError(node, "Unknown unary operator: " + op);
+                throw runtimeError(line, "Unknown unary operator: " + op);
         }
     }
     // Evaluates assignments (For example variable assignment or attribute assignments)
     private Object evaluateAssignment(AssignmentNode node) {
         Object value = evaluate(node.value);
-        if (environment.containsLocally(node.identifier.value)) {
-            environment.assign(node.identifier.value, value);
-        } else if (environment.exists("this")) {
-            Object thisVal = environment.get("this");
+        Object[] slots = frame.slots;
+        if (slots[node.slot] != Frame.UNSET) {
+            slots[node.slot] = value;
+        } else if (node.thisDepth >= 0) {
+            // Inside a method, a new name becomes an attribute of the instance.
+            Object thisVal = frame.ancestor(node.thisDepth).slots[node.thisSlot];
             if (thisVal instanceof Instance) {
                 ((Instance) thisVal).set(node.identifier.value, value);
             } else {
-                environment.define(node.identifier.value, value);
+                slots[node.slot] = value;
             }
         } else {
-            environment.define(node.identifier.value, value);
+            slots[node.slot] = value;
         }
         return value;
     }
@@ -362,35 +618,64 @@ public class Interpreter {
     // Evaluate prints
     private Object evaluatePrint(PrintNode node) {
         Object value = evaluate(node.expression);
-        System.out.println(formatValue(value));
+        print(value);
         return null;
     }
+
+    void print(Object value) {
+        output.println(formatValue(value));
+    }
     // Evaluates return (from function)
     private Object evaluateReturn(ReturnNode node) {
+        if (node.tailCall) {
+            FunctionCallNode call = (FunctionCallNode) node.expression;
+            Object callee = lookup(frame, call.name.value, call.depth, call.slot, call.line);
+            if (callee instanceof Function && ((Function) callee).arity == call.arguments.size()) {
+                // The arguments go into the callee's frame, Function.call makes the call.
+                Function function = (Function) callee;
+                Frame callFrame = function.newFrame();
+                for (int i = 0; i < function.arity; i++) {
+                    callFrame.slots[i] = evaluate(call.arguments.get(i));
+                }
+                return new TailCall(function, callFrame);
+            }
+        }
         Object value = evaluate(node.expression);
-        throw new Return(value);
+        return new Return(value);
     }
     // Evaluates block nodes
     private Object evaluateBlock(BlockNode node) {
         Object result = null;
-        Environment previous = environment;
-        environment = new Environment(previous);
+        Frame previous = frame;
+        frame = new Frame(node.layout, previous);
         for (ASTNode statement : node.statements) {
+            if (profiler != null) {
+                profiler.line(statement.line);
+            }
             result = evaluate(statement);
+            if (result instanceof Return) {
+                break;
+            }
         }
-        environment = previous;
+        frame = previous;
         return result;
     }
 
-    // Helper method: evaluates a block using an existing environment (without creating a new one).
-    private Object evaluateBlockNoNewEnv(BlockNode node, Environment env) {
+    // Helper method: evaluates a block using an existing frame (without creating a new one).
+    private Object evaluateBlockNoNewEnv(BlockNode node, Frame env) {
         Object result = null;
-        Environment previous = environment;
-        environment = env;
+        Frame previous = frame;
+        frame = env;
         for (ASTNode statement : node.statements) {
+            if (profiler != null) {
+                profiler.line(statement.line);
+            }
             result = evaluate(statement);
+            if (result instanceof Return) {
+                break;
+            }
         }
-        environment = previous;
+        frame = previous;
         return result;
     }
 
@@ -406,17 +691,42 @@ public class Interpreter {
         return null;
     }
 
+    // Evaluate a loop invariant: computed the first time the loop needs it, then read from its
+    // hidden variable. Only immutable values are kept (see LoopInvariants).
+    private Object evaluateInvariant(InvariantNode node) {
+        Frame scope = frame.ancestor(node.depth);
+        Object value = scope.slots[node.slot];
+        if (value == Frame.UNSET) {
+            value = evaluate(node.expression);
+            if (LoopInvariants.cacheable(value)) {
+                scope.slots[node.slot] = value;
+            }
+        }
+        return value;
+    }
+
     // Evaluate a while loop.
     private Object evaluateWhile(WhileNode node) {
         Object result = null;
+        frame.unset(node.invariants);
         while (isTruthy(evaluate(node.condition))) {
+            safepoint.poll(node.line);
             if (node.body instanceof BlockNode) {
                 BlockNode block = (BlockNode) node.body;
                 for (ASTNode statement : block.statements) {
+                    if (profiler != null) {
+                        profiler.line(statement.line);
+                    }
                     result = evaluate(statement);
+                    if (result instanceof Return) {
+                        return result;
+                    }
                 }
             } else {
                 result = evaluate(node.body);
+                if (result instanceof Return) {
+                    return result;
+                }
             }
         }
         return result;
@@ -433,76 +743,175 @@ public class Interpreter {
         Number startVal = (Number) startObj;
         Number endVal = (Number) endObj;
         Object result = null;
+        frame.unset(node.invariants);
 
-        // Ensure the loop variable is defined in the current environment
-        if (!environment.containsLocally(node.loopVar.value)) {
-            environment.define(node.loopVar.value, startVal);
+        // Ensure the loop variable is defined in the current frame
+        if (frame.slots[node.slot] == Frame.UNSET) {
+            frame.slots[node.slot] = startVal;
         }
 
         // Iterate from the start value to the end value
         for (int i = (int) startVal; i <= (int) endVal; i++) {
-            environment.assign(node.loopVar.value, (double) i);
+            safepoint.poll(node.line);
+            frame.slots[node.slot] = (double) i;
             result = evaluate(node.body);
+            if (result instanceof Return) {
+                return result;
+            }
         }
         return result;
     }
 
     // Evaluate a for-each loop (for i in x)
     private Object evaluateForEach(ForEachNode node) {
-        Object iterable = evaluate(node.getListExpr());
-        if (!(iterable instanceof List)) {
-            throw runtimeError(node, "For-each loop expects a list after 'in'.");
-        }
-        List<?> list = (List<?>) iterable;
+        Iterator<?> elements = iterator(evaluate(node.getListExpr()), node.line);
         Object result = null;
-        // Create a persistent loop environment that will persist across iterations.
-        Environment loopEnv = new Environment(environment);
-        // Define the loop variable in the loop environment.
-        loopEnv.define(node.getLoopVar().value, null);
-        for (Object element : list) {
-            loopEnv.assign(node.getLoopVar().value, element);
-            // Evaluate the loop body in the persistent loop environment.
+        frame.unset(node.invariants);
+        // Create a persistent loop frame that will persist across iterations.
+        Frame loopEnv = new Frame(node.layout, frame);
+        // Define the loop variable (always slot 0) in the loop frame.
+        loopEnv.slots[0] = null;
+        while (elements.hasNext()) {
+            safepoint.poll(node.line);
+            loopEnv.slots[0] = elements.next();
+            // Evaluate the loop body in the persistent loop frame.
             if (node.getBody() instanceof BlockNode) {
                 result = evaluateBlockNoNewEnv((BlockNode) node.getBody(), loopEnv);
             } else {
-                Environment previous = environment;
-                environment = loopEnv;
+                Frame previous = frame;
+                frame = loopEnv;
                 result = evaluate(node.getBody());
-                environment = previous;
+                frame = previous;
+            }
+            if (result instanceof Return) {
+                return result;
             }
         }
         return result;
     }
+    // Elements a for-each loop goes through: the elements of a list or a set, the keys of a dict.
+    static Iterator<?> iterator(Object iterable, int line) {
+        if (iterable instanceof List || iterable instanceof ScriptDict || iterable instanceof ScriptSet) {
+            return ((Iterable<?>) iterable).iterator();
+        }
+        throw runtimeError(line, "For-each loop expects a list, dict or set after 'in'.");
+    }
+
     // Evaluates function definitions
     private Object evaluateFunctionDefinition(FunctionDefinitionNode node) {
-        Function function = new Function(node, environment);
-        environment.define(node.name.value, function);
+        Function function = new Function(node, frame);
+        frame.slots[node.slot] = function;
         return function;
     }
 
     // Evaluates function calls
     private Object evaluateFunctionCall(FunctionCallNode node) {
-        Object callee = environment.get(node.name.value);
+        Object callee = lookup(frame, node.name.value, node.depth, node.slot, node.line);
+        int argc = node.arguments.size();
+        if (argc <= MAX_FIXED_ARGUMENTS) {
+            Object a = argc > 0 ? evaluate(node.arguments.get(0)) : null;
+            Object b = argc > 1 ? evaluate(node.arguments.get(1)) : null;
+            Object c = argc > 2 ? evaluate(node.arguments.get(2)) : null;
+            if (callee instanceof Function && ((Function) callee).arity == argc) {
+                // Straight to the function, one JVM frame less for deep recursion.
+                return ((Function) callee).call(this, fixedFrame((Function) callee, argc, a, b, c));
+            }
+            return callFunction(callee, node.name.value, argc, a, b, c, node.line);
+        }
         List<Object> arguments = new ArrayList<>();
         for (ASTNode arg : node.arguments) {
             arguments.add(evaluate(arg));
         }
+        return callFunction(callee, node.name.value, arguments, node.line);
+    }
+
+    // Calls with up to this many arguments take the fixed-arity path: the first argc of a, b and c
+    // go straight into the parameter slots of the callee's frame, or to the fixed-arity entry point
+    // of a built-in, without an argument list. All engines use it.
+    static final int MAX_FIXED_ARGUMENTS = 3;
+
+    Object callFunction(Object callee, String name, int argc, Object a, Object b, Object c, int line) {
         if (callee instanceof Function) {
             Function function = (Function) callee;
-            if (arguments.size() != function.declaration.parameters.size()) {
-                throw runtimeError(node, "Function " + node.name.value + " expects " +
-                        function.declaration.parameters.size() + " arguments, but got " + arguments.size());
+            if (argc != function.arity) {
+                throw arityError(function, name, argc, line);
             }
-            try {
-                return function.call(this, arguments);
-            } catch (Return r) {
-                return r.value;
+            return function.call(this, fixedFrame(function, argc, a, b, c));
+        } else if (callee instanceof Callable) {
+            Callable callable = (Callable) callee;
+            if (profiler != null) {
+                profiler.enter(name, line);
+                try {
+                    return callBuiltin(callable, argc, a, b, c);
+                } finally {
+                    profiler.exit();
+                }
             }
+            return callBuiltin(callable, argc, a, b, c);
+        } else {
+            throw runtimeError(line, "Attempted to call a non-function: " + name);
+        }
+    }
+
+    private Object callBuiltin(Callable callable, int argc, Object a, Object b, Object c) {
+        switch (argc) {
+            case 0: return callable.call0(this);
+            case 1: return callable.call1(this, a);
+            case 2: return callable.call2(this, a, b);
+            default: return callable.call3(this, a, b, c);
+        }
+    }
+
+    // Frame of a call with argc (at most 3) arguments, the arity was checked by the caller.
+    static Frame fixedFrame(Function function, int argc, Object a, Object b, Object c) {
+        Frame frame = function.newFrame();
+        Object[] slots = frame.slots;
+        if (argc > 0) {
+            slots[0] = a;
+        }
+        if (argc > 1) {
+            slots[1] = b;
+        }
+        if (argc > 2) {
+            slots[2] = c;
+        }
+        return frame;
+    }
+
+    private static List<Object> fixedArguments(int argc, Object a, Object b, Object c) {
+        switch (argc) {
+            case 0: return new ArrayList<>();
+            case 1: return new ArrayList<>(Arrays.asList(a));
+            case 2: return new ArrayList<>(Arrays.asList(a, b));
+            default: return new ArrayList<>(Arrays.asList(a, b, c));
+        }
+    }
+
+    private static RuntimeException arityError(Function function, String name, int argc, int line) {
+        return runtimeError(line, "Function " + name + " expects " + function.arity + " arguments, but got " + argc);
+    }
+
+    Object callFunction(Object callee, String name, List<Object> arguments, int line) {
+        if (callee instanceof Function) {
+            Function function = (Function) callee;
+            if (arguments.size() != function.arity) {
+                throw arityError(function, name, arguments.size(), line);
+            }
+            return function.call(this, arguments);
         } else if (callee instanceof Callable) {
             Callable callable = (Callable) callee;
+            if (profiler != null) {
+                // Built-ins get a frame too, time spent in input() or range() shows up under their name.
+                profiler.enter(name, line);
+                try {
+                    return callable.call(this, arguments);
+                } finally {
+                    profiler.exit();
+                }
+            }
             return callable.call(this, arguments);
         } else {
-            throw runtimeError(node, "Attempted to call a non-function: " + node.name.value);
+            throw runtimeError(line, "Attempted to call a non-function: " + name);
         }
     }
     // Evaluates class definitions
@@ -510,117 +919,239 @@ public class Interpreter {
         ClassValue classValue = new ClassValue(node.name.value);
         for (ASTNode member : node.members) {
             if (member instanceof FunctionDefinitionNode) {
-                Function method = new Function((FunctionDefinitionNode) member, environment);
+                Function method = new Function((FunctionDefinitionNode) member, frame);
                 classValue.defineMethod(((FunctionDefinitionNode) member).name.value, method);
             } else if (member instanceof AssignmentNode) {
                 Object fieldVal = evaluate(member);
                 classValue.defineField(((AssignmentNode) member).identifier.value, fieldVal);
             }
         }
-        environment.define(node.name.value, classValue);
+        frame.slots[node.slot] = classValue;
         return classValue;
     }
     // Evaluates object creations
     private Object evaluateObjectCreation(ObjectCreationNode node) {
-        Object classObj = environment.get(node.className.value);
+        Object classObj = lookup(frame, node.className.value, node.depth, node.slot, node.line);
         if (!(classObj instanceof ClassValue)) {
             throw runtimeError(node, "Attempted to instantiate non-class: " + node.className.value);
         }
-        ClassValue classValue = (ClassValue) classObj;
+        int argc = node.arguments.size();
+        if (argc <= MAX_FIXED_ARGUMENTS) {
+            Object a = argc > 0 ? evaluate(node.arguments.get(0)) : null;
+            Object b = argc > 1 ? evaluate(node.arguments.get(1)) : null;
+            Object c = argc > 2 ? evaluate(node.arguments.get(2)) : null;
+            return instantiate((ClassValue) classObj, argc, a, b, c, node.line);
+        }
         List<Object> arguments = new ArrayList<>();
         for (ASTNode arg : node.arguments) {
             arguments.add(evaluate(arg));
         }
-        // Get the initializer method (if any)
+        return instantiate((ClassValue) classObj, arguments, node.line);
+    }
+
+    // Fixed-arity object creation, see MAX_FIXED_ARGUMENTS.
+    Object instantiate(ClassValue classValue, int argc, Object a, Object b, Object c, int line) {
         Function initMethod = classValue.findMethod("init");
-        if (initMethod == null && !arguments.isEmpty()) {
-            throw runtimeError(node, "Constructor arguments provided, but no initializer ('init') defined for class: " + classValue.name);
-        }
+        checkInitArguments(classValue, initMethod, argc, line);
+        Instance instance = new Instance(classValue);
         if (initMethod != null) {
-            int expectedParamCount = initMethod.paramCount();
-            if (arguments.size() != expectedParamCount) {
-                throw runtimeError(node, "Initializer 'init' for class " + classValue.name + " expects " + expectedParamCount + " argument(s), but received " + arguments.size());
-            }
+            initMethod.call(this, fixedFrame(initMethod, argc, a, b, c), instance);
+        }
+        return instance;
+    }
+
+    private static void checkInitArguments(ClassValue classValue, Function initMethod, int argc, int line) {
+        if (initMethod == null && argc != 0) {
+            throw runtimeError(line, "Constructor arguments provided, but no initializer ('init') defined for class: " + classValue.name);
+        }
+        if (initMethod != null && argc != initMethod.arity) {
+            throw runtimeError(line, "Initializer 'init' for class " + classValue.name + " expects " + initMethod.arity + " argument(s), but received " + argc);
         }
+    }
+
+    Object instantiate(ClassValue classValue, List<Object> arguments, int line) {
+        // Get the initializer method (if any)
+        checkInitArguments(classValue, classValue.findMethod("init"), arguments.size(), line);
         return classValue.instantiate(arguments, this);
     }
 
     // Evaluate method calls
     private Object evaluateMethodCall(MethodCallNode node) {
         Object target = evaluate(node.target);
+        int argc = node.arguments.size();
+        if (argc <= MAX_FIXED_ARGUMENTS) {
+            Object a = argc > 0 ? evaluate(node.arguments.get(0)) : null;
+            Object b = argc > 1 ? evaluate(node.arguments.get(1)) : null;
+            Object c = argc > 2 ? evaluate(node.arguments.get(2)) : null;
+            return callMethod(target, node.cache, argc, a, b, c, node.line);
+        }
+        List<Object> arguments = new ArrayList<>();
+        for (ASTNode arg : node.arguments) {
+            arguments.add(evaluate(arg));
+        }
+        return callMethod(target, node.cache, arguments, node.line);
+    }
+
+    // Fixed-arity method call, see MAX_FIXED_ARGUMENTS. The built-in methods take at most one argument.
+    Object callMethod(Object target, MethodCache cache, int argc, Object a, Object b, Object c, int line) {
+        if (!(target instanceof Instance)) {
+            return callBuiltinMethod(target, cache.name, argc, a, line);
+        }
+        Instance instance = (Instance) target;
+        Function method = cache.lookup(instance);
+        if (method == null) {
+            throw runtimeError(line, "Method '" + cache.name + "' not found.");
+        }
+        if (argc != method.arity) {
+            // Method arity is not checked, as in the first version: the list path drops extra arguments,
+            // and too few throw IndexOutOfBoundsException from Function.frameOf.
+            return method.call(this, fixedArguments(argc, a, b, c), instance);
+        }
+        return method.call(this, fixedFrame(method, argc, a, b, c), instance);
+    }
+
+    // Method call at a call site, instance methods are looked up through the site's cache.
+    Object callMethod(Object target, MethodCache cache, List<Object> arguments, int line) {
+        if (target instanceof Instance) {
+            Instance instance = (Instance) target;
+            Function method = cache.lookup(instance);
+            if (method == null) {
+                throw runtimeError(line, "Method '" + cache.name + "' not found.");
+            }
+            return method.call(this, arguments, instance);
+        }
+        return callMethod(target, cache.name, arguments, line);
+    }
+
+    Object callMethod(Object target, String methodName, List<Object> arguments, int line) {
+        if (!(target instanceof Instance)) {
+            return callBuiltinMethod(target, methodName, arguments.size(), arguments.isEmpty() ? null : arguments.getFirst(), line);
+        }
+        Instance instance = (Instance) target;
+        Function method = instance.getMethod(methodName);
+        if (method == null) {
+            throw runtimeError(line, "Method '" + methodName + "' not found.");
+        }
+        return method.call(this, arguments, instance);
+    }
+
+    // Methods of lists, dicts and sets, called with argc arguments of which arg is the first.
+    private Object callBuiltinMethod(Object target, String methodName, int argc, Object arg, int line) {
         // Check if the target is a list and the method is a built-in list method.
         if (target instanceof List) {
-            String methodName = node.methodName.value;
             List<Object> list = (List<Object>) target;
             if (methodName.equals("append")) {
-                if (node.arguments.size() != 1) {
-                    throw runtimeError(node, "append() expects one argument.");
+                if (argc != 1) {
+                    throw runtimeError(line, "append() expects one argument.");
                 }
-                Object arg = evaluate(node.arguments.getFirst());
                 list.add(arg);
                 return null;
             } else if (methodName.equals("pop")) {
-                if (!node.arguments.isEmpty()) {
-                    throw runtimeError(node, "pop() expects no arguments.");
+                if (argc != 0) {
+                    throw runtimeError(line, "pop() expects no arguments.");
                 }
                 if (list.isEmpty()) {
-                    throw runtimeError(node, "pop() called on an empty list.");
+                    throw runtimeError(line, "pop() called on an empty list.");
                 }
                 return list.removeLast();
             } else if (methodName.equals("remove")) {
                 // remove(item): removes the first occurrence of item.
-                if (node.arguments.size() != 1) {
-                    throw runtimeError(node, "remove() expects one argument.");
+                if (argc != 1) {
+                    throw runtimeError(line, "remove() expects one argument.");
                 }
-                Object arg = evaluate(node.arguments.getFirst());
                 boolean removed = list.remove(arg); // removes first occurrence if found.
                 if (!removed) {
-                    throw runtimeError(node, "remove() did not find the element to remove: " + arg);
+                    throw runtimeError(line, "remove() did not find the element to remove: " + arg);
                 }
                 return null;
             } else if (methodName.equals("size")) {
                 // size() returns the number of elements in the list.
-                if (!node.arguments.isEmpty()) {
-                    throw runtimeError(node, "size() expects no arguments.");
+                if (argc != 0) {
+                    throw runtimeError(line, "size() expects no arguments.");
                 }
                 return (double) list.size();
             }
         }
-        // Otherwise, handle it as a normal instance method call.
-        if (!(target instanceof Instance)) {
-            throw runtimeError(node, "Attempted to call method on non-instance.");
-        }
-        Instance instance = (Instance) target;
-        List<Object> arguments = new ArrayList<>();
-        for (ASTNode arg : node.arguments) {
-            arguments.add(evaluate(arg));
-        }
-        Function method = instance.getMethod(node.methodName.value);
-        if (method == null) {
-            throw runtimeError(node, "Method '" + node.methodName.value + "' not found.");
+        // Built-in dict methods.
+        if (target instanceof ScriptDict) {
+            ScriptDict dict = (ScriptDict) target;
+            if (methodName.equals("keys")) {
+                if (argc != 0) {
+                    throw runtimeError(line, "keys() expects no arguments.");
+                }
+                return dict.keys();
+            } else if (methodName.equals("values")) {
+                if (argc != 0) {
+                    throw runtimeError(line, "values() expects no arguments.");
+                }
+                return dict.values();
+            } else if (methodName.equals("size")) {
+                if (argc != 0) {
+                    throw runtimeError(line, "size() expects no arguments.");
+                }
+                return (double) dict.size();
+            } else if (methodName.equals("remove")) {
+                if (argc != 1) {
+                    throw runtimeError(line, "remove() expects one argument.");
+                }
+                Object key = checkKey(arg, line);
+                if (!dict.remove(key)) {
+                    throw runtimeError(line, "remove() did not find the key to remove: " + formatValue(key));
+                }
+                return null;
+            }
         }
-        try {
-            return method.call(this, arguments, instance);
-        } catch (Return r) {
-            return r.value;
+        // Built-in set methods.
+        if (target instanceof ScriptSet) {
+            ScriptSet set = (ScriptSet) target;
+            if (methodName.equals("add")) {
+                if (argc != 1) {
+                    throw runtimeError(line, "add() expects one argument.");
+                }
+                set.add(checkKey(arg, line));
+                return null;
+            } else if (methodName.equals("remove")) {
+                if (argc != 1) {
+                    throw runtimeError(line, "remove() expects one argument.");
+                }
+                Object element = checkKey(arg, line);
+                if (!set.remove(element)) {
+                    throw runtimeError(line, "remove() did not find the element to remove: " + formatValue(element));
+                }
+                return null;
+            } else if (methodName.equals("size")) {
+                if (argc != 0) {
+                    throw runtimeError(line, "size() expects no arguments.");
+                }
+                return (double) set.size();
+            }
         }
+        throw runtimeError(line, "Attempted to call method on non-instance.");
     }
     // Evaluate booleans
-    private boolean isTruthy(Object value) {
+    static boolean isTruthy(Object value) {
         if (value == null) return false;
         if (value instanceof Boolean) return (Boolean) value;
         return true;
     }
 
-    public void executeBlock(List<ASTNode> statements, Environment environment) {
-        Environment previous = this.environment;
+    // Runs statements in the given frame, returns the Return of a 'return' statement or null.
+    public Object executeBlock(List<ASTNode> statements, Frame frame) {
+        Frame previous = this.frame;
         try {
-            this.environment = environment;
+            this.frame = frame;
             for (ASTNode statement : statements) {
-                evaluate(statement);
+                if (profiler != null) {
+                    profiler.line(statement.line);
+                }
+                Object result = evaluate(statement);
+                if (result instanceof Return) {
+                    return result;
+                }
             }
+            return null;
         } finally {
-            this.environment = previous;
+            this.frame = previous;
         }
     }
 }
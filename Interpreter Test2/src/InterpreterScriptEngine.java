@@ -0,0 +1,125 @@
+import javax.script.AbstractScriptEngine;
+import javax.script.Bindings;
+import javax.script.ScriptContext;
+import javax.script.ScriptEngineFactory;
+import javax.script.ScriptException;
+import javax.script.SimpleBindings;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantLock;
+
+// JSR-223 engine backed by a ScriptSession. The bindings of the context are defined as globals
+// before every eval (global scope first, so engine scope wins), print writes to the context's
+// writer and input() reads lines from its reader. A binding removed from the context is undefined
+// before the next eval.
+// Unlike engines such as Nashorn, nothing is written back to the bindings: variables a script assigns
+// at the top level belong to that eval (see ScriptSession), so engine.get("x") after eval("x = 1") is
+// null. A script hands values to the host as its result (last statement or top-level return) or by
+// changing a list or dict it got from the bindings.
+// Evals from several threads take turns: the bindings, writer and reader of a context stay the
+// session's until its script is done, so two contexts never see each other's output or input.
+public class InterpreterScriptEngine extends AbstractScriptEngine {
+    private final ScriptEngineFactory factory;
+    private final ScriptSession session = new ScriptSession();
+    // Not synchronized, like the lock of ScriptSession: input() may park a virtual thread.
+    private final ReentrantLock lock = new ReentrantLock();
+    private Set<String> bound = new HashSet<>(); // Names defined from the bindings of the last eval.
+
+    InterpreterScriptEngine(ScriptEngineFactory factory) {
+        this.factory = factory;
+    }
+
+    @Override
+    public Object eval(String script, ScriptContext context) throws ScriptException {
+        lock.lock();
+        try {
+            Set<String> names = new HashSet<>();
+            defineBindings(context.getBindings(ScriptContext.GLOBAL_SCOPE), names);
+            defineBindings(context.getBindings(ScriptContext.ENGINE_SCOPE), names);
+            for (String name : bound) {
+                if (!names.contains(name)) {
+                    session.remove(name);
+                }
+            }
+            bound = names;
+            session.setOutput(new WriterOutputSink(context.getWriter()));
+            Reader reader = context.getReader();
+            BufferedReader input = reader instanceof BufferedReader ? (BufferedReader) reader : new BufferedReader(reader);
+            session.setInput(input::readLine);
+            return session.eval(script);
+        } catch (RuntimeException e) {
+            ScriptException error = new ScriptException(e.getMessage());
+            error.initCause(e);
+            throw error;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void defineBindings(Bindings bindings, Set<String> names) {
+        if (bindings == null) {
+            return;
+        }
+        for (Map.Entry<String, Object> binding : bindings.entrySet()) {
+            session.put(binding.getKey(), binding.getValue());
+            names.add(binding.getKey());
+        }
+    }
+
+    @Override
+    public Object eval(Reader reader, ScriptContext context) throws ScriptException {
+        StringBuilder script = new StringBuilder();
+        char[] buffer = new char[8192];
+        try {
+            for (int n; (n = reader.read(buffer)) > 0; ) {
+                script.append(buffer, 0, n);
+            }
+        } catch (IOException e) {
+            throw new ScriptException(e);
+        }
+        return eval(script.toString(), context);
+    }
+
+    @Override
+    public Bindings createBindings() {
+        return new SimpleBindings();
+    }
+
+    @Override
+    public ScriptEngineFactory getFactory() {
+        return factory;
+    }
+
+    // Output sink writing to the Writer of a script context.
+    private static final class WriterOutputSink implements OutputSink {
+        private final Writer writer;
+
+        WriterOutputSink(Writer writer) {
+            this.writer = writer;
+        }
+
+        @Override
+        public void print(String text) {
+            try {
+                writer.write(text);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        @Override
+        public void flush() {
+            try {
+                writer.flush();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+}
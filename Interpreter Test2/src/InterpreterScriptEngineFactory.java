@@ -0,0 +1,77 @@
+import javax.script.ScriptEngine;
+import javax.script.ScriptEngineFactory;
+import java.util.List;
+
+// JSR-223 factory, registered in META-INF/services/javax.script.ScriptEngineFactory:
+//   ScriptEngine engine = new ScriptEngineManager().getEngineByName("interpreter");
+public class InterpreterScriptEngineFactory implements ScriptEngineFactory {
+    @Override
+    public String getEngineName() {
+        return "Interpreter";
+    }
+
+    @Override
+    public String getEngineVersion() {
+        return "1.0";
+    }
+
+    @Override
+    public List<String> getExtensions() {
+        return List.of("txt");
+    }
+
+    @Override
+    public List<String> getMimeTypes() {
+        return List.of();
+    }
+
+    @Override
+    public List<String> getNames() {
+        return List.of("interpreter");
+    }
+
+    @Override
+    public String getLanguageName() {
+        return "Interpreter";
+    }
+
+    @Override
+    public String getLanguageVersion() {
+        return "1.0";
+    }
+
+    @Override
+    public Object getParameter(String key) {
+        switch (key) {
+            case ScriptEngine.ENGINE: return getEngineName();
+            case ScriptEngine.ENGINE_VERSION: return getEngineVersion();
+            case ScriptEngine.NAME: return getNames().get(0);
+            case ScriptEngine.LANGUAGE: return getLanguageName();
+            case ScriptEngine.LANGUAGE_VERSION: return getLanguageVersion();
+            // Every engine is its own session, engines can be used from different threads at once.
+            // Evals on one engine from several threads take turns (InterpreterScriptEngine.eval).
+            case "THREADING": return "MULTITHREADED";
+            default: return null;
+        }
+    }
+
+    @Override
+    public String getMethodCallSyntax(String object, String method, String... arguments) {
+        return object + "." + method + "(" + String.join(", ", arguments) + ")";
+    }
+
+    @Override
+    public String getOutputStatement(String text) {
+        return "print(\"" + text + "\")";
+    }
+
+    @Override
+    public String getProgram(String... statements) {
+        return String.join("\n", statements);
+    }
+
+    @Override
+    public ScriptEngine getScriptEngine() {
+        return new InterpreterScriptEngine(this);
+    }
+}
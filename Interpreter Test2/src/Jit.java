@@ -0,0 +1,553 @@
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.ArrayList;
+import java.util.List;
+
+// Compiles the body of a hot Function to JVM bytecode, so HotSpot can optimize its arithmetic and loops.
+// Only pure numeric functions are compiled: parameters and locals, numbers and booleans, arithmetic,
+// comparisons, if/while/for, return and calls of the function itself. A self call in tail position
+// ('return f(...)') becomes a jump back to the start of the function. Reading anything outside the
+// function, printing, lists, strings and objects are left to the interpreter.
+// Because a compiled function has no side effects, it can give up at any point (deoptimize) and the
+// whole call is simply run again by the interpreter, which then produces the result or the error.
+public class Jit {
+    // -Dinterpreter.jit=false turns the JIT off, -Dinterpreter.jit.threshold=N sets the calls before compiling.
+    static final boolean ENABLED = !"false".equals(System.getProperty("interpreter.jit"));
+    static final int THRESHOLD = Integer.getInteger("interpreter.jit.threshold", 500);
+    static final int MAX_DEOPTS = 16; // After this many deoptimizations the compiled code is dropped.
+
+    // Returned when a call could not run compiled.
+    static final Object NOT_RUN = new Object();
+
+    private static final String RUNTIME = "JitRuntime";
+    private static final String OBJECT = "java/lang/Object";
+
+    // JVM opcodes used by the generator.
+    private static final int ACONST_NULL = 0x01, ICONST_0 = 0x03, ICONST_1 = 0x04, DCONST_0 = 0x0E, DCONST_1 = 0x0F,
+            LDC2_W = 0x14, ILOAD = 0x15, DLOAD = 0x18, ALOAD = 0x19, AALOAD = 0x32, ISTORE = 0x36, DSTORE = 0x39,
+            ASTORE = 0x3A, POP = 0x57, POP2 = 0x58, IADD = 0x60, DADD = 0x63, DSUB = 0x67, DMUL = 0x6B, DREM = 0x73,
+            DNEG = 0x77, IAND = 0x7E, IOR = 0x80, IXOR = 0x82, I2D = 0x87, IFEQ = 0x99, IFNE = 0x9A,
+            IF_ICMPGT = 0xA3, GOTO = 0xA7, ARETURN = 0xB0, RETURN = 0xB1, INVOKESPECIAL = 0xB7, INVOKESTATIC = 0xB8,
+            BIPUSH = 0x10, SIPUSH = 0x11, INVOKEVIRTUAL = 0xB6;
+
+    // A compiled function, together with the closure slots where its body finds itself.
+    static final class Compiled {
+        private final JitCode code;
+        private final int[][] selfAddresses; // {depth from the closure, slot} of every self call
+
+        private Compiled(JitCode code, int[][] selfAddresses) {
+            this.code = code;
+            this.selfAddresses = selfAddresses;
+        }
+
+        // Runs the compiled code, unless the function name was bound to something else in the meantime.
+        Object call(Function function, Safepoint safepoint, Object[] arguments, int offset) {
+            for (int[] address : selfAddresses) {
+                if (function.closure.ancestor(address[0]).slots[address[1]] != function) {
+                    return NOT_RUN;
+                }
+            }
+            return code.call(safepoint, arguments, offset);
+        }
+    }
+
+    // Raised while generating code for a construct the JIT does not handle.
+    private static class Unsupported extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+        Unsupported() {
+            super(null, null, false, false);
+        }
+    }
+
+    // Frame of the function or of a block, slot i lives in the JVM locals base + 3i (double) and base + 3i + 2 (state).
+    // Local 0 of run holds the Safepoint, polled on function entry and on loop back-edges.
+    private static class Scope {
+        final FrameLayout layout;
+        final int base;
+
+        Scope(FrameLayout layout, int base) {
+            this.layout = layout;
+            this.base = base;
+        }
+    }
+
+    private final FunctionDefinitionNode declaration;
+    private final String className;
+    private final String runDescriptor;
+    private final ClassWriter writer = new ClassWriter();
+    private final List<Scope> scopes = new ArrayList<>();
+    private final List<int[]> selfAddresses = new ArrayList<>();
+    private ClassWriter.Code code;
+    private int nextLocal;
+    private ClassWriter.Label start; // After the parameters are in place, where self tail calls jump to.
+
+    private Jit(FunctionDefinitionNode declaration) {
+        this.declaration = declaration;
+        this.className = "Jit$" + declaration.name.value.replaceAll("[^A-Za-z0-9_]", "_");
+        this.runDescriptor = "(LSafepoint;" + "DI".repeat(declaration.parameters.size()) + ")Ljava/lang/Object;";
+    }
+
+    // Compiles a function, returns null when its body cannot be compiled.
+    static Compiled compile(Function function) {
+        FunctionDefinitionNode declaration = function.declaration;
+        if (declaration.thisSlot >= 0 || declaration.layout == null || !(declaration.body instanceof BlockNode)) {
+            return null; // Methods have 'this' and fields, they stay in the interpreter.
+        }
+        try {
+            Jit jit = new Jit(declaration);
+            byte[] bytes = jit.generate();
+            MethodHandles.Lookup lookup = MethodHandles.lookup().defineHiddenClass(bytes, true);
+            JitCode code = (JitCode) lookup.findConstructor(lookup.lookupClass(), MethodType.methodType(void.class)).invoke();
+            return new Compiled(code, jit.selfAddresses.toArray(new int[0][]));
+        } catch (Unsupported e) {
+            return null;
+        } catch (Throwable e) {
+            // A bug in the generated code must not break the program, it keeps running interpreted.
+            return null;
+        }
+    }
+
+    private byte[] generate() {
+        // static Object run(Safepoint safepoint, double a0, int s0, double a1, int s1, ...)
+        FrameLayout layout = declaration.layout;
+        int params = declaration.parameters.size();
+        code = new ClassWriter.Code(1 + 3 * layout.size());
+        nextLocal = 1 + 3 * layout.size();
+        scopes.add(new Scope(layout, 1));
+        start = new ClassWriter.Label();
+        code.mark(start);
+        for (int slot = params; slot < layout.size(); slot++) {
+            clear(1 + 3 * slot);
+        }
+        poll(declaration.line);
+        for (ASTNode statement : ((BlockNode) declaration.body).statements) {
+            statement(statement);
+        }
+        code.op(ACONST_NULL, 1);
+        code.op(ARETURN, -1);
+        writer.addMethod(0x0008, "run", runDescriptor, code);
+
+        // public Object call(Safepoint safepoint, Object[] arguments, int offset): unboxes the arguments and calls run.
+        ClassWriter.Code bridge = new ClassWriter.Code(5);
+        bridge.op(0x2B, 1); // aload_1
+        for (int i = 0; i < params; i++) {
+            bridge.op(0x2C, 1); // aload_2
+            bridge.op(0x1D, 1); // iload_3
+            bridge.op1(BIPUSH, i, 1);
+            bridge.op(IADD, -1);
+            bridge.op(AALOAD, -1);
+            bridge.local(ASTORE, 4, -1);
+            bridge.local(ALOAD, 4, 1);
+            bridge.op2(INVOKESTATIC, writer.methodRef(RUNTIME, "value", "(Ljava/lang/Object;)D"), 1);
+            bridge.local(ALOAD, 4, 1);
+            bridge.op2(INVOKESTATIC, writer.methodRef(RUNTIME, "state", "(Ljava/lang/Object;)I"), 0);
+        }
+        bridge.op2(INVOKESTATIC, writer.methodRef(className, "run", runDescriptor), -3 * params);
+        bridge.op(ARETURN, -1);
+        writer.addMethod(0x0001, "call", "(LSafepoint;[Ljava/lang/Object;I)Ljava/lang/Object;", bridge);
+
+        ClassWriter.Code init = new ClassWriter.Code(1);
+        init.op(0x2A, 1); // aload_0
+        init.op2(INVOKESPECIAL, writer.methodRef(OBJECT, "<init>", "()V"), -1);
+        init.op(RETURN, 0);
+        writer.addMethod(0x0001, "<init>", "()V", init);
+
+        return writer.toBytes(0x0030, className, OBJECT, "JitCode");
+    }
+
+    // === Helpers ===
+
+    private void invoke(String name, String descriptor, int effect) {
+        code.op2(INVOKESTATIC, writer.methodRef(RUNTIME, name, descriptor), effect);
+    }
+
+    private void pushDouble(double value) {
+        if (value == 0 && 1 / value > 0) {
+            code.op(DCONST_0, 2);
+        } else if (value == 1) {
+            code.op(DCONST_1, 2);
+        } else {
+            code.op2(LDC2_W, writer.doubleConst(value), 2);
+        }
+    }
+
+    private void pushState(int state) {
+        code.op(ICONST_0 + state, 1);
+    }
+
+    // safepoint.poll(line)
+    private void poll(int line) {
+        if (line != (short) line) {
+            throw new Unsupported();
+        }
+        code.op(0x2A, 1); // aload_0
+        code.op2(SIPUSH, line, 1);
+        code.op2(INVOKEVIRTUAL, writer.methodRef("Safepoint", "poll", "(I)V"), -2);
+    }
+
+    // Marks a variable as unset.
+    private void clear(int local) {
+        code.op(DCONST_0, 2);
+        code.local(DSTORE, local, -2);
+        pushState(JitRuntime.UNSET);
+        code.local(ISTORE, local + 2, -1);
+    }
+
+    private Scope current() {
+        return scopes.get(scopes.size() - 1);
+    }
+
+    // === Statements ===
+
+    private void statement(ASTNode node) {
+        if (node instanceof AssignmentNode) {
+            AssignmentNode assign = (AssignmentNode) node;
+            value(assign.value);
+            int local = current().base + 3 * assign.slot;
+            code.local(ISTORE, local + 2, -1);
+            code.local(DSTORE, local, -2);
+        } else if (node instanceof BlockNode) {
+            block((BlockNode) node);
+        } else if (node instanceof IfNode) {
+            IfNode ifNode = (IfNode) node;
+            truth(ifNode.condition);
+            ClassWriter.Label elseLabel = new ClassWriter.Label();
+            code.jump(IFEQ, elseLabel, -1);
+            statement(ifNode.thenBranch);
+            if (ifNode.elseBranch != null) {
+                ClassWriter.Label end = new ClassWriter.Label();
+                code.jump(GOTO, end, 0);
+                code.unreachable();
+                code.mark(elseLabel);
+                statement(ifNode.elseBranch);
+                code.mark(end);
+            } else {
+                code.mark(elseLabel);
+            }
+        } else if (node instanceof WhileNode) {
+            WhileNode whileNode = (WhileNode) node;
+            ClassWriter.Label top = new ClassWriter.Label();
+            ClassWriter.Label end = new ClassWriter.Label();
+            code.mark(top);
+            truth(whileNode.condition);
+            code.jump(IFEQ, end, -1);
+            poll(whileNode.line);
+            if (whileNode.body instanceof BlockNode) {
+                for (ASTNode statement : ((BlockNode) whileNode.body).statements) {
+                    statement(statement);
+                }
+            } else {
+                statement(whileNode.body);
+            }
+            code.jump(GOTO, top, 0);
+            code.unreachable();
+            code.mark(end);
+        } else if (node instanceof ForNode) {
+            forLoop((ForNode) node);
+        } else if (node instanceof ReturnNode && ((ReturnNode) node).tailCall
+                && isSelfCall((FunctionCallNode) ((ReturnNode) node).expression)) {
+            selfTailCall((FunctionCallNode) ((ReturnNode) node).expression);
+        } else if (node instanceof ReturnNode) {
+            value(((ReturnNode) node).expression);
+            invoke("box", "(DI)Ljava/lang/Object;", -2);
+            code.op(ARETURN, -1);
+            code.unreachable();
+        } else if (node instanceof FunctionCallNode) {
+            selfCall((FunctionCallNode) node);
+            code.op(POP, -1);
+        } else if (node instanceof ConstantNode) {
+            // No effect, left by the Optimizer in place of a removed statement.
+        } else if (node instanceof IdentifierNode || node instanceof NumberNode || node instanceof BooleanNode
+                || node instanceof BinaryOpNode || node instanceof UnaryOpNode || node instanceof InvariantNode) {
+            value(node);
+            code.op(POP, -1);
+            code.op(POP2, -2);
+        } else {
+            throw new Unsupported();
+        }
+    }
+
+    // A block runs in a new frame, its variables start unset every time it is entered.
+    private void block(BlockNode block) {
+        Scope scope = new Scope(block.layout, nextLocal);
+        nextLocal += 3 * block.layout.size();
+        for (int slot = 0; slot < block.layout.size(); slot++) {
+            clear(scope.base + 3 * slot);
+        }
+        scopes.add(scope);
+        for (ASTNode statement : block.statements) {
+            statement(statement);
+        }
+        scopes.removeLast();
+    }
+
+    // for i = start, end: like ForExec, the counter is an int and the variable gets (double) i.
+    private void forLoop(ForNode node) {
+        int startLocal = nextLocal;
+        int endLocal = nextLocal + 3;
+        int counter = nextLocal + 4;
+        nextLocal += 5;
+        value(node.start);
+        code.local(ISTORE, startLocal + 2, -1);
+        code.local(DSTORE, startLocal, -2);
+        value(node.end);
+        invoke("bound", "(DI)I", -2);
+        code.local(ISTORE, endLocal, -1);
+
+        // The loop variable gets the start value if it is not defined yet.
+        int variable = current().base + 3 * node.slot;
+        ClassWriter.Label defined = new ClassWriter.Label();
+        code.local(ILOAD, variable + 2, 1);
+        code.jump(IFNE, defined, -1);
+        code.local(DLOAD, startLocal, 2);
+        code.local(DSTORE, variable, -2);
+        code.local(ILOAD, startLocal + 2, 1);
+        code.local(ISTORE, variable + 2, -1);
+        code.mark(defined);
+
+        code.local(DLOAD, startLocal, 2);
+        code.local(ILOAD, startLocal + 2, 1);
+        invoke("bound", "(DI)I", -2);
+        code.local(ISTORE, counter, -1);
+
+        ClassWriter.Label top = new ClassWriter.Label();
+        ClassWriter.Label end = new ClassWriter.Label();
+        code.mark(top);
+        code.local(ILOAD, counter, 1);
+        code.local(ILOAD, endLocal, 1);
+        code.jump(IF_ICMPGT, end, -2);
+        poll(node.line);
+        code.local(ILOAD, counter, 1);
+        code.op(I2D, 1);
+        code.local(DSTORE, variable, -2);
+        pushState(JitRuntime.DOUBLE);
+        code.local(ISTORE, variable + 2, -1);
+        statement(node.body);
+        code.local(0x84, counter, 0); // iinc counter 1
+        code.op(1, 0);
+        code.jump(GOTO, top, 0);
+        code.unreachable();
+        code.mark(end);
+    }
+
+    // === Expressions ===
+
+    // Pushes the value (double) and the state (int) of an expression.
+    private void value(ASTNode node) {
+        node = uncached(node);
+        if (node instanceof ConstantNode) {
+            Object constant = ((ConstantNode) node).value;
+            if (constant instanceof Boolean) {
+                pushDouble((Boolean) constant ? 1 : 0);
+                pushState(JitRuntime.BOOL);
+            } else if (constant instanceof Integer || constant instanceof Double) {
+                pushDouble(((Number) constant).doubleValue());
+                pushState(constant instanceof Integer ? JitRuntime.INT : JitRuntime.DOUBLE);
+            } else {
+                throw new Unsupported(); // Strings and null.
+            }
+        } else if (node instanceof NumberNode) {
+            Object number = Interpreter.parseNumber(((NumberNode) node).token.value);
+            pushDouble(((Number) number).doubleValue());
+            pushState(number instanceof Integer ? JitRuntime.INT : JitRuntime.DOUBLE);
+        } else if (node instanceof BooleanNode) {
+            pushDouble(Boolean.parseBoolean(((BooleanNode) node).token.value) ? 1 : 0);
+            pushState(JitRuntime.BOOL);
+        } else if (node instanceof IdentifierNode) {
+            variable((IdentifierNode) node);
+            invoke("defined", "(I)I", 0);
+        } else if (node instanceof BinaryOpNode && isArithmetic(((BinaryOpNode) node).op.value)
+                || node instanceof UnaryOpNode && !((UnaryOpNode) node).op.value.equals("not")) {
+            number(node);
+            pushState(JitRuntime.DOUBLE);
+        } else if (node instanceof BinaryOpNode || node instanceof UnaryOpNode) {
+            truth(node);
+            code.op(I2D, 1);
+            pushState(JitRuntime.BOOL);
+        } else if (node instanceof FunctionCallNode) {
+            int result = nextLocal++;
+            selfCall((FunctionCallNode) node);
+            code.local(ASTORE, result, -1);
+            code.local(ALOAD, result, 1);
+            invoke("value", "(Ljava/lang/Object;)D", 1);
+            code.local(ALOAD, result, 1);
+            invoke("state", "(Ljava/lang/Object;)I", 0);
+        } else {
+            throw new Unsupported();
+        }
+    }
+
+    // Pushes an expression as a double, deoptimizes when it is not a number.
+    private void number(ASTNode node) {
+        node = uncached(node);
+        if (node instanceof ConstantNode && ((ConstantNode) node).value instanceof Number) {
+            pushDouble(((Number) ((ConstantNode) node).value).doubleValue());
+        } else if (node instanceof NumberNode) {
+            pushDouble(((Number) Interpreter.parseNumber(((NumberNode) node).token.value)).doubleValue());
+        } else if (node instanceof IdentifierNode) {
+            variable((IdentifierNode) node);
+            invoke("num", "(DI)D", -1);
+        } else if (node instanceof BinaryOpNode && isArithmetic(((BinaryOpNode) node).op.value)) {
+            BinaryOpNode binOp = (BinaryOpNode) node;
+            number(binOp.left);
+            number(binOp.right);
+            switch (binOp.op.value) {
+                case "+": code.op(DADD, -2); break;
+                case "-": code.op(DSUB, -2); break;
+                case "*": code.op(DMUL, -2); break;
+                case "/": invoke("divide", "(DD)D", -2); break;
+                default: code.op(DREM, -2); break;
+            }
+        } else if (node instanceof UnaryOpNode && !((UnaryOpNode) node).op.value.equals("not")) {
+            UnaryOpNode unary = (UnaryOpNode) node;
+            if (!unary.op.value.equals("-") && !unary.op.value.equals("+")) {
+                throw new Unsupported();
+            }
+            value(unary.operand);
+            invoke("unary", "(DI)D", -1);
+            if (unary.op.value.equals("-")) {
+                code.op(DNEG, 0);
+            }
+        } else if (node instanceof FunctionCallNode) {
+            selfCall((FunctionCallNode) node);
+            invoke("num", "(Ljava/lang/Object;)D", 1);
+        } else {
+            // Booleans and comparisons are not numbers, num() deoptimizes on them.
+            value(node);
+            invoke("num", "(DI)D", -1);
+        }
+    }
+
+    // Pushes the truthiness of an expression as an int (0 or 1).
+    private void truth(ASTNode node) {
+        node = uncached(node);
+        if (node instanceof BinaryOpNode && !isArithmetic(((BinaryOpNode) node).op.value)) {
+            BinaryOpNode binOp = (BinaryOpNode) node;
+            switch (binOp.op.value) {
+                case "<": compare(binOp, "less"); break;
+                case "<=": compare(binOp, "lessEqual"); break;
+                case ">": compare(binOp, "greater"); break;
+                case ">=": compare(binOp, "greaterEqual"); break;
+                case "==":
+                case "!=":
+                    value(binOp.left);
+                    value(binOp.right);
+                    invoke("equal", "(DIDI)I", -5);
+                    if (binOp.op.value.equals("!=")) {
+                        code.op(ICONST_1, 1);
+                        code.op(IXOR, -1);
+                    }
+                    break;
+                case "and":
+                case "or":
+                    // Both sides are evaluated, like Interpreter.binaryOp does.
+                    truth(binOp.left);
+                    truth(binOp.right);
+                    code.op(binOp.op.value.equals("and") ? IAND : IOR, -1);
+                    break;
+                default:
+                    throw new Unsupported(); // 'in' needs a list.
+            }
+        } else if (node instanceof UnaryOpNode && ((UnaryOpNode) node).op.value.equals("not")) {
+            truth(((UnaryOpNode) node).operand);
+            code.op(ICONST_1, 1);
+            code.op(IXOR, -1);
+        } else if (node instanceof BooleanNode) {
+            code.op(Boolean.parseBoolean(((BooleanNode) node).token.value) ? ICONST_1 : ICONST_0, 1);
+        } else if (node instanceof ConstantNode && ((ConstantNode) node).value instanceof Boolean) {
+            code.op((Boolean) ((ConstantNode) node).value ? ICONST_1 : ICONST_0, 1);
+        } else if (node instanceof FunctionCallNode) {
+            selfCall((FunctionCallNode) node);
+            invoke("truth", "(Ljava/lang/Object;)I", 0);
+        } else {
+            value(node);
+            invoke("truth", "(DI)I", -2);
+        }
+    }
+
+    private void compare(BinaryOpNode binOp, String method) {
+        number(binOp.left);
+        number(binOp.right);
+        invoke(method, "(DD)I", -3);
+    }
+
+    // Loop invariants are compiled as plain expressions, HotSpot hoists them out of the compiled loops.
+    private static ASTNode uncached(ASTNode node) {
+        return node instanceof InvariantNode ? ((InvariantNode) node).expression : node;
+    }
+
+    private static boolean isArithmetic(String op) {
+        return op.equals("+") || op.equals("-") || op.equals("*") || op.equals("/") || op.equals("%");
+    }
+
+    // Pushes the value and state of a variable of the compiled frames. While the variable is unset the
+    // interpreter looks for the name in the enclosing frames, so the same is done here; the state stays
+    // UNSET when none of the compiled frames has it.
+    private void variable(IdentifierNode id) {
+        int top = scopes.size() - 1;
+        int index = top - id.depth;
+        if (id.thisDepth >= 0 || id.depth < 0 || index < 0) {
+            throw new Unsupported(); // Variables outside the function are not compiled.
+        }
+        String name = id.identifier.value;
+        List<Integer> candidates = new ArrayList<>();
+        candidates.add(scopes.get(index).base + 3 * id.slot);
+        for (int i = index - 1; i >= 0; i--) {
+            int slot = scopes.get(i).layout.indexOf(name);
+            if (slot >= 0) {
+                candidates.add(scopes.get(i).base + 3 * slot);
+            }
+        }
+        ClassWriter.Label done = new ClassWriter.Label();
+        for (int i = 0; i < candidates.size() - 1; i++) {
+            int local = candidates.get(i);
+            ClassWriter.Label next = new ClassWriter.Label();
+            code.local(ILOAD, local + 2, 1);
+            code.jump(IFEQ, next, -1);
+            code.local(DLOAD, local, 2);
+            code.local(ILOAD, local + 2, 1);
+            code.jump(GOTO, done, 0);
+            code.unreachable();
+            code.mark(next);
+        }
+        int last = candidates.get(candidates.size() - 1);
+        code.local(DLOAD, last, 2);
+        code.local(ILOAD, last + 2, 1);
+        code.mark(done);
+    }
+
+    // Whether a call calls the compiled function (if the name is still bound to it, see Compiled.call).
+    private boolean isSelfCall(FunctionCallNode call) {
+        return call.name.value.equals(declaration.name.value) && call.depth > scopes.size() - 1
+                && call.arguments.size() == declaration.parameters.size();
+    }
+
+    // Recursive call of the compiled function, pushes the boxed result.
+    private void selfCall(FunctionCallNode call) {
+        if (!isSelfCall(call)) {
+            throw new Unsupported();
+        }
+        // Frames above the function frame are the closure, Compiled.call checks the binding there.
+        selfAddresses.add(new int[]{call.depth - scopes.size(), call.slot});
+        code.op(0x2A, 1); // aload_0, the safepoint is passed on
+        for (ASTNode argument : call.arguments) {
+            value(argument);
+        }
+        code.op2(INVOKESTATIC, writer.methodRef(className, "run", runDescriptor), -3 * call.arguments.size());
+    }
+
+    // 'return f(...)' of the compiled function: all arguments are evaluated, then they replace the
+    // parameters and the body starts over, without a JVM call.
+    private void selfTailCall(FunctionCallNode call) {
+        selfAddresses.add(new int[]{call.depth - scopes.size(), call.slot});
+        for (ASTNode argument : call.arguments) {
+            value(argument);
+        }
+        for (int i = call.arguments.size() - 1; i >= 0; i--) {
+            code.local(ISTORE, 1 + 3 * i + 2, -1);
+            code.local(DSTORE, 1 + 3 * i, -2);
+        }
+        code.jump(GOTO, start, 0);
+        code.unreachable();
+    }
+}
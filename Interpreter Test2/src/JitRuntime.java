@@ -0,0 +1,124 @@
+// Support code called from the classes generated by the Jit.
+// Inside compiled code a value is a double plus a state telling what the interpreter would hold:
+// an Integer, a Double, a Boolean (0 or 1), or nothing yet (an unset variable).
+final class JitRuntime {
+    static final int UNSET = 0;
+    static final int INT = 1;
+    static final int DOUBLE = 2;
+    static final int BOOL = 3;
+
+    private static final JitDeopt DEOPT = new JitDeopt();
+
+    private JitRuntime() {}
+
+    // Compiled code met something it cannot handle, the call is redone by the interpreter.
+    static RuntimeException deopt() {
+        return DEOPT;
+    }
+
+    static double value(Object value) {
+        if (value instanceof Integer) return (Integer) value;
+        if (value instanceof Double) return (Double) value;
+        if (value instanceof Boolean) return (Boolean) value ? 1 : 0;
+        throw DEOPT;
+    }
+
+    static int state(Object value) {
+        if (value instanceof Integer) return INT;
+        if (value instanceof Double) return DOUBLE;
+        if (value instanceof Boolean) return BOOL;
+        throw DEOPT;
+    }
+
+    static Object box(double value, int state) {
+        switch (state) {
+            case INT: return (int) value;
+            case DOUBLE: return value;
+            case BOOL: return value != 0;
+            default: throw DEOPT;
+        }
+    }
+
+    // Fails for a variable that is not set in the compiled frames (the interpreter would look further out).
+    static int defined(int state) {
+        if (state == UNSET) throw DEOPT;
+        return state;
+    }
+
+    // Operand of an arithmetic or comparison operator.
+    static double num(double value, int state) {
+        if (state != INT && state != DOUBLE) throw DEOPT;
+        return value;
+    }
+
+    static double num(Object value) {
+        if (value instanceof Integer) return (Integer) value;
+        if (value instanceof Double) return (Double) value;
+        throw DEOPT;
+    }
+
+    static int truth(double value, int state) {
+        if (state == BOOL) return value != 0 ? 1 : 0;
+        if (state == UNSET) throw DEOPT;
+        return 1; // Numbers are always truthy.
+    }
+
+    static int truth(Object value) {
+        if (value instanceof Boolean) return (Boolean) value ? 1 : 0;
+        if (value instanceof Integer || value instanceof Double) return 1;
+        throw DEOPT;
+    }
+
+    static double divide(double left, double right) {
+        if (right == 0) throw DEOPT; // Division by 0 error.
+        return left / right;
+    }
+
+    // Unary + and - cast their operand to Double.
+    static double unary(double value, int state) {
+        if (state != DOUBLE) throw DEOPT;
+        return value;
+    }
+
+    // Bound of a numeric for loop, cast to an Integer by the interpreter.
+    static int bound(double value, int state) {
+        if (state != INT) throw DEOPT;
+        return (int) value;
+    }
+
+    static int equal(double left, int leftState, double right, int rightState) {
+        if (leftState == BOOL || rightState == BOOL) {
+            return leftState == rightState && left == right ? 1 : 0;
+        }
+        return left == right ? 1 : 0;
+    }
+
+    static int less(double left, double right) {
+        return left < right ? 1 : 0;
+    }
+
+    static int lessEqual(double left, double right) {
+        return left <= right ? 1 : 0;
+    }
+
+    static int greater(double left, double right) {
+        return left > right ? 1 : 0;
+    }
+
+    static int greaterEqual(double left, double right) {
+        return left >= right ? 1 : 0;
+    }
+}
+
+// Entry point of a compiled function, implemented by the generated class.
+interface JitCode {
+    Object call(Safepoint safepoint, Object[] arguments, int offset);
+}
+
+// Thrown by compiled code to give the call back to the interpreter, shared and without a stack trace.
+class JitDeopt extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+    JitDeopt() {
+        super(null, null, false, false);
+    }
+}
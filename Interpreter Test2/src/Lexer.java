@@ -1,51 +1,147 @@
-import java.util.HashMap;
-import java.util.Map;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Stack;
 
+// Turns the source into tokens. The tokens are written to a TokenBuffer (parallel arrays) and names
+// are interned in a Symbols table, so scanning a token allocates nothing. tokenize() scans the whole
+// source and returns the Token list, next() scans one line at a time for a streaming Parser.
 public class Lexer {
-    String input;
+    CharSequence input;
+    int length;
     int pos;
     char curr;
     int line = 1; // Track the current line number
     Stack<Integer> indentStack = new Stack<>();
-    int listNesting = 0; // Track list nesting
+    int listNesting = 0; // Track list, dict and set nesting
 
-    // Hashmap for all the keywords
-    private static final Map<String, TokenType> KEYWORDS = new HashMap<>();
+    // Tokens of the line being scanned and the names in them.
+    final TokenBuffer tokens = new TokenBuffer();
+    final Symbols symbols = new Symbols(KEYWORD_NAMES, KEYWORD_TYPES);
+    TokenType lastType; // Type of the last token, also when the buffer was cleared
+    private int cursor; // Next token of the buffer handed out by next()
+    private boolean started;
+    boolean finished;
+
+    // All the keywords, they are the first symbols of every Symbols table.
+    private static final String[] KEYWORD_NAMES = {
+            "print", "if", "else", "function", "class", "and", "or", "not",
+            "return", "def", "true", "false", "for", "while", "in"
+    };
+    private static final TokenType[] KEYWORD_TYPES = {
+            TokenType.PRINT, TokenType.IF, TokenType.ELSE, TokenType.DEF, TokenType.CLASS, TokenType.AND,
+            TokenType.OR, TokenType.NOT, TokenType.RETURN, TokenType.DEF, TokenType.TRUE, TokenType.FALSE,
+            TokenType.FOR, TokenType.WHILE, TokenType.IN
+    };
+    private static final int ELSE = 2; // Symbol of "else"
+
+    // Value of the tokens that have neither a name nor a text in the source.
+    private static final String[] TEXT = new String[TokenType.values().length];
     static {
-        KEYWORDS.put("print", TokenType.PRINT);
-        KEYWORDS.put("if", TokenType.IF);
-        KEYWORDS.put("else", TokenType.ELSE);
-        KEYWORDS.put("function", TokenType.DEF);
-        KEYWORDS.put("class", TokenType.CLASS);
-        KEYWORDS.put("and", TokenType.AND);
-        KEYWORDS.put("or", TokenType.OR);
-        KEYWORDS.put("not", TokenType.NOT);
-        KEYWORDS.put("return", TokenType.RETURN);
-        KEYWORDS.put("def", TokenType.DEF);
-        KEYWORDS.put("true", TokenType.TRUE);
-        KEYWORDS.put("false", TokenType.FALSE);
-        KEYWORDS.put("for", TokenType.FOR);
-        KEYWORDS.put("while", TokenType.WHILE);
-        KEYWORDS.put("in", TokenType.IN);
+        TEXT[TokenType.NEWLINE.ordinal()] = "\\n";
+        TEXT[TokenType.INDENT.ordinal()] = "INDENT";
+        TEXT[TokenType.DEDENT.ordinal()] = "DEDENT";
+        TEXT[TokenType.EOF.ordinal()] = "EOF";
+        TEXT[TokenType.ELSEIF.ordinal()] = "else if";
+        TEXT[TokenType.COMMA.ordinal()] = ",";
+        TEXT[TokenType.DOT.ordinal()] = ".";
+        TEXT[TokenType.PLUS.ordinal()] = "+";
+        TEXT[TokenType.PLUS_EQUAL.ordinal()] = "+=";
+        TEXT[TokenType.MINUS.ordinal()] = "-";
+        TEXT[TokenType.MINUS_EQUAL.ordinal()] = "-=";
+        TEXT[TokenType.MULTIPLY.ordinal()] = "*";
+        TEXT[TokenType.MULTIPLY_EQUAL.ordinal()] = "*=";
+        TEXT[TokenType.DIVIDE.ordinal()] = "/";
+        TEXT[TokenType.DIVIDE_EQUAL.ordinal()] = "/=";
+        TEXT[TokenType.EQUALS.ordinal()] = "=";
+        TEXT[TokenType.EQUAL_EQUAL.ordinal()] = "==";
+        TEXT[TokenType.LPAREN.ordinal()] = "(";
+        TEXT[TokenType.RPAREN.ordinal()] = ")";
+        TEXT[TokenType.GREATER.ordinal()] = ">";
+        TEXT[TokenType.GREATER_EQUAL.ordinal()] = ">=";
+        TEXT[TokenType.LESS.ordinal()] = "<";
+        TEXT[TokenType.LESS_EQUAL.ordinal()] = "<=";
+        TEXT[TokenType.NOT.ordinal()] = "!"; // The keyword "not" has a symbol
+        TEXT[TokenType.NOTEQUAL.ordinal()] = "!=";
+        TEXT[TokenType.LBRACKET.ordinal()] = "[";
+        TEXT[TokenType.RBRACKET.ordinal()] = "]";
+        TEXT[TokenType.LBRACE.ordinal()] = "{";
+        TEXT[TokenType.RBRACE.ordinal()] = "}";
+        TEXT[TokenType.COLON.ordinal()] = ":";
+        TEXT[TokenType.MODULO.ordinal()] = "%";
     }
-    // Lexer constructor which accepts the input string as argument
-    public Lexer(String input) {
+
+    // Lexer constructor which accepts the input (a String, or a CharBuffer from open and read) as argument
+    public Lexer(CharSequence input) {
         this.input = input;
+        this.length = input.length();
         this.pos = 0; // Pos starts with 0
-        this.curr = input.length() > 0 ? input.charAt(pos) : '\0';
+        this.curr = length > 0 ? input.charAt(pos) : '\0';
         indentStack.push(0); // Start with indent level 0
     }
 
+    // Continues at the start of a line (where scanLine stopped) in the state an earlier lexer had there,
+    // for the IncrementalLexer. indents is the indent stack from the bottom.
+    void resume(int pos, int line, int[] indents, int listNesting, TokenType lastType) {
+        this.pos = pos;
+        this.curr = pos < length ? input.charAt(pos) : '\0';
+        this.line = line;
+        indentStack.clear();
+        for (int indent : indents) {
+            indentStack.push(indent);
+        }
+        this.listNesting = listNesting;
+        this.lastType = lastType;
+        this.started = true;
+    }
+
+    // The indent stack from the bottom.
+    int[] indents() {
+        int[] indents = new int[indentStack.size()];
+        for (int i = 0; i < indents.length; i++) {
+            indents[i] = indentStack.get(i);
+        }
+        return indents;
+    }
+
+    // Lexer over a file mapped into memory, decoded straight into a CharBuffer (no byte[] or String copy).
+    public static Lexer open(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path)) {
+            MappedByteBuffer bytes = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return new Lexer(StandardCharsets.UTF_8.decode(bytes));
+        }
+    }
+
+    // Lexer over everything a Reader gives, read in blocks into one CharBuffer.
+    public static Lexer read(Reader reader) throws IOException {
+        CharBuffer text = CharBuffer.allocate(8192);
+        while (true) {
+            if (!text.hasRemaining()) {
+                CharBuffer larger = CharBuffer.allocate(text.capacity() * 2);
+                text.flip();
+                text = larger.put(text);
+            }
+            if (reader.read(text) < 0) {
+                break;
+            }
+        }
+        text.flip();
+        return new Lexer(text);
+    }
+
     // Advances the current position and updates the line counter when a newline is encountered.
     public void advance() {
         if (curr == '\n') {
             line++;
         }
         pos++;
-        curr = pos < input.length() ? input.charAt(pos) : '\0';
+        curr = pos < length ? input.charAt(pos) : '\0';
     }
 
     public void skipWhitespace() {
@@ -54,8 +150,24 @@ public class Lexer {
         }
     }
 
+    // Adds a token on the current line.
+    private void emit(TokenType type, int start, int end, int symbol) {
+        tokens.add(type, start, end - start, line, 0, symbol);
+        lastType = type;
+    }
+
+    // Adds a token without text in the source.
+    private void emit(TokenType type) {
+        emit(type, pos, pos, -1);
+    }
+
+    private void emitIndent(TokenType type, int indent) {
+        tokens.add(type, pos, 0, line, indent, -1);
+        lastType = type;
+    }
+
     // Handles indentation by comparing the number of leading spaces/tabs.
-    private void handleIndentation(List<Token> tokens) {
+    private void handleIndentation() {
         int spaces = 0;
         while (curr == ' ' || curr == '\t') {
             spaces += (curr == ' ') ? 1 : 4;
@@ -67,163 +179,156 @@ public class Lexer {
         int prevIndent = indentStack.peek();
         if (spaces > prevIndent) {
             indentStack.push(spaces);
-            tokens.add(new Token(TokenType.INDENT, "INDENT", line, spaces));
+            emitIndent(TokenType.INDENT, spaces);
         } else {
             while (!indentStack.isEmpty() && spaces < indentStack.peek()) {
                 int poppedIndent = indentStack.pop();
-                tokens.add(new Token(TokenType.DEDENT, "DEDENT", line, poppedIndent));
+                emitIndent(TokenType.DEDENT, poppedIndent);
             }
         }
     }
     // Tokenizes the number in the input
-    public Token number() {
-        StringBuilder result = new StringBuilder();
+    public void number() {
+        int start = pos;
         while (Character.isDigit(curr) || curr == '.') {
-            result.append(curr);
             advance();
         }
-        return new Token(TokenType.NUMBER, result.toString(), line);
+        emit(TokenType.NUMBER, start, pos, -1);
     }
     // tokenizes words or letters that is not in keywords from the input as identifiers
-    public Token identifier() {
+    public void identifier() {
         // Builds the words from letters (moves to new word when space is found)
-        StringBuilder result = new StringBuilder();
+        int start = pos;
         while (Character.isLetterOrDigit(curr)) {
-            result.append(curr);
             advance();
         }
-        String word = result.toString();
+        int symbol = symbols.intern(input, start, pos - start);
         // Check for "else if" by looking ahead after "else"
-        if (word.equals("else")) {
+        if (symbol == ELSE) {
             int savedPos = pos;
             char savedCurr = curr;
-            while ((curr == ' ' || curr == '\t') && curr != '\n' && curr != '\0') {
+            while (curr == ' ' || curr == '\t') {
                 advance();
             }
-            StringBuilder nextWord = new StringBuilder();
-            int tempPos = pos;
-            char tempCurr = tempPos < input.length() ? input.charAt(tempPos) : '\0';
-            while (Character.isLetterOrDigit(tempCurr)) {
-                nextWord.append(tempCurr);
-                tempPos++;
-                tempCurr = tempPos < input.length() ? input.charAt(tempPos) : '\0';
+            int end = pos;
+            while (end < length && Character.isLetterOrDigit(input.charAt(end))) {
+                end++;
             }
-            if (nextWord.toString().equals("if")) {
-                for (int i = 0; i < nextWord.length(); i++) {
-                    advance();
-                }
-                return new Token(TokenType.ELSEIF, "else if", line);
+            if (end - pos == 2 && input.charAt(pos) == 'i' && input.charAt(pos + 1) == 'f') {
+                advance();
+                advance();
+                emit(TokenType.ELSEIF, start, pos, -1);
+                return;
             } else {
                 pos = savedPos;
                 curr = savedCurr;
             }
         }
 
-        TokenType type = KEYWORDS.getOrDefault(word, TokenType.IDENTIFIER);
-        return new Token(type, word, line);
+        emit(symbols.type(symbol), start, pos, symbol);
     }
     // Tokenizes string by looking for ""
-    public Token string() {
-        StringBuilder result = new StringBuilder();
+    public void string() {
         advance(); // Skip opening quote
+        int start = pos;
         while (curr != '"' && curr != '\0') {
-            result.append(curr);
             advance();
         }
+        int end = pos;
         if (curr == '"') {
             advance(); // Skip closing quote
         }
-        return new Token(TokenType.STRING, result.toString(), line);
+        emit(TokenType.STRING, start, end, -1);
     }
     // Tokenizes comma
-    public Token comma() {
+    public void comma() {
         advance();
-        return new Token(TokenType.COMMA, ",", line);
+        emit(TokenType.COMMA);
     }
     // Tokenizes dot
-    public Token dot() {
+    public void dot() {
         advance();
-        return new Token(TokenType.DOT, ".", line);
+        emit(TokenType.DOT);
+    }
+    // Consumes an '=' after an operator, for the two-character operators
+    private boolean matchEquals() {
+        if (curr == '=') {
+            advance();
+            return true;
+        }
+        return false;
     }
     // Tokenizes operators
-    public Token operator() {
+    public void operator() {
         switch (curr) {
             case '+':
                 advance();
-                if (curr == '=') {
-                    advance();
-                    return new Token(TokenType.PLUS_EQUAL, "+=", line);
-                }
-                return new Token(TokenType.PLUS, "+", line);
+                emit(matchEquals() ? TokenType.PLUS_EQUAL : TokenType.PLUS);
+                return;
             case '-':
                 advance();
-                if (curr == '=') {
-                    advance();
-                    return new Token(TokenType.MINUS_EQUAL, "-=", line);
-                }
-                return new Token(TokenType.MINUS, "-", line);
+                emit(matchEquals() ? TokenType.MINUS_EQUAL : TokenType.MINUS);
+                return;
             case '*':
                 advance();
-                if (curr == '=') {
-                    advance();
-                    return new Token(TokenType.MULTIPLY_EQUAL, "*=", line);
-                }
-                return new Token(TokenType.MULTIPLY, "*", line);
+                emit(matchEquals() ? TokenType.MULTIPLY_EQUAL : TokenType.MULTIPLY);
+                return;
             case '/':
                 advance();
-                if (curr == '=') {
-                    advance();
-                    return new Token(TokenType.DIVIDE_EQUAL, "/=", line);
-                }
-                return new Token(TokenType.DIVIDE, "/", line);
+                emit(matchEquals() ? TokenType.DIVIDE_EQUAL : TokenType.DIVIDE);
+                return;
             case '=':
                 advance();
-                if (curr == '=') {
-                    advance();
-                    return new Token(TokenType.EQUAL_EQUAL, "==", line);
-                }
-                return new Token(TokenType.EQUALS, "=", line);
+                emit(matchEquals() ? TokenType.EQUAL_EQUAL : TokenType.EQUALS);
+                return;
             case '(':
                 advance();
-                return new Token(TokenType.LPAREN, "(", line);
+                emit(TokenType.LPAREN);
+                return;
             case ')':
                 advance();
-                return new Token(TokenType.RPAREN, ")", line);
+                emit(TokenType.RPAREN);
+                return;
             case '>':
                 advance();
-                if (curr == '=') {
-                    advance();
-                    return new Token(TokenType.GREATER_EQUAL, ">=", line);
-                }
-                return new Token(TokenType.GREATER, ">", line);
+                emit(matchEquals() ? TokenType.GREATER_EQUAL : TokenType.GREATER);
+                return;
             case '<':
                 advance();
-                if (curr == '=') {
-                    advance();
-                    return new Token(TokenType.LESS_EQUAL, "<=", line);
-                }
-                return new Token(TokenType.LESS, "<", line);
+                emit(matchEquals() ? TokenType.LESS_EQUAL : TokenType.LESS);
+                return;
             case '!':
                 advance();
-                if (curr == '=') {
-                    advance();
-                    return new Token(TokenType.NOTEQUAL, "!=", line);
-                }
-                return new Token(TokenType.NOT, "!", line);
+                emit(matchEquals() ? TokenType.NOTEQUAL : TokenType.NOT);
+                return;
             case '[':
                 listNesting++; // Entering a list
                 advance();
-                return new Token(TokenType.LBRACKET, "[", line);
+                emit(TokenType.LBRACKET);
+                return;
             case ']':
                 listNesting--; // Exiting a list
                 advance();
-                return new Token(TokenType.RBRACKET, "]", line);
+                emit(TokenType.RBRACKET);
+                return;
+            case '{':
+                listNesting++; // Entering a dict or set
+                advance();
+                emit(TokenType.LBRACE);
+                return;
+            case '}':
+                listNesting--; // Exiting a dict or set
+                advance();
+                emit(TokenType.RBRACE);
+                return;
             case ':':
                 advance();
-                return new Token(TokenType.COLON, ":", line);
+                emit(TokenType.COLON);
+                return;
             case '%':
                 advance();
-                return new Token(TokenType.MODULO, "%", line);
+                emit(TokenType.MODULO);
+                return;
             default:
                 char unknown = curr;
                 advance();
@@ -232,18 +337,23 @@ public class Lexer {
     }
     // Checks the next character
     private char peek() {
-        return pos + 1 < input.length() ? input.charAt(pos + 1) : '\0';
+        return pos + 1 < length ? input.charAt(pos + 1) : '\0';
     }
 
-    // Start of the tokenization process
-    public List<Token> tokenize() {
-        List<Token> tokens = new ArrayList<>();
-
-        // Process any leading newlines before any code.
-        while (curr == '\n') {
-            advance(); // This will increment the line counter.
-            // Add a NEWLINE token for each newline.
-            tokens.add(new Token(TokenType.NEWLINE, "\\n", line));
+    // Scans the tokens up to the end of the next line (a newline inside brackets does not end it)
+    // into the buffer. Returns false when the EOF token was already added.
+    boolean scanLine() {
+        if (finished) {
+            return false;
+        }
+        if (!started) {
+            started = true;
+            // Process any leading newlines before any code.
+            while (curr == '\n') {
+                advance(); // This will increment the line counter.
+                // Add a NEWLINE token for each newline.
+                emit(TokenType.NEWLINE);
+            }
         }
 
         while (curr != '\0') {
@@ -260,40 +370,40 @@ public class Lexer {
                 continue;
             }
             if (curr == ',') {
-                tokens.add(comma());
+                comma();
                 continue;
             }
             if (curr == '.') {
-                tokens.add(dot());
+                dot();
                 continue;
             }
             if (Character.isDigit(curr)) {
-                tokens.add(number());
+                number();
                 continue;
             }
             if (Character.isLetter(curr)) {
-                tokens.add(identifier());
+                identifier();
                 continue;
             }
             if (curr == '"') {
-                tokens.add(string());
+                string();
                 continue;
             }
-            if ("+-/*()=<>![]:%".indexOf(curr) != -1) {
-                tokens.add(operator());
+            if ("+-/*()=<>![]{}:%".indexOf(curr) != -1) {
+                operator();
                 continue;
             }
             if (curr == '\n') {
                 advance(); // Consume the newline
-                // If inside a list, ignore newlines completely.
+                // If inside a list, dict or set, ignore newlines completely.
                 if (listNesting > 0) {
                     continue;
                 }
-                if (tokens.isEmpty() || tokens.getLast().type != TokenType.NEWLINE) {
-                    tokens.add(new Token(TokenType.NEWLINE, "\\n", line));
+                if (lastType != TokenType.NEWLINE) {
+                    emit(TokenType.NEWLINE);
                 }
-                handleIndentation(tokens);
-                continue;
+                handleIndentation();
+                return true;
             }
             throw new RuntimeException("Error at line " + line + ": " + "Unexpected character: " + curr);
         }
@@ -301,11 +411,59 @@ public class Lexer {
         // Handle final dedents by popping any remaining indent levels.
         while (indentStack.peek() > 0) {
             int poppedIndent = indentStack.pop();
-            tokens.add(new Token(TokenType.DEDENT, "DEDENT", line, poppedIndent));
+            emitIndent(TokenType.DEDENT, poppedIndent);
+        }
+
+        emit(TokenType.EOF);
+        finished = true;
+        return true;
+    }
+
+    // The Token object of a token in the buffer. Names are the interned strings of the Symbols table,
+    // only numbers and strings copy their text out of the source.
+    Token token(int index) {
+        TokenType type = tokens.type(index);
+        int line = tokens.lines[index];
+        switch (type) {
+            case INDENT:
+            case DEDENT:
+                return new Token(type, TEXT[type.ordinal()], line, tokens.indents[index]);
+            case NUMBER:
+            case STRING:
+                int start = tokens.starts[index];
+                return new Token(type, input.subSequence(start, start + tokens.lengths[index]).toString(), line);
+            default:
+                int symbol = tokens.symbols[index];
+                return new Token(type, symbol >= 0 ? symbols.name(symbol) : TEXT[type.ordinal()], line);
+        }
+    }
+
+    // Next token for a streaming Parser: lines are scanned when the parser gets to them and the buffer
+    // only holds the tokens of the current line. After the EOF token it keeps returning EOF.
+    public Token next() {
+        if (cursor == tokens.count) {
+            tokens.clear();
+            cursor = 0;
+            while (tokens.count == 0 && scanLine()) {
+                // Lines without tokens (comments, newlines in brackets) add nothing.
+            }
+            if (tokens.count == 0) {
+                return new Token(TokenType.EOF, TEXT[TokenType.EOF.ordinal()], line);
+            }
         }
+        return token(cursor++);
+    }
 
-        tokens.add(new Token(TokenType.EOF, "EOF", line));
-        return tokens;
+    // Start of the tokenization process, scans the whole input and returns the list of tokens
+    public List<Token> tokenize() {
+        List<Token> result = new ArrayList<>();
+        while (scanLine()) {
+            for (int i = 0; i < tokens.count; i++) {
+                result.add(token(i));
+            }
+            tokens.clear();
+        }
+        return result;
     }
 
 }
@@ -0,0 +1,352 @@
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+// Loop-invariant code motion, run by the Resolver on every loop once its body is resolved.
+// An expression inside a while, for or for-each loop is invariant when it has no effects and none of
+// its inputs can change while the loop runs: no variable it reads is assigned in the loop, and the
+// loop cannot write to lists, dicts or objects (no index or field assignments, no calls other than the
+// built-in methods that only read: size, keys and values, when no class of the program has a method
+// of that name). So 'while i < items.size()' reads the size once while the loop does not change items.
+// Such an expression is wrapped in an InvariantNode. Its value is computed where and when the loop
+// first needs it, then kept in a hidden variable of the frame the loop runs in, so errors and the
+// order of evaluation do not change. The hidden variables are unset every time the loop starts.
+// Nested loops are handled inside out, an expression invariant in the outer loop too is cached there.
+// -Dinterpreter.invariants=false turns the pass off.
+final class LoopInvariants {
+    static final boolean ENABLED = !"false".equals(System.getProperty("interpreter.invariants"));
+
+    // Built-in methods of lists, dicts and sets that change nothing.
+    private static final Set<String> READ_METHODS = Set.of("size", "keys", "values");
+
+    private final ASTNode loop;
+    private final FrameLayout layout;              // Frame the loop runs in, gets the hidden variables.
+    private final Set<String> classMethods;        // Methods of the classes of the program, see methodNames.
+    private final Set<String> assigned = new HashSet<>(); // Names the loop assigns or defines.
+    private boolean writesHeap;                     // Whether the loop can change a list, dict or object.
+    private final List<Integer> slots = new ArrayList<>();
+
+    private LoopInvariants(ASTNode loop, FrameLayout layout, Set<String> classMethods) {
+        this.loop = loop;
+        this.layout = layout;
+        this.classMethods = classMethods;
+    }
+
+    // Moves the invariant expressions of a resolved loop into InvariantNodes. Returns the hidden
+    // slots to unset when the loop starts, or null when nothing was hoisted.
+    static int[] hoist(ASTNode loop, FrameLayout layout, Set<String> classMethods) {
+        if (!ENABLED) {
+            return null;
+        }
+        LoopInvariants pass = new LoopInvariants(loop, layout, classMethods);
+        pass.effects(loop);
+        if (pass.writesHeap) {
+            return null;
+        }
+        if (loop instanceof WhileNode) {
+            WhileNode whileNode = (WhileNode) loop;
+            whileNode.condition = pass.expression(whileNode.condition, 0);
+            whileNode.body = pass.body(whileNode.body, 0, false);
+        } else if (loop instanceof ForNode) {
+            // Start and end are evaluated once, only the body repeats.
+            ForNode forNode = (ForNode) loop;
+            forNode.body = pass.body(forNode.body, 0, true);
+        } else if (loop instanceof ForEachNode) {
+            // The body runs in the loop frame, one below the frame of the loop statement.
+            pass.body(((ForEachNode) loop).getBody(), 1, false);
+        }
+        if (pass.slots.isEmpty()) {
+            return null;
+        }
+        int[] result = new int[pass.slots.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = pass.slots.get(i);
+        }
+        return result;
+    }
+
+    // Whether a value can be kept for the rest of the loop. Lists, dicts and sets built by an
+    // operator are new objects every time, they are evaluated again instead.
+    static boolean cacheable(Object value) {
+        return value == null || value instanceof Number || value instanceof String || value instanceof Boolean;
+    }
+
+    // Adds the names of the methods the classes of a program define, wherever the classes are.
+    // A call of such a name may be a script method, which can do anything.
+    static void methodNames(ASTNode node, Set<String> names) {
+        if (node instanceof BlockNode) {
+            for (ASTNode statement : ((BlockNode) node).statements) {
+                methodNames(statement, names);
+            }
+        } else if (node instanceof IfNode) {
+            methodNames(((IfNode) node).thenBranch, names);
+            methodNames(((IfNode) node).elseBranch, names);
+        } else if (node instanceof WhileNode) {
+            methodNames(((WhileNode) node).body, names);
+        } else if (node instanceof ForNode) {
+            methodNames(((ForNode) node).body, names);
+        } else if (node instanceof ForEachNode) {
+            methodNames(((ForEachNode) node).getBody(), names);
+        } else if (node instanceof FunctionDefinitionNode) {
+            methodNames(((FunctionDefinitionNode) node).body, names);
+        } else if (node instanceof ClassDefinitionNode) {
+            for (ASTNode member : ((ClassDefinitionNode) node).members) {
+                if (member instanceof FunctionDefinitionNode) {
+                    names.add(((FunctionDefinitionNode) member).name.value);
+                }
+                methodNames(member, names);
+            }
+        }
+    }
+
+    // Whether a method call is a built-in that only reads.
+    private boolean reads(MethodCallNode call) {
+        return READ_METHODS.contains(call.methodName.value) && !classMethods.contains(call.methodName.value);
+    }
+
+    // === Effects of the loop ===
+
+    // Collects the names the loop assigns and whether it can write to the heap. Nested functions and
+    // classes are included, which is more than needed.
+    private void effects(ASTNode node) {
+        if (node == null) return;
+        if (node instanceof AssignmentNode) {
+            AssignmentNode assign = (AssignmentNode) node;
+            assigned.add(assign.identifier.value);
+            if (assign.thisDepth >= 0) {
+                writesHeap = true; // Inside a method, a new name becomes an attribute of 'this'.
+            }
+            effects(assign.value);
+        } else if (node instanceof MethodCallNode && reads((MethodCallNode) node)) {
+            effects(((MethodCallNode) node).target);
+            effectsAll(((MethodCallNode) node).arguments);
+        } else if (node instanceof FunctionCallNode || node instanceof MethodCallNode
+                || node instanceof ObjectCreationNode || node instanceof IndexAssignmentNode
+                || node instanceof FieldAssignmentNode) {
+            writesHeap = true;
+        } else if (node instanceof BinaryOpNode) {
+            effects(((BinaryOpNode) node).left);
+            effects(((BinaryOpNode) node).right);
+        } else if (node instanceof UnaryOpNode) {
+            effects(((UnaryOpNode) node).operand);
+        } else if (node instanceof InvariantNode) {
+            effects(((InvariantNode) node).expression);
+        } else if (node instanceof PrintNode) {
+            effects(((PrintNode) node).expression);
+        } else if (node instanceof ReturnNode) {
+            effects(((ReturnNode) node).expression);
+        } else if (node instanceof BlockNode) {
+            effectsAll(((BlockNode) node).statements);
+        } else if (node instanceof IfNode) {
+            IfNode ifNode = (IfNode) node;
+            effects(ifNode.condition);
+            effects(ifNode.thenBranch);
+            effects(ifNode.elseBranch);
+        } else if (node instanceof WhileNode) {
+            effects(((WhileNode) node).condition);
+            effects(((WhileNode) node).body);
+        } else if (node instanceof ForNode) {
+            ForNode forNode = (ForNode) node;
+            assigned.add(forNode.loopVar.value);
+            effects(forNode.start);
+            effects(forNode.end);
+            effects(forNode.body);
+        } else if (node instanceof ForEachNode) {
+            ForEachNode forEach = (ForEachNode) node;
+            assigned.add(forEach.getLoopVar().value);
+            effects(forEach.getListExpr());
+            effects(forEach.getBody());
+        } else if (node instanceof FunctionDefinitionNode) {
+            FunctionDefinitionNode funcDef = (FunctionDefinitionNode) node;
+            assigned.add(funcDef.name.value);
+            effects(funcDef.body);
+        } else if (node instanceof ClassDefinitionNode) {
+            ClassDefinitionNode classDef = (ClassDefinitionNode) node;
+            assigned.add(classDef.name.value);
+            effectsAll(classDef.members);
+        } else if (node instanceof FieldAccessNode) {
+            effects(((FieldAccessNode) node).target);
+        } else if (node instanceof ListNode) {
+            effectsAll(((ListNode) node).getElements());
+        } else if (node instanceof DictNode) {
+            effectsAll(((DictNode) node).keys);
+            effectsAll(((DictNode) node).values);
+        } else if (node instanceof SetNode) {
+            effectsAll(((SetNode) node).elements);
+        } else if (node instanceof IndexNode) {
+            effects(((IndexNode) node).getBase());
+            effects(((IndexNode) node).getIndex());
+        } else if (node instanceof SliceNode) {
+            SliceNode slice = (SliceNode) node;
+            effects(slice.getTarget());
+            effects(slice.getStart());
+            effects(slice.getEnd());
+            effects(slice.getStep());
+        }
+    }
+
+    private void effectsAll(List<ASTNode> nodes) {
+        for (ASTNode node : nodes) {
+            effects(node);
+        }
+    }
+
+    // === Rewriting ===
+
+    // A loop or branch body. Its statements run 'depth' frames below the loop statement, one more
+    // when the body is a block that gets its own frame.
+    private ASTNode body(ASTNode node, int depth, boolean newFrame) {
+        if (node instanceof BlockNode) {
+            List<ASTNode> statements = ((BlockNode) node).statements;
+            int inner = newFrame ? depth + 1 : depth;
+            for (int i = 0; i < statements.size(); i++) {
+                statements.set(i, statement(statements.get(i), inner));
+            }
+            return node;
+        }
+        return statement(node, depth);
+    }
+
+    // The loop has no heap writes, so its statements are assignments, prints, returns, control flow,
+    // definitions and expressions (calls of the built-in methods that only read).
+    private ASTNode statement(ASTNode node, int depth) {
+        if (node instanceof AssignmentNode) {
+            AssignmentNode assign = (AssignmentNode) node;
+            assign.value = expression(assign.value, depth);
+        } else if (node instanceof PrintNode) {
+            PrintNode print = (PrintNode) node;
+            print.expression = expression(print.expression, depth);
+        } else if (node instanceof ReturnNode) {
+            ReturnNode returnNode = (ReturnNode) node;
+            returnNode.expression = expression(returnNode.expression, depth);
+        } else if (node instanceof BlockNode) {
+            return body(node, depth, true);
+        } else if (node instanceof IfNode) {
+            IfNode ifNode = (IfNode) node;
+            ifNode.condition = expression(ifNode.condition, depth);
+            ifNode.thenBranch = body(ifNode.thenBranch, depth, true);
+            ifNode.elseBranch = body(ifNode.elseBranch, depth, true);
+        } else if (node instanceof WhileNode) {
+            WhileNode whileNode = (WhileNode) node;
+            whileNode.condition = expression(whileNode.condition, depth);
+            whileNode.body = body(whileNode.body, depth, false);
+        } else if (node instanceof ForNode) {
+            ForNode forNode = (ForNode) node;
+            forNode.start = expression(forNode.start, depth);
+            forNode.end = expression(forNode.end, depth);
+            forNode.body = body(forNode.body, depth, true);
+        } else if (node instanceof ForEachNode) {
+            // The list expression is left alone, it runs once per start of the inner loop.
+            body(((ForEachNode) node).getBody(), depth + 1, false);
+        } else if (node instanceof FunctionDefinitionNode || node instanceof ClassDefinitionNode) {
+            return node; // Their bodies run in other frames, later.
+        } else {
+            return expression(node, depth);
+        }
+        return node;
+    }
+
+    // Replaces the largest invariant parts of an expression with InvariantNodes.
+    private ASTNode expression(ASTNode node, int depth) {
+        if (node == null) {
+            return null;
+        }
+        if (node instanceof InvariantNode && ((InvariantNode) node).loop == loop) {
+            // Hoisted when the tree was resolved before, the Resolver declared its variable again.
+            slots.add(((InvariantNode) node).slot);
+            return node;
+        }
+        if (isComputed(node) && isInvariant(node)) {
+            InvariantNode invariant = new InvariantNode(node, loop, "(invariant " + layout.size() + ")", depth);
+            invariant.slot = layout.declare(invariant.name);
+            slots.add(invariant.slot);
+            return invariant;
+        }
+        if (node instanceof BinaryOpNode) {
+            BinaryOpNode binOp = (BinaryOpNode) node;
+            binOp.left = expression(binOp.left, depth);
+            binOp.right = expression(binOp.right, depth);
+        } else if (node instanceof UnaryOpNode) {
+            UnaryOpNode unary = (UnaryOpNode) node;
+            unary.operand = expression(unary.operand, depth);
+        } else if (node instanceof FieldAccessNode) {
+            FieldAccessNode access = (FieldAccessNode) node;
+            access.target = expression(access.target, depth);
+        } else if (node instanceof MethodCallNode) {
+            MethodCallNode call = (MethodCallNode) node;
+            call.target = expression(call.target, depth);
+            expressions(call.arguments, depth);
+        } else if (node instanceof ListNode) {
+            expressions(((ListNode) node).getElements(), depth);
+        } else if (node instanceof DictNode) {
+            expressions(((DictNode) node).keys, depth);
+            expressions(((DictNode) node).values, depth);
+        } else if (node instanceof SetNode) {
+            expressions(((SetNode) node).elements, depth);
+        } else if (node instanceof IndexNode) {
+            // Keeps its children in private fields, it is rebuilt.
+            IndexNode index = (IndexNode) node;
+            IndexNode rebuilt = new IndexNode(expression(index.getBase(), depth), expression(index.getIndex(), depth));
+            rebuilt.line = node.line;
+            return rebuilt;
+        } else if (node instanceof SliceNode) {
+            SliceNode slice = (SliceNode) node;
+            SliceNode rebuilt = new SliceNode(expression(slice.getTarget(), depth), expression(slice.getStart(), depth),
+                    expression(slice.getEnd(), depth), expression(slice.getStep(), depth));
+            rebuilt.line = node.line;
+            return rebuilt;
+        }
+        return node;
+    }
+
+    private void expressions(List<ASTNode> nodes, int depth) {
+        for (int i = 0; i < nodes.size(); i++) {
+            nodes.set(i, expression(nodes.get(i), depth));
+        }
+    }
+
+    // Expressions worth caching: a constant or a variable is already as cheap as the cached value.
+    private static boolean isComputed(ASTNode node) {
+        return node instanceof BinaryOpNode || node instanceof UnaryOpNode || node instanceof IndexNode
+                || node instanceof FieldAccessNode || node instanceof MethodCallNode || node instanceof InvariantNode;
+    }
+
+    private boolean isInvariant(ASTNode node) {
+        if (node instanceof ConstantNode || node instanceof NumberNode || node instanceof StringNode
+                || node instanceof BooleanNode) {
+            return true;
+        }
+        if (node instanceof IdentifierNode) {
+            return !assigned.contains(((IdentifierNode) node).identifier.value);
+        }
+        if (node instanceof BinaryOpNode) {
+            return isInvariant(((BinaryOpNode) node).left) && isInvariant(((BinaryOpNode) node).right);
+        }
+        if (node instanceof UnaryOpNode) {
+            return isInvariant(((UnaryOpNode) node).operand);
+        }
+        if (node instanceof IndexNode) {
+            return isInvariant(((IndexNode) node).getBase()) && isInvariant(((IndexNode) node).getIndex());
+        }
+        if (node instanceof FieldAccessNode) {
+            return isInvariant(((FieldAccessNode) node).target);
+        }
+        if (node instanceof MethodCallNode) {
+            MethodCallNode call = (MethodCallNode) node;
+            if (!reads(call) || !isInvariant(call.target)) {
+                return false;
+            }
+            for (ASTNode argument : call.arguments) {
+                if (!isInvariant(argument)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        if (node instanceof InvariantNode) {
+            return isInvariant(((InvariantNode) node).expression);
+        }
+        return false;
+    }
+}
@@ -10,22 +10,35 @@ import java.awt.event.KeyEvent;
 import java.awt.event.ActionEvent;
 import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
-import java.io.IOException;
-import java.io.OutputStream;
-import java.io.PrintStream;
 import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 public class Main extends JFrame {
     private final JTextArea inputArea;
-    public static JTextArea consoleArea;
+    private final JTextArea consoleArea;
     private final JButton runButton, clearButton, stopButton;
+    private final JComboBox<Interpreter.Engine> engineBox;
 
-    // For interactive input handling.
-    public static final Object inputLock = new Object();
-    public static int inputStart = 0; // Position in the console document where user input begins.
+    // Answers input() from the console, knows where the user input begins.
+    private final SwingInputSource consoleInput;
 
-    // Reference to the currently running interpreter thread.
+    // Reference to the currently running interpreter thread and its interpreter.
     private Thread currentThread = null;
+    private Interpreter currentInterpreter = null;
+
+    // Live syntax check of the editor: tokens and statements are kept between checks, an edit lexes
+    // and parses again only around the change. The check runs once typing pauses.
+    private final IncrementalLexer editorTokens = new IncrementalLexer();
+    private final Parser.Reuse editorStatements = new Parser.Reuse();
+    private final Timer syntaxTimer = new Timer(200, e -> checkSyntax());
+    private final JLabel syntaxLabel;
+    private Object errorHighlight;
+    private static final Pattern ERROR_LINE = Pattern.compile("Error at line (\\d+)");
+    private static final Color SYNTAX_OK_COLOR = new Color(75, 85, 99);
+    private static final Color ERROR_COLOR = new Color(239, 68, 68);
+    private static final Highlighter.HighlightPainter ERROR_PAINTER =
+            new DefaultHighlighter.DefaultHighlightPainter(new Color(90, 30, 40));
 
     public Main() {
         setTitle("Code Interpreter - Dark Theme");
@@ -70,6 +83,15 @@ public class Main extends JFrame {
         buttonPanel.add(clearButton);
         buttonPanel.add(stopButton);
 
+        // Execution engine used by the next run.
+        engineBox = new JComboBox<>(Interpreter.Engine.values());
+        engineBox.setSelectedItem(Interpreter.defaultEngine());
+        engineBox.setBackground(panelDark);
+        engineBox.setForeground(foregroundLight);
+        engineBox.setFont(new Font("Segoe UI", Font.BOLD, 13));
+        engineBox.setFocusable(false);
+        buttonPanel.add(engineBox);
+
         // Input Panel with IDE-style code editor
         JPanel inputPanel = new JPanel(new BorderLayout());
         inputPanel.setBackground(panelDark);
@@ -118,20 +140,22 @@ public class Main extends JFrame {
         inputLineNumbers.setEditable(false);
         inputLineNumbers.setBorder(BorderFactory.createEmptyBorder(15, 5, 15, 5));
         
-        // Update line numbers when text changes
+        // Update line numbers when text changes, the syntax check gets the changed range
+        syntaxTimer.setRepeats(false);
         inputArea.getDocument().addDocumentListener(new DocumentListener() {
-            public void changedUpdate(DocumentEvent e) { updateLineNumbers(); }
-            public void insertUpdate(DocumentEvent e) { updateLineNumbers(); }
-            public void removeUpdate(DocumentEvent e) { updateLineNumbers(); }
-            
-            private void updateLineNumbers() {
-                String text = inputArea.getText();
-                int lines = text.split("\n").length;
-                StringBuilder numbers = new StringBuilder();
-                for (int i = 1; i <= lines; i++) {
-                    numbers.append(i).append("\n");
-                }
-                inputLineNumbers.setText(numbers.toString());
+            public void changedUpdate(DocumentEvent e) { updateLineNumbers(inputArea, inputLineNumbers); }
+            public void insertUpdate(DocumentEvent e) {
+                editorTokens.edit(e.getOffset(), 0, e.getLength());
+                changed();
+            }
+            public void removeUpdate(DocumentEvent e) {
+                editorTokens.edit(e.getOffset(), e.getLength(), 0);
+                changed();
+            }
+
+            private void changed() {
+                updateLineNumbers(inputArea, inputLineNumbers);
+                syntaxTimer.restart();
             }
         });
 
@@ -142,6 +166,13 @@ public class Main extends JFrame {
         styleScrollPane(inputScroll, panelDark, highlightColor);
         inputPanel.add(inputScroll, BorderLayout.CENTER);
 
+        // First syntax error of the editor text
+        syntaxLabel = new JLabel(" ");
+        syntaxLabel.setForeground(SYNTAX_OK_COLOR);
+        syntaxLabel.setFont(new Font("Segoe UI", Font.PLAIN, 12));
+        syntaxLabel.setBorder(BorderFactory.createEmptyBorder(5, 5, 0, 0));
+        inputPanel.add(syntaxLabel, BorderLayout.SOUTH);
+
         // Console Panel with IDE-style output
         JPanel consolePanel = new JPanel(new BorderLayout());
         consolePanel.setBackground(panelDark);
@@ -157,6 +188,7 @@ public class Main extends JFrame {
         consolePanel.add(consoleLabel, BorderLayout.NORTH);
 
         consoleArea = new JTextArea(15, 50);
+        consoleInput = new SwingInputSource(consoleArea);
         consoleArea.setFont(new Font("JetBrains Mono", Font.PLAIN, 14));
         consoleArea.setMargin(new Insets(15, 15, 15, 15));
         consoleArea.setLineWrap(true);
@@ -169,44 +201,44 @@ public class Main extends JFrame {
 
         // Make the console area uneditable by default.
         consoleArea.setEditable(false);
-        // Install a DocumentFilter to restrict editing to positions after inputStart.
+        // Install a DocumentFilter to restrict editing to positions after the input start.
         ((AbstractDocument) consoleArea.getDocument()).setDocumentFilter(new DocumentFilter() {
             @Override
             public void insertString(FilterBypass fb, int offset, String string, AttributeSet attr)
                     throws BadLocationException {
-                if (offset >= inputStart) {
+                if (offset >= consoleInput.getInputStart()) {
                     super.insertString(fb, offset, string, attr);
                 }
             }
             @Override
             public void remove(FilterBypass fb, int offset, int length)
                     throws BadLocationException {
-                if (offset >= inputStart) {
+                if (offset >= consoleInput.getInputStart()) {
                     super.remove(fb, offset, length);
                 }
             }
             @Override
             public void replace(FilterBypass fb, int offset, int length, String text, AttributeSet attrs)
                     throws BadLocationException {
-                if (offset >= inputStart) {
+                if (offset >= consoleInput.getInputStart()) {
                     super.replace(fb, offset, length, text, attrs);
                 }
             }
         });
 
-        // Add a CaretListener to force the caret to stay at or after inputStart.
+        // Add a CaretListener to force the caret to stay at or after the input start.
         consoleArea.addCaretListener(e -> {
-            if (consoleArea.getCaretPosition() < inputStart) {
-                SwingUtilities.invokeLater(() -> consoleArea.setCaretPosition(inputStart));
+            if (consoleArea.getCaretPosition() < consoleInput.getInputStart()) {
+                SwingUtilities.invokeLater(() -> consoleArea.setCaretPosition(consoleInput.getInputStart()));
             }
         });
 
-        // Add a MouseListener so that clicking before inputStart moves the caret.
+        // Add a MouseListener so that clicking before the input start moves the caret.
         consoleArea.addMouseListener(new MouseAdapter() {
             @Override
             public void mousePressed(MouseEvent e) {
-                if (consoleArea.getCaretPosition() < inputStart) {
-                    consoleArea.setCaretPosition(inputStart);
+                if (consoleArea.getCaretPosition() < consoleInput.getInputStart()) {
+                    consoleArea.setCaretPosition(consoleInput.getInputStart());
                 }
             }
         });
@@ -217,15 +249,9 @@ public class Main extends JFrame {
             public void keyPressed(KeyEvent e) {
                 if (e.getKeyCode() == KeyEvent.VK_ENTER) {
                     // Only handle Enter if the caret is in the editable (input prompt) region.
-                    if (consoleArea.getCaretPosition() >= inputStart) {
+                    if (consoleArea.getCaretPosition() >= consoleInput.getInputStart()) {
                         e.consume(); // Prevent insertion of newline.
-                        SwingUtilities.invokeLater(() -> {
-                            consoleArea.append("\n");
-                            consoleArea.setCaretPosition(consoleArea.getDocument().getLength());
-                        });
-                        synchronized (inputLock) {
-                            inputLock.notify();
-                        }
+                        consoleInput.submit();
                     }
                 }
             }
@@ -241,19 +267,9 @@ public class Main extends JFrame {
         
         // Update console line numbers when text changes
         consoleArea.getDocument().addDocumentListener(new DocumentListener() {
-            public void changedUpdate(DocumentEvent e) { updateLineNumbers(); }
-            public void insertUpdate(DocumentEvent e) { updateLineNumbers(); }
-            public void removeUpdate(DocumentEvent e) { updateLineNumbers(); }
-            
-            private void updateLineNumbers() {
-                String text = consoleArea.getText();
-                int lines = text.split("\n").length;
-                StringBuilder numbers = new StringBuilder();
-                for (int i = 1; i <= lines; i++) {
-                    numbers.append(i).append("\n");
-                }
-                consoleLineNumbers.setText(numbers.toString());
-            }
+            public void changedUpdate(DocumentEvent e) { updateLineNumbers(consoleArea, consoleLineNumbers); }
+            public void insertUpdate(DocumentEvent e) { updateLineNumbers(consoleArea, consoleLineNumbers); }
+            public void removeUpdate(DocumentEvent e) { updateLineNumbers(consoleArea, consoleLineNumbers); }
         });
 
         JScrollPane consoleScroll = new JScrollPane(consoleArea);
@@ -301,6 +317,58 @@ public class Main extends JFrame {
         setVisible(true);
     }
 
+    // Keeps one number per line of the area in its gutter. Only the numbers of added or removed lines
+    // change, the text is not split again on every keystroke.
+    private static void updateLineNumbers(JTextArea area, JTextArea numbers) {
+        int lines = area.getLineCount();
+        int shown = numbers.getLineCount();
+        try {
+            if (lines > shown) {
+                StringBuilder added = new StringBuilder();
+                for (int i = shown + 1; i <= lines; i++) {
+                    added.append("\n").append(i);
+                }
+                numbers.append(added.toString());
+            } else if (lines < shown) {
+                // Cut from the newline at the end of the last line that stays.
+                numbers.replaceRange(null, numbers.getLineEndOffset(lines - 1) - 1, numbers.getDocument().getLength());
+            }
+        } catch (BadLocationException e) {
+            // Lines 1 to lines exist in the gutter.
+        }
+    }
+
+    // Shows the first syntax error of the editor text and marks its line. Lexes and parses the text again,
+    // but only the lines around the edits (IncrementalLexer) and the statements they touch (Parser.Reuse).
+    private void checkSyntax() {
+        if (errorHighlight != null) {
+            inputArea.getHighlighter().removeHighlight(errorHighlight);
+            errorHighlight = null;
+        }
+        String code = inputArea.getText();
+        try {
+            new Parser(editorTokens.tokens(code)).parse(editorStatements);
+            syntaxLabel.setForeground(SYNTAX_OK_COLOR);
+            syntaxLabel.setText(code.isBlank() ? " " : "No syntax errors");
+        } catch (RuntimeException e) {
+            String message = e.getMessage() != null ? e.getMessage() : e.toString();
+            syntaxLabel.setForeground(ERROR_COLOR);
+            syntaxLabel.setText(message);
+            Matcher line = ERROR_LINE.matcher(message);
+            if (line.find()) {
+                int index = Integer.parseInt(line.group(1)) - 1;
+                if (index >= 0 && index < inputArea.getLineCount()) {
+                    try {
+                        errorHighlight = inputArea.getHighlighter().addHighlight(
+                                inputArea.getLineStartOffset(index), inputArea.getLineEndOffset(index), ERROR_PAINTER);
+                    } catch (BadLocationException ignored) {
+                        // The line was checked.
+                    }
+                }
+            }
+        }
+    }
+
     // Enhanced button styling
     private void styleButton(JButton button, Color buttonColor, Color hoverColor) {
         button.setBackground(buttonColor);
@@ -376,47 +444,49 @@ public class Main extends JFrame {
         // Ensure any previous execution is stopped and environment reset.
         stopExecution();
         consoleArea.setText(""); // Clear the console output.
-        inputStart = 0;          // Reset the input marker.
-
-        currentThread = new Thread(() -> {
+        consoleInput.reset();    // Reset the input marker.
+        Interpreter.Engine engine = (Interpreter.Engine) engineBox.getSelectedItem();
+
+        // Create a fresh interpreter instance for this run.
+        Interpreter interpreter = new Interpreter();
+        currentInterpreter = interpreter;
+        // A virtual thread: a script waiting in input() parks without holding an OS thread.
+        currentThread = Thread.ofVirtual().name("script").unstarted(() -> {
             try {
-                // Redirect output to console.
-                PrintStream ps = new PrintStream(new OutputStream() {
-                    @Override
-                    public void write(int b) throws IOException {
-                        SwingUtilities.invokeLater(() -> {
-                            consoleArea.append(String.valueOf((char) b));
-                            consoleArea.setCaretPosition(consoleArea.getDocument().getLength());
-                        });
-                    }
-                });
-                PrintStream originalOut = System.out;
-                System.setOut(ps);
+                // Output goes to the console in batches.
+                OutputSink output = new SwingOutputSink(consoleArea);
 
-                // Tokenization.
+                // Tokenization and parsing, the parser takes the tokens from the lexer line by line.
                 Lexer lexer = new Lexer(code);
-                List<Token> tokens = lexer.tokenize();
 //                System.out.println("Tokens:");
-//                for (Token token : tokens) {
+//                for (Token token : new Lexer(code).tokenize()) {
 //                    System.out.println(token);
 //                }
-
-                // Parsing.
 //                System.out.println("\nParsing process:");
-                Parser parser = new Parser(tokens);
+                Parser parser = new Parser(lexer);
                 ASTNode ast = parser.parse();
-//                System.out.println("\nFinal Parsed AST:");
-//                System.out.println(printAST(ast, 0));
-
-                // Create a fresh interpreter instance for this run.
-                Interpreter interpreter = new Interpreter();
-
-                // Interpretation.
-                System.out.println("\nInterpreting...\nResult: ");
-                interpreter.evaluate(ast);
-
-                System.out.flush();
-                System.setOut(originalOut);
+//                System.out.println("\nParsed AST:");
+//                System.out.println(ASTPrinter.print(ast));
+
+                // Constant folding and dead branches, then variable addresses and static types.
+                ast = Optimizer.optimize(ast);
+                new Resolver().resolve(ast);
+                List<String> warnings = TypeInference.infer(ast);
+//                System.out.println("\nOptimized AST:");
+//                System.out.println(ASTPrinter.print(ast));
+
+                interpreter.setEngine(engine);
+                interpreter.setOutput(output);
+                interpreter.setInput(consoleInput);
+
+                // Interpretation, after the warnings of the type inference.
+                for (String warning : warnings) {
+                    output.println(warning);
+                }
+                output.println("\nInterpreting...\nResult: ");
+                interpreter.run(ast);
+            } catch (ScriptStoppedException ex) {
+                // Stopped with the Stop button, the console was already cleared.
             } catch (Exception ex) {
                 SwingUtilities.invokeLater(() -> consoleArea.setText("Error: " + ex.getMessage()));
             }
@@ -427,104 +497,14 @@ public class Main extends JFrame {
     // Stop button action: interrupt running thread and clear output.
     private void stopExecution() {
         if (currentThread != null && currentThread.isAlive()) {
+            // The script stops at its next safepoint, the interrupt also ends a wait in input().
+            currentInterpreter.cancel();
             currentThread.interrupt();
-            currentThread = null;
         }
+        currentThread = null;
+        currentInterpreter = null;
+        consoleInput.reset(); // First, the console filter keeps the text before the input start.
         consoleArea.setText("");
-        inputStart = 0;          
-    }
-
-    // Helper method to print the AST (if needed for debugging).
-    private String printAST(ASTNode node, int level) {
-        if (node == null) return "";
-        StringBuilder sb = new StringBuilder();
-        String indent = "  ".repeat(level);
-        if (node instanceof NumberNode) {
-            sb.append(indent).append("Number: ").append(((NumberNode) node).token.value).append("\n");
-        } else if (node instanceof StringNode) {
-            sb.append(indent).append("String: \"").append(((StringNode) node).token.value).append("\"\n");
-        } else if (node instanceof IdentifierNode) {
-            sb.append(indent).append("Identifier: ").append(((IdentifierNode) node).identifier.value).append("\n");
-        } else if (node instanceof BinaryOpNode) {
-            BinaryOpNode binOp = (BinaryOpNode) node;
-            sb.append(indent).append("BinaryOp: ").append(binOp.op.value).append("\n");
-            sb.append(printAST(binOp.left, level + 1));
-            sb.append(printAST(binOp.right, level + 1));
-        } else if (node instanceof UnaryOpNode) {
-            UnaryOpNode unary = (UnaryOpNode) node;
-            sb.append(indent).append("UnaryOp: ").append(unary.op.value).append("\n");
-            sb.append(printAST(unary.operand, level + 1));
-        } else if (node instanceof AssignmentNode) {
-            AssignmentNode assign = (AssignmentNode) node;
-            sb.append(indent).append("Assignment:\n");
-            sb.append(indent).append("  Identifier: ").append(assign.identifier.value).append("\n");
-            sb.append(indent).append("  Value:\n");
-            sb.append(printAST(assign.value, level + 2));
-        } else if (node instanceof PrintNode) {
-            PrintNode printNode = (PrintNode) node;
-            sb.append(indent).append("Print:\n");
-            sb.append(printAST(printNode.expression, level + 1));
-        } else if (node instanceof BlockNode) {
-            BlockNode block = (BlockNode) node;
-            sb.append(indent).append("Block:\n");
-            for (ASTNode stmt : block.statements) {
-                sb.append(printAST(stmt, level + 1));
-            }
-        } else if (node instanceof IfNode) {
-            IfNode ifNode = (IfNode) node;
-            sb.append(indent).append("If Statement:\n");
-            sb.append(indent).append("  Condition:\n").append(printAST(ifNode.condition, level + 2));
-            sb.append(indent).append("  Then Branch:\n").append(printAST(ifNode.thenBranch, level + 2));
-            if (ifNode.elseBranch != null) {
-                sb.append(indent).append("  Else Branch:\n").append(printAST(ifNode.elseBranch, level + 2));
-            }
-        } else if (node instanceof FunctionDefinitionNode) {
-            FunctionDefinitionNode funcDef = (FunctionDefinitionNode) node;
-            sb.append(indent).append("FunctionDefinition: ").append(funcDef.name.value).append("\n");
-            sb.append(indent).append("  Parameters: ");
-            if (funcDef.parameters.isEmpty()) {
-                sb.append("None\n");
-            } else {
-                for (Token param : funcDef.parameters) {
-                    sb.append(param.value).append(" ");
-                }
-                sb.append("\n");
-            }
-            sb.append(indent).append("  Body:\n");
-            sb.append(printAST(funcDef.body, level + 2));
-        } else if (node instanceof FunctionCallNode) {
-            FunctionCallNode funcCall = (FunctionCallNode) node;
-            sb.append(indent).append("FunctionCall: ").append(funcCall.name.value).append("\n");
-            sb.append(indent).append("  Arguments:\n");
-            for (ASTNode arg : funcCall.arguments) {
-                sb.append(printAST(arg, level + 2));
-            }
-        } else if (node instanceof ClassDefinitionNode) {
-            ClassDefinitionNode classDef = (ClassDefinitionNode) node;
-            sb.append(indent).append("ClassDefinition: ").append(classDef.name.value).append("\n");
-            sb.append(indent).append("  Members:\n");
-            for (ASTNode member : classDef.members) {
-                sb.append(printAST(member, level + 2));
-            }
-        } else if (node instanceof ObjectCreationNode) {
-            ObjectCreationNode objCreation = (ObjectCreationNode) node;
-            sb.append(indent).append("ObjectCreation: ").append(objCreation.className.value).append("\n");
-            sb.append(indent).append("  Arguments:\n");
-            for (ASTNode arg : objCreation.arguments) {
-                sb.append(printAST(arg, level + 2));
-            }
-        } else if (node instanceof MethodCallNode) {
-            MethodCallNode methodCall = (MethodCallNode) node;
-            sb.append(indent).append("MethodCall: ").append(methodCall.methodName.value).append("\n");
-            sb.append(indent).append("  Target:\n").append(printAST(methodCall.target, level + 2));
-            sb.append(indent).append("  Arguments:\n");
-            for (ASTNode arg : methodCall.arguments) {
-                sb.append(printAST(arg, level + 2));
-            }
-        } else {
-            sb.append(indent).append("Unknown Node: ").append(node.getClass().getSimpleName()).append("\n");
-        }
-        return sb.toString();
     }
 
     public static void main(String[] args) {
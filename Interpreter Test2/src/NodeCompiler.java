@@ -0,0 +1,392 @@
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Compile step for the closure engine: turns a resolved AST into a tree of ExecNodes.
+// The instanceof dispatch happens once per node here instead of on every evaluation.
+public class NodeCompiler {
+    // -Dinterpreter.inline=false turns off the inlining of small functions at their call sites.
+    static final boolean INLINE = !"false".equals(System.getProperty("interpreter.inline"));
+    static final int MAX_INLINE_NODES = 16; // Size limit of an inlined body expression.
+
+    private final Interpreter interpreter;
+
+    // Inlined bodies by function, null for the functions that cannot be inlined.
+    private final Map<FunctionDefinitionNode, InlinedBody> inlined = new IdentityHashMap<>();
+    private Object[] inlineParameters; // Parameters of the body being inlined, null otherwise.
+
+    // Body of a small function compiled for its call sites: the returned expression, with the
+    // parameters read from an array and the other variables from the closure of the function.
+    static final class InlinedBody {
+        final Object[] parameters;
+        final ExecNode expression;
+
+        InlinedBody(Object[] parameters, ExecNode expression) {
+            this.parameters = parameters;
+            this.expression = expression;
+        }
+    }
+
+    public NodeCompiler(Interpreter interpreter) {
+        this.interpreter = interpreter;
+    }
+
+    // Helper used by the call nodes to evaluate their arguments.
+    static List<Object> executeAll(ExecNode[] nodes, Frame frame) {
+        List<Object> values = new ArrayList<>(nodes.length);
+        for (ExecNode node : nodes) {
+            values.add(node.execute(frame));
+        }
+        return values;
+    }
+
+    // Compiles the statements of a block. When profiling, every statement first tells the profiler its line.
+    private ExecNode[] compileStatements(List<ASTNode> statements) {
+        ExecNode[] compiled = compileAll(statements);
+        if (interpreter.profiler != null) {
+            for (int i = 0; i < compiled.length; i++) {
+                ExecNode marker = new LineExec(interpreter.profiler, compiled[i]);
+                marker.line = compiled[i].line;
+                compiled[i] = marker;
+            }
+        }
+        return compiled;
+    }
+
+    private ExecNode[] compileAll(List<ASTNode> nodes) {
+        ExecNode[] compiled = new ExecNode[nodes.size()];
+        for (int i = 0; i < compiled.length; i++) {
+            compiled[i] = compile(nodes.get(i));
+        }
+        return compiled;
+    }
+
+    // Compiles a block whose statements run in the frame they are given.
+    private ExecNode compileSequence(ASTNode node) {
+        if (node instanceof BlockNode) {
+            ExecNode sequence = new SequenceExec(compileStatements(((BlockNode) node).statements));
+            sequence.line = node.line;
+            return sequence;
+        }
+        return compile(node);
+    }
+
+    // Compiles a function body, it runs directly in the call frame.
+    ExecNode compileBody(FunctionDefinitionNode declaration) {
+        return compileSequence(declaration.body);
+    }
+
+    // Compiled body of a function that can run in place of its calls, or null. That is a function
+    // (not a method) of at most three parameters whose body is one 'return expression', where the
+    // expression is small and makes no calls, so inlining it cannot change what happens when.
+    // Methods that only return a field are run in place by AccessorCallExec (see accessedField).
+    InlinedBody inline(FunctionDefinitionNode declaration) {
+        if (inlined.containsKey(declaration)) {
+            return inlined.get(declaration);
+        }
+        InlinedBody body = null;
+        if (declaration.thisSlot < 0 && declaration.parameters.size() <= Interpreter.MAX_FIXED_ARGUMENTS
+                && declaration.body instanceof BlockNode && ((BlockNode) declaration.body).statements.size() == 1
+                && ((BlockNode) declaration.body).statements.get(0) instanceof ReturnNode) {
+            ASTNode expression = ((ReturnNode) ((BlockNode) declaration.body).statements.get(0)).expression;
+            int[] budget = {MAX_INLINE_NODES};
+            if (expression != null && inlinable(expression, budget)) {
+                Object[] parameters = new Object[declaration.parameters.size()];
+                inlineParameters = parameters;
+                try {
+                    body = new InlinedBody(parameters, compile(expression));
+                } finally {
+                    inlineParameters = null;
+                }
+            }
+        }
+        inlined.put(declaration, body);
+        return body;
+    }
+
+    // Field an accessor method returns, or null. An accessor has no parameters and its body is
+    // 'return this.field' or 'return field' (where a field of 'this' comes before a variable).
+    static String accessedField(FunctionDefinitionNode declaration) {
+        if (declaration.thisSlot < 0 || !declaration.parameters.isEmpty() || !(declaration.body instanceof BlockNode)
+                || ((BlockNode) declaration.body).statements.size() != 1
+                || !(((BlockNode) declaration.body).statements.get(0) instanceof ReturnNode)) {
+            return null;
+        }
+        ASTNode expression = ((ReturnNode) ((BlockNode) declaration.body).statements.get(0)).expression;
+        if (expression instanceof FieldAccessNode && ((FieldAccessNode) expression).target instanceof IdentifierNode) {
+            IdentifierNode target = (IdentifierNode) ((FieldAccessNode) expression).target;
+            if (target.depth == 0 && target.slot == declaration.thisSlot) {
+                return ((FieldAccessNode) expression).fieldName.value;
+            }
+        } else if (expression instanceof IdentifierNode) {
+            IdentifierNode id = (IdentifierNode) expression;
+            if (id.thisDepth == 0 && id.thisSlot == declaration.thisSlot) {
+                return id.identifier.value;
+            }
+        }
+        return null;
+    }
+
+    // Whether an expression can be inlined: no calls, no 'this', at most budget nodes.
+    private static boolean inlinable(ASTNode node, int[] budget) {
+        if (--budget[0] < 0) {
+            return false;
+        }
+        if (node instanceof ConstantNode || node instanceof NumberNode || node instanceof StringNode
+                || node instanceof BooleanNode) {
+            return true;
+        }
+        if (node instanceof IdentifierNode) {
+            return ((IdentifierNode) node).thisDepth < 0;
+        }
+        if (node instanceof BinaryOpNode) {
+            return inlinable(((BinaryOpNode) node).left, budget) && inlinable(((BinaryOpNode) node).right, budget);
+        }
+        if (node instanceof UnaryOpNode) {
+            return inlinable(((UnaryOpNode) node).operand, budget);
+        }
+        if (node instanceof IndexNode) {
+            return inlinable(((IndexNode) node).getBase(), budget) && inlinable(((IndexNode) node).getIndex(), budget);
+        }
+        if (node instanceof FieldAccessNode) {
+            return inlinable(((FieldAccessNode) node).target, budget);
+        }
+        if (node instanceof ListNode) {
+            for (ASTNode element : ((ListNode) node).getElements()) {
+                if (!inlinable(element, budget)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
+    // Compiles a variable read from its resolved address.
+    private ExecNode variable(String name, int depth, int slot) {
+        if (depth >= 0) {
+            return new LocalExec(name, depth, slot);
+        }
+        if (depth == Resolver.GLOBAL) {
+            return new GlobalExec(interpreter.globals, name);
+        }
+        return new DynamicExec(name);
+    }
+
+    // Operand of a typed operator, TypeInference proved it is a number.
+    private NumberExec number(ASTNode node) {
+        ExecNode exec = compile(node);
+        if (exec instanceof NumberExec) {
+            return (NumberExec) exec;
+        }
+        NumberExec unbox = new UnboxExec(exec);
+        unbox.line = node.line;
+        return unbox;
+    }
+
+    public ExecNode compile(ASTNode node) {
+        ExecNode exec = compileNode(node);
+        exec.line = node.line;
+        return exec;
+    }
+
+    private ExecNode compileNode(ASTNode node) {
+        if (node instanceof ConstantNode) {
+            return new ConstantExec(((ConstantNode) node).value);
+        }
+        if (node instanceof NumberNode) {
+            return new ConstantExec(Interpreter.parseNumber(((NumberNode) node).token.value));
+        }
+        if (node instanceof StringNode) {
+            return new ConstantExec(((StringNode) node).token.value);
+        }
+        if (node instanceof BooleanNode) {
+            return new ConstantExec(Boolean.parseBoolean(((BooleanNode) node).token.value));
+        }
+        if (node instanceof IdentifierNode) {
+            IdentifierNode id = (IdentifierNode) node;
+            if (inlineParameters != null && id.depth == 0) {
+                return new ParameterExec(inlineParameters, id.slot);
+            }
+            if (inlineParameters != null && id.depth > 0) {
+                // Compiled for the closure frame, one level up from the function frame.
+                return new LocalExec(id.identifier.value, id.depth - 1, id.slot);
+            }
+            if (id.type == ValueType.NUMBER && id.thisDepth < 0 && id.depth >= 0) {
+                return new NumberLocalExec(id.depth, id.slot);
+            }
+            ExecNode variable = variable(id.identifier.value, id.depth, id.slot);
+            variable.line = id.line;
+            if (id.thisDepth >= 0) {
+                return new ThisFieldExec(id.identifier.value, id.thisDepth, id.thisSlot, variable);
+            }
+            return variable;
+        }
+        if (node instanceof BinaryOpNode) {
+            BinaryOpNode binOp = (BinaryOpNode) node;
+            if (binOp.left.type == ValueType.NUMBER && binOp.right.type == ValueType.NUMBER) {
+                switch (binOp.op.value) {
+                    case "+": case "-": case "*": case "/": case "%":
+                        return new NumberArithmeticExec(binOp.op.value, number(binOp.left), number(binOp.right));
+                    case "<": case "<=": case ">": case ">=": case "==": case "!=":
+                        return new NumberCompareExec(binOp.op.value, number(binOp.left), number(binOp.right));
+                }
+            }
+            switch (binOp.op.value) {
+                case "+": case "-": case "*": case "/": case "%":
+                    return new ArithmeticExec(binOp.op.value, compile(binOp.left), compile(binOp.right));
+                case "<": case "<=": case ">": case ">=": case "==": case "!=":
+                    return new CompareExec(binOp.op.value, compile(binOp.left), compile(binOp.right));
+                default:
+                    return new BinaryExec(binOp.op.value, compile(binOp.left), compile(binOp.right));
+            }
+        }
+        if (node instanceof UnaryOpNode) {
+            UnaryOpNode unary = (UnaryOpNode) node;
+            switch (unary.op.value) {
+                case "+": case "-":
+                    return new NegateExec(unary.op.value, compile(unary.operand));
+                case "not":
+                    return new NotExec(compile(unary.operand));
+                default:
+                    return new UnaryExec(unary.op.value, compile(unary.operand));
+            }
+        }
+        if (node instanceof InvariantNode) {
+            InvariantNode invariant = (InvariantNode) node;
+            return new InvariantExec(invariant.depth, invariant.slot, compile(invariant.expression));
+        }
+        if (node instanceof AssignmentNode) {
+            AssignmentNode assign = (AssignmentNode) node;
+            if (assign.thisDepth >= 0) {
+                return new MethodAssignExec(assign.identifier.value, assign.slot, assign.thisDepth,
+                        assign.thisSlot, compile(assign.value));
+            }
+            return new AssignExec(assign.slot, compile(assign.value));
+        }
+        if (node instanceof IndexAssignmentNode) {
+            IndexAssignmentNode assign = (IndexAssignmentNode) node;
+            if (assign.getTarget() instanceof IndexNode) {
+                IndexNode target = (IndexNode) assign.getTarget();
+                return new IndexAssignExec(compile(target.getBase()), compile(target.getIndex()), compile(assign.getValue()));
+            } else if (assign.getTarget() instanceof FieldAccessNode) {
+                FieldAccessNode target = (FieldAccessNode) assign.getTarget();
+                return new SetFieldExec(compile(target.target), target.fieldName.value, compile(assign.getValue()));
+            }
+            return new ErrorExec(Interpreter.runtimeError(node.line, "Invalid assignment target for compound assignment.").getMessage());
+        }
+        if (node instanceof FieldAssignmentNode) {
+            FieldAssignmentNode assign = (FieldAssignmentNode) node;
+            return new SetFieldExec(compile(assign.target), assign.fieldName.value, compile(assign.value));
+        }
+        if (node instanceof FieldAccessNode) {
+            FieldAccessNode access = (FieldAccessNode) node;
+            return new GetFieldExec(compile(access.target), access.fieldName.value);
+        }
+        if (node instanceof PrintNode) {
+            return new PrintExec(interpreter, compile(((PrintNode) node).expression));
+        }
+        if (node instanceof ReturnNode) {
+            ReturnNode returnNode = (ReturnNode) node;
+            if (returnNode.tailCall) {
+                FunctionCallNode call = (FunctionCallNode) returnNode.expression;
+                ExecNode callee = variable(call.name.value, call.depth, call.slot);
+                callee.line = call.line;
+                TailCallExec tailCall = new TailCallExec(compile(call), callee, compileAll(call.arguments));
+                tailCall.line = node.line;
+                return tailCall;
+            }
+            return new ReturnExec(compile(returnNode.expression));
+        }
+        if (node instanceof BlockNode) {
+            BlockNode block = (BlockNode) node;
+            return new BlockExec(block.layout, compileStatements(block.statements));
+        }
+        if (node instanceof IfNode) {
+            IfNode ifNode = (IfNode) node;
+            ExecNode elseBranch = ifNode.elseBranch != null ? compile(ifNode.elseBranch) : null;
+            return new IfExec(compile(ifNode.condition), compile(ifNode.thenBranch), elseBranch);
+        }
+        if (node instanceof WhileNode) {
+            WhileNode whileNode = (WhileNode) node;
+            return new WhileExec(interpreter.safepoint, whileNode.invariants, compile(whileNode.condition), compileSequence(whileNode.body));
+        }
+        if (node instanceof ForEachNode) {
+            ForEachNode forEach = (ForEachNode) node;
+            return new ForEachExec(interpreter.safepoint, forEach.invariants, forEach.layout, compile(forEach.getListExpr()), compileSequence(forEach.getBody()));
+        }
+        if (node instanceof ForNode) {
+            ForNode forNode = (ForNode) node;
+            return new ForExec(interpreter.safepoint, forNode.invariants, forNode.slot, compile(forNode.start), compile(forNode.end), compile(forNode.body));
+        }
+        if (node instanceof FunctionDefinitionNode) {
+            FunctionDefinitionNode funcDef = (FunctionDefinitionNode) node;
+            return new FunctionDefExec(funcDef, compileBody(funcDef), funcDef.slot);
+        }
+        if (node instanceof FunctionCallNode) {
+            FunctionCallNode call = (FunctionCallNode) node;
+            ExecNode callee = variable(call.name.value, call.depth, call.slot);
+            callee.line = call.line;
+            // Profiles show the calls as they are written, nothing is inlined while profiling.
+            if (INLINE && interpreter.profiler == null && call.arguments.size() <= Interpreter.MAX_FIXED_ARGUMENTS) {
+                return new InlineCallExec(interpreter, this, call.name.value, callee, compileAll(call.arguments));
+            }
+            return new CallExec(interpreter, call.name.value, callee, compileAll(call.arguments));
+        }
+        if (node instanceof ClassDefinitionNode) {
+            ClassDefinitionNode classDef = (ClassDefinitionNode) node;
+            List<FunctionDefinitionNode> methods = new ArrayList<>();
+            List<ExecNode> methodBodies = new ArrayList<>();
+            List<String> fieldNames = new ArrayList<>();
+            List<ExecNode> fieldValues = new ArrayList<>();
+            for (ASTNode member : classDef.members) {
+                if (member instanceof FunctionDefinitionNode) {
+                    methods.add((FunctionDefinitionNode) member);
+                    methodBodies.add(compileBody((FunctionDefinitionNode) member));
+                } else if (member instanceof AssignmentNode) {
+                    fieldNames.add(((AssignmentNode) member).identifier.value);
+                    fieldValues.add(compile(member));
+                }
+            }
+            return new ClassDefExec(classDef.name.value, classDef.slot,
+                    methods.toArray(new FunctionDefinitionNode[0]), methodBodies.toArray(new ExecNode[0]),
+                    fieldNames.toArray(new String[0]), fieldValues.toArray(new ExecNode[0]));
+        }
+        if (node instanceof ObjectCreationNode) {
+            ObjectCreationNode creation = (ObjectCreationNode) node;
+            ExecNode classRef = variable(creation.className.value, creation.depth, creation.slot);
+            classRef.line = creation.line;
+            return new NewExec(interpreter, creation.className.value, classRef, compileAll(creation.arguments));
+        }
+        if (node instanceof MethodCallNode) {
+            MethodCallNode call = (MethodCallNode) node;
+            if (INLINE && interpreter.profiler == null && call.arguments.isEmpty()) {
+                return new AccessorCallExec(interpreter, compile(call.target), call.methodName.value);
+            }
+            return new MethodCallExec(interpreter, compile(call.target), call.methodName.value, compileAll(call.arguments));
+        }
+        if (node instanceof ListNode) {
+            return new ListExec(compileAll(((ListNode) node).getElements()));
+        }
+        if (node instanceof DictNode) {
+            DictNode dict = (DictNode) node;
+            return new DictExec(compileAll(dict.keys), compileAll(dict.values));
+        }
+        if (node instanceof SetNode) {
+            return new SetExec(compileAll(((SetNode) node).elements));
+        }
+        if (node instanceof IndexNode) {
+            IndexNode index = (IndexNode) node;
+            return new IndexExec(compile(index.getBase()), compile(index.getIndex()));
+        }
+        if (node instanceof SliceNode) {
+            SliceNode slice = (SliceNode) node;
+            return new SliceExec(compile(slice.getTarget()),
+                    slice.getStart() != null ? compile(slice.getStart()) : null,
+                    slice.getEnd() != null ? compile(slice.getEnd()) : null,
+                    slice.getStep() != null ? compile(slice.getStep()) : null);
+        }
+        return new ErrorExec("Unknown AST node type: " + node.getClass().getName());
+    }
+}
@@ -0,0 +1,137 @@
+// Instruction set of the bytecode VM.
+// Every instruction is one opcode byte followed by its operands, operands are 2 bytes
+// (big-endian) except jump targets, which are absolute 4 byte offsets.
+public final class OpCode {
+    private OpCode() {}
+
+    // Constants and variables.
+    public static final byte CONST = 0;         // c16: push constants[c]
+    public static final byte NIL = 1;           // push null
+    public static final byte LOAD_LOCAL = 2;    // slot16 name16: push a variable of the current frame
+    public static final byte LOAD_OUTER = 3;    // depth16 slot16 name16: push a variable of an enclosing frame
+    public static final byte LOAD_GLOBAL = 4;   // name16: push a global (built-in)
+    public static final byte LOAD_NAME = 5;     // name16: push a variable looked up by name
+    public static final byte LOAD_VAR = 6;      // var16: variable read inside a method (fields of 'this' first)
+    public static final byte STORE_LOCAL = 7;   // slot16: pop into a slot of the current frame
+    public static final byte STORE_VAR = 8;     // var16: assignment inside a method
+    public static final byte POP = 9;
+    public static final byte DUP = 10;
+
+    // Operators, operands are popped and the result pushed.
+    public static final byte ADD = 11;
+    public static final byte SUB = 12;
+    public static final byte MUL = 13;
+    public static final byte DIV = 14;
+    public static final byte MOD = 15;
+    public static final byte LT = 16;
+    public static final byte LE = 17;
+    public static final byte GT = 18;
+    public static final byte GE = 19;
+    public static final byte EQ = 20;
+    public static final byte NE = 21;
+    public static final byte IN = 22;
+    public static final byte AND = 23;
+    public static final byte OR = 24;
+    public static final byte NOT = 25;
+    public static final byte NEG = 26;
+    public static final byte POS = 27;
+
+    // Control flow.
+    public static final byte JUMP = 28;          // target32
+    public static final byte JUMP_IF_FALSE = 29; // target32: pop the condition, jump if it is not truthy
+    public static final byte ENTER = 30;         // layout16: push a new block frame
+    public static final byte LEAVE = 31;         // pop the block frame
+    public static final byte FOR_INIT = 32;      // slot16: [start end] -> [counter end], defines the loop variable
+    public static final byte FOR_NEXT = 33;      // slot16 target32: next number or pop the loop state and jump
+    public static final byte ITER_INIT = 34;     // [list] -> [iterator]
+    public static final byte ITER_NEXT = 35;     // target32: store the next element in slot 0 or pop and jump
+    public static final byte RETURN = 36;        // return the top of the stack from the chunk
+    public static final byte PRINT = 37;
+
+    // Functions, classes and objects.
+    public static final byte CALL = 38;          // name16 argc16: [callee args...] -> [result]
+    public static final byte TAIL_CALL = 39;     // name16 argc16: CALL that replaces the running call, followed by RETURN
+    public static final byte FUNCTION = 40;      // proto16 slot16: define a function in the current frame
+    public static final byte CLASS = 41;         // name16: push a new class
+    public static final byte METHOD = 42;        // proto16: add a method to the class on the stack
+    public static final byte FIELD = 43;         // name16: pop a value and add it as a class attribute
+    public static final byte NEW = 44;           // name16 argc16: [class args...] -> [instance]
+    public static final byte INVOKE = 45;        // cache16 argc16: [target args...] -> [result]
+    public static final byte SET_FIELD = 46;     // name16: [target value] -> [value]
+    public static final byte GET_FIELD = 47;     // cache16: [target] -> [value]
+
+    // Lists.
+    public static final byte LIST = 48;          // count16: build a list from the top elements
+    public static final byte INDEX = 49;         // [list index] -> [element]
+    public static final byte SLICE = 50;         // flags16: bit 0 start, bit 1 end, bit 2 step present
+    public static final byte INDEX_SET = 51;     // [list index value] -> [value]
+
+    // Dicts and sets.
+    public static final byte DICT = 52;          // count16: build a dict from the top count key/value pairs
+    public static final byte SET = 53;           // count16: build a set from the top elements
+
+    // Loop invariants, cached in hidden variables (see LoopInvariants).
+    public static final byte LOAD_INVARIANT = 54;  // depth16 slot16 target32: push the cached value and jump, if there is one
+    public static final byte STORE_INVARIANT = 55; // depth16 slot16: cache the top of the stack (not popped)
+    public static final byte CLEAR_INVARIANT = 56; // slot16: unset a hidden variable of the current frame
+
+    public static final byte ERROR = 57;         // c16: throw the message in constants[c]
+
+    static final String[] NAMES = {
+            "CONST", "NIL", "LOAD_LOCAL", "LOAD_OUTER", "LOAD_GLOBAL", "LOAD_NAME", "LOAD_VAR", "STORE_LOCAL",
+            "STORE_VAR", "POP", "DUP", "ADD", "SUB", "MUL", "DIV", "MOD", "LT", "LE", "GT", "GE", "EQ", "NE",
+            "IN", "AND", "OR", "NOT", "NEG", "POS", "JUMP", "JUMP_IF_FALSE", "ENTER", "LEAVE", "FOR_INIT",
+            "FOR_NEXT", "ITER_INIT", "ITER_NEXT", "RETURN", "PRINT", "CALL", "TAIL_CALL", "FUNCTION", "CLASS", "METHOD",
+            "FIELD", "NEW", "INVOKE", "SET_FIELD", "GET_FIELD", "LIST", "INDEX", "SLICE", "INDEX_SET", "DICT",
+            "SET", "LOAD_INVARIANT", "STORE_INVARIANT", "CLEAR_INVARIANT", "ERROR"
+    };
+
+    // Operand layout of every opcode: 2 for a 16 bit operand, 4 for a jump target.
+    static final int[][] OPERANDS = new int[NAMES.length][];
+    static {
+        for (int i = 0; i < OPERANDS.length; i++) {
+            OPERANDS[i] = new int[0];
+        }
+        OPERANDS[CONST] = new int[]{2};
+        OPERANDS[LOAD_LOCAL] = new int[]{2, 2};
+        OPERANDS[LOAD_OUTER] = new int[]{2, 2, 2};
+        OPERANDS[LOAD_GLOBAL] = new int[]{2};
+        OPERANDS[LOAD_NAME] = new int[]{2};
+        OPERANDS[LOAD_VAR] = new int[]{2};
+        OPERANDS[STORE_LOCAL] = new int[]{2};
+        OPERANDS[STORE_VAR] = new int[]{2};
+        OPERANDS[JUMP] = new int[]{4};
+        OPERANDS[JUMP_IF_FALSE] = new int[]{4};
+        OPERANDS[ENTER] = new int[]{2};
+        OPERANDS[FOR_INIT] = new int[]{2};
+        OPERANDS[FOR_NEXT] = new int[]{2, 4};
+        OPERANDS[ITER_NEXT] = new int[]{4};
+        OPERANDS[CALL] = new int[]{2, 2};
+        OPERANDS[TAIL_CALL] = new int[]{2, 2};
+        OPERANDS[FUNCTION] = new int[]{2, 2};
+        OPERANDS[CLASS] = new int[]{2};
+        OPERANDS[METHOD] = new int[]{2};
+        OPERANDS[FIELD] = new int[]{2};
+        OPERANDS[NEW] = new int[]{2, 2};
+        OPERANDS[INVOKE] = new int[]{2, 2};
+        OPERANDS[SET_FIELD] = new int[]{2};
+        OPERANDS[GET_FIELD] = new int[]{2};
+        OPERANDS[LIST] = new int[]{2};
+        OPERANDS[SLICE] = new int[]{2};
+        OPERANDS[DICT] = new int[]{2};
+        OPERANDS[SET] = new int[]{2};
+        OPERANDS[LOAD_INVARIANT] = new int[]{2, 2, 4};
+        OPERANDS[STORE_INVARIANT] = new int[]{2, 2};
+        OPERANDS[CLEAR_INVARIANT] = new int[]{2};
+        OPERANDS[ERROR] = new int[]{2};
+    }
+
+    // Size in bytes of an instruction, including the opcode.
+    static int size(byte op) {
+        int size = 1;
+        for (int width : OPERANDS[op]) {
+            size += width;
+        }
+        return size;
+    }
+}
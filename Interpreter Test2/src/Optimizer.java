@@ -0,0 +1,218 @@
+import java.util.List;
+
+// Rewrites the AST between the Parser and the Resolver, so every engine runs the simpler tree:
+// - literals are decoded once into ConstantNodes instead of on every compile or evaluation,
+// - operators whose operands are constants are folded into a ConstantNode (2 * 3 + 1 becomes 7.0),
+// - if and while statements with a constant condition lose the code that can never run.
+// An operator that fails on its constants (1 / 0, "a" - 1) is kept, the error still comes at run time.
+// -Dinterpreter.optimize=false turns the pass off.
+public final class Optimizer {
+    static final boolean ENABLED = !"false".equals(System.getProperty("interpreter.optimize"));
+
+    private Optimizer() {}
+
+    // Optimizes a parsed program, the nodes are changed in place. Returns the program.
+    public static ASTNode optimize(ASTNode program) {
+        if (!ENABLED) {
+            return program;
+        }
+        if (program instanceof BlockNode) {
+            statements(((BlockNode) program).statements);
+            return program;
+        }
+        ASTNode optimized = node(program);
+        return optimized != null ? optimized : new ConstantNode(null, program.line);
+    }
+
+    // Optimizes a statement list, removing the statements that do nothing. The last statement gives
+    // the value of a program or block, so when it is removed a null constant takes its place.
+    private static void statements(List<ASTNode> statements) {
+        for (int i = 0; i < statements.size(); i++) {
+            ASTNode statement = statements.get(i);
+            ASTNode optimized = node(statement);
+            if (optimized != null) {
+                statements.set(i, optimized);
+            } else if (i == statements.size() - 1) {
+                statements.set(i, new ConstantNode(null, statement.line));
+            } else {
+                statements.remove(i--);
+            }
+        }
+    }
+
+    // A statement that must stay a statement (a loop or if body).
+    private static ASTNode statement(ASTNode node) {
+        ASTNode optimized = node(node);
+        return optimized != null ? optimized : new ConstantNode(null, node.line);
+    }
+
+    // Returns the optimized node, or null for a statement that does nothing.
+    private static ASTNode node(ASTNode node) {
+        if (node == null || node instanceof ConstantNode) {
+            return node;
+        }
+        if (node instanceof NumberNode) {
+            return new ConstantNode(Interpreter.parseNumber(((NumberNode) node).token.value), node.line);
+        }
+        if (node instanceof StringNode) {
+            return new ConstantNode(((StringNode) node).token.value, node.line);
+        }
+        if (node instanceof BooleanNode) {
+            return new ConstantNode(Boolean.parseBoolean(((BooleanNode) node).token.value), node.line);
+        }
+        if (node instanceof BinaryOpNode) {
+            BinaryOpNode binOp = (BinaryOpNode) node;
+            binOp.left = node(binOp.left);
+            binOp.right = node(binOp.right);
+            if (binOp.left instanceof ConstantNode && binOp.right instanceof ConstantNode) {
+                try {
+                    Object value = Interpreter.binaryOp(binOp.op.value, ((ConstantNode) binOp.left).value,
+                            ((ConstantNode) binOp.right).value, node.line);
+                    return new ConstantNode(value, node.line);
+                } catch (RuntimeException e) {
+                    return node;
+                }
+            }
+            return node;
+        }
+        if (node instanceof UnaryOpNode) {
+            UnaryOpNode unary = (UnaryOpNode) node;
+            unary.operand = node(unary.operand);
+            if (unary.operand instanceof ConstantNode) {
+                try {
+                    return new ConstantNode(Interpreter.unaryOp(unary.op.value, ((ConstantNode) unary.operand).value, node.line), node.line);
+                } catch (RuntimeException e) {
+                    return node;
+                }
+            }
+            return node;
+        }
+        if (node instanceof IfNode) {
+            IfNode ifNode = (IfNode) node;
+            ifNode.condition = node(ifNode.condition);
+            if (ifNode.condition instanceof ConstantNode) {
+                // Only the branch that is taken is left, or nothing.
+                if (Interpreter.isTruthy(((ConstantNode) ifNode.condition).value)) {
+                    return node(ifNode.thenBranch);
+                }
+                return node(ifNode.elseBranch);
+            }
+            ifNode.thenBranch = statement(ifNode.thenBranch);
+            ifNode.elseBranch = node(ifNode.elseBranch);
+            return node;
+        }
+        if (node instanceof WhileNode) {
+            WhileNode whileNode = (WhileNode) node;
+            whileNode.condition = node(whileNode.condition);
+            if (whileNode.condition instanceof ConstantNode && !Interpreter.isTruthy(((ConstantNode) whileNode.condition).value)) {
+                return null;
+            }
+            whileNode.body = statement(whileNode.body);
+            return node;
+        }
+        if (node instanceof BlockNode) {
+            statements(((BlockNode) node).statements);
+            return node;
+        }
+        if (node instanceof AssignmentNode) {
+            AssignmentNode assign = (AssignmentNode) node;
+            assign.value = node(assign.value);
+            return node;
+        }
+        if (node instanceof PrintNode) {
+            PrintNode print = (PrintNode) node;
+            print.expression = node(print.expression);
+            return node;
+        }
+        if (node instanceof ReturnNode) {
+            ReturnNode returnNode = (ReturnNode) node;
+            returnNode.expression = node(returnNode.expression);
+            return node;
+        }
+        if (node instanceof FunctionDefinitionNode) {
+            FunctionDefinitionNode funcDef = (FunctionDefinitionNode) node;
+            funcDef.body = statement(funcDef.body);
+            return node;
+        }
+        if (node instanceof FunctionCallNode) {
+            expressions(((FunctionCallNode) node).arguments);
+            return node;
+        }
+        if (node instanceof ClassDefinitionNode) {
+            statements(((ClassDefinitionNode) node).members);
+            return node;
+        }
+        if (node instanceof ObjectCreationNode) {
+            expressions(((ObjectCreationNode) node).arguments);
+            return node;
+        }
+        if (node instanceof MethodCallNode) {
+            MethodCallNode call = (MethodCallNode) node;
+            call.target = node(call.target);
+            expressions(call.arguments);
+            return node;
+        }
+        if (node instanceof FieldAccessNode) {
+            FieldAccessNode access = (FieldAccessNode) node;
+            access.target = node(access.target);
+            return node;
+        }
+        if (node instanceof FieldAssignmentNode) {
+            FieldAssignmentNode assign = (FieldAssignmentNode) node;
+            assign.target = node(assign.target);
+            assign.value = node(assign.value);
+            return node;
+        }
+        if (node instanceof ForNode) {
+            ForNode forNode = (ForNode) node;
+            forNode.start = node(forNode.start);
+            forNode.end = node(forNode.end);
+            forNode.body = statement(forNode.body);
+            return node;
+        }
+        if (node instanceof ListNode) {
+            expressions(((ListNode) node).getElements());
+            return node;
+        }
+        if (node instanceof DictNode) {
+            expressions(((DictNode) node).keys);
+            expressions(((DictNode) node).values);
+            return node;
+        }
+        if (node instanceof SetNode) {
+            expressions(((SetNode) node).elements);
+            return node;
+        }
+        // The nodes below keep their children in private fields, they are rebuilt.
+        if (node instanceof IndexNode) {
+            IndexNode index = (IndexNode) node;
+            return withLine(new IndexNode(node(index.getBase()), node(index.getIndex())), node);
+        }
+        if (node instanceof IndexAssignmentNode) {
+            IndexAssignmentNode assign = (IndexAssignmentNode) node;
+            return withLine(new IndexAssignmentNode(node(assign.getTarget()), node(assign.getValue())), node);
+        }
+        if (node instanceof SliceNode) {
+            SliceNode slice = (SliceNode) node;
+            return withLine(new SliceNode(node(slice.getTarget()), node(slice.getStart()), node(slice.getEnd()),
+                    node(slice.getStep())), node);
+        }
+        if (node instanceof ForEachNode) {
+            ForEachNode forEach = (ForEachNode) node;
+            return withLine(new ForEachNode(forEach.getLoopVar(), node(forEach.getListExpr()),
+                    statement(forEach.getBody())), node);
+        }
+        return node;
+    }
+
+    private static void expressions(List<ASTNode> nodes) {
+        for (int i = 0; i < nodes.size(); i++) {
+            nodes.set(i, node(nodes.get(i)));
+        }
+    }
+
+    private static ASTNode withLine(ASTNode rebuilt, ASTNode original) {
+        rebuilt.line = original.line;
+        return rebuilt;
+    }
+}
@@ -0,0 +1,14 @@
+// Where the output of print goes. Sinks may buffer, the interpreter flushes at the end of a run
+// and before input() so the prompt comes after everything printed so far.
+public interface OutputSink {
+    // Writes text as is (the prompt of input()).
+    void print(String text);
+
+    // Writes one printed line (without the line separator).
+    default void println(String line) {
+        print(line + "\n");
+    }
+
+    // Makes everything written so far visible.
+    void flush();
+}
@@ -1,11 +1,15 @@
 import java.util.List;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 
 public class Parser {
-    private final List<Token> tokens;
+    private final List<Token> tokens; // null when the tokens come from the lexer
+    private final Lexer lexer;
     private int pos;
     private Token curr;
+    private Token previous; // The token consumed last
+    private List<Symbol> globals; // Definitions in the global scope, recorded by parse(Reuse)
 
     // Keep track of the scope
     private final List<HashMap<String, Symbol>> scopes = new ArrayList<>();
@@ -33,8 +37,22 @@ public class Parser {
     // Parser Constructor, takes the list of tokens from lexer
     public Parser(List<Token> tokens) {
         this.tokens = tokens;
+        this.lexer = null;
         this.pos = 0;
         this.curr = tokens.get(pos);
+        initialize();
+    }
+
+    // Streaming parser, takes the tokens from the lexer while parsing, so no token list is built.
+    // A lexer error is thrown when the parser reaches its line.
+    public Parser(Lexer lexer) {
+        this.tokens = null;
+        this.lexer = lexer;
+        this.curr = lexer.next();
+        initialize();
+    }
+
+    private void initialize() {
         // Initialize global scope.
         enterScope();
         // Define built-in functions in the global scope.
@@ -83,7 +101,7 @@ public class Parser {
         if (currentScope.containsKey(name)) {
             throw error(curr, "Semantic error: Variable '" + name + "' is already defined in this scope.");
         }
-        currentScope.put(name, new Symbol(name, SymbolType.VARIABLE, 0));
+        declare(currentScope, new Symbol(name, SymbolType.VARIABLE, 0));
     }
 
     // Method to define a function in the current scope.
@@ -92,7 +110,7 @@ public class Parser {
         if (currentScope.containsKey(name)) {
             throw error(curr, "Semantic error: Function '" + name + "' is already defined in this scope.");
         }
-        currentScope.put(name, new Symbol(name, SymbolType.FUNCTION, paramCount));
+        declare(currentScope, new Symbol(name, SymbolType.FUNCTION, paramCount));
     }
 
     // Method to define a class in the current scope.
@@ -101,11 +119,25 @@ public class Parser {
         if (currentScope.containsKey(name)) {
             throw error(curr, "Semantic error: Class '" + name + "' is already defined in this scope.");
         }
-        currentScope.put(name, new Symbol(name, SymbolType.CLASS, 0));
+        declare(currentScope, new Symbol(name, SymbolType.CLASS, 0));
+    }
+
+    private void declare(HashMap<String, Symbol> scope, Symbol symbol) {
+        scope.put(symbol.name, symbol);
+        if (globals != null && scopes.size() == 1) {
+            globals.add(symbol);
+        }
     }
 
     // Goes to the next token in the list
     private void advance() {
+        previous = curr;
+        if (tokens == null) {
+            if (curr.type != TokenType.EOF) {
+                curr = lexer.next();
+            }
+            return;
+        }
         pos++;
         if (pos < tokens.size()) {
             curr = tokens.get(pos);
@@ -150,6 +182,91 @@ public class Parser {
         return new BlockNode(statements);
     }
 
+    // Top-level statements of the last parse of an editor buffer. parse(Reuse) takes a statement from here
+    // instead of parsing it again when its tokens are the same Token objects (the IncrementalLexer keeps the
+    // tokens of unchanged lines), the token after it has the same type and the global names defined before
+    // it are the same. So an edit reparses the statements it touches, and a function, class or loop body
+    // somewhere else in the script stays the same subtree.
+    static class Reuse {
+        private IdentityHashMap<Token, Statement> statements = new IdentityHashMap<>();
+        int reused; // Statements the last parse took from here
+    }
+
+    private static class Statement {
+        Token[] tokens;
+        TokenType next; // Type of the token after the statement, the parser looked at it
+        long scope; // Hash of the global definitions before the statement
+        ASTNode node;
+        Symbol[] defined; // Global definitions of the statement
+    }
+
+    // parse() for a token list from an IncrementalLexer. The nodes of reused statements are shared with the
+    // earlier tree, so the tree is for checking and must not be optimized, resolved or run.
+    ASTNode parse(Reuse reuse) {
+        IdentityHashMap<Token, Statement> parsed = new IdentityHashMap<>();
+        List<ASTNode> statements = new ArrayList<>();
+        long scope = 0;
+        boolean complete = false;
+        globals = new ArrayList<>();
+        reuse.reused = 0;
+        try {
+            skipNewlines();
+            while (curr.type != TokenType.EOF) {
+                Statement statement = reuse.statements.get(curr);
+                if (statement != null && statement.scope == scope && unchanged(statement)) {
+                    for (Symbol symbol : statement.defined) {
+                        scopes.getFirst().put(symbol.name, symbol);
+                    }
+                    pos += statement.tokens.length;
+                    previous = tokens.get(pos - 1);
+                    curr = tokens.get(pos);
+                    reuse.reused++;
+                } else {
+                    int start = pos;
+                    int defined = globals.size();
+                    ASTNode node = statement();
+                    statement = new Statement();
+                    statement.tokens = tokens.subList(start, pos).toArray(new Token[0]);
+                    statement.next = curr.type;
+                    statement.scope = scope;
+                    statement.node = node;
+                    statement.defined = globals.subList(defined, globals.size()).toArray(new Symbol[0]);
+                }
+                parsed.put(statement.tokens[0], statement);
+                for (Symbol symbol : statement.defined) {
+                    scope = scope * 31 + ((symbol.name.hashCode() * 31L + symbol.type.ordinal()) * 31 + symbol.paramCount);
+                }
+                if (statement.node != null) {
+                    statements.add(statement.node);
+                }
+                skipNewlines();
+            }
+            complete = true;
+        } finally {
+            if (!complete) {
+                // After a syntax error the statements behind it can still be reused once it is fixed.
+                reuse.statements.forEach(parsed::putIfAbsent);
+            }
+            reuse.statements = parsed;
+            globals = null;
+        }
+        return new BlockNode(statements);
+    }
+
+    // Whether the tokens at the current position are the ones of an earlier statement.
+    private boolean unchanged(Statement statement) {
+        int end = pos + statement.tokens.length;
+        if (end >= tokens.size() || tokens.get(end).type != statement.next) {
+            return false;
+        }
+        for (int i = 0; i < statement.tokens.length; i++) {
+            if (tokens.get(pos + i) != statement.tokens[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     // Parse a return statement.
     private ASTNode returnStatement() {
         advance(); // consume RETURN token
@@ -250,6 +367,31 @@ public class Parser {
         return new ListNode(elements);
     }
 
+    // Parse a dict {key: value, ...} or a set {a, b, ...}, {} is an empty dict.
+    private ASTNode parseDictOrSet() {
+        Token brace = curr;
+        expect(TokenType.LBRACE, "Expected '{' to start a dict or set");
+        List<ASTNode> keys = new ArrayList<>();
+        List<ASTNode> values = new ArrayList<>();
+        if (match(TokenType.RBRACE)) {
+            return new DictNode(keys, values, brace.line);
+        }
+        keys.add(expression());
+        boolean isDict = match(TokenType.COLON);
+        if (isDict) {
+            values.add(expression());
+        }
+        while (match(TokenType.COMMA)) {
+            keys.add(expression());
+            if (isDict) {
+                expect(TokenType.COLON, "Expected ':' after a dict key");
+                values.add(expression());
+            }
+        }
+        expect(TokenType.RBRACE, isDict ? "Expected '}' to close the dict" : "Expected '}' to close the set");
+        return isDict ? new DictNode(keys, values, brace.line) : new SetNode(keys, brace.line);
+    }
+
     // Parse an if-statement.
     private ASTNode ifStatement() {
         // Expect and consume IF.
@@ -357,7 +499,7 @@ public class Parser {
     private ASTNode forStatement() {
         advance(); // consume FOR token
         expect(TokenType.IDENTIFIER, "Expected loop variable in for statement");
-        Token loopVar = tokens.get(pos - 1); // Variable of the loop
+        Token loopVar = previous; // Variable of the loop
         // For-each loop: for i in x
         if (match(TokenType.IN)) {
             ASTNode listExpr = expression();
@@ -400,16 +542,16 @@ public class Parser {
     private ASTNode functionDefinition() {
         advance(); // consume DEF token
         expect(TokenType.IDENTIFIER, "Expected function name");
-        Token functionName = tokens.get(pos - 1);
+        Token functionName = previous;
         expect(TokenType.LPAREN, "Expected '(' after function name");
         List<Token> parameters = new ArrayList<>();
         if (curr.type != TokenType.RPAREN) {
             expect(TokenType.IDENTIFIER, "Expected parameter name");
-            parameters.add(tokens.get(pos - 1));
+            parameters.add(previous);
             while (match(TokenType.COMMA)) {
                 if (curr.type == TokenType.RPAREN) break;
                 expect(TokenType.IDENTIFIER, "Expected parameter name");
-                parameters.add(tokens.get(pos - 1));
+                parameters.add(previous);
             }
         }
         expect(TokenType.RPAREN, "Expected ')' after parameters");
@@ -436,7 +578,7 @@ public class Parser {
     private ASTNode classDefinition() {
         advance(); // consume CLASS token
         expect(TokenType.IDENTIFIER, "Expected class name");
-        Token className = tokens.get(pos - 1);
+        Token className = previous;
         if (scopes.getLast().containsKey(className.value)) {
             throw error(curr, "Semantic error: Class '" + className.value + "' is already defined in this scope.");
         }
@@ -461,18 +603,9 @@ public class Parser {
         if (curr.type == TokenType.DEF) { // Methods
             return functionDefinition();
         } else if (curr.type == TokenType.IDENTIFIER) { // Attribute assignments
-            Token temp = curr;
-            int tempPos = pos;
-            advance();
-            if (curr.type == TokenType.EQUALS) {
-                pos = tempPos;
-                curr = temp;
-                return statement();
-            } else {
-                pos = tempPos;
-                curr = temp;
-                return statement();
-            }
+            // statement() tells an assignment from an expression, no lookahead here (a streaming
+            // parser cannot go back).
+            return statement();
         } else {
             return statement();
         }
@@ -640,7 +773,7 @@ public class Parser {
             while (curr.type == TokenType.DOT) {
                 advance(); // consume '.'
                 expect(TokenType.IDENTIFIER, "Expected field or method name after '.'");
-                Token nextId = tokens.get(pos - 1);
+                Token nextId = previous;
                 if (curr.type == TokenType.LPAREN) {
                     advance(); // consume '('
                     List<ASTNode> arguments = new ArrayList<>();
@@ -665,6 +798,9 @@ public class Parser {
         } else if (curr.type == TokenType.LBRACKET) {
             // This branch handles list literals.
             node = parseList();
+        } else if (curr.type == TokenType.LBRACE) {
+            // Dict and set literals.
+            node = parseDictOrSet();
         } else {
             throw error(curr, "Unexpected token: " + curr.value);
         }
@@ -674,7 +810,7 @@ public class Parser {
             if (curr.type == TokenType.DOT) {
                 advance(); // consume '.'
                 expect(TokenType.IDENTIFIER, "Expected field or method name after '.'");
-                Token nextId = tokens.get(pos - 1);
+                Token nextId = previous;
                 if (curr.type == TokenType.LPAREN) {
                     advance(); // consume '('
                     List<ASTNode> arguments = new ArrayList<>();
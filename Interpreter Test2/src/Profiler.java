@@ -0,0 +1,227 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.LockSupport;
+
+// Sampling profiler for scripts. While a profiler is attached the interpreter keeps a shadow stack
+// of script frames (function name and the line running in it), a daemon thread reads it on a timer
+// and counts every stack it sees. Without a profiler the engines only test a null field, the
+// closure engine does not even do that (its line markers are only compiled in when profiling).
+// JIT compiled functions report the line of their definition.
+//
+// The shadow stack is written by the script thread without synchronization, a sample can be torn
+// while a call starts or returns. That is fine for statistics, the sampler just skips what it cannot read.
+public final class Profiler {
+    private static final String SCRIPT = "<script>"; // Frame of the top-level code.
+
+    private final long intervalNanos;
+
+    // Shadow stack, frame 0 is the top-level code.
+    private String[] names = new String[64];
+    private int[] lines = new int[64];
+    private int depth;
+
+    // Samples, collected by the sampler thread.
+    private final Node root = new Node(null, null, 0);
+    private long samples;
+    private Thread sampler;
+    private volatile boolean sampling;
+
+    public Profiler() {
+        this(1000);
+    }
+
+    public Profiler(long intervalMicros) {
+        this.intervalNanos = intervalMicros * 1000;
+        names[0] = SCRIPT;
+    }
+
+    // Called by the interpreter when a function starts, the frame keeps the line it is at.
+    void enter(String name, int line) {
+        int next = depth + 1;
+        if (next == names.length) {
+            // New arrays are filled before they are published, the sampler may still read the old ones.
+            String[] newNames = Arrays.copyOf(names, next * 2);
+            int[] newLines = Arrays.copyOf(lines, next * 2);
+            names = newNames;
+            lines = newLines;
+        }
+        names[next] = name;
+        lines[next] = line;
+        depth = next;
+    }
+
+    void exit() {
+        depth--;
+    }
+
+    // The current frame is now at this line.
+    void line(int line) {
+        lines[depth] = line;
+    }
+
+    // Starts sampling the thread running the script, called by Interpreter.run.
+    void start(Thread target) {
+        depth = 0;
+        lines[0] = 0;
+        sampling = true;
+        sampler = new Thread(() -> {
+            while (sampling) {
+                LockSupport.parkNanos(intervalNanos);
+                // Only samples running code, a script waiting for input() is not using the CPU.
+                if (sampling && target.getState() == Thread.State.RUNNABLE) {
+                    sample();
+                }
+            }
+        }, "script-profiler");
+        sampler.setDaemon(true);
+        sampler.start();
+    }
+
+    // Stops sampling, the samples are kept (several runs add up).
+    void stop() {
+        sampling = false;
+        try {
+            sampler.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void sample() {
+        String[] stackNames = names;
+        int[] stackLines = lines;
+        int top = Math.min(depth, Math.min(stackNames.length, stackLines.length) - 1);
+        synchronized (root) {
+            Node node = root;
+            for (int i = 0; i <= top; i++) {
+                String name = stackNames[i];
+                if (name == null) {
+                    return;
+                }
+                node = node.child(name, stackLines[i]);
+            }
+            samples++;
+            node.self++;
+            for (Node n = node; n != null; n = n.parent) {
+                n.total++;
+            }
+        }
+    }
+
+    public long getSamples() {
+        synchronized (root) {
+            return samples;
+        }
+    }
+
+    // Self samples per line, the lines where the time was spent.
+    public String flatProfile() {
+        Map<String, Long> self = new HashMap<>();
+        StringBuilder sb = new StringBuilder();
+        synchronized (root) {
+            collectSelf(root, self);
+            sb.append("Flat profile: ").append(samples).append(" samples, ")
+                    .append(intervalNanos / 1000).append(" us interval\n");
+            sb.append(String.format("%7s %9s  %s%n", "self%", "samples", "location"));
+            List<Map.Entry<String, Long>> entries = new ArrayList<>(self.entrySet());
+            entries.sort((a, b) -> Long.compare(b.getValue(), a.getValue()));
+            for (Map.Entry<String, Long> entry : entries) {
+                sb.append(String.format("%6.1f%% %9d  %s%n", percent(entry.getValue()), entry.getValue(), entry.getKey()));
+            }
+        }
+        return sb.toString();
+    }
+
+    private static void collectSelf(Node node, Map<String, Long> self) {
+        if (node.self > 0) {
+            self.merge(node.name + " line " + node.line, node.self, Long::sum);
+        }
+        for (Node child : node.children.values()) {
+            collectSelf(child, self);
+        }
+    }
+
+    // Every frame with the share of the samples it was on the stack (total) and on top (self),
+    // a caller's line is the line of the call.
+    public String callTree() {
+        StringBuilder sb = new StringBuilder();
+        synchronized (root) {
+            sb.append("Call tree: ").append(samples).append(" samples\n");
+            sb.append(String.format("%7s %7s  %s%n", "total%", "self%", "frame"));
+            for (Node child : sorted(root)) {
+                appendTree(sb, child, 0);
+            }
+        }
+        return sb.toString();
+    }
+
+    private void appendTree(StringBuilder sb, Node node, int level) {
+        sb.append(String.format("%6.1f%% %6.1f%%  %s%s line %d%n",
+                percent(node.total), percent(node.self), "  ".repeat(level), node.name, node.line));
+        for (Node child : sorted(node)) {
+            appendTree(sb, child, level + 1);
+        }
+    }
+
+    // One line per distinct stack, "frame;frame;frame count", the input format of flamegraph.pl
+    // and speedscope. Frames are function:line.
+    public String collapsedStacks() {
+        StringBuilder sb = new StringBuilder();
+        synchronized (root) {
+            for (Node child : root.children.values()) {
+                appendCollapsed(sb, child, "");
+            }
+        }
+        return sb.toString();
+    }
+
+    private static void appendCollapsed(StringBuilder sb, Node node, String prefix) {
+        String stack = prefix + node.name + ":" + node.line;
+        if (node.self > 0) {
+            sb.append(stack).append(' ').append(node.self).append('\n');
+        }
+        for (Node child : node.children.values()) {
+            appendCollapsed(sb, child, stack + ";");
+        }
+    }
+
+    private double percent(long count) {
+        return samples == 0 ? 0 : 100.0 * count / samples;
+    }
+
+    private static List<Node> sorted(Node node) {
+        List<Node> children = new ArrayList<>(node.children.values());
+        children.sort((a, b) -> Long.compare(b.total, a.total));
+        return children;
+    }
+
+    // Frame of the call tree: a function at a line, under the frames that called it.
+    private static final class Node {
+        final Node parent;
+        final String name;
+        final int line;
+        final Map<String, Node> children = new HashMap<>();
+        long self;
+        long total;
+
+        Node(Node parent, String name, int line) {
+            this.parent = parent;
+            this.name = name;
+            this.line = line;
+        }
+
+        // Called with the root lock held, like everything reading the tree.
+        Node child(String name, int line) {
+            String key = name + ":" + line;
+            Node child = children.get(key);
+            if (child == null) {
+                child = new Node(this, name, line);
+                children.put(key, child);
+            }
+            return child;
+        }
+    }
+}
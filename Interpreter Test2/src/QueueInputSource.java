@@ -0,0 +1,49 @@
+import java.util.concurrent.LinkedBlockingQueue;
+
+// Input source fed by the host: a server thread offers the lines its user sends, the script
+// waiting in input() takes them. The wait parks on a java.util.concurrent queue, not a monitor,
+// so a script on a virtual thread holds no OS thread while it waits and thousands of sessions
+// can wait for their users at the cost of their heap.
+public class QueueInputSource implements InputSource {
+    private static final String END = new String("end of input"); // Compared by identity.
+
+    private final LinkedBlockingQueue<String> lines = new LinkedBlockingQueue<>();
+    private volatile boolean waiting;
+
+    // Hands a line to the script, it is kept until an input() reads it.
+    public void offer(String line) {
+        lines.offer(line);
+    }
+
+    // Ends the input, input() answers with empty strings from then on.
+    public void close() {
+        lines.offer(END);
+    }
+
+    // Drops the lines nobody has read yet.
+    public void clear() {
+        lines.clear();
+    }
+
+    // True while a script is blocked in input() on this source.
+    public boolean isWaiting() {
+        return waiting;
+    }
+
+    @Override
+    public String readLine() {
+        waiting = true;
+        try {
+            String line = lines.take();
+            if (line == END) {
+                lines.offer(END); // Later reads end too.
+                return null;
+            }
+            return line;
+        } catch (InterruptedException e) {
+            throw new RuntimeException("Input interrupted", e);
+        } finally {
+            waiting = false;
+        }
+    }
+}
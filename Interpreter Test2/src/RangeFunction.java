@@ -1,55 +1,50 @@
 import java.util.List;
-import java.util.ArrayList;
 
 // Built-in range function: supports range(n), range(start, end), and range(start, end, step).
 public class RangeFunction implements Callable {
     @Override
     public Object call(Interpreter interpreter, List<Object> arguments) {
-        int start, end, step;
+        switch (arguments.size()) {
+            case 1: return call1(interpreter, arguments.get(0));
+            case 2: return call2(interpreter, arguments.get(0), arguments.get(1));
+            case 3: return call3(interpreter, arguments.get(0), arguments.get(1), arguments.get(2));
+            default: throw new RuntimeException("range() expects 1, 2, or 3 arguments"); // throw error
+        }
+    }
 
-        if (arguments.size() == 1) {
-            // if provided 1 arg, range(n): start=0, end=n, step=1.
-            if (!(arguments.get(0) instanceof Number)) {
-                throw new RuntimeException("range() argument must be a number");
-            }
-            start = 0;
-            end = ((Number) arguments.get(0)).intValue();
-            step = 1;
-        } else if (arguments.size() == 2) {
-            // if provided 2 arg, range(start, end): step=1.
-            if (!(arguments.get(0) instanceof Number && arguments.get(1) instanceof Number)) {
-                throw new RuntimeException("range() arguments must be numbers");
-            }
-            start = ((Number) arguments.get(0)).intValue();
-            end = ((Number) arguments.get(1)).intValue();
-            step = 1;
-        } else if (arguments.size() == 3) {
-            // if provided 3 arg, range(start, end, step)
-            if (!(arguments.get(0) instanceof Number && arguments.get(1) instanceof Number
-                    && arguments.get(2) instanceof Number)) {
-                throw new RuntimeException("range() arguments must be numbers");
-            }
-            start = ((Number) arguments.get(0)).intValue();
-            end = ((Number) arguments.get(1)).intValue();
-            step = ((Number) arguments.get(2)).intValue();
-            if (step == 0) {
-                throw new RuntimeException("range() step argument must not be zero");
-            }
-        } else { // throw error
-            throw new RuntimeException("range() expects 1, 2, or 3 arguments");
+    @Override
+    public Object call0(Interpreter interpreter) {
+        throw new RuntimeException("range() expects 1, 2, or 3 arguments");
+    }
+
+    // range(n): start=0, end=n, step=1.
+    @Override
+    public Object call1(Interpreter interpreter, Object n) {
+        if (!(n instanceof Number)) {
+            throw new RuntimeException("range() argument must be a number");
         }
+        return RangeList.of(0, ((Number) n).intValue(), 1);
+    }
 
-        List<Object> list = new ArrayList<>();
-        if (step > 0) {
-            for (int i = start; i < end; i += step) {
-                list.add(i);
-            }
-        } else {
-            // For negative steps, count downwards.
-            for (int i = start; i > end; i += step) {
-                list.add(i);
-            }
+    // range(start, end): step=1.
+    @Override
+    public Object call2(Interpreter interpreter, Object start, Object end) {
+        if (!(start instanceof Number && end instanceof Number)) {
+            throw new RuntimeException("range() arguments must be numbers");
+        }
+        return RangeList.of(((Number) start).intValue(), ((Number) end).intValue(), 1);
+    }
+
+    // range(start, end, step)
+    @Override
+    public Object call3(Interpreter interpreter, Object start, Object end, Object step) {
+        if (!(start instanceof Number && end instanceof Number && step instanceof Number)) {
+            throw new RuntimeException("range() arguments must be numbers");
+        }
+        if (((Number) step).intValue() == 0) {
+            throw new RuntimeException("range() step argument must not be zero");
         }
-        return list;
+        // The elements are computed on demand, see RangeList.
+        return RangeList.of(((Number) start).intValue(), ((Number) end).intValue(), ((Number) step).intValue());
     }
 }
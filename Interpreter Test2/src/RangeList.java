@@ -0,0 +1,166 @@
+import java.util.AbstractList;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.RandomAccess;
+
+// List returned by range(): stores start, step and size instead of the elements.
+// Indexing, 'in' and slicing are computed in O(1), iteration counts with a primitive int.
+// The first mutation (append, pop, remove, index assignment) turns it into a ScriptList of ints,
+// the script keeps seeing the same list object.
+public class RangeList extends AbstractList<Object> implements RandomAccess {
+    private final int start;
+    private final int step;
+    private final int size;
+    private List<Object> materialized; // Set once the range has been mutated.
+
+    public RangeList(int start, int step, int size) {
+        this.start = start;
+        this.step = step;
+        this.size = size;
+    }
+
+    // Range of the values start, start + step, ... before end (like range(start, end, step)).
+    public static RangeList of(int start, int end, int step) {
+        long count;
+        if (step > 0) {
+            count = start < end ? ((long) end - start + step - 1) / step : 0;
+        } else {
+            count = start > end ? ((long) start - end - step - 1) / -step : 0;
+        }
+        // The size is an int, like for every script list.
+        if (count > Integer.MAX_VALUE) {
+            throw new RuntimeException("range() too large");
+        }
+        return new RangeList(start, step, (int) count);
+    }
+
+    public boolean isLazy() {
+        return materialized == null;
+    }
+
+    private List<Object> materialize() {
+        if (materialized == null) {
+            int[] values = new int[size];
+            for (int i = 0; i < size; i++) {
+                values[i] = start + i * step;
+            }
+            materialized = new ScriptList(values);
+        }
+        return materialized;
+    }
+
+    @Override
+    public Object get(int index) {
+        if (materialized != null) {
+            return materialized.get(index);
+        }
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index " + index + " out of bounds for length " + size);
+        }
+        return start + index * step;
+    }
+
+    @Override
+    public int size() {
+        return materialized != null ? materialized.size() : size;
+    }
+
+    // Elements are Integers, so like ArrayList.contains only an Integer can be found.
+    @Override
+    public boolean contains(Object value) {
+        return indexOf(value) >= 0;
+    }
+
+    @Override
+    public int indexOf(Object value) {
+        if (materialized != null) {
+            return materialized.indexOf(value);
+        }
+        if (!(value instanceof Integer) || size == 0) {
+            return -1;
+        }
+        long offset = (long) (Integer) value - start;
+        if (offset % step != 0) {
+            return -1;
+        }
+        long index = offset / step;
+        return index >= 0 && index < size ? (int) index : -1;
+    }
+
+    // Slice of a lazy range, or null when it cannot be computed without the elements
+    // (indices outside the range make the generic slice fail like it does for lists).
+    RangeList slice(int from, int to, int by) {
+        if (materialized != null) {
+            return null;
+        }
+        long count;
+        if (by > 0) {
+            count = from < to ? ((long) to - from + by - 1) / by : 0;
+        } else {
+            count = from > to ? ((long) from - to - by - 1) / -by : 0;
+        }
+        if (count == 0) {
+            return new RangeList(start, step, 0);
+        }
+        long last = from + (count - 1) * by;
+        if (from < 0 || from >= size || last < 0 || last >= size) {
+            return null;
+        }
+        return new RangeList(start + from * step, step * by, (int) count);
+    }
+
+    @Override
+    public Object set(int index, Object value) {
+        return materialize().set(index, value);
+    }
+
+    @Override
+    public void add(int index, Object value) {
+        materialize().add(index, value);
+        modCount++;
+    }
+
+    @Override
+    public Object remove(int index) {
+        modCount++;
+        return materialize().remove(index);
+    }
+
+    @Override
+    public boolean remove(Object value) {
+        modCount++;
+        return materialize().remove(value);
+    }
+
+    @Override
+    public Iterator<Object> iterator() {
+        if (materialized != null) {
+            return materialized.iterator();
+        }
+        return new Iterator<Object>() {
+            private int index = 0;
+            private int value = start;
+
+            @Override
+            public boolean hasNext() {
+                return index < size;
+            }
+
+            @Override
+            public Object next() {
+                if (materialized != null) {
+                    throw new ConcurrentModificationException();
+                }
+                if (index >= size) {
+                    throw new NoSuchElementException();
+                }
+                int current = value;
+                index++;
+                value += step;
+                return current;
+            }
+        };
+    }
+}
@@ -0,0 +1,251 @@
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+// Resolver pass, runs between Parser.parse() and the Interpreter.
+// It mirrors the scopes the interpreter creates at runtime (blocks, function calls and for-each loops)
+// and gives every variable use a (depth, slot) address, so the interpreter can load it from a Frame
+// instead of hashing the name at every level of the chain.
+public class Resolver {
+    // Depth values for names without a lexical address.
+    public static final int UNRESOLVED = -1; // Not resolved, looked up by name at runtime.
+    public static final int GLOBAL = -2;     // Not declared in any script scope, looked up in the globals.
+
+    // Layouts of the frames enclosing the node being resolved (innermost last).
+    private final List<FrameLayout> scopes = new ArrayList<>();
+    private int functionDepth; // Function bodies the node being resolved is in.
+    private final Set<String> classMethods = new HashSet<>(); // For LoopInvariants.
+
+    // Entry point: the program is the top-level block returned by Parser.parse().
+    public void resolve(ASTNode program) {
+        LoopInvariants.methodNames(program, classMethods);
+        resolve(program, true);
+    }
+
+    // Declares every name a list of statements defines in the frame they run in.
+    // A variable is visible in its whole frame, the interpreter falls back to the enclosing frames
+    // while its slot is still unset, which keeps the old "define on first assignment" behaviour.
+    private void hoist(List<ASTNode> statements, FrameLayout layout) {
+        for (ASTNode statement : statements) {
+            if (statement instanceof AssignmentNode) {
+                layout.declare(((AssignmentNode) statement).identifier.value);
+            } else if (statement instanceof FunctionDefinitionNode) {
+                layout.declare(((FunctionDefinitionNode) statement).name.value);
+            } else if (statement instanceof ClassDefinitionNode) {
+                ClassDefinitionNode classDef = (ClassDefinitionNode) statement;
+                layout.declare(classDef.name.value);
+                // Class attributes are evaluated in the frame the class is defined in.
+                for (ASTNode member : classDef.members) {
+                    if (member instanceof AssignmentNode) {
+                        layout.declare(((AssignmentNode) member).identifier.value);
+                    }
+                }
+            } else if (statement instanceof WhileNode) {
+                // A while body runs in the frame of the loop itself.
+                ASTNode body = ((WhileNode) statement).body;
+                if (body instanceof BlockNode) {
+                    hoist(((BlockNode) body).statements, layout);
+                }
+            } else if (statement instanceof ForNode) {
+                layout.declare(((ForNode) statement).loopVar.value);
+            }
+        }
+    }
+
+    // Returns how many frames up a name is declared, or -1 if no script scope declares it.
+    private int depthOf(String name) {
+        for (int i = scopes.size() - 1; i >= 0; i--) {
+            if (scopes.get(i).indexOf(name) >= 0) {
+                return scopes.size() - 1 - i;
+            }
+        }
+        return -1;
+    }
+
+    private int slotOf(String name, int depth) {
+        return scopes.get(scopes.size() - 1 - depth).indexOf(name);
+    }
+
+    // Resolves a block. Blocks evaluated with evaluateBlock get their own frame.
+    private void resolve(BlockNode block, boolean newFrame) {
+        if (newFrame) {
+            block.layout = new FrameLayout();
+            hoist(block.statements, block.layout);
+            scopes.add(block.layout);
+        }
+        for (ASTNode statement : block.statements) {
+            visit(statement);
+        }
+        if (newFrame) {
+            scopes.removeLast();
+        }
+    }
+
+    private void resolve(ASTNode node, boolean newFrame) {
+        if (node instanceof BlockNode) {
+            resolve((BlockNode) node, newFrame);
+        } else {
+            visit(node);
+        }
+    }
+
+    private void resolveAll(List<ASTNode> nodes) {
+        for (ASTNode node : nodes) {
+            visit(node);
+        }
+    }
+
+    private void visit(ASTNode node) {
+        if (node == null) return;
+        if (node instanceof IdentifierNode) {
+            IdentifierNode id = (IdentifierNode) node;
+            int depth = depthOf(id.identifier.value);
+            if (depth >= 0) {
+                id.depth = depth;
+                id.slot = slotOf(id.identifier.value, depth);
+            } else {
+                id.depth = GLOBAL;
+            }
+            int thisDepth = depthOf("this");
+            if (thisDepth >= 0) {
+                id.thisDepth = thisDepth;
+                id.thisSlot = slotOf("this", thisDepth);
+            }
+        } else if (node instanceof AssignmentNode) {
+            AssignmentNode assign = (AssignmentNode) node;
+            visit(assign.value);
+            assign.slot = scopes.getLast().declare(assign.identifier.value);
+            int thisDepth = depthOf("this");
+            if (thisDepth >= 0) {
+                assign.thisDepth = thisDepth;
+                assign.thisSlot = slotOf("this", thisDepth);
+            }
+        } else if (node instanceof BinaryOpNode) {
+            visit(((BinaryOpNode) node).left);
+            visit(((BinaryOpNode) node).right);
+        } else if (node instanceof UnaryOpNode) {
+            visit(((UnaryOpNode) node).operand);
+        } else if (node instanceof InvariantNode) {
+            // Only met when a tree is resolved again, its hidden variable goes in the new layout.
+            InvariantNode invariant = (InvariantNode) node;
+            visit(invariant.expression);
+            invariant.slot = scopes.get(scopes.size() - 1 - invariant.depth).declare(invariant.name);
+        } else if (node instanceof PrintNode) {
+            visit(((PrintNode) node).expression);
+        } else if (node instanceof ReturnNode) {
+            ReturnNode returnNode = (ReturnNode) node;
+            visit(returnNode.expression);
+            // The function returns whatever the call returns, so the call can replace it (see TailCall).
+            returnNode.tailCall = functionDepth > 0 && returnNode.expression instanceof FunctionCallNode;
+        } else if (node instanceof BlockNode) {
+            resolve((BlockNode) node, true);
+        } else if (node instanceof IfNode) {
+            IfNode ifNode = (IfNode) node;
+            visit(ifNode.condition);
+            resolve(ifNode.thenBranch, true);
+            resolve(ifNode.elseBranch, true);
+        } else if (node instanceof WhileNode) {
+            WhileNode whileNode = (WhileNode) node;
+            visit(whileNode.condition);
+            resolve(whileNode.body, false);
+            whileNode.invariants = LoopInvariants.hoist(whileNode, scopes.getLast(), classMethods);
+        } else if (node instanceof ForNode) {
+            ForNode forNode = (ForNode) node;
+            visit(forNode.start);
+            visit(forNode.end);
+            forNode.slot = scopes.getLast().declare(forNode.loopVar.value);
+            resolve(forNode.body, true);
+            forNode.invariants = LoopInvariants.hoist(forNode, scopes.getLast(), classMethods);
+        } else if (node instanceof ForEachNode) {
+            ForEachNode forEach = (ForEachNode) node;
+            visit(forEach.getListExpr());
+            FrameLayout layout = new FrameLayout();
+            layout.declare(forEach.getLoopVar().value);
+            if (forEach.getBody() instanceof BlockNode) {
+                hoist(((BlockNode) forEach.getBody()).statements, layout);
+            }
+            forEach.layout = layout;
+            scopes.add(layout);
+            resolve(forEach.getBody(), false);
+            scopes.removeLast();
+            forEach.invariants = LoopInvariants.hoist(forEach, scopes.getLast(), classMethods);
+        } else if (node instanceof FunctionDefinitionNode) {
+            FunctionDefinitionNode funcDef = (FunctionDefinitionNode) node;
+            funcDef.slot = scopes.getLast().declare(funcDef.name.value);
+            resolveFunction(funcDef, false);
+        } else if (node instanceof FunctionCallNode) {
+            FunctionCallNode call = (FunctionCallNode) node;
+            int depth = depthOf(call.name.value);
+            call.depth = depth >= 0 ? depth : GLOBAL;
+            call.slot = depth >= 0 ? slotOf(call.name.value, depth) : -1;
+            resolveAll(call.arguments);
+        } else if (node instanceof ClassDefinitionNode) {
+            ClassDefinitionNode classDef = (ClassDefinitionNode) node;
+            classDef.slot = scopes.getLast().declare(classDef.name.value);
+            for (ASTNode member : classDef.members) {
+                if (member instanceof FunctionDefinitionNode) {
+                    resolveFunction((FunctionDefinitionNode) member, true);
+                } else if (member instanceof AssignmentNode) {
+                    visit(member);
+                }
+            }
+        } else if (node instanceof ObjectCreationNode) {
+            ObjectCreationNode creation = (ObjectCreationNode) node;
+            int depth = depthOf(creation.className.value);
+            creation.depth = depth >= 0 ? depth : GLOBAL;
+            creation.slot = depth >= 0 ? slotOf(creation.className.value, depth) : -1;
+            resolveAll(creation.arguments);
+        } else if (node instanceof MethodCallNode) {
+            visit(((MethodCallNode) node).target);
+            resolveAll(((MethodCallNode) node).arguments);
+        } else if (node instanceof FieldAccessNode) {
+            visit(((FieldAccessNode) node).target);
+        } else if (node instanceof FieldAssignmentNode) {
+            visit(((FieldAssignmentNode) node).target);
+            visit(((FieldAssignmentNode) node).value);
+        } else if (node instanceof ListNode) {
+            resolveAll(((ListNode) node).getElements());
+        } else if (node instanceof DictNode) {
+            DictNode dict = (DictNode) node;
+            for (int i = 0; i < dict.keys.size(); i++) {
+                visit(dict.keys.get(i));
+                visit(dict.values.get(i));
+            }
+        } else if (node instanceof SetNode) {
+            resolveAll(((SetNode) node).elements);
+        } else if (node instanceof IndexNode) {
+            visit(((IndexNode) node).getBase());
+            visit(((IndexNode) node).getIndex());
+        } else if (node instanceof IndexAssignmentNode) {
+            visit(((IndexAssignmentNode) node).getTarget());
+            visit(((IndexAssignmentNode) node).getValue());
+        } else if (node instanceof SliceNode) {
+            SliceNode slice = (SliceNode) node;
+            visit(slice.getTarget());
+            visit(slice.getStart());
+            visit(slice.getEnd());
+            visit(slice.getStep());
+        }
+    }
+
+    // Function bodies run in a fresh frame whose parent is the frame the function was defined in.
+    // Parameters take the first slots, methods also get a slot for 'this'.
+    private void resolveFunction(FunctionDefinitionNode funcDef, boolean isMethod) {
+        FrameLayout layout = new FrameLayout();
+        for (Token param : funcDef.parameters) {
+            layout.declare(param.value);
+        }
+        if (isMethod) {
+            funcDef.thisSlot = layout.declare("this");
+        }
+        BlockNode body = (BlockNode) funcDef.body;
+        hoist(body.statements, layout);
+        funcDef.layout = layout;
+        scopes.add(layout);
+        functionDepth++;
+        resolve(body, false);
+        functionDepth--;
+        scopes.removeLast();
+    }
+}
@@ -1,4 +1,7 @@
-public class Return extends RuntimeException {
+// Completion value of a 'return' statement.
+// Statements hand it back to the enclosing blocks and loops, which stop and pass it on until the
+// function call unwraps it. Returning is a normal Java return, no exception (and stack trace) is made.
+public class Return {
     public final Object value;
     public Return(Object value) {
         this.value = value;
@@ -0,0 +1,172 @@
+import java.io.BufferedReader;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+// Runs a script without the editor window, nothing from javax.swing is loaded.
+// Usage: java Runner [--engine=tree|closure|bytecode] [--timeout=ms] [--max-steps=n] [--profile=stacks-file]
+//                    [--disassemble] [--dump-ast] [file | -]
+// Without a file (or with -) the script is read from stdin. print goes to a buffered stdout,
+// input() reads lines from stdin. --timeout and --max-steps stop a script that runs too long
+// (a step is a loop iteration or a function call). --profile samples the run, prints the flat profile
+// and the call tree to stderr and writes the collapsed stacks (for flame graphs) to the given file.
+// --disassemble prints the bytecode and --dump-ast the syntax tree before and after the Optimizer,
+// without running the script. Warnings of the type inference (operations that cannot work) go to stderr.
+//
+// Exit status: 0 success, 1 runtime error, 2 bad arguments, 3 syntax error, 4 script not readable,
+// 5 stopped by the time or step limit.
+//
+// For one-shot runs the JVM startup dominates. runner.sh runs Runner from a jar with an AppCDS
+// archive of the classes a run loads (JDK 19+), the first run writes it and later runs map it:
+//   java -XX:+AutoCreateSharedArchive -XX:SharedArchiveFile=runner.jsa -XX:TieredStopAtLevel=1 -jar runner.jar script.txt
+public class Runner {
+    static final int OK = 0;
+    static final int RUNTIME_ERROR = 1;
+    static final int USAGE = 2;
+    static final int SYNTAX_ERROR = 3;
+    static final int IO_ERROR = 4;
+    static final int LIMIT_EXCEEDED = 5;
+
+    private static final String USAGE_TEXT =
+            "Usage: java Runner [--engine=tree|closure|bytecode] [--timeout=ms] [--max-steps=n] [--profile=stacks-file]"
+                    + " [--disassemble] [--dump-ast] [file | -]";
+
+    public static void main(String[] args) {
+        System.exit(run(args));
+    }
+
+    // Runs the command line and returns the exit status.
+    static int run(String[] args) {
+        Interpreter.Engine engine = null;
+        boolean disassemble = false;
+        boolean dumpAst = false;
+        long timeout = 0;
+        long maxSteps = 0;
+        String profilePath = null;
+        String path = null;
+        for (String arg : args) {
+            if (arg.startsWith("--engine=")) {
+                try {
+                    engine = Interpreter.Engine.valueOf(arg.substring("--engine=".length()).toUpperCase());
+                } catch (IllegalArgumentException e) {
+                    System.err.println("Unknown engine: " + arg.substring("--engine=".length()));
+                    return USAGE;
+                }
+            } else if (arg.startsWith("--timeout=") || arg.startsWith("--max-steps=")) {
+                long value;
+                try {
+                    value = Long.parseLong(arg.substring(arg.indexOf('=') + 1));
+                } catch (NumberFormatException e) {
+                    System.err.println(USAGE_TEXT);
+                    return USAGE;
+                }
+                if (arg.startsWith("--timeout=")) {
+                    timeout = value;
+                } else {
+                    maxSteps = value;
+                }
+            } else if (arg.startsWith("--profile=")) {
+                profilePath = arg.substring("--profile=".length());
+            } else if (arg.equals("--disassemble")) {
+                disassemble = true;
+            } else if (arg.equals("--dump-ast")) {
+                dumpAst = true;
+            } else if (arg.startsWith("--") || path != null) {
+                System.err.println(USAGE_TEXT);
+                return USAGE;
+            } else {
+                path = arg;
+            }
+        }
+
+        BufferedReader stdin = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8));
+        // A file is mapped into memory, the Lexer reads it without a String copy.
+        Lexer lexer;
+        try {
+            if (path == null || path.equals("-")) {
+                lexer = Lexer.read(stdin);
+            } else {
+                lexer = Lexer.open(Paths.get(path));
+            }
+        } catch (IOException e) {
+            System.err.println("Error: cannot read " + (path == null ? "stdin" : path));
+            return IO_ERROR;
+        }
+
+        // Straight to the stdout file descriptor, the sink does the buffering.
+        BufferedOutputSink output = new BufferedOutputSink(new FileOutputStream(FileDescriptor.out));
+        ASTNode ast;
+        try {
+            ast = new Parser(lexer).parse();
+            if (dumpAst) {
+                output.print("Parsed AST:\n" + ASTPrinter.print(ast));
+            }
+            ast = Optimizer.optimize(ast);
+            new Resolver().resolve(ast);
+            for (String warning : TypeInference.infer(ast)) {
+                System.err.println(warning);
+            }
+        } catch (RuntimeException e) {
+            output.flush();
+            System.err.println("Error: " + e.getMessage());
+            return SYNTAX_ERROR;
+        }
+
+        if (dumpAst) {
+            output.print("\nOptimized AST:\n" + ASTPrinter.print(ast));
+            output.flush();
+            return OK;
+        }
+        if (disassemble) {
+            output.print(Disassembler.disassemble(BytecodeCompiler.compileProgram(ast)));
+            output.flush();
+            return OK;
+        }
+
+        Interpreter interpreter = new Interpreter();
+        if (engine != null) {
+            interpreter.setEngine(engine);
+        }
+        interpreter.setOutput(output);
+        interpreter.setInput(stdin::readLine);
+        interpreter.getSafepoint().setTimeLimit(timeout);
+        interpreter.getSafepoint().setStepLimit(maxSteps);
+        if (profilePath != null) {
+            interpreter.setProfiler(new Profiler());
+        }
+        int status = OK;
+        try {
+            interpreter.run(ast);
+        } catch (ScriptStoppedException e) {
+            System.err.println("Error: " + e.getMessage());
+            status = LIMIT_EXCEEDED;
+        } catch (RuntimeException | StackOverflowError e) {
+            // The output was flushed by run, the error comes after it.
+            System.err.println("Error: " + (e instanceof StackOverflowError ? "Stack overflow" : e.getMessage()));
+            status = RUNTIME_ERROR;
+        }
+        // A failed run is profiled too.
+        if (profilePath != null && !writeProfile(interpreter.getProfiler(), profilePath)) {
+            return IO_ERROR;
+        }
+        return status;
+    }
+
+    // Prints the reports of a profiled run and writes its collapsed stacks, false if the file cannot be written.
+    private static boolean writeProfile(Profiler profiler, String path) {
+        System.err.print(profiler.flatProfile());
+        System.err.println();
+        System.err.print(profiler.callTree());
+        try {
+            Files.write(Paths.get(path), profiler.collapsedStacks().getBytes(StandardCharsets.UTF_8));
+            return true;
+        } catch (IOException e) {
+            System.err.println("Error: cannot write " + path);
+            return false;
+        }
+    }
+}
@@ -0,0 +1,77 @@
+// Polled by every engine on loop back-edges and on function entry. Stops the script when it was
+// cancelled (cancel() or an interrupt of the running thread), when its time is up or when it ran
+// out of steps (one step per poll).
+// A poll only decrements a counter, the real checks run once every CHECK_INTERVAL polls.
+public final class Safepoint {
+    static final int CHECK_INTERVAL = 4096;
+
+    private int countdown = CHECK_INTERVAL; // Polls left before the next check.
+    private int interval = CHECK_INTERVAL;  // Polls between the previous check and the next one.
+    private long steps;                     // Polls counted up to the previous check.
+    private long maxSteps = Long.MAX_VALUE;
+    private long timeLimitNanos;            // 0 for no limit.
+    private long deadline;
+    private volatile boolean cancelled;
+
+    // Maximum number of steps of a run, 0 for no limit.
+    public void setStepLimit(long maxSteps) {
+        this.maxSteps = maxSteps > 0 ? maxSteps : Long.MAX_VALUE;
+    }
+
+    // Maximum wall-clock time of a run in milliseconds, 0 for no limit.
+    public void setTimeLimit(long millis) {
+        this.timeLimitNanos = millis > 0 ? millis * 1_000_000 : 0;
+    }
+
+    // Asks the running script to stop at its next check, can be called from any thread. A cancel that
+    // comes before the run starts (while the script is parsed, say) stops the run before its first line.
+    public void cancel() {
+        cancelled = true;
+    }
+
+    public long getSteps() {
+        return steps + interval - countdown;
+    }
+
+    // Called when a run starts: counts from 0 and starts the clock.
+    void start() {
+        steps = 0;
+        deadline = System.nanoTime() + timeLimitNanos;
+        arm();
+        if (cancelled) {
+            cancelled = false;
+            throw new ScriptStoppedException(1, "Execution cancelled");
+        }
+    }
+
+    // Called when a run ends, the cancel was for this run.
+    void finish() {
+        cancelled = false;
+    }
+
+    private void arm() {
+        long remaining = maxSteps - steps;
+        interval = remaining >= CHECK_INTERVAL ? CHECK_INTERVAL : (int) remaining + 1; // Stops at step maxSteps + 1.
+        countdown = interval;
+    }
+
+    public void poll(int line) {
+        if (--countdown <= 0) {
+            check(line);
+        }
+    }
+
+    private void check(int line) {
+        steps += interval;
+        if (cancelled || Thread.currentThread().isInterrupted()) {
+            throw new ScriptStoppedException(line, "Execution cancelled");
+        }
+        if (timeLimitNanos > 0 && System.nanoTime() - deadline > 0) {
+            throw new ScriptStoppedException(line, "Time limit exceeded");
+        }
+        if (steps > maxSteps) {
+            throw new ScriptStoppedException(line, "Step limit of " + maxSteps + " exceeded");
+        }
+        arm();
+    }
+}
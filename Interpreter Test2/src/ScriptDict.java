@@ -0,0 +1,95 @@
+import java.util.Iterator;
+import java.util.Objects;
+
+// Dict value of the scripts ({key: value, ...}), backed by a HashTable. Iterating gives the keys.
+public class ScriptDict implements Iterable<Object> {
+    final HashTable table = new HashTable(true);
+
+    public int size() {
+        return table.size();
+    }
+
+    public boolean containsKey(Object key) {
+        return table.find(key) >= 0;
+    }
+
+    // Value of a key, null when the key is missing (use containsKey to tell them apart).
+    public Object get(Object key) {
+        int entry = table.find(key);
+        return entry >= 0 ? table.valueAt(entry) : null;
+    }
+
+    public void put(Object key, Object value) {
+        table.setValue(table.insert(key), value);
+    }
+
+    public boolean remove(Object key) {
+        int entry = table.find(key);
+        if (entry < 0) {
+            return false;
+        }
+        table.removeAt(entry);
+        return true;
+    }
+
+    public ScriptList keys() {
+        ScriptList keys = new ScriptList(table.size());
+        for (int i = 0; i < table.entries(); i++) {
+            if (table.isRemoved(i)) {
+                continue;
+            }
+            keys.add(table.keyAt(i));
+        }
+        return keys;
+    }
+
+    public ScriptList values() {
+        ScriptList values = new ScriptList(table.size());
+        for (int i = 0; i < table.entries(); i++) {
+            if (table.isRemoved(i)) {
+                continue;
+            }
+            values.add(table.valueAt(i));
+        }
+        return values;
+    }
+
+    @Override
+    public Iterator<Object> iterator() {
+        return table.keys();
+    }
+
+    // Same keys with equal values, in any order.
+    @Override
+    public boolean equals(Object other) {
+        if (!(other instanceof ScriptDict)) {
+            return false;
+        }
+        ScriptDict dict = (ScriptDict) other;
+        if (dict.size() != size()) {
+            return false;
+        }
+        for (int i = 0; i < table.entries(); i++) {
+            if (table.isRemoved(i)) {
+                continue;
+            }
+            int entry = dict.table.find(table.keyAt(i));
+            if (entry < 0 || !Objects.equals(table.valueAt(i), dict.table.valueAt(entry))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public int hashCode() {
+        int hash = 0;
+        for (int i = 0; i < table.entries(); i++) {
+            if (table.isRemoved(i)) {
+                continue;
+            }
+            hash += table.keyAt(i).hashCode() ^ Objects.hashCode(table.valueAt(i));
+        }
+        return hash;
+    }
+}
@@ -0,0 +1,262 @@
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.RandomAccess;
+
+// List value of the scripts, with storage strategies (like PyPy's list strategies).
+// A list of Integers is kept in an int[], a list of Doubles in a double[], anything else in an Object[].
+// The first element of another type switches the list to Object storage for good. Integers and
+// Doubles are never stored in the same primitive array, so every element keeps its exact type.
+public class ScriptList extends AbstractList<Object> implements RandomAccess {
+    // Storage strategies.
+    private static final byte EMPTY = 0;  // No element added yet, the first one picks the strategy.
+    private static final byte INT = 1;
+    private static final byte DOUBLE = 2;
+    private static final byte OBJECT = 3;
+
+    private byte strategy = EMPTY;
+    private int[] ints;
+    private double[] doubles;
+    private Object[] objects;
+    private int size;
+    private final int initialCapacity;
+
+    public ScriptList() {
+        this(10);
+    }
+
+    public ScriptList(int initialCapacity) {
+        this.initialCapacity = Math.max(initialCapacity, 4);
+    }
+
+    // List of Integers backed by the given array (used when a range is materialized).
+    ScriptList(int[] values) {
+        this(values.length);
+        if (values.length > 0) {
+            strategy = INT;
+            ints = values;
+            size = values.length;
+        }
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index " + index + " out of bounds for length " + size);
+        }
+    }
+
+    // Picks the strategy for the first element.
+    private void initialize(Object value) {
+        if (value instanceof Integer) {
+            strategy = INT;
+            ints = new int[initialCapacity];
+        } else if (value instanceof Double) {
+            strategy = DOUBLE;
+            doubles = new double[initialCapacity];
+        } else {
+            strategy = OBJECT;
+            objects = new Object[initialCapacity];
+        }
+    }
+
+    private boolean fits(Object value) {
+        switch (strategy) {
+            case INT: return value instanceof Integer;
+            case DOUBLE: return value instanceof Double;
+            default: return true;
+        }
+    }
+
+    // Switches to Object storage, boxing the current elements.
+    private void generalize() {
+        Object[] values = new Object[Math.max(capacity(), initialCapacity)];
+        for (int i = 0; i < size; i++) {
+            values[i] = get(i);
+        }
+        objects = values;
+        ints = null;
+        doubles = null;
+        strategy = OBJECT;
+    }
+
+    private int capacity() {
+        switch (strategy) {
+            case INT: return ints.length;
+            case DOUBLE: return doubles.length;
+            case OBJECT: return objects.length;
+            default: return 0;
+        }
+    }
+
+    private void grow() {
+        int capacity = Math.max(capacity() * 2, initialCapacity);
+        switch (strategy) {
+            case INT: ints = Arrays.copyOf(ints, capacity); break;
+            case DOUBLE: doubles = Arrays.copyOf(doubles, capacity); break;
+            default: objects = Arrays.copyOf(objects, capacity); break;
+        }
+    }
+
+    // Moves the elements from 'from' on by 'distance' (positive to insert, negative to remove).
+    private void shift(int from, int distance) {
+        int count = size - from;
+        switch (strategy) {
+            case INT: System.arraycopy(ints, from, ints, from + distance, count); break;
+            case DOUBLE: System.arraycopy(doubles, from, doubles, from + distance, count); break;
+            default: System.arraycopy(objects, from, objects, from + distance, count); break;
+        }
+    }
+
+    private void store(int index, Object value) {
+        switch (strategy) {
+            case INT: ints[index] = (Integer) value; break;
+            case DOUBLE: doubles[index] = (Double) value; break;
+            default: objects[index] = value; break;
+        }
+    }
+
+    @Override
+    public Object get(int index) {
+        checkIndex(index);
+        switch (strategy) {
+            case INT: return ints[index];
+            case DOUBLE: return doubles[index];
+            default: return objects[index];
+        }
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public Object set(int index, Object value) {
+        Object old = get(index);
+        if (!fits(value)) {
+            generalize();
+        }
+        store(index, value);
+        return old;
+    }
+
+    @Override
+    public boolean add(Object value) {
+        if (strategy == EMPTY) {
+            initialize(value);
+        } else if (!fits(value)) {
+            generalize();
+        }
+        if (size == capacity()) {
+            grow();
+        }
+        store(size++, value);
+        modCount++;
+        return true;
+    }
+
+    @Override
+    public void add(int index, Object value) {
+        if (index < 0 || index > size) {
+            throw new IndexOutOfBoundsException("Index " + index + " out of bounds for length " + size);
+        }
+        if (strategy == EMPTY) {
+            initialize(value);
+        } else if (!fits(value)) {
+            generalize();
+        }
+        if (size == capacity()) {
+            grow();
+        }
+        shift(index, 1);
+        store(index, value);
+        size++;
+        modCount++;
+    }
+
+    @Override
+    public Object remove(int index) {
+        Object old = get(index);
+        shift(index + 1, -1);
+        size--;
+        if (strategy == OBJECT) {
+            objects[size] = null;
+        }
+        modCount++;
+        return old;
+    }
+
+    @Override
+    public boolean remove(Object value) {
+        int index = indexOf(value);
+        if (index < 0) {
+            return false;
+        }
+        remove(index);
+        return true;
+    }
+
+    // Same result as ArrayList.indexOf (equals), without boxing the primitive elements.
+    @Override
+    public int indexOf(Object value) {
+        switch (strategy) {
+            case INT:
+                if (value instanceof Integer) {
+                    int target = (Integer) value;
+                    for (int i = 0; i < size; i++) {
+                        if (ints[i] == target) return i;
+                    }
+                }
+                return -1;
+            case DOUBLE:
+                if (value instanceof Double) {
+                    long target = Double.doubleToLongBits((Double) value);
+                    for (int i = 0; i < size; i++) {
+                        if (Double.doubleToLongBits(doubles[i]) == target) return i;
+                    }
+                }
+                return -1;
+            case OBJECT:
+                for (int i = 0; i < size; i++) {
+                    if (Objects.equals(value, objects[i])) return i;
+                }
+                return -1;
+            default:
+                return -1;
+        }
+    }
+
+    @Override
+    public boolean contains(Object value) {
+        return indexOf(value) >= 0;
+    }
+
+    // Elements start, start + step, ... before end, copied with the same storage strategy.
+    // Indices are already clamped by Interpreter.slice, an index outside the list fails like get().
+    ScriptList slice(int start, int end, int step) {
+        ScriptList result = new ScriptList();
+        if (strategy == EMPTY || (step > 0 ? start >= end : start <= end)) {
+            return result;
+        }
+        int count = (int) (step > 0 ? ((long) end - start + step - 1) / step : ((long) start - end - step - 1) / -step);
+        checkIndex(start);
+        checkIndex(start + (count - 1) * step);
+        result.strategy = strategy;
+        result.size = count;
+        switch (strategy) {
+            case INT:
+                result.ints = new int[Math.max(count, 4)];
+                for (int i = 0, j = start; i < count; i++, j += step) result.ints[i] = ints[j];
+                break;
+            case DOUBLE:
+                result.doubles = new double[Math.max(count, 4)];
+                for (int i = 0, j = start; i < count; i++, j += step) result.doubles[i] = doubles[j];
+                break;
+            default:
+                result.objects = new Object[Math.max(count, 4)];
+                for (int i = 0, j = start; i < count; i++, j += step) result.objects[i] = objects[j];
+                break;
+        }
+        return result;
+    }
+}
@@ -0,0 +1,148 @@
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Embedding API: an isolated script session with its own interpreter, globals (the built-ins plus
+// whatever the host puts in), input source and output sink. Sessions share no mutable state, so
+// any number of them can run at the same time, each on its own (virtual) thread.
+// One session runs one script at a time, eval calls from several threads take turns.
+// Variables a script assigns at the top level belong to that eval, put and get work on the globals.
+// Without setOutput print goes to System.out, without setInput input() answers with empty strings.
+//
+//   ScriptSession session = new ScriptSession();
+//   session.setOutput(sink);
+//   session.put("name", "Ada");
+//   session.eval("print(\"Hello \" + name)");
+public class ScriptSession {
+    private final Interpreter interpreter = new Interpreter();
+    // Not synchronized: a virtual thread waiting in input() must not pin its carrier thread.
+    private final ReentrantLock lock = new ReentrantLock();
+    // Thread of the eval holding the lock and whether cancel interrupted it, guarded by this.
+    private Thread running;
+    private boolean interrupted;
+
+    public void setEngine(Interpreter.Engine engine) {
+        lock.lock();
+        try {
+            interpreter.setEngine(engine);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void setOutput(OutputSink output) {
+        lock.lock();
+        try {
+            interpreter.setOutput(output);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void setInput(InputSource input) {
+        lock.lock();
+        try {
+            interpreter.setInput(input);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Limits every following eval, 0 means no limit.
+    public void setTimeLimit(long millis) {
+        interpreter.getSafepoint().setTimeLimit(millis);
+    }
+
+    public void setStepLimit(long steps) {
+        interpreter.getSafepoint().setStepLimit(steps);
+    }
+
+    // Defines a global variable. Values are script values: Integer, Double, String, Boolean,
+    // List, ScriptDict, ScriptSet or a Callable the scripts can call.
+    public void put(String name, Object value) {
+        lock.lock();
+        try {
+            interpreter.globals.define(name, value);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Undefines a global variable the host put in.
+    public void remove(String name) {
+        lock.lock();
+        try {
+            interpreter.globals.remove(name);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Value of a global variable, or null if it is not defined.
+    public Object get(String name) {
+        lock.lock();
+        try {
+            return interpreter.globals.exists(name) ? interpreter.globals.get(name) : null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Runs a script and returns the value of its last statement (or of a top-level return).
+    // Syntax and runtime errors are thrown as RuntimeExceptions with the message the console shows.
+    public Object eval(String code) {
+        lock.lock();
+        try {
+            synchronized (this) {
+                running = Thread.currentThread();
+            }
+            try {
+                ASTNode program = Optimizer.optimize(new Parser(new Lexer(code)).parse());
+                new Resolver().resolve(program);
+                // For the typed operators, the warnings are left to the console and Runner.
+                TypeInference.infer(program, interpreter.globals);
+                Object result = interpreter.run(program);
+                return result instanceof Return ? ((Return) result).value : result;
+            } finally {
+                // A cancel must not outlive the eval, even one that failed to parse.
+                synchronized (this) {
+                    running = null;
+                    if (interrupted) {
+                        interrupted = false;
+                        Thread.interrupted();
+                    }
+                    interpreter.getSafepoint().finish();
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Runs a script on a new virtual thread. While the script waits in input() (on a QueueInputSource
+    // for example) the virtual thread is parked and unmounted, so a waiting session costs heap only.
+    public CompletableFuture<Object> evalAsync(String code) {
+        CompletableFuture<Object> result = new CompletableFuture<>();
+        Thread.ofVirtual().name("script-session").start(() -> {
+            try {
+                result.complete(eval(code));
+            } catch (Throwable e) {
+                // Every failure goes to the future, an OutOfMemoryError too, or get() would wait forever.
+                result.completeExceptionally(e);
+            }
+        });
+        return result;
+    }
+
+    // Stops the running eval at its next safepoint, can be called from any thread. The eval thread is
+    // interrupted too, which ends a wait in input(). Without a running eval the next one is stopped,
+    // so evalAsync followed by cancel stops the script even when it has not started yet.
+    public void cancel() {
+        interpreter.cancel();
+        synchronized (this) {
+            if (running != null) {
+                running.interrupt();
+                interrupted = true;
+            }
+        }
+    }
+}
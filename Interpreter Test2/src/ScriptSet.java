@@ -0,0 +1,65 @@
+import java.util.Iterator;
+
+// Set value of the scripts ({a, b, ...}), backed by a HashTable without values.
+public class ScriptSet implements Iterable<Object> {
+    final HashTable table = new HashTable(false);
+
+    public int size() {
+        return table.size();
+    }
+
+    public boolean contains(Object element) {
+        return table.find(element) >= 0;
+    }
+
+    public void add(Object element) {
+        table.insert(element);
+    }
+
+    public boolean remove(Object element) {
+        int entry = table.find(element);
+        if (entry < 0) {
+            return false;
+        }
+        table.removeAt(entry);
+        return true;
+    }
+
+    @Override
+    public Iterator<Object> iterator() {
+        return table.keys();
+    }
+
+    // Same elements, in any order.
+    @Override
+    public boolean equals(Object other) {
+        if (!(other instanceof ScriptSet)) {
+            return false;
+        }
+        ScriptSet set = (ScriptSet) other;
+        if (set.size() != size()) {
+            return false;
+        }
+        for (int i = 0; i < table.entries(); i++) {
+            if (table.isRemoved(i)) {
+                continue;
+            }
+            if (!set.contains(table.keyAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public int hashCode() {
+        int hash = 0;
+        for (int i = 0; i < table.entries(); i++) {
+            if (table.isRemoved(i)) {
+                continue;
+            }
+            hash += table.keyAt(i).hashCode();
+        }
+        return hash;
+    }
+}
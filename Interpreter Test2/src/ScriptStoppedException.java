@@ -0,0 +1,7 @@
+// Thrown at a safepoint when a script is cancelled or runs out of time or steps.
+public class ScriptStoppedException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+    public ScriptStoppedException(int line, String message) {
+        super("Runtime error at line " + line + ": " + message);
+    }
+}
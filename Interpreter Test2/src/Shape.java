@@ -0,0 +1,70 @@
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+// Hidden class of instances (like the maps of V8): the field names of an instance in slot order.
+// Instances that got the same fields in the same order share a shape, adding a field moves an
+// instance to the next shape through a cached transition. Every class has its own root shape,
+// so a shape also tells the class of its instances.
+public final class Shape {
+    private static final int LINEAR_SEARCH = 8; // Up to this many fields a scan is faster than hashing.
+
+    final ClassValue owner;
+    private final String[] names;
+    private final Map<String, Integer> slots;    // Name -> slot, only for shapes with many fields.
+    private Map<String, Shape> transitions;      // Shapes with one more field, by its name.
+
+    Shape(ClassValue owner) {
+        this(owner, new String[0]);
+    }
+
+    private Shape(ClassValue owner, String[] names) {
+        this.owner = owner;
+        this.names = names;
+        if (names.length > LINEAR_SEARCH) {
+            slots = new HashMap<>();
+            for (int i = 0; i < names.length; i++) {
+                slots.put(names[i], i);
+            }
+        } else {
+            slots = null;
+        }
+    }
+
+    public int size() {
+        return names.length;
+    }
+
+    public String nameAt(int slot) {
+        return names[slot];
+    }
+
+    // Slot of a field, or -1 if instances of this shape do not have it.
+    public int indexOf(String name) {
+        if (slots != null) {
+            Integer slot = slots.get(name);
+            return slot == null ? -1 : slot;
+        }
+        for (int i = 0; i < names.length; i++) {
+            if (names[i].equals(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // Shape of an instance of this shape after adding a field, its slot is the old size.
+    Shape with(String name) {
+        if (transitions == null) {
+            transitions = new HashMap<>(4);
+        }
+        Shape next = transitions.get(name);
+        if (next == null) {
+            String[] nextNames = Arrays.copyOf(names, names.length + 1);
+            nextNames[names.length] = name;
+            next = new Shape(owner, nextNames);
+            transitions.put(name, next);
+        }
+        return next;
+    }
+}
@@ -0,0 +1,51 @@
+import javax.swing.JTextArea;
+import javax.swing.SwingUtilities;
+
+// Input source for the console window: input() makes the console editable after the prompt
+// and waits until the user presses Enter, submit() hands the typed line over.
+// The script thread never waits for the event dispatch thread, it only parks on the queue of lines.
+public class SwingInputSource implements InputSource {
+    private final JTextArea console;
+    private final QueueInputSource lines = new QueueInputSource();
+    private int inputStart = 0; // Position in the console document where user input begins, used on the EDT.
+
+    public SwingInputSource(JTextArea console) {
+        this.console = console;
+    }
+
+    // Start of the editable part of the console, runs on the event dispatch thread.
+    public int getInputStart() {
+        return inputStart;
+    }
+
+    // Forgets the input position and any unread line when the console is cleared.
+    public void reset() {
+        inputStart = 0;
+        lines.clear();
+    }
+
+    @Override
+    public String readLine() {
+        // Runs after the drain of the prompt the output sink has queued, so the input starts after it.
+        SwingUtilities.invokeLater(() -> {
+            // Temporarily allow editing after the prompt.
+            console.setEditable(true);
+            inputStart = console.getDocument().getLength();
+            console.setCaretPosition(inputStart);
+        });
+        return lines.readLine();
+    }
+
+    // Enter was pressed, hands the text after the prompt to the waiting script. Runs on the EDT.
+    public void submit() {
+        if (!console.isEditable()) {
+            return; // No input() is waiting.
+        }
+        String typed = console.getText().substring(inputStart);
+        console.append("\n");
+        console.setCaretPosition(console.getDocument().getLength());
+        // Disable editing again.
+        console.setEditable(false);
+        lines.offer(typed);
+    }
+}
@@ -0,0 +1,72 @@
+import javax.swing.JTextArea;
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+// Output sink for the console window. Lines are collected in a buffer and appended to the
+// text area in one batch per frame (about 60 per second), not one Swing event per character.
+public class SwingOutputSink implements OutputSink {
+    private static final int FRAME_MILLIS = 16;
+
+    private final JTextArea console;
+    private final StringBuilder pending = new StringBuilder();
+    private final Timer timer;
+
+    public SwingOutputSink(JTextArea console) {
+        this.console = console;
+        this.timer = new Timer(FRAME_MILLIS, e -> drain());
+        this.timer.setRepeats(false);
+    }
+
+    @Override
+    public void print(String text) {
+        boolean schedule;
+        synchronized (pending) {
+            schedule = pending.length() == 0;
+            pending.append(text);
+        }
+        if (schedule) {
+            timer.restart();
+        }
+    }
+
+    // Appends the buffered text, runs on the event dispatch thread.
+    private void drain() {
+        String text;
+        synchronized (pending) {
+            if (pending.length() == 0) {
+                return;
+            }
+            text = pending.toString();
+            pending.setLength(0);
+        }
+        console.append(text);
+        console.setCaretPosition(console.getDocument().getLength());
+    }
+
+    @Override
+    public void flush() {
+        if (SwingUtilities.isEventDispatchThread()) {
+            drain();
+            return;
+        }
+        // Not invokeAndWait, it waits on a monitor and would pin a virtual script thread to its carrier.
+        CompletableFuture<Void> drained = new CompletableFuture<>();
+        SwingUtilities.invokeLater(() -> {
+            try {
+                drain();
+                drained.complete(null);
+            } catch (RuntimeException e) {
+                drained.completeExceptionally(e);
+            }
+        });
+        try {
+            drained.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Failed to update the console", e.getCause());
+        }
+    }
+}
@@ -0,0 +1,13 @@
+// Completion of 'return f(...)' inside a function: the call that is still to be made. It travels out
+// through the blocks and loops like any Return, then Function.call runs it in a loop instead of
+// calling it from the returning function, so tail recursion does not grow the Java stack.
+final class TailCall extends Return {
+    final Function function;
+    final Frame frame; // Call frame with the arguments in the parameter slots.
+
+    TailCall(Function function, Frame frame) {
+        super(null);
+        this.function = function;
+        this.frame = frame;
+    }
+}
@@ -0,0 +1,127 @@
+import java.util.Arrays;
+
+// The tokens of the Lexer as parallel arrays (struct of arrays) instead of one Token object per token.
+// A token is an index: its type, the offset and length of its text in the source, its line and, for
+// INDENT and DEDENT, its indent level. Identifiers and keywords refer to their name in the Symbols table.
+// The text of numbers and strings stays in the source until a Token is made for the parser (Lexer.token).
+class TokenBuffer {
+    private static final TokenType[] TYPES = TokenType.values();
+
+    int[] types = new int[256];
+    int[] starts = new int[256];
+    int[] lengths = new int[256];
+    int[] lines = new int[256];
+    int[] indents = new int[256];
+    int[] symbols = new int[256]; // -1 when the token has no name
+    int count;
+
+    void add(TokenType type, int start, int length, int line, int indent, int symbol) {
+        if (count == types.length) {
+            int capacity = count * 2;
+            types = Arrays.copyOf(types, capacity);
+            starts = Arrays.copyOf(starts, capacity);
+            lengths = Arrays.copyOf(lengths, capacity);
+            lines = Arrays.copyOf(lines, capacity);
+            indents = Arrays.copyOf(indents, capacity);
+            symbols = Arrays.copyOf(symbols, capacity);
+        }
+        types[count] = type.ordinal();
+        starts[count] = start;
+        lengths[count] = length;
+        lines[count] = line;
+        indents[count] = indent;
+        symbols[count] = symbol;
+        count++;
+    }
+
+    TokenType type(int index) {
+        return TYPES[types[index]];
+    }
+
+    // Type of the last token, null when the buffer is empty.
+    TokenType last() {
+        return count == 0 ? null : TYPES[types[count - 1]];
+    }
+
+    // Drops the tokens, the arrays are kept for the next ones.
+    void clear() {
+        count = 0;
+    }
+}
+
+// Symbol table of the Lexer: every identifier and keyword is stored once and found again without
+// building a String from the source (open addressing on the hash of the characters).
+// The keywords are the first symbols, so the type of a word is the keyword type of its symbol.
+class Symbols {
+    private String[] names = new String[64];
+    private final TokenType[] keywords;
+    private int[] table = new int[128]; // symbol + 1, 0 for a free slot
+    private int count;
+
+    Symbols(String[] keywordNames, TokenType[] keywordTypes) {
+        keywords = keywordTypes;
+        for (String name : keywordNames) {
+            intern(name, 0, name.length());
+        }
+    }
+
+    // Returns the symbol of the characters source[start, start + length), adding it when new.
+    int intern(CharSequence source, int start, int length) {
+        int hash = 0;
+        for (int i = 0; i < length; i++) {
+            hash = 31 * hash + source.charAt(start + i);
+        }
+        int mask = table.length - 1;
+        int slot = (hash ^ (hash >>> 16)) & mask;
+        while (table[slot] != 0) {
+            String name = names[table[slot] - 1];
+            if (matches(name, source, start, length)) {
+                return table[slot] - 1;
+            }
+            slot = (slot + 1) & mask;
+        }
+        if (count == names.length) {
+            names = Arrays.copyOf(names, count * 2);
+        }
+        names[count] = source.subSequence(start, start + length).toString();
+        table[slot] = ++count;
+        if (count * 2 > table.length) {
+            rehash();
+        }
+        return count - 1;
+    }
+
+    private static boolean matches(String name, CharSequence source, int start, int length) {
+        if (name.length() != length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (name.charAt(i) != source.charAt(start + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void rehash() {
+        table = new int[table.length * 2];
+        int mask = table.length - 1;
+        for (int symbol = 0; symbol < count; symbol++) {
+            int hash = names[symbol].hashCode(); // Same hash as the loop in intern
+            int slot = (hash ^ (hash >>> 16)) & mask;
+            while (table[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            table[slot] = symbol + 1;
+        }
+    }
+
+    String name(int symbol) {
+        return names[symbol];
+    }
+
+    // The keyword type of a symbol, IDENTIFIER for the other names.
+    TokenType type(int symbol) {
+        return symbol < keywords.length ? keywords[symbol] : TokenType.IDENTIFIER;
+    }
+}
@@ -7,7 +7,7 @@ public enum TokenType {
     INDENT, DEDENT, NEWLINE, GREATER, LESS,
     GREATER_EQUAL, LESS_EQUAL, NOT, NOTEQUAL,
     RETURN, DOT, EQUAL_EQUAL, TRUE, FALSE,
-    FOR, WHILE, IN, LBRACKET, RBRACKET,
+    FOR, WHILE, IN, LBRACKET, RBRACKET, LBRACE, RBRACE,
     COLON, PLUS_EQUAL, MINUS_EQUAL, MULTIPLY_EQUAL, DIVIDE_EQUAL,
     MODULO,
     EOF
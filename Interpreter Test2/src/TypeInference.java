@@ -0,0 +1,457 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Static types of expressions, as far as TypeInference can tell them before the program runs.
+// A type says what an expression gives when it does not fail: NUMBER is an Integer or a Double.
+enum ValueType {
+    NUMBER, STRING, BOOLEAN, NULL, LIST, DICT, SET, UNKNOWN;
+
+    // Name used in warnings.
+    String describe() {
+        switch (this) {
+            case NUMBER: return "a number";
+            case STRING: return "a string";
+            case BOOLEAN: return "a boolean";
+            case NULL: return "null";
+            case LIST: return "a list";
+            case DICT: return "a dict";
+            default: return "a set";
+        }
+    }
+}
+
+// Flow-sensitive type inference over the top level and every function body, run after the Resolver.
+// Types start from literals, int() and float() and go through the operators: - * / % always give a
+// number, comparisons a boolean, + a number unless a side can be a string. Every frame keeps the type of
+// each variable that is assigned on all paths so far; branches are joined and loops are repeated until
+// their types stop changing. Variables of enclosing frames, parameters, fields and call results are
+// unknown, and so is a variable that may still be unset (it would be looked up in the enclosing frames).
+// Each expression node gets its type in ASTNode.type. The engines skip the type checks of operators whose
+// operands are known numbers. Operations that fail whatever the values are reported as warnings.
+final class TypeInference {
+    private final List<FrameLayout> scopes = new ArrayList<>();
+    // Types of the variables of the frames being analyzed, null while a variable may be unset.
+    // Frames of enclosing functions are not in the map, their variables are unknown.
+    private Map<FrameLayout, ValueType[]> state = new IdentityHashMap<>();
+    private final Map<ASTNode, String> warnings = new LinkedHashMap<>();
+    private final Frame globals; // Globals the program runs with, null when they are just the built-ins.
+
+    private TypeInference(Frame globals) {
+        this.globals = globals;
+    }
+
+    // Annotates a resolved program and returns the warnings, ordered by line.
+    public static List<String> infer(ASTNode program) {
+        return infer(program, null);
+    }
+
+    // Same for a program that runs with globals a host may have changed (ScriptSession.put): int and
+    // float only give numbers while they are still the built-ins.
+    public static List<String> infer(ASTNode program, Frame globals) {
+        TypeInference inference = new TypeInference(globals);
+        if (program instanceof BlockNode) {
+            inference.block((BlockNode) program);
+        } else {
+            inference.statement(program);
+        }
+        List<Map.Entry<ASTNode, String>> entries = new ArrayList<>(inference.warnings.entrySet());
+        entries.sort((a, b) -> Integer.compare(a.getKey().line, b.getKey().line));
+        List<String> result = new ArrayList<>();
+        for (Map.Entry<ASTNode, String> entry : entries) {
+            result.add("Warning at line " + entry.getKey().line + ": " + entry.getValue());
+        }
+        return result;
+    }
+
+    // === State ===
+
+    // Whether a global function gives a number: int() and float(), when the globals still have them.
+    private boolean givesNumber(String name) {
+        if (name.equals("int")) {
+            return globals == null || globals.exists(name) && globals.get(name) instanceof IntFunction;
+        }
+        if (name.equals("float")) {
+            return globals == null || globals.exists(name) && globals.get(name) instanceof FloatFunction;
+        }
+        return false;
+    }
+
+    private ValueType[] current() {
+        return state.get(scopes.getLast());
+    }
+
+    private void enter(FrameLayout layout) {
+        scopes.add(layout);
+        state.put(layout, new ValueType[layout.size()]);
+    }
+
+    private void leave() {
+        state.remove(scopes.removeLast());
+    }
+
+    private Map<FrameLayout, ValueType[]> copy(Map<FrameLayout, ValueType[]> from) {
+        Map<FrameLayout, ValueType[]> copy = new IdentityHashMap<>();
+        for (Map.Entry<FrameLayout, ValueType[]> entry : from.entrySet()) {
+            copy.put(entry.getKey(), entry.getValue().clone());
+        }
+        return copy;
+    }
+
+    // State where two paths meet: a variable keeps its type only if both paths assigned the same one.
+    private static Map<FrameLayout, ValueType[]> join(Map<FrameLayout, ValueType[]> a, Map<FrameLayout, ValueType[]> b) {
+        Map<FrameLayout, ValueType[]> joined = new IdentityHashMap<>();
+        for (Map.Entry<FrameLayout, ValueType[]> entry : a.entrySet()) {
+            ValueType[] left = entry.getValue();
+            ValueType[] right = b.get(entry.getKey());
+            ValueType[] types = new ValueType[left.length];
+            for (int i = 0; i < types.length; i++) {
+                types[i] = join(left[i], right[i]);
+            }
+            joined.put(entry.getKey(), types);
+        }
+        return joined;
+    }
+
+    private static ValueType join(ValueType a, ValueType b) {
+        if (a == null || b == null) {
+            return null;
+        }
+        return a == b ? a : ValueType.UNKNOWN;
+    }
+
+    private static boolean same(Map<FrameLayout, ValueType[]> a, Map<FrameLayout, ValueType[]> b) {
+        for (Map.Entry<FrameLayout, ValueType[]> entry : a.entrySet()) {
+            if (!Arrays.equals(entry.getValue(), b.get(entry.getKey()))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Runs a loop iteration until the state at the top of the loop no longer changes. The last run
+    // starts from that state, so the types and warnings it leaves hold for every iteration.
+    private void loop(Runnable iteration) {
+        while (true) {
+            Map<FrameLayout, ValueType[]> top = copy(state);
+            iteration.run();
+            state = join(top, state);
+            if (same(state, top)) {
+                return;
+            }
+        }
+    }
+
+    // Type of a variable at (depth, slot), see the class comment.
+    private ValueType variable(int depth, int slot) {
+        if (depth < 0 || depth >= scopes.size()) {
+            return ValueType.UNKNOWN;
+        }
+        ValueType[] types = state.get(scopes.get(scopes.size() - 1 - depth));
+        if (types == null || slot < 0 || slot >= types.length || types[slot] == null) {
+            return ValueType.UNKNOWN;
+        }
+        return types[slot];
+    }
+
+    // === Statements ===
+
+    private void block(BlockNode block) {
+        enter(block.layout);
+        sequence(block);
+        leave();
+    }
+
+    // Statements of a block that runs in the current frame.
+    private void sequence(ASTNode body) {
+        if (body instanceof BlockNode) {
+            for (ASTNode statement : ((BlockNode) body).statements) {
+                statement(statement);
+            }
+        } else {
+            statement(body);
+        }
+    }
+
+    // A branch or loop body, blocks get their own frame.
+    private void body(ASTNode body) {
+        if (body instanceof BlockNode) {
+            block((BlockNode) body);
+        } else {
+            statement(body);
+        }
+    }
+
+    private void statement(ASTNode node) {
+        if (node == null) return;
+        if (node instanceof AssignmentNode) {
+            AssignmentNode assign = (AssignmentNode) node;
+            ValueType type = expression(assign.value);
+            // Inside a method, a name that is still unset is assigned as a field of 'this' instead.
+            ValueType[] types = current();
+            types[assign.slot] = assign.thisDepth >= 0 && types[assign.slot] == null ? null : type;
+        } else if (node instanceof PrintNode) {
+            expression(((PrintNode) node).expression);
+        } else if (node instanceof ReturnNode) {
+            expression(((ReturnNode) node).expression);
+        } else if (node instanceof BlockNode) {
+            block((BlockNode) node);
+        } else if (node instanceof IfNode) {
+            IfNode ifNode = (IfNode) node;
+            expression(ifNode.condition);
+            Map<FrameLayout, ValueType[]> before = copy(state);
+            body(ifNode.thenBranch);
+            Map<FrameLayout, ValueType[]> afterThen = state;
+            state = before;
+            body(ifNode.elseBranch);
+            state = join(afterThen, state);
+        } else if (node instanceof WhileNode) {
+            WhileNode whileNode = (WhileNode) node;
+            loop(() -> {
+                expression(whileNode.condition);
+                sequence(whileNode.body);
+            });
+        } else if (node instanceof ForNode) {
+            forLoop((ForNode) node);
+        } else if (node instanceof ForEachNode) {
+            ForEachNode forEach = (ForEachNode) node;
+            ValueType iterable = expression(forEach.getListExpr());
+            warnings.remove(forEach);
+            if (iterable != ValueType.UNKNOWN && iterable != ValueType.LIST && iterable != ValueType.DICT
+                    && iterable != ValueType.SET) {
+                warn(forEach, "a for-each loop cannot go through " + iterable.describe() + ".");
+            }
+            // The loop frame lives as long as the loop, its variables carry over between iterations.
+            enter(forEach.layout);
+            current()[0] = ValueType.UNKNOWN;
+            loop(() -> sequence(forEach.getBody()));
+            leave();
+        } else if (node instanceof FunctionDefinitionNode) {
+            FunctionDefinitionNode funcDef = (FunctionDefinitionNode) node;
+            current()[funcDef.slot] = ValueType.UNKNOWN;
+            function(funcDef);
+        } else if (node instanceof ClassDefinitionNode) {
+            ClassDefinitionNode classDef = (ClassDefinitionNode) node;
+            // Attributes are assigned in the current frame, like the interpreter does.
+            for (ASTNode member : classDef.members) {
+                if (member instanceof FunctionDefinitionNode) {
+                    function((FunctionDefinitionNode) member);
+                } else {
+                    statement(member);
+                }
+            }
+            current()[classDef.slot] = ValueType.UNKNOWN;
+        } else {
+            expression(node);
+        }
+    }
+
+    // for i = start, end: the variable gets the start value if it is unset, then a number per iteration.
+    private void forLoop(ForNode node) {
+        ValueType start = expression(node.start);
+        ValueType end = expression(node.end);
+        warnings.remove(node);
+        ValueType bound = start != ValueType.NUMBER && start != ValueType.UNKNOWN ? start : end;
+        if (bound != ValueType.NUMBER && bound != ValueType.UNKNOWN) {
+            warn(node, "for loop bounds must be numbers, not " + bound.describe() + ".");
+        }
+        ValueType[] types = current();
+        types[node.slot] = types[node.slot] == ValueType.NUMBER ? ValueType.NUMBER : ValueType.UNKNOWN;
+        loop(() -> {
+            current()[node.slot] = ValueType.NUMBER;
+            body(node.body);
+        });
+    }
+
+    // A function body runs later, in a new frame: only its own variables are analyzed.
+    private void function(FunctionDefinitionNode funcDef) {
+        Map<FrameLayout, ValueType[]> outer = state;
+        state = new IdentityHashMap<>();
+        enter(funcDef.layout);
+        ValueType[] types = current();
+        for (int i = 0; i < funcDef.parameters.size(); i++) {
+            types[i] = ValueType.UNKNOWN;
+        }
+        if (funcDef.thisSlot >= 0) {
+            types[funcDef.thisSlot] = ValueType.UNKNOWN;
+        }
+        sequence(funcDef.body);
+        leave();
+        state = outer;
+    }
+
+    // === Expressions ===
+
+    private ValueType expression(ASTNode node) {
+        if (node == null) {
+            return ValueType.UNKNOWN;
+        }
+        warnings.remove(node);
+        ValueType type = type(node);
+        node.type = type;
+        return type;
+    }
+
+    private void expressions(List<ASTNode> nodes) {
+        for (ASTNode node : nodes) {
+            expression(node);
+        }
+    }
+
+    private ValueType type(ASTNode node) {
+        if (node instanceof ConstantNode) {
+            return typeOf(((ConstantNode) node).value);
+        }
+        if (node instanceof NumberNode) {
+            return ValueType.NUMBER;
+        }
+        if (node instanceof StringNode) {
+            return ValueType.STRING;
+        }
+        if (node instanceof BooleanNode) {
+            return ValueType.BOOLEAN;
+        }
+        if (node instanceof IdentifierNode) {
+            IdentifierNode id = (IdentifierNode) node;
+            return id.thisDepth >= 0 ? ValueType.UNKNOWN : variable(id.depth, id.slot);
+        }
+        if (node instanceof BinaryOpNode) {
+            return binaryOp((BinaryOpNode) node);
+        }
+        if (node instanceof UnaryOpNode) {
+            UnaryOpNode unary = (UnaryOpNode) node;
+            ValueType operand = expression(unary.operand);
+            if (unary.op.value.equals("not")) {
+                return ValueType.BOOLEAN;
+            }
+            if (operand != ValueType.NUMBER && operand != ValueType.UNKNOWN) {
+                warn(node, "'" + unary.op.value + "' cannot be applied to " + operand.describe() + ".");
+            }
+            return ValueType.NUMBER;
+        }
+        if (node instanceof InvariantNode) {
+            return expression(((InvariantNode) node).expression);
+        }
+        if (node instanceof FunctionCallNode) {
+            FunctionCallNode call = (FunctionCallNode) node;
+            expressions(call.arguments);
+            if (call.depth == Resolver.GLOBAL) {
+                return givesNumber(call.name.value) ? ValueType.NUMBER : ValueType.UNKNOWN;
+            }
+            ValueType callee = variable(call.depth, call.slot);
+            if (callee != ValueType.UNKNOWN) {
+                warn(node, call.name.value + " is " + callee.describe() + ", not a function.");
+            }
+            return ValueType.UNKNOWN;
+        }
+        if (node instanceof ListNode) {
+            expressions(((ListNode) node).getElements());
+            return ValueType.LIST;
+        }
+        if (node instanceof DictNode) {
+            expressions(((DictNode) node).keys);
+            expressions(((DictNode) node).values);
+            return ValueType.DICT;
+        }
+        if (node instanceof SetNode) {
+            expressions(((SetNode) node).elements);
+            return ValueType.SET;
+        }
+        if (node instanceof IndexNode) {
+            IndexNode index = (IndexNode) node;
+            ValueType base = expression(index.getBase());
+            expression(index.getIndex());
+            if (base != ValueType.UNKNOWN && base != ValueType.LIST && base != ValueType.DICT) {
+                warn(node, base.describe() + " cannot be indexed.");
+            }
+            return ValueType.UNKNOWN;
+        }
+        if (node instanceof SliceNode) {
+            SliceNode slice = (SliceNode) node;
+            expression(slice.getTarget());
+            expression(slice.getStart());
+            expression(slice.getEnd());
+            expression(slice.getStep());
+            return ValueType.UNKNOWN;
+        }
+        if (node instanceof MethodCallNode) {
+            MethodCallNode call = (MethodCallNode) node;
+            expression(call.target);
+            expressions(call.arguments);
+            return ValueType.UNKNOWN;
+        }
+        if (node instanceof ObjectCreationNode) {
+            expressions(((ObjectCreationNode) node).arguments);
+            return ValueType.UNKNOWN;
+        }
+        if (node instanceof FieldAccessNode) {
+            expression(((FieldAccessNode) node).target);
+            return ValueType.UNKNOWN;
+        }
+        if (node instanceof FieldAssignmentNode) {
+            FieldAssignmentNode assign = (FieldAssignmentNode) node;
+            expression(assign.target);
+            return expression(assign.value);
+        }
+        if (node instanceof IndexAssignmentNode) {
+            IndexAssignmentNode assign = (IndexAssignmentNode) node;
+            expression(assign.getTarget());
+            return expression(assign.getValue());
+        }
+        return ValueType.UNKNOWN;
+    }
+
+    private ValueType binaryOp(BinaryOpNode node) {
+        ValueType left = expression(node.left);
+        ValueType right = expression(node.right);
+        String op = node.op.value;
+        switch (op) {
+            case "==": case "!=": case "and": case "or":
+                return ValueType.BOOLEAN;
+            case "in":
+                if (right != ValueType.UNKNOWN && right != ValueType.LIST && right != ValueType.DICT
+                        && right != ValueType.SET) {
+                    warn(node, "'in' needs a list, dict or set, not " + right.describe() + ".");
+                }
+                return ValueType.BOOLEAN;
+            case "+":
+                if (left == ValueType.STRING || right == ValueType.STRING) {
+                    return ValueType.STRING;
+                }
+                if (left != ValueType.UNKNOWN && right != ValueType.UNKNOWN
+                        && (left != ValueType.NUMBER || right != ValueType.NUMBER)) {
+                    warn(node, "'+' cannot be applied to " + left.describe() + " and " + right.describe() + ".");
+                }
+                return left == ValueType.UNKNOWN || right == ValueType.UNKNOWN ? ValueType.UNKNOWN : ValueType.NUMBER;
+            default:
+                // - * / % and the comparisons only work on two numbers.
+                if (left != ValueType.NUMBER && left != ValueType.UNKNOWN
+                        || right != ValueType.NUMBER && right != ValueType.UNKNOWN) {
+                    warn(node, "'" + op + "' cannot be applied to " + describe(left) + " and " + describe(right) + ".");
+                }
+                return op.equals("<") || op.equals("<=") || op.equals(">") || op.equals(">=")
+                        ? ValueType.BOOLEAN : ValueType.NUMBER;
+        }
+    }
+
+    private static String describe(ValueType type) {
+        return type == ValueType.UNKNOWN ? "a value" : type.describe();
+    }
+
+    private static ValueType typeOf(Object value) {
+        if (value == null) return ValueType.NULL;
+        if (value instanceof Number) return ValueType.NUMBER;
+        if (value instanceof String) return ValueType.STRING;
+        if (value instanceof Boolean) return ValueType.BOOLEAN;
+        return ValueType.UNKNOWN;
+    }
+
+    // A loop body is analyzed again until its types are stable, every analysis of a node first drops
+    // the warning of the previous one, so only the last one counts.
+    private void warn(ASTNode node, String message) {
+        warnings.put(node, message);
+    }
+}
@@ -0,0 +1,548 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+// Stack machine that runs the Chunks built by BytecodeCompiler.
+// Every call of a bytecode function is one execute() with its own operand stack, a return
+// simply returns from it (no exception). A tail call reuses the execute() of the call it replaces.
+// The language semantics come from the Interpreter helpers.
+public class VM {
+    private final Interpreter interpreter;
+
+    public VM(Interpreter interpreter) {
+        this.interpreter = interpreter;
+    }
+
+    private static int read16(byte[] code, int pc) {
+        return ((code[pc] & 0xFF) << 8) | (code[pc + 1] & 0xFF);
+    }
+
+    private static int read32(byte[] code, int pc) {
+        return ((code[pc] & 0xFF) << 24) | ((code[pc + 1] & 0xFF) << 16)
+                | ((code[pc + 2] & 0xFF) << 8) | (code[pc + 3] & 0xFF);
+    }
+
+    // Argument i of the argc arguments on top of the stack, null past the last one (fixed-arity calls).
+    private static Object argument(Object[] stack, int sp, int argc, int i) {
+        return i < argc ? stack[sp - argc + i] : null;
+    }
+
+    // Pops argc values into a list, the first argument is the deepest.
+    private static List<Object> popArguments(Object[] stack, int sp, int argc) {
+        List<Object> arguments = new ArrayList<>(argc);
+        for (int i = sp - argc; i < sp; i++) {
+            arguments.add(stack[i]);
+        }
+        return arguments;
+    }
+
+    @SuppressWarnings("fallthrough") // A TAIL_CALL that cannot reuse the frame is run as a CALL.
+    public Object execute(Chunk chunk, Frame frame) {
+        byte[] code = chunk.code;
+        Object[] constants = chunk.constants;
+        final Safepoint safepoint = interpreter.safepoint;
+        final Profiler profiler = interpreter.profiler;
+        Object[] stack = new Object[chunk.maxStack + 1];
+        int sp = 0;
+        int pc = 0;
+        while (true) {
+            int start = pc;
+            if (profiler != null && chunk.lines[start] > 0) {
+                profiler.line(chunk.lines[start]); // Instructions the compiler added have no line.
+            }
+            byte op = code[pc++];
+            switch (op) {
+                case OpCode.CONST:
+                    stack[sp++] = constants[read16(code, pc)];
+                    pc += 2;
+                    break;
+                case OpCode.NIL:
+                    stack[sp++] = null;
+                    break;
+                case OpCode.LOAD_LOCAL: {
+                    Object value = frame.slots[read16(code, pc)];
+                    if (value == Frame.UNSET) {
+                        // Declared in this scope but not assigned yet, keep searching the enclosing scopes.
+                        value = frame.enclosing.get((String) constants[read16(code, pc + 2)], chunk.lines[start]);
+                    }
+                    stack[sp++] = value;
+                    pc += 4;
+                    break;
+                }
+                case OpCode.LOAD_OUTER:
+                    stack[sp++] = interpreter.lookup(frame, (String) constants[read16(code, pc + 4)],
+                            read16(code, pc), read16(code, pc + 2), chunk.lines[start]);
+                    pc += 6;
+                    break;
+                case OpCode.LOAD_GLOBAL:
+                    stack[sp++] = interpreter.globals.get((String) constants[read16(code, pc)], chunk.lines[start]);
+                    pc += 2;
+                    break;
+                case OpCode.LOAD_NAME:
+                    stack[sp++] = frame.get((String) constants[read16(code, pc)], chunk.lines[start]);
+                    pc += 2;
+                    break;
+                case OpCode.LOAD_VAR: {
+                    Chunk.Variable variable = (Chunk.Variable) constants[read16(code, pc)];
+                    pc += 2;
+                    // Inside a method, fields of 'this' come first.
+                    Object thisVal = frame.ancestor(variable.thisDepth).slots[variable.thisSlot];
+                    int field = thisVal instanceof Instance ? ((Instance) thisVal).getShape().indexOf(variable.name) : -1;
+                    if (field >= 0) {
+                        stack[sp++] = ((Instance) thisVal).getSlot(field);
+                    } else {
+                        stack[sp++] = interpreter.lookup(frame, variable.name, variable.depth, variable.slot, chunk.lines[start]);
+                    }
+                    break;
+                }
+                case OpCode.STORE_LOCAL:
+                    frame.slots[read16(code, pc)] = stack[--sp];
+                    pc += 2;
+                    break;
+                case OpCode.STORE_VAR: {
+                    Chunk.Variable variable = (Chunk.Variable) constants[read16(code, pc)];
+                    pc += 2;
+                    Object value = stack[--sp];
+                    if (frame.slots[variable.slot] == Frame.UNSET) {
+                        // Inside a method, a new name becomes an attribute of the instance.
+                        Object thisVal = frame.ancestor(variable.thisDepth).slots[variable.thisSlot];
+                        if (thisVal instanceof Instance) {
+                            ((Instance) thisVal).set(variable.name, value);
+                            break;
+                        }
+                    }
+                    frame.slots[variable.slot] = value;
+                    break;
+                }
+                case OpCode.POP:
+                    stack[--sp] = null;
+                    break;
+                case OpCode.DUP:
+                    stack[sp] = stack[sp - 1];
+                    sp++;
+                    break;
+
+                case OpCode.ADD: {
+                    Object r = stack[--sp];
+                    Object l = stack[sp - 1];
+                    if (l instanceof Number && r instanceof Number) {
+                        stack[sp - 1] = ((Number) l).doubleValue() + ((Number) r).doubleValue();
+                    } else {
+                        stack[sp - 1] = Interpreter.binaryOp("+", l, r, chunk.lines[start]);
+                    }
+                    break;
+                }
+                case OpCode.SUB: {
+                    Object r = stack[--sp];
+                    Object l = stack[sp - 1];
+                    if (l instanceof Number && r instanceof Number) {
+                        stack[sp - 1] = ((Number) l).doubleValue() - ((Number) r).doubleValue();
+                    } else {
+                        stack[sp - 1] = Interpreter.binaryOp("-", l, r, chunk.lines[start]);
+                    }
+                    break;
+                }
+                case OpCode.MUL: {
+                    Object r = stack[--sp];
+                    Object l = stack[sp - 1];
+                    if (l instanceof Number && r instanceof Number) {
+                        stack[sp - 1] = ((Number) l).doubleValue() * ((Number) r).doubleValue();
+                    } else {
+                        stack[sp - 1] = Interpreter.binaryOp("*", l, r, chunk.lines[start]);
+                    }
+                    break;
+                }
+                case OpCode.LT: {
+                    Object r = stack[--sp];
+                    Object l = stack[sp - 1];
+                    if (l instanceof Number && r instanceof Number) {
+                        stack[sp - 1] = ((Number) l).doubleValue() < ((Number) r).doubleValue();
+                    } else {
+                        stack[sp - 1] = Interpreter.binaryOp("<", l, r, chunk.lines[start]);
+                    }
+                    break;
+                }
+                case OpCode.LE: {
+                    Object r = stack[--sp];
+                    Object l = stack[sp - 1];
+                    if (l instanceof Number && r instanceof Number) {
+                        stack[sp - 1] = ((Number) l).doubleValue() <= ((Number) r).doubleValue();
+                    } else {
+                        stack[sp - 1] = Interpreter.binaryOp("<=", l, r, chunk.lines[start]);
+                    }
+                    break;
+                }
+                case OpCode.GT: {
+                    Object r = stack[--sp];
+                    Object l = stack[sp - 1];
+                    if (l instanceof Number && r instanceof Number) {
+                        stack[sp - 1] = ((Number) l).doubleValue() > ((Number) r).doubleValue();
+                    } else {
+                        stack[sp - 1] = Interpreter.binaryOp(">", l, r, chunk.lines[start]);
+                    }
+                    break;
+                }
+                case OpCode.GE: {
+                    Object r = stack[--sp];
+                    Object l = stack[sp - 1];
+                    if (l instanceof Number && r instanceof Number) {
+                        stack[sp - 1] = ((Number) l).doubleValue() >= ((Number) r).doubleValue();
+                    } else {
+                        stack[sp - 1] = Interpreter.binaryOp(">=", l, r, chunk.lines[start]);
+                    }
+                    break;
+                }
+                case OpCode.EQ: {
+                    Object r = stack[--sp];
+                    stack[sp - 1] = Interpreter.isEqual(stack[sp - 1], r);
+                    break;
+                }
+                case OpCode.NE: {
+                    Object r = stack[--sp];
+                    stack[sp - 1] = !Interpreter.isEqual(stack[sp - 1], r);
+                    break;
+                }
+                case OpCode.DIV:
+                case OpCode.MOD:
+                case OpCode.IN:
+                case OpCode.AND:
+                case OpCode.OR: {
+                    Object r = stack[--sp];
+                    stack[sp - 1] = Interpreter.binaryOp(symbol(op), stack[sp - 1], r, chunk.lines[start]);
+                    break;
+                }
+                case OpCode.NOT:
+                    stack[sp - 1] = !Interpreter.isTruthy(stack[sp - 1]);
+                    break;
+                case OpCode.NEG:
+                    stack[sp - 1] = Interpreter.unaryOp("-", stack[sp - 1], chunk.lines[start]);
+                    break;
+                case OpCode.POS:
+                    stack[sp - 1] = Interpreter.unaryOp("+", stack[sp - 1], chunk.lines[start]);
+                    break;
+
+                case OpCode.JUMP: {
+                    int target = read32(code, pc);
+                    if (target < pc) {
+                        safepoint.poll(chunk.lines[start]); // Loop back-edge.
+                    }
+                    pc = target;
+                    break;
+                }
+                case OpCode.JUMP_IF_FALSE:
+                    if (Interpreter.isTruthy(stack[--sp])) {
+                        pc += 4;
+                    } else {
+                        pc = read32(code, pc);
+                    }
+                    break;
+                case OpCode.ENTER:
+                    frame = new Frame((FrameLayout) constants[read16(code, pc)], frame);
+                    pc += 2;
+                    break;
+                case OpCode.LEAVE:
+                    frame = frame.enclosing;
+                    break;
+                case OpCode.FOR_INIT: {
+                    Object startObj = stack[sp - 2];
+                    Object endObj = stack[sp - 1];
+                    if (!(startObj instanceof Number) || !(endObj instanceof Number)) {
+                        throw Interpreter.runtimeError(chunk.lines[start], "For loop: start and end values must be numbers.");
+                    }
+                    Number startVal = (Number) startObj;
+                    Number endVal = (Number) endObj;
+                    int slot = read16(code, pc);
+                    pc += 2;
+                    if (frame.slots[slot] == Frame.UNSET) {
+                        frame.slots[slot] = startVal;
+                    }
+                    // The loop state is the next counter value and the (inclusive) end.
+                    stack[sp - 2] = (int) startVal;
+                    stack[sp - 1] = (int) endVal;
+                    break;
+                }
+                case OpCode.FOR_NEXT: {
+                    int i = (Integer) stack[sp - 2];
+                    if (i <= (Integer) stack[sp - 1]) {
+                        frame.slots[read16(code, pc)] = (double) i;
+                        stack[sp - 2] = i + 1;
+                        pc += 6;
+                    } else {
+                        stack[--sp] = null;
+                        stack[--sp] = null;
+                        pc = read32(code, pc + 2);
+                    }
+                    break;
+                }
+                case OpCode.ITER_INIT: {
+                    stack[sp - 1] = Interpreter.iterator(stack[sp - 1], chunk.lines[start]);
+                    break;
+                }
+                case OpCode.ITER_NEXT: {
+                    Iterator<?> iterator = (Iterator<?>) stack[sp - 1];
+                    if (iterator.hasNext()) {
+                        frame.slots[0] = iterator.next();
+                        pc += 4;
+                    } else {
+                        stack[--sp] = null;
+                        pc = read32(code, pc);
+                    }
+                    break;
+                }
+                case OpCode.RETURN:
+                    return stack[sp - 1];
+                case OpCode.PRINT:
+                    interpreter.print(stack[--sp]);
+                    stack[sp] = null;
+                    break;
+
+                case OpCode.TAIL_CALL: {
+                    int argc = read16(code, pc + 2);
+                    Object callee = stack[sp - argc - 1];
+                    if (callee instanceof Function && ((Function) callee).chunk != null
+                            && ((Function) callee).arity == argc) {
+                        Function function = (Function) callee;
+                        safepoint.poll(chunk.lines[start]);
+                        if (profiler != null) {
+                            profiler.exit();
+                            profiler.enter(function.profileName(null), function.declaration.line);
+                        }
+                        Object result = function.callCompiled(safepoint, stack, sp - argc);
+                        if (result != Jit.NOT_RUN) {
+                            return result;
+                        }
+                        // Runs the callee's chunk in place of this one.
+                        Frame callFrame = new Frame(function.declaration.layout, function.closure);
+                        System.arraycopy(stack, sp - argc, callFrame.slots, 0, argc);
+                        chunk = function.chunk;
+                        code = chunk.code;
+                        constants = chunk.constants;
+                        if (stack.length <= chunk.maxStack) {
+                            stack = new Object[chunk.maxStack + 1];
+                        } else {
+                            Arrays.fill(stack, 0, sp, null);
+                        }
+                        frame = callFrame;
+                        sp = 0;
+                        pc = 0;
+                        break;
+                    }
+                    // Anything else is called the normal way, the RETURN after the call returns its result.
+                }
+                // fall through
+                case OpCode.CALL: {
+                    String name = (String) constants[read16(code, pc)];
+                    int argc = read16(code, pc + 2);
+                    pc += 4;
+                    Object callee = stack[sp - argc - 1];
+                    Object result;
+                    if (callee instanceof Function && ((Function) callee).chunk != null) {
+                        Function function = (Function) callee;
+                        if (argc != function.declaration.parameters.size()) {
+                            throw Interpreter.runtimeError(chunk.lines[start], "Function " + name + " expects " +
+                                    function.declaration.parameters.size() + " arguments, but got " + argc);
+                        }
+                        safepoint.poll(chunk.lines[start]);
+                        if (profiler != null) {
+                            profiler.enter(function.profileName(null), function.declaration.line);
+                        }
+                        try {
+                            result = function.callCompiled(safepoint, stack, sp - argc);
+                            if (result == Jit.NOT_RUN) {
+                                // Arguments go straight from the operand stack into the parameter slots.
+                                Frame callFrame = new Frame(function.declaration.layout, function.closure);
+                                System.arraycopy(stack, sp - argc, callFrame.slots, 0, argc);
+                                result = execute(function.chunk, callFrame);
+                            }
+                        } finally {
+                            if (profiler != null) {
+                                profiler.exit();
+                            }
+                        }
+                    } else if (argc <= Interpreter.MAX_FIXED_ARGUMENTS) {
+                        result = interpreter.callFunction(callee, name, argc, argument(stack, sp, argc, 0),
+                                argument(stack, sp, argc, 1), argument(stack, sp, argc, 2), chunk.lines[start]);
+                    } else {
+                        result = interpreter.callFunction(callee, name, popArguments(stack, sp, argc), chunk.lines[start]);
+                    }
+                    for (int i = 0; i < argc; i++) {
+                        stack[--sp] = null;
+                    }
+                    stack[sp - 1] = result;
+                    break;
+                }
+                case OpCode.FUNCTION: {
+                    Chunk.FunctionProto proto = (Chunk.FunctionProto) constants[read16(code, pc)];
+                    frame.slots[read16(code, pc + 2)] = new Function(proto.declaration, frame, proto.chunk);
+                    pc += 4;
+                    break;
+                }
+                case OpCode.CLASS:
+                    stack[sp++] = new ClassValue((String) constants[read16(code, pc)]);
+                    pc += 2;
+                    break;
+                case OpCode.METHOD: {
+                    Chunk.FunctionProto proto = (Chunk.FunctionProto) constants[read16(code, pc)];
+                    ((ClassValue) stack[sp - 1]).defineMethod(proto.declaration.name.value,
+                            new Function(proto.declaration, frame, proto.chunk));
+                    pc += 2;
+                    break;
+                }
+                case OpCode.FIELD: {
+                    Object value = stack[--sp];
+                    stack[sp] = null;
+                    ((ClassValue) stack[sp - 1]).defineField((String) constants[read16(code, pc)], value);
+                    pc += 2;
+                    break;
+                }
+                case OpCode.NEW: {
+                    String className = (String) constants[read16(code, pc)];
+                    int argc = read16(code, pc + 2);
+                    pc += 4;
+                    Object classObj = stack[sp - argc - 1];
+                    if (!(classObj instanceof ClassValue)) {
+                        throw Interpreter.runtimeError(chunk.lines[start], "Attempted to instantiate non-class: " + className);
+                    }
+                    Object result;
+                    if (argc <= Interpreter.MAX_FIXED_ARGUMENTS) {
+                        result = interpreter.instantiate((ClassValue) classObj, argc, argument(stack, sp, argc, 0),
+                                argument(stack, sp, argc, 1), argument(stack, sp, argc, 2), chunk.lines[start]);
+                    } else {
+                        result = interpreter.instantiate((ClassValue) classObj, popArguments(stack, sp, argc), chunk.lines[start]);
+                    }
+                    for (int i = 0; i < argc; i++) {
+                        stack[--sp] = null;
+                    }
+                    stack[sp - 1] = result;
+                    break;
+                }
+                case OpCode.INVOKE: {
+                    MethodCache cache = (MethodCache) constants[read16(code, pc)];
+                    int argc = read16(code, pc + 2);
+                    pc += 4;
+                    Object target = stack[sp - argc - 1];
+                    Object result;
+                    if (argc <= Interpreter.MAX_FIXED_ARGUMENTS) {
+                        result = interpreter.callMethod(target, cache, argc, argument(stack, sp, argc, 0),
+                                argument(stack, sp, argc, 1), argument(stack, sp, argc, 2), chunk.lines[start]);
+                    } else {
+                        result = interpreter.callMethod(target, cache, popArguments(stack, sp, argc), chunk.lines[start]);
+                    }
+                    for (int i = 0; i < argc; i++) {
+                        stack[--sp] = null;
+                    }
+                    stack[sp - 1] = result;
+                    break;
+                }
+                case OpCode.SET_FIELD: {
+                    Object value = stack[--sp];
+                    stack[sp] = null;
+                    stack[sp - 1] = Interpreter.setField(stack[sp - 1], (String) constants[read16(code, pc)], value, chunk.lines[start]);
+                    pc += 2;
+                    break;
+                }
+                case OpCode.GET_FIELD:
+                    stack[sp - 1] = Interpreter.getField(stack[sp - 1], (FieldCache) constants[read16(code, pc)], chunk.lines[start]);
+                    pc += 2;
+                    break;
+
+                case OpCode.LIST: {
+                    int count = read16(code, pc);
+                    pc += 2;
+                    List<Object> list = new ScriptList(count);
+                    for (int i = sp - count; i < sp; i++) {
+                        list.add(stack[i]);
+                    }
+                    for (int i = 0; i < count; i++) {
+                        stack[--sp] = null;
+                    }
+                    stack[sp++] = list;
+                    break;
+                }
+                case OpCode.DICT: {
+                    int count = read16(code, pc);
+                    pc += 2;
+                    ScriptDict dict = new ScriptDict();
+                    for (int i = sp - 2 * count; i < sp; i += 2) {
+                        dict.put(Interpreter.checkKey(stack[i], chunk.lines[start]), stack[i + 1]);
+                    }
+                    for (int i = 0; i < 2 * count; i++) {
+                        stack[--sp] = null;
+                    }
+                    stack[sp++] = dict;
+                    break;
+                }
+                case OpCode.SET: {
+                    int count = read16(code, pc);
+                    pc += 2;
+                    ScriptSet set = new ScriptSet();
+                    for (int i = sp - count; i < sp; i++) {
+                        set.add(Interpreter.checkKey(stack[i], chunk.lines[start]));
+                    }
+                    for (int i = 0; i < count; i++) {
+                        stack[--sp] = null;
+                    }
+                    stack[sp++] = set;
+                    break;
+                }
+                case OpCode.INDEX: {
+                    Object index = stack[--sp];
+                    stack[sp] = null;
+                    stack[sp - 1] = Interpreter.index(stack[sp - 1], index, chunk.lines[start]);
+                    break;
+                }
+                case OpCode.SLICE: {
+                    int flags = read16(code, pc);
+                    pc += 2;
+                    Object step = (flags & 4) != 0 ? stack[--sp] : null;
+                    Object end = (flags & 2) != 0 ? stack[--sp] : null;
+                    Object begin = (flags & 1) != 0 ? stack[--sp] : null;
+                    stack[sp - 1] = Interpreter.slice(stack[sp - 1], begin, end, step, chunk.lines[start]);
+                    break;
+                }
+                case OpCode.INDEX_SET: {
+                    Object value = stack[--sp];
+                    Object index = stack[--sp];
+                    stack[sp - 1] = Interpreter.indexAssign(stack[sp - 1], index, value, chunk.lines[start]);
+                    break;
+                }
+                case OpCode.LOAD_INVARIANT: {
+                    Object value = frame.ancestor(read16(code, pc)).slots[read16(code, pc + 2)];
+                    if (value != Frame.UNSET) {
+                        stack[sp++] = value;
+                        pc = read32(code, pc + 4);
+                    } else {
+                        pc += 8;
+                    }
+                    break;
+                }
+                case OpCode.STORE_INVARIANT:
+                    if (LoopInvariants.cacheable(stack[sp - 1])) {
+                        frame.ancestor(read16(code, pc)).slots[read16(code, pc + 2)] = stack[sp - 1];
+                    }
+                    pc += 4;
+                    break;
+                case OpCode.CLEAR_INVARIANT:
+                    frame.slots[read16(code, pc)] = Frame.UNSET;
+                    pc += 2;
+                    break;
+                case OpCode.ERROR:
+                    throw new RuntimeException((String) constants[read16(code, pc)]);
+                default:
+                    throw new IllegalStateException("Bad opcode " + op + " at " + start + " in " + chunk.name);
+            }
+        }
+    }
+
+    // Source symbol of the operators that always go through Interpreter.binaryOp.
+    private static String symbol(byte op) {
+        switch (op) {
+            case OpCode.DIV: return "/";
+            case OpCode.MOD: return "%";
+            case OpCode.IN: return "in";
+            case OpCode.AND: return "and";
+            default: return "or";
+        }
+    }
+}
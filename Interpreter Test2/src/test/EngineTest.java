@@ -0,0 +1,87 @@
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.Arguments;
+import org.junit.jupiter.params.provider.EnumSource;
+import org.junit.jupiter.params.provider.MethodSource;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+// Runs every script in scripts/ on every engine and compares what it prints with the .expected file,
+// so the engines (and the JIT, see build.gradle) cannot drift apart. A runtime error ends the output
+// with "Error: " and its message, like in the console.
+class EngineTest {
+    static final String[] SCRIPTS = {"basic", "dicts", "jit", "lists", "loops", "ranges", "returns", "scopes"};
+
+    static List<Arguments> runs() {
+        List<Arguments> runs = new ArrayList<>();
+        for (String script : SCRIPTS) {
+            for (Interpreter.Engine engine : Interpreter.Engine.values()) {
+                runs.add(Arguments.of(script, engine));
+            }
+        }
+        return runs;
+    }
+
+    @ParameterizedTest(name = "{0} on {1}")
+    @MethodSource("runs")
+    void printsExpectedOutput(String script, Interpreter.Engine engine) {
+        String expected = read("scripts/" + script + ".expected");
+        assertEquals(expected.stripTrailing(), run(read("scripts/" + script + ".txt"), engine).stripTrailing());
+    }
+
+    // Recursion that is not a tail call needs a JVM stack as deep as the script's calls. With 1 MB of
+    // stack the tree walker of the first version got to deep(1219), the engines must get as far.
+    @ParameterizedTest
+    @EnumSource(value = Interpreter.Engine.class, names = {"TREE", "CLOSURE"})
+    void recursesAsDeepAsTheFirstVersion(Interpreter.Engine engine) throws InterruptedException {
+        String deep = "def deep(n)\n    if n == 0\n        return 0\n    r = deep(n - 1)\n    return r + 1\nprint deep(1000)\n";
+        String[] output = new String[1];
+        Thread thread = new Thread(null, () -> output[0] = run(deep, engine), "deep", 1024 * 1024);
+        thread.start();
+        thread.join();
+        assertEquals("1000\n", output[0]);
+    }
+
+    // Output of a script, the steps are the ones of Runner.
+    static String run(String source, Interpreter.Engine engine) {
+        StringBuilder output = new StringBuilder();
+        Interpreter interpreter = new Interpreter();
+        interpreter.setEngine(engine);
+        interpreter.setOutput(new OutputSink() {
+            @Override
+            public void print(String text) {
+                output.append(text);
+            }
+
+            @Override
+            public void flush() {
+            }
+        });
+        ASTNode program = Optimizer.optimize(new Parser(new Lexer(source)).parse());
+        new Resolver().resolve(program);
+        TypeInference.infer(program);
+        try {
+            interpreter.run(program);
+        } catch (RuntimeException e) {
+            output.append("Error: ").append(e.getMessage()).append('\n');
+        }
+        return output.toString();
+    }
+
+    static String read(String resource) {
+        try (InputStream in = EngineTest.class.getClassLoader().getResourceAsStream(resource)) {
+            if (in == null) {
+                throw new IllegalArgumentException("Missing test resource " + resource);
+            }
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8).replace("\r", "");
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
@@ -0,0 +1,87 @@
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+// Random edits of the test scripts: after every batch the IncrementalLexer tokens and the statements
+// the Parser reuses (Parser.Reuse) must give what a fresh Lexer and Parser give for the whole text,
+// the same tokens and tree or the same error.
+class IncrementalLexerTest {
+    private static final String[] SNIPPETS = {"\n", "    ", "x", " = 1", "if x\n", "\n    print 1\n", "[", "]", "\"",
+            "else if", "else\n", "def f(a)\n    return a\n", "//c", "@", "\t", "{1: 2,\n 3: 4}", "(", ")",
+            "while x < 3\n  x += 1\n", "class A\n    y = 1\n", "1.5", "not ", "\n\n"};
+    private static final int ROUNDS = 60;
+    private static final int STEPS = 40;
+
+    @ParameterizedTest(name = "seed {0}")
+    @ValueSource(longs = {1, 2, 3, 4})
+    void matchesFreshLexAndParse(long seed) {
+        Random random = new Random(seed);
+        for (int round = 0; round < ROUNDS; round++) {
+            String script = EngineTest.SCRIPTS[random.nextInt(EngineTest.SCRIPTS.length)];
+            StringBuilder text = new StringBuilder(EngineTest.read("scripts/" + script + ".txt"));
+            IncrementalLexer lexer = new IncrementalLexer();
+            Parser.Reuse reuse = new Parser.Reuse();
+            for (int step = 0; step < STEPS; step++) {
+                int edits = 1 + random.nextInt(random.nextInt(4) + 1);
+                for (int i = 0; i < edits; i++) {
+                    edit(random, text, lexer);
+                }
+                String source = text.toString();
+                String where = script + ", round " + round + ", step " + step + ":\n" + source;
+                List<Token> tokens = null;
+                String lexed;
+                try {
+                    tokens = lexer.tokens(source);
+                    lexed = tokens.toString();
+                } catch (RuntimeException e) {
+                    lexed = "Error: " + e.getMessage();
+                }
+                assertEquals(lex(source), lexed, where);
+                if (tokens != null) {
+                    String parsed;
+                    try {
+                        parsed = ASTPrinter.print(new Parser(tokens).parse(reuse));
+                    } catch (RuntimeException e) {
+                        parsed = "Error: " + e.getMessage();
+                    }
+                    assertEquals(parse(source), parsed, where);
+                }
+            }
+        }
+    }
+
+    // Deletes a few characters or inserts a letter or a snippet at a random offset.
+    private static void edit(Random random, StringBuilder text, IncrementalLexer lexer) {
+        int offset = random.nextInt(text.length() + 1);
+        if (random.nextBoolean() && text.length() > 0) {
+            int length = Math.min(text.length() - offset, random.nextInt(8));
+            text.delete(offset, offset + length);
+            lexer.edit(offset, length, 0);
+        } else {
+            String inserted = random.nextInt(3) == 0 ? String.valueOf((char) ('a' + random.nextInt(26)))
+                    : SNIPPETS[random.nextInt(SNIPPETS.length)];
+            text.insert(offset, inserted);
+            lexer.edit(offset, 0, inserted.length());
+        }
+    }
+
+    private static String lex(String source) {
+        try {
+            return new Lexer(source).tokenize().toString();
+        } catch (RuntimeException e) {
+            return "Error: " + e.getMessage();
+        }
+    }
+
+    private static String parse(String source) {
+        try {
+            return ASTPrinter.print(new Parser(new Lexer(source).tokenize()).parse());
+        } catch (RuntimeException e) {
+            return "Error: " + e.getMessage();
+        }
+    }
+}
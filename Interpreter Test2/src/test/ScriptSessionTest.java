@@ -0,0 +1,42 @@
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+// The embedding API: what the host puts in the globals on every engine.
+class ScriptSessionTest {
+    // int() and float() are typed as numbers only while they are the built-ins.
+    @ParameterizedTest
+    @EnumSource(Interpreter.Engine.class)
+    void hostCanReplaceTheBuiltins(Interpreter.Engine engine) {
+        ScriptSession session = new ScriptSession();
+        session.setEngine(engine);
+        assertEquals(4.0, session.eval("return int(3) + 1"));
+        session.put("int", (Callable) (interpreter, arguments) -> "x");
+        assertEquals("x1", session.eval("y = int(3) + 1\nreturn y"));
+    }
+
+    // size() only reads, so LoopInvariants asks for it once while the loop does not change the list.
+    @ParameterizedTest
+    @EnumSource(Interpreter.Engine.class)
+    void loopReadsTheSizeOnce(Interpreter.Engine engine) {
+        int[] calls = new int[1];
+        List<Object> items = new ArrayList<>(List.of(1.0, 2.0, 3.0)) {
+            @Override
+            public int size() {
+                calls[0]++;
+                return super.size();
+            }
+        };
+        ScriptSession session = new ScriptSession();
+        session.setEngine(engine);
+        session.put("items", items);
+        assertEquals(3.0, session.eval("i = 0\nwhile i < items.size()\n    i = i + 1\nreturn i"));
+        assertEquals(1, calls[0]);
+        // A loop that appends reads it again every time.
+        assertEquals(5.0, session.eval("while items.size() < 5\n    items.append(0)\nreturn items.size()"));
+    }
+}